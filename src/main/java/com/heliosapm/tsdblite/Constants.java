@@ -18,6 +18,7 @@ package com.heliosapm.tsdblite;
 import java.io.File;
 import java.lang.management.ManagementFactory;
 
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.handler.logging.LogLevel;
 
 /**
@@ -42,6 +43,26 @@ public abstract class Constants {
 	public static final String CONF_NETTY_IFACE = "netty.iface";
 	/** The default main netty bind interface */
 	public static final String DEFAULT_NETTY_IFACE = "0.0.0.0";
+	
+	/** The conf property name for enabling the UDP put listener */
+	public static final String CONF_UDP_ENABLED = "netty.udp.enabled";
+	/** The default UDP put listener enablement */
+	public static final boolean DEFAULT_UDP_ENABLED = false;
+	
+	/** The conf property name for the UDP put listener port */
+	public static final String CONF_UDP_PORT = "netty.udp.port";
+	/** The default UDP put listener port */
+	public static final int DEFAULT_UDP_PORT = 4242;
+	
+	/** The conf property name for the UDP socket receive buffer size (SO_RCVBUF) in bytes */
+	public static final String CONF_UDP_RCVBUF = "netty.udp.rcvbuf";
+	/** The default UDP socket receive buffer size in bytes */
+	public static final int DEFAULT_UDP_RCVBUF = 1024 * 1024 * 2;
+	
+	/** The conf property name for the UDP per packet read buffer size in bytes */
+	public static final String CONF_UDP_MAX_PACKET = "netty.udp.maxpacket";
+	/** The default UDP per packet read buffer size in bytes */
+	public static final int DEFAULT_UDP_MAX_PACKET = 8192;
 
 	/** The conf property name for the JMXMP listening port */
 	public static final String CONF_JMXMP_PORT = "jmxmp.port";
@@ -84,6 +105,16 @@ public abstract class Constants {
 	/** The default netty worker pool thread count */
 	public static final int DEFAULT_NETTY_WORKER_THREADS = CORES * 2;
 	
+	/** The conf property name for the netty transport, <b><code>nio</code></b> or <b><code>epoll</code></b> (linux only) */
+	public static final String CONF_NETTY_TRANSPORT = "netty.transport";
+	/** The default netty transport */
+	public static final String DEFAULT_NETTY_TRANSPORT = "nio";
+	
+	/** The conf property name for the number of listening channels bound to the port with SO_REUSEPORT (epoll only) */
+	public static final String CONF_NETTY_LISTENERS = "netty.listeners";
+	/** The default number of listening channels */
+	public static final int DEFAULT_NETTY_LISTENERS = 1;
+	
 	/** The conf property name for the netty channel group pool thread count */
 	public static final String CONF_NETTY_CGROUP_THREADS = "netty.poolsize.group";
 	/** The default netty channel group pool thread count */
@@ -111,10 +142,259 @@ public abstract class Constants {
 	public static final long DEFAULT_METRIC_EXPIRY = 60000 * 2; // 2 minutes
 	
 	/** The conf property name for the period between expiration runs in ms. */
-	public static final String CONF_METRIC_EXPIRY_PERIOD = "metric.expiry";
+	public static final String CONF_METRIC_EXPIRY_PERIOD = "metric.expiry.period";
 	/** The default period between expiration runs in ms. */
 	public static final long DEFAULT_METRIC_EXPIRY_PERIOD = 10000; // 10 seconds
 	
+	/** The conf property name for the maximum number of MBean registrations the background registrar applies per batch */
+	public static final String CONF_REGISTRAR_BATCH_SIZE = "metric.registrar.batch";
+	/** The default maximum number of MBean registrations the background registrar applies per batch */
+	public static final int DEFAULT_REGISTRAR_BATCH_SIZE = 1024;
+	
+	/** The conf property name for the number of recent points kept in memory per series when chunk storage is disabled. Rounded up to a power of 2, and 0 disables history. */
+	public static final String CONF_HISTORY_SIZE = "metric.history.size";
+	/** The default number of recent points kept in memory per series */
+	public static final int DEFAULT_HISTORY_SIZE = 64;
+	
+	/** The conf property name for the maximum age of the in memory history points returned for a series in ms. */
+	public static final String CONF_HISTORY_WINDOW = "metric.history.window";
+	/** The default maximum age of the in memory history points returned for a series in ms. */
+	public static final long DEFAULT_HISTORY_WINDOW = 60000 * 15; // 15 minutes
+	
+	/** The conf property name for the reorder window in ms., how far behind a series' newest point a late point is still accepted. 0 disables reordering. */
+	public static final String CONF_REORDER_WINDOW = "metric.reorder.window";
+	/** The default reorder window in ms. */
+	public static final long DEFAULT_REORDER_WINDOW = 30000;
+	
+	/** The conf property name for the maximum number of points held per series for reordering */
+	public static final String CONF_REORDER_SIZE = "metric.reorder.size";
+	/** The default maximum number of points held per series for reordering */
+	public static final int DEFAULT_REORDER_SIZE = 64;
+	
+	/** The conf property name for how far ahead of the clock in ms. a point's timestamp may be before the point is rejected. 0 disables the bound. */
+	public static final String CONF_MAX_FUTURE = "metric.maxfuture";
+	/** The default bound in ms. on how far ahead of the clock a point's timestamp may be */
+	public static final long DEFAULT_MAX_FUTURE = 60000 * 60; // 1 hour
+	
+	/** The conf property name for the time span of each compressed series chunk in ms. 0 disables chunk storage. */
+	public static final String CONF_CHUNK_SPAN = "metric.chunk.span";
+	/** The default time span of each compressed series chunk in ms. */
+	public static final long DEFAULT_CHUNK_SPAN = 60000 * 60 * 2; // 2 hours
+	
+	/** The conf property name for the number of sealed compressed chunks retained per series */
+	public static final String CONF_CHUNK_RETAIN = "metric.chunk.retain";
+	/** The default number of sealed compressed chunks retained per series */
+	public static final int DEFAULT_CHUNK_RETAIN = 6;
+	
+	/** The conf property name for the number of off-heap arenas sealed chunks are allocated from */
+	public static final String CONF_CHUNK_ARENAS = "metric.chunk.arenas";
+	/** The default number of off-heap arenas sealed chunks are allocated from */
+	public static final int DEFAULT_CHUNK_ARENAS = PooledByteBufAllocator.defaultNumDirectArena();
+	
+	/** The conf property name for the maximum number of points a channel batches before submitting */
+	public static final String CONF_INGEST_BATCH_SIZE = "ingest.batch.size";
+	/** The default maximum number of points a channel batches before submitting */
+	public static final int DEFAULT_INGEST_BATCH_SIZE = 1024;
+	
+	/** The conf property name for the pending ingest bytes at which reads on ingest channels are paused */
+	public static final String CONF_INGEST_HIGH_WATERMARK = "ingest.watermark.high";
+	/** The default pending ingest bytes at which reads on ingest channels are paused */
+	public static final long DEFAULT_INGEST_HIGH_WATERMARK = 64 * 1024 * 1024;
+	
+	/** The conf property name for the pending ingest bytes at which paused ingest channels resume reading */
+	public static final String CONF_INGEST_LOW_WATERMARK = "ingest.watermark.low";
+	/** The default pending ingest bytes at which paused ingest channels resume reading */
+	public static final long DEFAULT_INGEST_LOW_WATERMARK = 32 * 1024 * 1024;
+	
+	/** The conf property name for the maximum size in bytes of a single JSON point object in a streamed HTTP put body */
+	public static final String CONF_HTTP_PUT_MAX_OBJECT = "http.put.maxobject";
+	/** The default maximum size in bytes of a single JSON point object in a streamed HTTP put body */
+	public static final int DEFAULT_HTTP_PUT_MAX_OBJECT = 64 * 1024;
+	
+	/** The conf property name for the maximum binary protocol frame length in bytes */
+	public static final String CONF_BINARY_MAX_FRAME = "binary.maxframe";
+	/** The default maximum binary protocol frame length in bytes */
+	public static final int DEFAULT_BINARY_MAX_FRAME = 1024 * 1024;
+	
+	/** The conf property name for the maximum number of series a binary protocol connection can register */
+	public static final String CONF_BINARY_MAX_SERIES = "binary.maxseries";
+	/** The default maximum number of series a binary protocol connection can register */
+	public static final int DEFAULT_BINARY_MAX_SERIES = 1024 * 64;
+	
+	// =====================================================================================================
+	// The write-ahead log configs
+	// =====================================================================================================
+	
+	/** The conf property name to enable the write-ahead log */
+	public static final String CONF_WAL_ENABLED = "wal.enabled";
+	/** The default write-ahead log enablement */
+	public static final boolean DEFAULT_WAL_ENABLED = true;
+	
+	/** The conf property name for the write-ahead log directory */
+	public static final String CONF_WAL_DIR = "wal.dir";
+	/** The default write-ahead log directory */
+	public static final String DEFAULT_WAL_DIR = System.getProperty("user.home") + File.separator + ".tsdblite" + File.separator + "wal";
+	
+	/** The conf property name for the size in bytes at which a write-ahead log segment is rolled */
+	public static final String CONF_WAL_SEGMENT_SIZE = "wal.segment.size";
+	/** The default size in bytes at which a write-ahead log segment is rolled */
+	public static final long DEFAULT_WAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+	
+	/** The conf property name for the write-ahead log fsync policy (none, interval or batch) */
+	public static final String CONF_WAL_FSYNC = "wal.fsync";
+	/** The default write-ahead log fsync policy */
+	public static final String DEFAULT_WAL_FSYNC = "interval";
+	
+	/** The conf property name for the write-ahead log fsync interval in ms. when the policy is interval */
+	public static final String CONF_WAL_FSYNC_INTERVAL = "wal.fsync.interval";
+	/** The default write-ahead log fsync interval in ms. */
+	public static final long DEFAULT_WAL_FSYNC_INTERVAL = 1000;
+	
+	/** The conf property name for the age in ms. after which write-ahead log segments are deleted even if never checkpointed */
+	public static final String CONF_WAL_RETENTION = "wal.retention";
+	/** The default age in ms. after which write-ahead log segments are deleted */
+	public static final long DEFAULT_WAL_RETENTION = 60000 * 60 * 12; // 12 hours
+	
+	/** The conf property name for the maximum number of batches waiting for the write-ahead log writer */
+	public static final String CONF_WAL_QUEUE_SIZE = "wal.queue.size";
+	/** The default maximum number of batches waiting for the write-ahead log writer */
+	public static final int DEFAULT_WAL_QUEUE_SIZE = 1024;
+	
+	// =====================================================================================================
+	// The segment store configs
+	// =====================================================================================================
+	
+	/** The conf property name to enable the segment store */
+	public static final String CONF_STORE_ENABLED = "store.enabled";
+	/** The default segment store enablement */
+	public static final boolean DEFAULT_STORE_ENABLED = true;
+	
+	/** The conf property name for the segment store directory */
+	public static final String CONF_STORE_DIR = "store.dir";
+	/** The default segment store directory */
+	public static final String DEFAULT_STORE_DIR = System.getProperty("user.home") + File.separator + ".tsdblite" + File.separator + "data";
+	
+	/** The conf property name for the fixed size in bytes of a segment store file */
+	public static final String CONF_STORE_SEGMENT_SIZE = "store.segment.size";
+	/** The default fixed size in bytes of a segment store file */
+	public static final int DEFAULT_STORE_SEGMENT_SIZE = 64 * 1024 * 1024;
+	
+	// =====================================================================================================
+	// The registry snapshot configs
+	// =====================================================================================================
+	
+	/** The conf property name to enable the series registry snapshot */
+	public static final String CONF_SNAPSHOT_ENABLED = "snapshot.enabled";
+	/** The default series registry snapshot enablement */
+	public static final boolean DEFAULT_SNAPSHOT_ENABLED = true;
+	
+	/** The conf property name for the series registry snapshot file */
+	public static final String CONF_SNAPSHOT_FILE = "snapshot.file";
+	/** The default series registry snapshot file */
+	public static final String DEFAULT_SNAPSHOT_FILE = System.getProperty("user.home") + File.separator + ".tsdblite" + File.separator + "registry.snap";
+	
+	/** The conf property name for the period between series registry snapshots in ms. (0 for shutdown only) */
+	public static final String CONF_SNAPSHOT_PERIOD = "snapshot.period";
+	/** The default period between series registry snapshots in ms. */
+	public static final long DEFAULT_SNAPSHOT_PERIOD = 60000 * 5; // 5 minutes
+	
+	// =====================================================================================================
+	// The rollup configs
+	// =====================================================================================================
+	
+	/** The conf property name to enable rollups */
+	public static final String CONF_ROLLUP_ENABLED = "rollup.enabled";
+	/** The default rollup enablement */
+	public static final boolean DEFAULT_ROLLUP_ENABLED = true;
+	
+	/** The conf property name for the comma separated rollup intervals, each a number with an optional s, m, h or d unit (ms. if none) */
+	public static final String CONF_ROLLUP_INTERVALS = "rollup.intervals";
+	/** The default rollup intervals */
+	public static final String DEFAULT_ROLLUP_INTERVALS = "1m,10m,1h";
+	
+	/** The conf property name for the rollup store directory, which has a sub-directory per interval */
+	public static final String CONF_ROLLUP_DIR = "rollup.dir";
+	/** The default rollup store directory */
+	public static final String DEFAULT_ROLLUP_DIR = System.getProperty("user.home") + File.separator + ".tsdblite" + File.separator + "rollup";
+	
+	/** The conf property name for the fixed size in bytes of a rollup segment file */
+	public static final String CONF_ROLLUP_SEGMENT_SIZE = "rollup.segment.size";
+	/** The default fixed size in bytes of a rollup segment file */
+	public static final int DEFAULT_ROLLUP_SEGMENT_SIZE = 64 * 1024 * 1024;
+	
+	// =====================================================================================================
+	// The retention and compaction configs
+	// =====================================================================================================
+	
+	/** The conf property name for the default retention policy: comma separated <code>tier:age</code> pairs, where the tier is <code>raw</code> or a rollup interval name */
+	public static final String CONF_RETENTION_DEFAULT = "retention.default";
+	/** The default retention policy. A tier with no age is kept. */
+	public static final String DEFAULT_RETENTION_DEFAULT = "raw:2d,1m:30d,10m:90d,1h:365d";
+	
+	/** The conf property name for the metric-name prefix retention policies: semicolon separated <code>prefix=tier:age,...</code> entries. Tiers an entry leaves out follow the default policy. */
+	public static final String CONF_RETENTION_PREFIXES = "retention.prefixes";
+	/** The default metric-name prefix retention policies */
+	public static final String DEFAULT_RETENTION_PREFIXES = "";
+	
+	/** The conf property name to enable background compaction */
+	public static final String CONF_COMPACTION_ENABLED = "compaction.enabled";
+	/** The default background compaction enablement */
+	public static final boolean DEFAULT_COMPACTION_ENABLED = true;
+	
+	/** The conf property name for the period between compaction scans in ms. */
+	public static final String CONF_COMPACTION_PERIOD = "compaction.period";
+	/** The default period between compaction scans in ms. */
+	public static final long DEFAULT_COMPACTION_PERIOD = 60000;
+	
+	/** The conf property name for the compaction thread pool parallelism */
+	public static final String CONF_COMPACTION_THREADS = "compaction.threads";
+	/** The default compaction thread pool parallelism */
+	public static final int DEFAULT_COMPACTION_THREADS = 2;
+	
+	/** The conf property name for the maximum number of segment files merged by one compaction */
+	public static final String CONF_COMPACTION_MAX_SEGMENTS = "compaction.max.segments";
+	/** The default maximum number of segment files merged by one compaction */
+	public static final int DEFAULT_COMPACTION_MAX_SEGMENTS = 8;
+	
+	/** The conf property name for the time span in ms. one compacted block of raw points may cover */
+	public static final String CONF_COMPACTION_BLOCK_SPAN = "compaction.block.span";
+	/** The default time span one compacted block of raw points may cover in ms. */
+	public static final long DEFAULT_COMPACTION_BLOCK_SPAN = 60000L * 60 * 6; // 6 hours
+	
+	// =====================================================================================================
+	// The query configs
+	// =====================================================================================================
+	
+	/** The conf property name for the query thread pool parallelism */
+	public static final String CONF_QUERY_THREADS = "query.threads";
+	/** The default query thread pool parallelism */
+	public static final int DEFAULT_QUERY_THREADS = CORES;
+	
+	/** The conf property name for the maximum number of series one sub query may scan */
+	public static final String CONF_QUERY_MAX_SERIES = "query.max.series";
+	/** The default maximum number of series one sub query may scan */
+	public static final int DEFAULT_QUERY_MAX_SERIES = 100000;
+	
+	/** The conf property name for the maximum number of filled downsampling buckets one sub query may allocate across its series */
+	public static final String CONF_QUERY_MAX_BUCKETS = "query.max.buckets";
+	/** The default maximum number of filled downsampling buckets one sub query may allocate across its series */
+	public static final int DEFAULT_QUERY_MAX_BUCKETS = 10000000;
+	
+	/** The conf property name for the maximum number of raw points one group of a sub query may hold across its series */
+	public static final String CONF_QUERY_MAX_POINTS = "query.max.points";
+	/** The default maximum number of raw points one group of a sub query may hold across its series */
+	public static final int DEFAULT_QUERY_MAX_POINTS = 10000000;
+	
+	/** The conf property name for the size in bytes of each chunk a query response is streamed in */
+	public static final String CONF_QUERY_CHUNK_SIZE = "query.chunk.size";
+	/** The default size in bytes of each chunk a query response is streamed in */
+	public static final int DEFAULT_QUERY_CHUNK_SIZE = 16384;
+	
+	/** The conf property name for the default number of names returned by a suggest request */
+	public static final String CONF_SUGGEST_MAX = "query.suggest.max";
+	/** The default number of names returned by a suggest request */
+	public static final int DEFAULT_SUGGEST_MAX = 25;
+	
 	// =====================================================================================================
 	// The static content server configs
 	// =====================================================================================================
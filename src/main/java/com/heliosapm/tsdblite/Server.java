@@ -16,6 +16,9 @@
 package com.heliosapm.tsdblite;
 
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 
 import javax.management.ObjectName;
@@ -23,26 +26,43 @@ import javax.management.ObjectName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.heliosapm.tsdblite.handlers.IngestThrottle;
 import com.heliosapm.tsdblite.handlers.ProtocolSwitch;
+import com.heliosapm.tsdblite.handlers.text.DatagramPutHandler;
 import com.heliosapm.tsdblite.jmx.ManagedDefaultExecutorServiceFactory;
 import com.heliosapm.tsdblite.metric.MetricCache;
 import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.utils.jmx.JMXHelper;
 
+import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.EventLoop;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.concurrent.DefaultEventExecutor;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 import jsr166e.LongAdder;
@@ -67,6 +87,14 @@ public class Server extends ChannelInitializer<SocketChannel> implements ServerM
 	protected final int port;
 	/** The listening bind interface */
 	protected final String iface;
+	/** The netty transport name */
+	protected final String transport;
+	/** Indicates if the native epoll transport is in use */
+	protected final boolean epoll;
+	/** The number of listening channels */
+	protected final int listeners;
+	/** The number of worker event loops */
+	protected final int workerThreads;
 	/** The netty boss thread pool */
 	protected final ExecutorService bossPool;
 	/** The netty worker thread pool */
@@ -87,8 +115,17 @@ public class Server extends ChannelInitializer<SocketChannel> implements ServerM
 	 /** The channel group holding all the child channels */
 	 protected final ChannelGroup channelGroup;
 	 
-	 /** The server channel */
-	protected NioServerSocketChannel serverChannel = null;
+	 /** The server channels, one per listener */
+	protected final List<Channel> serverChannels = new ArrayList<Channel>();
+	
+	/** The UDP listening port, or -1 if UDP is disabled */
+	protected final int udpPort;
+	/** The ingest backpressure throttle */
+	protected final IngestThrottle ingestThrottle = IngestThrottle.getInstance();
+	/** The UDP put handlers, one per UDP socket. Empty if UDP is disabled */
+	protected final List<DatagramPutHandler> udpHandlers = new ArrayList<DatagramPutHandler>();
+	/** The UDP channels */
+	protected final List<DatagramChannel> udpChannels = new ArrayList<DatagramChannel>();
 	 
 	 /** The server channel logging handler */
 	protected final LoggingHandler loggingHandler;
@@ -129,8 +166,21 @@ public class Server extends ChannelInitializer<SocketChannel> implements ServerM
 		loggingHandler = new LoggingHandler(getClass(), LogLevel.valueOf(serverLevel.trim().toUpperCase()));
 		iface = ConfigurationHelper.getSystemThenEnvProperty(Constants.CONF_NETTY_IFACE, Constants.DEFAULT_NETTY_IFACE);
 		port = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_NETTY_PORT, Constants.DEFAULT_NETTY_PORT);
-		int bossThreads = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_NETTY_BOSS_THREADS, Constants.DEFAULT_NETTY_BOSS_THREADS);
-		int workerThreads = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_NETTY_WORKER_THREADS, Constants.DEFAULT_NETTY_WORKER_THREADS);
+		final String requestedTransport = ConfigurationHelper.getSystemThenEnvProperty(Constants.CONF_NETTY_TRANSPORT, Constants.DEFAULT_NETTY_TRANSPORT).trim().toLowerCase();
+		if("epoll".equals(requestedTransport) && !Epoll.isAvailable()) {
+			log.warn("Epoll transport requested but not available. Falling back to NIO", Epoll.unavailabilityCause());
+		}
+		epoll = "epoll".equals(requestedTransport) && Epoll.isAvailable();
+		transport = epoll ? "epoll" : "nio";
+		int requestedListeners = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_NETTY_LISTENERS, Constants.DEFAULT_NETTY_LISTENERS);
+		if(requestedListeners > 1 && !epoll) {
+			log.warn("SO_REUSEPORT listeners require the epoll transport. Binding one listener.");
+			requestedListeners = 1;
+		}
+		listeners = Math.max(1, requestedListeners);
+		// each listener gets its own acceptor loop
+		int bossThreads = Math.max(listeners, ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_NETTY_BOSS_THREADS, Constants.DEFAULT_NETTY_BOSS_THREADS));
+		workerThreads = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_NETTY_WORKER_THREADS, Constants.DEFAULT_NETTY_WORKER_THREADS);
 		int groupThreads = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_NETTY_CGROUP_THREADS, Constants.DEFAULT_NETTY_CGROUP_THREADS);
 		bossPool = new ManagedDefaultExecutorServiceFactory("bossPool").newExecutorService(bossThreads);
 //		ForkJoinPoolManager.register(bossPool, BOSS_POOL_ON);
@@ -138,24 +188,64 @@ public class Server extends ChannelInitializer<SocketChannel> implements ServerM
 //		ForkJoinPoolManager.register(workerPool, WORKER_POOL_ON);
 		channelGroupPool = new ManagedDefaultExecutorServiceFactory("groupPool").newExecutorService(groupThreads);
 //		ForkJoinPoolManager.register(channelGroupPool, CGROUP_POOL_ON);
-		bossGroup = new NioEventLoopGroup(bossThreads, bossPool, selectorProvider);
-		workerGroup = new NioEventLoopGroup(bossThreads, workerPool, selectorProvider);
+		if(epoll) {
+			bossGroup = new EpollEventLoopGroup(bossThreads, bossPool);
+			workerGroup = new EpollEventLoopGroup(workerThreads, workerPool);
+		} else {
+			bossGroup = new NioEventLoopGroup(bossThreads, bossPool, selectorProvider);
+			workerGroup = new NioEventLoopGroup(workerThreads, workerPool, selectorProvider);
+		}
 		bootStrap = new ServerBootstrap();
 		groupExecutor = new DefaultEventExecutor(channelGroupPool);
 		channelGroup = new DefaultChannelGroup("TSDBLite", groupExecutor);
 		MetricCache.getInstance(); // fire up the metric cache before we start taking calls	
-		log.info("Selector: {}", selectorProvider.getClass().getName());
+		log.info("Transport: {}, Selector: {}, Listeners: {}, Workers: {}", transport, getSelector(), listeners, workerThreads);
+		final Class<? extends ServerChannel> serverChannelType = epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
 		bootStrap.group(bossGroup, workerGroup)
-			.channel(NioServerSocketChannel.class)
+			.channel(serverChannelType)
 			.handler(loggingHandler)
 			.childHandler(this);
+		if(listeners > 1) {
+			bootStrap.option(EpollChannelOption.SO_REUSEPORT, true);
+		}
 		try {
-			serverChannel = (NioServerSocketChannel)bootStrap.bind(iface, port).sync().channel();
+			for(int i = 0; i < listeners; i++) {
+				serverChannels.add(bootStrap.bind(iface, port).sync().channel());
+			}
 		} catch (Exception ex) {			
 			stop();
 			log.error("Failed to bind Netty server on [{}:{}]", iface, port, ex);
 			throw new RuntimeException("Failed to bind Netty server", ex);
 		}
+		if(ConfigurationHelper.getBooleanSystemThenEnvProperty(Constants.CONF_UDP_ENABLED, Constants.DEFAULT_UDP_ENABLED)) {
+			udpPort = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_UDP_PORT, Constants.DEFAULT_UDP_PORT);
+			final int rcvBuf = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_UDP_RCVBUF, Constants.DEFAULT_UDP_RCVBUF);
+			final int maxPacket = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_UDP_MAX_PACKET, Constants.DEFAULT_UDP_MAX_PACKET);
+			final Bootstrap udpBootStrap = new Bootstrap();
+			udpBootStrap.group(workerGroup)
+				.channel(epoll ? EpollDatagramChannel.class : NioDatagramChannel.class)
+				.option(ChannelOption.SO_RCVBUF, rcvBuf)
+				.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(maxPacket));
+			if(listeners > 1) {
+				udpBootStrap.option(EpollChannelOption.SO_REUSEPORT, true);
+			}
+			try {
+				for(int i = 0; i < listeners; i++) {
+					final DatagramPutHandler udpHandler = new DatagramPutHandler(maxPacket);
+					final DatagramChannel udpChannel = (DatagramChannel)udpBootStrap.clone().handler(udpHandler).bind(iface, udpPort).sync().channel();
+					ingestThrottle.register(udpChannel);
+					udpChannels.add(udpChannel);
+					udpHandlers.add(udpHandler);
+				}
+			} catch (Exception ex) {
+				stop();
+				log.error("Failed to bind UDP listener on [{}:{}]", iface, udpPort, ex);
+				throw new RuntimeException("Failed to bind UDP listener", ex);
+			}
+			log.info("UDP listeners [{}] started on [{}:{}], SO_RCVBUF: [{}]", listeners, iface, udpPort, getUdpReceiveBufferSize());
+		} else {
+			udpPort = -1;
+		}
 		JMXHelper.registerMBean(this, OBJECT_NAME);
 		log.info("\n\t======================================\n\tNetty Server started on [{}:{}]\n\t======================================", iface, port);
 	}
@@ -166,6 +256,12 @@ public class Server extends ChannelInitializer<SocketChannel> implements ServerM
 	 */
 	public void stop() {		
 		try { channelGroup.close().awaitUninterruptibly(); } catch (Exception x) {/* No Op */}
+		for(Channel ch: serverChannels) {
+			try { ch.close().awaitUninterruptibly(); } catch (Exception x) {/* No Op */}
+		}
+		for(Channel ch: udpChannels) {
+			try { ch.close().awaitUninterruptibly(); } catch (Exception x) {/* No Op */}
+		}
 		try { bossGroup.shutdownGracefully().awaitUninterruptibly(); } catch (Exception x) {/* No Op */}
 		try { workerGroup.shutdownGracefully().awaitUninterruptibly(); } catch (Exception x) {/* No Op */}
 		try { groupExecutor.shutdownGracefully().awaitUninterruptibly(); } catch (Exception x) {/* No Op */}
@@ -184,6 +280,7 @@ public class Server extends ChannelInitializer<SocketChannel> implements ServerM
 	protected void initChannel(final SocketChannel ch) throws Exception {
 		createdChannels.increment();
 		channelGroup.add(ch);		
+		ingestThrottle.register(ch);
 		ch.closeFuture().addListener(new GenericFutureListener<Future<? super Void>>() {
 			@Override
 			public void operationComplete(Future<? super Void> future) throws Exception {
@@ -234,7 +331,75 @@ public class Server extends ChannelInitializer<SocketChannel> implements ServerM
 	 */
 	@Override
 	public String getSelector() {
-		return selectorProvider.getClass().getName();
+		return epoll ? "epoll" : selectorProvider.getClass().getName();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.ServerMXBean#getTransport()
+	 */
+	@Override
+	public String getTransport() {
+		return transport;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.ServerMXBean#getListeners()
+	 */
+	@Override
+	public int getListeners() {
+		return listeners;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.ServerMXBean#getWorkerThreads()
+	 */
+	@Override
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.ServerMXBean#getWorkerPendingTasks()
+	 */
+	@Override
+	public int[] getWorkerPendingTasks() {
+		final int[] pending = new int[workerThreads];
+		int index = 0;
+		for(EventExecutor executor: workerGroup) {
+			if(index==pending.length) break;
+			pending[index++] = executor instanceof SingleThreadEventExecutor ? ((SingleThreadEventExecutor)executor).pendingTasks() : -1;
+		}
+		return pending;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.ServerMXBean#getWorkerChannels()
+	 */
+	@Override
+	public int[] getWorkerChannels() {
+		final IdentityHashMap<EventLoop, int[]> counts = new IdentityHashMap<EventLoop, int[]>(workerThreads);
+		for(Channel ch: channelGroup) {
+			final EventLoop loop = ch.eventLoop();
+			int[] count = counts.get(loop);
+			if(count==null) {
+				count = new int[1];
+				counts.put(loop, count);
+			}
+			count[0]++;
+		}
+		final int[] channels = new int[workerThreads];
+		int index = 0;
+		for(EventExecutor executor: workerGroup) {
+			if(index==channels.length) break;
+			final int[] count = counts.get(executor);
+			channels[index++] = count==null ? 0 : count[0];
+		}
+		return channels;
 	}
 
 
@@ -256,5 +421,65 @@ public class Server extends ChannelInitializer<SocketChannel> implements ServerM
 	public String getIface() {
 		return iface;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.ServerMXBean#isUdpEnabled()
+	 */
+	@Override
+	public boolean isUdpEnabled() {
+		return !udpHandlers.isEmpty();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.ServerMXBean#getUdpPort()
+	 */
+	@Override
+	public int getUdpPort() {
+		return udpPort;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.ServerMXBean#getUdpReceiveBufferSize()
+	 */
+	@Override
+	public int getUdpReceiveBufferSize() {
+		return udpChannels.isEmpty() ? -1 : udpChannels.get(0).config().getReceiveBufferSize();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.ServerMXBean#getUdpPackets()
+	 */
+	@Override
+	public long getUdpPackets() {
+		long total = 0L;
+		for(DatagramPutHandler handler: udpHandlers) total += handler.getPackets();
+		return total;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.ServerMXBean#getUdpDrops()
+	 */
+	@Override
+	public long getUdpDrops() {
+		long total = 0L;
+		for(DatagramPutHandler handler: udpHandlers) total += handler.getDrops();
+		return total;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.ServerMXBean#getUdpParseErrors()
+	 */
+	@Override
+	public long getUdpParseErrors() {
+		long total = 0L;
+		for(DatagramPutHandler handler: udpHandlers) total += handler.getParseErrors();
+		return total;
+	}
 
 }
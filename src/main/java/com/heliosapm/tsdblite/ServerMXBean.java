@@ -50,6 +50,37 @@ public interface ServerMXBean {
 	 */
 	public String getSelector();
 	
+	/**
+	 * Returns the netty transport in use
+	 * @return the transport name, <b><code>nio</code></b> or <b><code>epoll</code></b>
+	 */
+	public String getTransport();
+	
+	/**
+	 * Returns the number of channels listening on the port.
+	 * More than one means they are bound with SO_REUSEPORT.
+	 * @return the number of listening channels
+	 */
+	public int getListeners();
+	
+	/**
+	 * Returns the number of worker event loops
+	 * @return the number of worker event loops
+	 */
+	public int getWorkerThreads();
+	
+	/**
+	 * Returns the number of pending tasks in each worker event loop
+	 * @return the number of pending tasks indexed by worker event loop
+	 */
+	public int[] getWorkerPendingTasks();
+	
+	/**
+	 * Returns the number of child channels registered with each worker event loop
+	 * @return the number of channels indexed by worker event loop
+	 */
+	public int[] getWorkerChannels();
+	
 	/**
 	 * Returns the listening port
 	 * @return the listening port
@@ -62,6 +93,42 @@ public interface ServerMXBean {
 	 * @return the listening bind interface
 	 */
 	public String getIface();
+	
+	/**
+	 * Indicates if the UDP put listener is enabled
+	 * @return true if the UDP put listener is enabled, false otherwise
+	 */
+	public boolean isUdpEnabled();
+	
+	/**
+	 * Returns the UDP put listener port
+	 * @return the UDP put listener port, or -1 if not enabled
+	 */
+	public int getUdpPort();
+	
+	/**
+	 * Returns the actual UDP socket receive buffer size
+	 * @return the UDP socket receive buffer size in bytes, or -1 if not enabled
+	 */
+	public int getUdpReceiveBufferSize();
+	
+	/**
+	 * Returns the cummulative number of received UDP packets
+	 * @return the cummulative number of received UDP packets
+	 */
+	public long getUdpPackets();
+	
+	/**
+	 * Returns the cummulative number of UDP packets dropped as truncated or oversized
+	 * @return the cummulative number of dropped UDP packets
+	 */
+	public long getUdpDrops();
+	
+	/**
+	 * Returns the cummulative number of UDP put lines that failed to parse
+	 * @return the cummulative number of UDP parse errors
+	 */
+	public long getUdpParseErrors();
 
 
 }
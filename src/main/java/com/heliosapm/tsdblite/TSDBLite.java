@@ -18,6 +18,12 @@ package com.heliosapm.tsdblite;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.heliosapm.tsdblite.metric.RegistrySnapshot;
+import com.heliosapm.tsdblite.query.QueryExecutor;
+import com.heliosapm.tsdblite.rollup.RollupStore;
+import com.heliosapm.tsdblite.store.CompactionScheduler;
+import com.heliosapm.tsdblite.store.SegmentStore;
+import com.heliosapm.tsdblite.store.WriteAheadLog;
 import com.heliosapm.utils.concurrency.ExtendedThreadManager;
 import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.utils.io.StdInCommandHandler;
@@ -52,6 +58,23 @@ public class TSDBLite {
 		final String jmxmpIface = ConfigurationHelper.getSystemThenEnvProperty(Constants.CONF_JMXMP_IFACE, Constants.DEFAULT_JMXMP_IFACE);
 		final int jmxmpPort = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_JMXMP_PORT, Constants.DEFAULT_JMXMP_PORT);
 		JMXHelper.fireUpJMXMPServer(jmxmpIface, jmxmpPort, JMXHelper.getHeliosMBeanServer());
+		if(RegistrySnapshot.isEnabled()) {
+			// warm the series registry before the log replay and before the server binds
+			RegistrySnapshot.getInstance().load();
+		}
+		if(WriteAheadLog.isEnabled()) {
+			// restore the series before the server starts taking traffic
+			WriteAheadLog.getInstance().replay();
+		}
+		if(SegmentStore.isEnabled()) {
+			// only persist chunks sealed from here: those re-sealed by the replay were persisted before the restart
+			SegmentStore.getInstance();
+		}
+		if(RollupStore.isEnabled()) {
+			// same for rollup cells
+			RollupStore.getInstance();
+		}
+		QueryExecutor.getInstance();
 		server = Server.getInstance();
 		final Thread mainThread = Thread.currentThread();
 		StdInCommandHandler.getInstance().registerCommand("stop", new Runnable(){
@@ -60,6 +83,12 @@ public class TSDBLite {
 				if(server!=null) {
 					log.info("Stopping TSDBLite Server.....");
 					server.stop();
+					QueryExecutor.getInstance().close();
+					if(RegistrySnapshot.isEnabled()) RegistrySnapshot.getInstance().write();
+					if(CompactionScheduler.isEnabled()) CompactionScheduler.getInstance().close();
+					if(RollupStore.isEnabled()) RollupStore.getInstance().close();
+					if(SegmentStore.isEnabled()) SegmentStore.getInstance().close();
+					if(WriteAheadLog.isEnabled()) WriteAheadLog.getInstance().close();
 					log.info("TSDBLite Server Stopped. Bye.");
 					mainThread.interrupt();
 				}
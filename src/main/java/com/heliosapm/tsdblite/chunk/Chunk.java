@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.chunk;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: Chunk</p>
+ * <p>Description: An immutable, sealed Gorilla encoded chunk covering one fixed time span of a series.
+ * The bit stream is held off-heap in the {@link ChunkArena}. The chunk is reference counted itself, rather than relying on
+ * the buffer's count, because pooled buffer instances are recycled: a reader must {@link #retain()} the chunk before
+ * reading it and {@link #release()} it afterwards, and the buffer is freed when the last reference goes.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.chunk.Chunk</code></p>
+ */
+
+public class Chunk {
+	/** The start of the time span this chunk covers in ms. */
+	final long start;
+	/** The number of points */
+	final int count;
+	/** The lowest timestamp */
+	final long minTimestamp;
+	/** The highest timestamp */
+	final long maxTimestamp;
+	/** The off-heap bit stream */
+	final ByteBuf data;
+	/** The reference count */
+	private volatile int refs = 1;
+
+	/** The reference count updater */
+	private static final AtomicIntegerFieldUpdater<Chunk> REFS = AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "refs");
+
+	/**
+	 * Creates a new Chunk
+	 * @param start The start of the time span this chunk covers in ms.
+	 * @param count The number of points
+	 * @param minTimestamp The lowest timestamp
+	 * @param maxTimestamp The highest timestamp
+	 * @param data The off-heap bit stream
+	 */
+	Chunk(final long start, final int count, final long minTimestamp, final long maxTimestamp, final ByteBuf data) {
+		this.start = start;
+		this.count = count;
+		this.minTimestamp = minTimestamp;
+		this.maxTimestamp = maxTimestamp;
+		this.data = data;
+	}
+
+	/**
+	 * Acquires a reference to this chunk
+	 * @return true if the reference was acquired, false if the chunk has already been freed
+	 */
+	public boolean retain() {
+		while(true) {
+			final int r = refs;
+			if(r==0) return false;
+			if(REFS.compareAndSet(this, r, r + 1)) return true;
+		}
+	}
+
+	/**
+	 * Releases a reference to this chunk, freeing its memory when the last one is released
+	 */
+	public void release() {
+		if(REFS.decrementAndGet(this)==0) {
+			ChunkArena.getInstance().free(data);
+		}
+	}
+
+	/**
+	 * Returns a reader over this chunk's points. The caller must hold a reference until it has finished reading.
+	 * @return a chunk reader
+	 */
+	public ChunkReader reader() {
+		return new ChunkReader(data, count);
+	}
+
+	/**
+	 * Indicates if any of this chunk's points may fall in the passed range
+	 * @param fromMs The range start in ms., inclusive
+	 * @param toMs The range end in ms., inclusive
+	 * @return true if the chunk overlaps the range
+	 */
+	public boolean overlaps(final long fromMs, final long toMs) {
+		return count > 0 && minTimestamp <= toMs && maxTimestamp >= fromMs;
+	}
+
+	/**
+	 * Returns the start of the time span this chunk covers in ms.
+	 * @return the span start
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Returns the number of points
+	 * @return the number of points
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the lowest timestamp in ms.
+	 * @return the lowest timestamp
+	 */
+	public long getMinTimestamp() {
+		return minTimestamp;
+	}
+
+	/**
+	 * Returns the highest timestamp in ms.
+	 * @return the highest timestamp
+	 */
+	public long getMaxTimestamp() {
+		return maxTimestamp;
+	}
+
+	/**
+	 * Returns a view of the encoded bit stream. The caller must hold a reference while using it.
+	 * @return the encoded bit stream
+	 */
+	public ByteBuf getData() {
+		return data.slice(0, data.writerIndex());
+	}
+
+	/**
+	 * Returns the encoded size in bytes
+	 * @return the encoded size in bytes
+	 */
+	public int getBytes() {
+		return data.writerIndex();
+	}
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.chunk;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PoolChunkListMetric;
+import io.netty.buffer.PoolChunkMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: ChunkArena</p>
+ * <p>Description: The off-heap memory that sealed series chunks are stored in. It is a dedicated pooled direct allocator,
+ * kept apart from the network allocator so its gauges describe chunk storage only. Thread caches are disabled because
+ * chunks are allocated on ingest threads and freed on the expiry thread.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.chunk.ChunkArena</code></p>
+ */
+
+public class ChunkArena implements ChunkArenaMXBean {
+	/** The singleton instance */
+	private static volatile ChunkArena instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The chunk allocator */
+	protected final PooledByteBufAllocator allocator;
+	/** The number of live chunks */
+	protected final AtomicLong chunks = new AtomicLong(0L);
+	/** The encoded bytes held by live chunks */
+	protected final AtomicLong usedBytes = new AtomicLong(0L);
+	/** The bytes allocated to live chunks */
+	protected final AtomicLong allocatedBytes = new AtomicLong(0L);
+	/** A counter of heap fallbacks */
+	protected final LongAdder heapFallbacks = new LongAdder();
+
+	/** The allocator page size */
+	private static final int PAGE_SIZE = 8192;
+	/** The allocator max order, giving 16MB arena chunks */
+	private static final int MAX_ORDER = 11;
+
+	/**
+	 * Acquires the ChunkArena singleton
+	 * @return the ChunkArena singleton
+	 */
+	public static ChunkArena getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new ChunkArena();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private ChunkArena() {
+		final int arenas = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_CHUNK_ARENAS, Constants.DEFAULT_CHUNK_ARENAS);
+		allocator = new PooledByteBufAllocator(true, 0, Math.max(1, arenas), PAGE_SIZE, MAX_ORDER, 0, 0, 0);
+		JMXHelper.registerMBean(this, OBJECT_NAME);
+		log.info("ChunkArena started with [{}] off-heap arenas", allocator.numDirectArenas());
+	}
+
+	/**
+	 * Allocates a buffer for a sealed chunk and copies the passed bit stream into it
+	 * @param words The bit stream
+	 * @param length The number of words to copy
+	 * @return the buffer
+	 */
+	ByteBuf allocate(final long[] words, final int length) {
+		final int bytes = length << 3;
+		ByteBuf buf;
+		try {
+			buf = allocator.directBuffer(bytes, bytes);
+		} catch (OutOfMemoryError oom) {
+			heapFallbacks.increment();
+			if(log.isDebugEnabled()) log.debug("Off-heap chunk memory exhausted, allocating [{}] bytes on the heap", bytes);
+			buf = Unpooled.buffer(bytes, bytes);
+		}
+		for(int i = 0; i < length; i++) {
+			buf.writeLong(words[i]);
+		}
+		chunks.incrementAndGet();
+		usedBytes.addAndGet(bytes);
+		allocatedBytes.addAndGet(buf.capacity());
+		return buf;
+	}
+
+	/**
+	 * Frees a chunk buffer
+	 * @param buf The buffer to free
+	 */
+	void free(final ByteBuf buf) {
+		chunks.decrementAndGet();
+		usedBytes.addAndGet(-buf.writerIndex());
+		allocatedBytes.addAndGet(-buf.capacity());
+		buf.release();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.chunk.ChunkArenaMXBean#getChunks()
+	 */
+	@Override
+	public long getChunks() {
+		return chunks.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.chunk.ChunkArenaMXBean#getUsedBytes()
+	 */
+	@Override
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.chunk.ChunkArenaMXBean#getAllocatedBytes()
+	 */
+	@Override
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.chunk.ChunkArenaMXBean#getReservedBytes()
+	 */
+	@Override
+	public long getReservedBytes() {
+		long reserved = 0L;
+		for(PoolArenaMetric arena: allocator.directArenas()) {
+			for(PoolChunkListMetric list: arena.chunkLists()) {
+				for(PoolChunkMetric chunk: list) {
+					reserved += chunk.chunkSize();
+				}
+			}
+		}
+		return reserved;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.chunk.ChunkArenaMXBean#getFreeBytes()
+	 */
+	@Override
+	public long getFreeBytes() {
+		long free = 0L;
+		for(PoolArenaMetric arena: allocator.directArenas()) {
+			for(PoolChunkListMetric list: arena.chunkLists()) {
+				for(PoolChunkMetric chunk: list) {
+					free += chunk.freeBytes();
+				}
+			}
+		}
+		return free;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.chunk.ChunkArenaMXBean#getInternalFragmentation()
+	 */
+	@Override
+	public int getInternalFragmentation() {
+		final long allocated = allocatedBytes.get();
+		if(allocated==0) return 0;
+		return (int)((allocated - usedBytes.get()) * 100 / allocated);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.chunk.ChunkArenaMXBean#getExternalFragmentation()
+	 */
+	@Override
+	public int getExternalFragmentation() {
+		final long reserved = getReservedBytes();
+		if(reserved==0) return 0;
+		return (int)(getFreeBytes() * 100 / reserved);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.chunk.ChunkArenaMXBean#getArenas()
+	 */
+	@Override
+	public int getArenas() {
+		return allocator.numDirectArenas();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.chunk.ChunkArenaMXBean#getHeapFallbacks()
+	 */
+	@Override
+	public long getHeapFallbacks() {
+		return heapFallbacks.longValue();
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.chunk;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: ChunkArenaMXBean</p>
+ * <p>Description: JMX MXBean for the {@link ChunkArena} instance</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.chunk.ChunkArenaMXBean</code></p>
+ */
+
+public interface ChunkArenaMXBean {
+
+	/** The JMX ObjectName for the {@link ChunkArena}  */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.tsdblite:service=ChunkArena");
+
+	/**
+	 * Returns the number of live chunks allocated from the arena
+	 * @return the number of live chunks
+	 */
+	public long getChunks();
+
+	/**
+	 * Returns the encoded bytes held by live chunks
+	 * @return the encoded bytes
+	 */
+	public long getUsedBytes();
+
+	/**
+	 * Returns the bytes allocated to live chunks, including the allocator's size class rounding
+	 * @return the allocated bytes
+	 */
+	public long getAllocatedBytes();
+
+	/**
+	 * Returns the off-heap memory the arena has reserved from the operating system
+	 * @return the reserved bytes
+	 */
+	public long getReservedBytes();
+
+	/**
+	 * Returns the reserved off-heap memory not currently allocated to any chunk
+	 * @return the free bytes
+	 */
+	public long getFreeBytes();
+
+	/**
+	 * Returns the percentage of allocated bytes lost to size class rounding
+	 * @return the internal fragmentation percentage
+	 */
+	public int getInternalFragmentation();
+
+	/**
+	 * Returns the percentage of reserved bytes that are free
+	 * @return the external fragmentation percentage
+	 */
+	public int getExternalFragmentation();
+
+	/**
+	 * Returns the number of off-heap arenas
+	 * @return the number of arenas
+	 */
+	public int getArenas();
+
+	/**
+	 * Returns the cummulative number of chunks that fell back to the heap because off-heap memory was exhausted
+	 * @return the cummulative number of heap fallbacks
+	 */
+	public long getHeapFallbacks();
+
+}
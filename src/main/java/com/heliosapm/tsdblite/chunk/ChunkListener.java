@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.chunk;
+
+/**
+ * <p>Title: ChunkListener</p>
+ * <p>Description: Notified when a series chunk is sealed, so it can be persisted before memory retention drops it.
+ * Called while the series is locked for appends, so implementations should only copy the chunk, and must not keep it.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.chunk.ChunkListener</code></p>
+ */
+
+public interface ChunkListener {
+	/**
+	 * Called when a chunk is sealed
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 * @param policy The id of the series' retention policy
+	 * @param chunk The sealed chunk
+	 */
+	public void sealed(long hashCode, long hashCodeHigh, int policy, Chunk chunk);
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.chunk;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: ChunkReader</p>
+ * <p>Description: Decodes the points of a Gorilla encoded chunk in write order.</p>
+ * <p>Usage:<pre>
+ * final ChunkReader reader = chunk.reader();
+ * while(reader.next()) {
+ * 	consume(reader.timestamp(), reader.value());
+ * }
+ * </pre></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.chunk.ChunkReader</code></p>
+ */
+
+public class ChunkReader {
+	/** The on-heap bit stream of a head chunk */
+	private final long[] words;
+	/** The off-heap bit stream of a sealed chunk */
+	private final ByteBuf data;
+	/** The number of points to read */
+	private final int count;
+	/** The number of points read */
+	private int read = 0;
+	/** The next bit to read */
+	private int bitPos = 0;
+	/** The current timestamp */
+	private long timestamp;
+	/** The current timestamp delta */
+	private long delta;
+	/** The raw bits of the current value */
+	private long value;
+	/** The leading zeros of the current XOR window */
+	private int leading;
+	/** The trailing zeros of the current XOR window */
+	private int trailing;
+
+	/**
+	 * Creates a new ChunkReader
+	 * @param words The bit stream
+	 * @param count The number of points to read
+	 */
+	ChunkReader(final long[] words, final int count) {
+		this.words = words;
+		this.data = null;
+		this.count = count;
+	}
+
+	/**
+	 * Creates a new ChunkReader
+	 * @param data The bit stream, typically off-heap or file mapped
+	 * @param count The number of points to read
+	 */
+	public ChunkReader(final ByteBuf data, final int count) {
+		this.words = null;
+		this.data = data;
+		this.count = count;
+	}
+
+	/**
+	 * Advances to the next point
+	 * @return true if there was a next point, false if the chunk is exhausted
+	 */
+	public boolean next() {
+		if(read==count) return false;
+		if(read==0) {
+			timestamp = readBits(64);
+			value = readBits(64);
+		} else {
+			delta += readTimestamp();
+			timestamp += delta;
+			readValue();
+		}
+		read++;
+		return true;
+	}
+
+	/**
+	 * Returns the current timestamp in ms.
+	 * @return the current timestamp
+	 */
+	public long timestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns the current value
+	 * @return the current value
+	 */
+	public double value() {
+		return Double.longBitsToDouble(value);
+	}
+
+	/**
+	 * Reads the remaining points, delivering those in the passed range
+	 * @param fromMs The range start in ms., inclusive
+	 * @param toMs The range end in ms., inclusive
+	 * @param sink The sink the points are delivered to
+	 * @return the number of points delivered
+	 */
+	public int read(final long fromMs, final long toMs, final PointSink sink) {
+		int delivered = 0;
+		while(next()) {
+			if(timestamp >= fromMs && timestamp <= toMs) {
+				sink.point(timestamp, value());
+				delivered++;
+			}
+		}
+		return delivered;
+	}
+
+	private long readTimestamp() {
+		if(readBits(1)==0) return 0L;
+		if(readBits(1)==0) return readSigned(14);
+		if(readBits(1)==0) return readSigned(17);
+		if(readBits(1)==0) return readSigned(20);
+		return readBits(64);
+	}
+
+	private void readValue() {
+		if(readBits(1)==0) return;
+		if(readBits(1)==1) {
+			leading = (int)readBits(5);
+			int significant = (int)readBits(6);
+			if(significant==0) significant = 64;
+			trailing = 64 - leading - significant;
+		}
+		value ^= readBits(64 - leading - trailing) << trailing;
+	}
+
+	private long readSigned(final int bits) {
+		final long v = readBits(bits);
+		return v >= (1L << (bits - 1)) ? v - (1L << bits) : v;
+	}
+
+	private long word(final int index) {
+		return words!=null ? words[index] : data.getLong(index << 3);
+	}
+
+	private long readBits(final int bits) {
+		final int index = bitPos >>> 6;
+		final int used = bitPos & 63;
+		final int free = 64 - used;
+		final long v;
+		if(bits <= free) {
+			v = (word(index) << used) >>> (64 - bits);
+		} else {
+			final int rest = bits - free;
+			v = ((word(index) << used) >>> (64 - bits)) | (word(index + 1) >>> (64 - rest));
+		}
+		bitPos += bits;
+		return v;
+	}
+
+}
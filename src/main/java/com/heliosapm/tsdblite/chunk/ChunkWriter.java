@@ -0,0 +1,228 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.chunk;
+
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: ChunkWriter</p>
+ * <p>Description: The appendable head chunk of a series, Gorilla encoded into a <code>long[]</code> bit stream.
+ * The first point is written raw. Each later timestamp is written as a delta of deltas in a
+ * variable width bucket, and each later value as the XOR with the previous value, reusing the previous
+ * leading and trailing zero window where it fits.</p>
+ * <p>There must be one writer at a time. Readers can decode concurrently through {@link #reader()}: a writer
+ * only ever ORs bits in after the published point count, and it publishes a grown array before the count that needs it.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.chunk.ChunkWriter</code></p>
+ */
+
+public class ChunkWriter {
+	/** The start of the time span this chunk covers in ms. */
+	final long start;
+	/** The bit stream */
+	private volatile long[] words;
+	/** The number of published points */
+	private volatile int count = 0;
+	/** The next bit to write */
+	private int bitPos = 0;
+	/** The previous timestamp */
+	private long prevTimestamp;
+	/** The previous timestamp delta */
+	private long prevDelta;
+	/** The raw bits of the previous value */
+	private long prevValue;
+	/** The leading zeros of the current XOR window */
+	private int prevLeading = -1;
+	/** The trailing zeros of the current XOR window */
+	private int prevTrailing = 0;
+	/** The lowest timestamp in the chunk */
+	private long minTimestamp = Long.MAX_VALUE;
+	/** The highest timestamp in the chunk */
+	private long maxTimestamp = Long.MIN_VALUE;
+
+	/** The initial bit stream size in longs */
+	private static final int INITIAL_WORDS = 16;
+	/** The most bits a point takes: a 64 bit delta of delta behind a 4 bit marker, then 64 significant bits behind a new 2 + 5 + 6 bit window */
+	static final int MAX_POINT_BITS = 4 + 64 + 2 + 5 + 6 + 64;
+
+	/**
+	 * Creates a new ChunkWriter
+	 * @param start The start of the time span this chunk covers in ms.
+	 */
+	public ChunkWriter(final long start) {
+		this.start = start;
+		words = new long[INITIAL_WORDS];
+	}
+
+	/**
+	 * Appends a point
+	 * @param timestamp The timestamp in ms.
+	 * @param value The value
+	 */
+	public void append(final long timestamp, final double value) {
+		final long bits = Double.doubleToRawLongBits(value);
+		final int n = count;
+		ensure(bitPos + MAX_POINT_BITS);
+		if(n==0) {
+			writeBits(timestamp, 64);
+			writeBits(bits, 64);
+		} else {
+			final long delta = timestamp - prevTimestamp;
+			writeTimestamp(delta - prevDelta);
+			writeValue(bits ^ prevValue);
+			prevDelta = delta;
+		}
+		prevTimestamp = timestamp;
+		prevValue = bits;
+		if(timestamp < minTimestamp) minTimestamp = timestamp;
+		if(timestamp > maxTimestamp) maxTimestamp = timestamp;
+		count = n + 1;
+	}
+
+	private void writeTimestamp(final long dod) {
+		if(dod==0) {
+			writeBits(0L, 1);
+		} else if(fits(dod, 14)) {
+			writeBits(0x2L, 2);
+			writeBits(dod, 14);
+		} else if(fits(dod, 17)) {
+			writeBits(0x6L, 3);
+			writeBits(dod, 17);
+		} else if(fits(dod, 20)) {
+			writeBits(0xEL, 4);
+			writeBits(dod, 20);
+		} else {
+			writeBits(0xFL, 4);
+			writeBits(dod, 64);
+		}
+	}
+
+	private void writeValue(final long xor) {
+		if(xor==0) {
+			writeBits(0L, 1);
+			return;
+		}
+		int leading = Long.numberOfLeadingZeros(xor);
+		final int trailing = Long.numberOfTrailingZeros(xor);
+		if(leading > 31) leading = 31;
+		if(prevLeading!=-1 && leading >= prevLeading && trailing >= prevTrailing) {
+			writeBits(0x2L, 2);
+			writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+		} else {
+			final int significant = 64 - leading - trailing;
+			writeBits(0x3L, 2);
+			writeBits(leading, 5);
+			// 64 significant bits does not fit in 6 bits, and 0 can never happen, so 0 stands for 64
+			writeBits(significant & 63, 6);
+			writeBits(xor >>> trailing, significant);
+			prevLeading = leading;
+			prevTrailing = trailing;
+		}
+	}
+
+	private static boolean fits(final long v, final int bits) {
+		final long half = 1L << (bits - 1);
+		return v >= -half && v < half;
+	}
+
+	private void writeBits(final long value, final int bits) {
+		final long[] w = words;
+		final int index = bitPos >>> 6;
+		final int free = 64 - (bitPos & 63);
+		final long v = bits==64 ? value : value & ((1L << bits) - 1);
+		if(bits <= free) {
+			w[index] |= v << (free - bits);
+		} else {
+			final int rest = bits - free;
+			w[index] |= v >>> rest;
+			w[index + 1] |= v << (64 - rest);
+		}
+		bitPos += bits;
+	}
+
+	private void ensure(final int bits) {
+		final int needed = (bits + 63) >>> 6;
+		if(needed > words.length) {
+			words = Arrays.copyOf(words, Math.max(needed, words.length * 2));
+		}
+	}
+
+	/**
+	 * Returns a reader over the points published so far
+	 * @return a chunk reader
+	 */
+	public ChunkReader reader() {
+		final int n = count;
+		return new ChunkReader(words, n);
+	}
+
+	/**
+	 * Seals this chunk into an immutable off-heap chunk trimmed to its exact size.
+	 * The writer must not be appended to afterwards.
+	 * @return the sealed chunk
+	 */
+	public Chunk seal() {
+		return new Chunk(start, count, minTimestamp, maxTimestamp, ChunkArena.getInstance().allocate(words, (bitPos + 63) >>> 6));
+	}
+
+	/**
+	 * Writes the encoded bit stream, in whole longs, to the passed buffer
+	 * @param target The buffer to write to
+	 */
+	public void writeTo(final ByteBuf target) {
+		final long[] w = words;
+		for(int i = 0, length = (bitPos + 63) >>> 6; i < length; i++) {
+			target.writeLong(w[i]);
+		}
+	}
+
+	/**
+	 * Returns the lowest timestamp of the points published so far
+	 * @return the lowest timestamp in ms., or {@link Long#MAX_VALUE} if there are none
+	 */
+	public long getMinTimestamp() {
+		// the count is published after the timestamp is updated
+		return count==0 ? Long.MAX_VALUE : minTimestamp;
+	}
+
+	/**
+	 * Returns the start of the time span this chunk covers in ms.
+	 * @return the span start
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Returns the number of points in the chunk
+	 * @return the number of points
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the encoded size in bytes
+	 * @return the encoded size in bytes
+	 */
+	public int getBytes() {
+		return (bitPos + 7) >>> 3;
+	}
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.chunk;
+
+import java.util.Arrays;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.utils.config.ConfigurationHelper;
+
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: SeriesChunks</p>
+ * <p>Description: The compressed in-memory history of one series. Points are appended to a head
+ * {@link ChunkWriter}, which is sealed into an immutable {@link Chunk} when a point arrives for a later time span.
+ * Only the configured number of sealed chunks is retained.
+ * A point whose span has already been sealed is dropped and counted as late.
+ * Sealed chunks are held off-heap and must be explicitly {@link #free()}d when the series goes away.</p>
+ * <p>Each sealed chunk is also handed to the registered {@link ChunkListener}, if any, so it can be persisted before
+ * retention drops it. The head is handed over as well when the series is freed, or on demand through {@link #flush()}.</p>
+ * <p>Appends are serialized on the instance. Reads take no lock and can run while the head is being appended.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.chunk.SeriesChunks</code></p>
+ */
+
+public class SeriesChunks {
+	/** The low 64 bits of the series key */
+	private final long hashCode;
+	/** The high 64 bits of the series key */
+	private final long hashCodeHigh;
+	/** The id of the series' retention policy */
+	private final int policy;
+	/** The sealed chunks, oldest first */
+	private volatile Chunk[] sealed = EMPTY;
+	/** The head chunk, or null until the first point arrives */
+	private volatile ChunkWriter head = null;
+	/** Indicates if the chunks have been freed */
+	private boolean freed = false;
+
+	/** The configured time span of each chunk in ms. */
+	public static final long CHUNK_SPAN;
+	/** The configured number of sealed chunks retained per series */
+	public static final int CHUNK_RETAIN;
+
+	/** A counter of points dropped because their span was already sealed */
+	private static final LongAdder latePoints = new LongAdder();
+	/** The listener notified of sealed chunks */
+	private static volatile ChunkListener listener = null;
+	/** Empty sealed chunks */
+	private static final Chunk[] EMPTY = {};
+
+	static {
+		CHUNK_SPAN = ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_CHUNK_SPAN, Constants.DEFAULT_CHUNK_SPAN);
+		CHUNK_RETAIN = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_CHUNK_RETAIN, Constants.DEFAULT_CHUNK_RETAIN));
+	}
+
+	/**
+	 * Creates a new SeriesChunks, or returns null if chunk storage is disabled
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 * @param policy The id of the series' retention policy
+	 * @return a new SeriesChunks or null
+	 */
+	public static SeriesChunks newInstance(final long hashCode, final long hashCodeHigh, final int policy) {
+		return CHUNK_SPAN < 1 ? null : new SeriesChunks(hashCode, hashCodeHigh, policy);
+	}
+
+	private SeriesChunks(final long hashCode, final long hashCodeHigh, final int policy) {
+		this.hashCode = hashCode;
+		this.hashCodeHigh = hashCodeHigh;
+		this.policy = policy;
+	}
+
+	/**
+	 * Sets the listener notified of every sealed chunk
+	 * @param chunkListener The listener, or null to stop notifications
+	 */
+	public static void setListener(final ChunkListener chunkListener) {
+		listener = chunkListener;
+	}
+
+	/**
+	 * Returns the cummulative number of points dropped because their span was already sealed
+	 * @return the cummulative number of late points
+	 */
+	public static long getLatePoints() {
+		return latePoints.longValue();
+	}
+
+	/**
+	 * Appends a point
+	 * @param timestamp The timestamp in ms.
+	 * @param value The value
+	 * @return true if the point was appended, false if it was late and dropped
+	 */
+	public synchronized boolean append(final long timestamp, final double value) {
+		if(freed) return false;
+		final long start = timestamp - (timestamp % CHUNK_SPAN);
+		ChunkWriter writer = head;
+		if(writer==null || start > writer.start) {
+			if(writer!=null) seal(writer);
+			writer = new ChunkWriter(start);
+			head = writer;
+		} else if(start < writer.start) {
+			latePoints.increment();
+			return false;
+		}
+		writer.append(timestamp, value);
+		return true;
+	}
+
+	/**
+	 * Publishes the sealed head before the new head replaces it, so a reader that reads the head first never misses it
+	 * @param writer The head to seal
+	 */
+	private void seal(final ChunkWriter writer) {
+		final Chunk[] current = sealed;
+		final int keep = Math.min(current.length, CHUNK_RETAIN - 1);
+		final Chunk[] chunks = Arrays.copyOfRange(current, current.length - keep, current.length + 1);
+		final Chunk chunk = writer.seal();
+		chunks[keep] = chunk;
+		sealed = chunks;
+		notify(chunk);
+		for(int i = 0; i < current.length - keep; i++) {
+			current[i].release();
+		}
+	}
+
+	private void notify(final Chunk chunk) {
+		final ChunkListener chunkListener = listener;
+		if(chunkListener!=null && chunk.count > 0) {
+			chunkListener.sealed(hashCode, hashCodeHigh, policy, chunk);
+		}
+	}
+
+	/**
+	 * Hands a sealed copy of the head to the listener, leaving the head open.
+	 * Intended for shutdown: if points are appended afterwards, the whole head is handed over again when it is sealed.
+	 */
+	public synchronized void flush() {
+		final ChunkWriter writer = head;
+		if(freed || writer==null || listener==null) return;
+		final Chunk chunk = writer.seal();
+		try {
+			notify(chunk);
+		} finally {
+			chunk.release();
+		}
+	}
+
+	/**
+	 * Hands the head to the listener and frees the off-heap memory of the sealed chunks. Any later appends are ignored.
+	 */
+	public synchronized void free() {
+		if(freed) return;
+		flush();
+		freed = true;
+		final Chunk[] chunks = sealed;
+		sealed = EMPTY;
+		head = null;
+		for(Chunk chunk: chunks) {
+			chunk.release();
+		}
+	}
+
+	/**
+	 * Reads the points in the passed range, oldest chunk first
+	 * @param fromMs The range start in ms., inclusive
+	 * @param toMs The range end in ms., inclusive
+	 * @param sink The sink the points are delivered to
+	 * @return the number of points delivered
+	 */
+	public int read(final long fromMs, final long toMs, final PointSink sink) {
+		// head first: a chunk sealed in between is then either this head or already in the sealed array
+		final ChunkWriter writer = head;
+		final Chunk[] chunks = sealed;
+		int count = 0;
+		for(Chunk chunk: chunks) {
+			if(writer!=null && chunk.start >= writer.start) break;
+			if(chunk.overlaps(fromMs, toMs) && chunk.retain()) {
+				try {
+					count += chunk.reader().read(fromMs, toMs, sink);
+				} finally {
+					chunk.release();
+				}
+			}
+		}
+		if(writer!=null) {
+			count += writer.reader().read(fromMs, toMs, sink);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the timestamp of the oldest point held in memory
+	 * @return the oldest timestamp in ms., or {@link Long#MAX_VALUE} if no points are held
+	 */
+	public long getMinTimestamp() {
+		final ChunkWriter writer = head;
+		final Chunk[] chunks = sealed;
+		if(chunks.length > 0) return chunks[0].minTimestamp;
+		return writer==null ? Long.MAX_VALUE : writer.getMinTimestamp();
+	}
+
+	/**
+	 * Returns the number of points held
+	 * @return the number of points held
+	 */
+	public int getCount() {
+		final ChunkWriter writer = head;
+		int count = writer==null ? 0 : writer.getCount();
+		for(Chunk chunk: sealed) {
+			count += chunk.count;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the encoded size of the points held in bytes
+	 * @return the encoded size in bytes
+	 */
+	public int getBytes() {
+		final ChunkWriter writer = head;
+		int bytes = writer==null ? 0 : writer.getBytes();
+		for(Chunk chunk: sealed) {
+			bytes += chunk.getBytes();
+		}
+		return bytes;
+	}
+
+}
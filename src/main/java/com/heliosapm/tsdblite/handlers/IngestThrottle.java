@@ -0,0 +1,348 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.handlers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelId;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: IngestThrottle</p>
+ * <p>Description: Global backpressure for ingest channels. Messages handed off from an event loop to another
+ * executor are counted as pending work until that executor has processed them. When the pending bytes reach the high
+ * watermark, auto read is switched off on every registered ingest channel so the kernel socket buffers fill and
+ * senders slow down. Auto read is switched back on when the pending bytes drop to the low watermark.</p>
+ * <p>The hand off is bracketed by two handlers: {@link #acquirer()} on the event loop immediately before the hand off,
+ * and {@link #releaser()} added with the same executor group immediately after it.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.handlers.IngestThrottle</code></p>
+ */
+
+public class IngestThrottle implements IngestThrottleMXBean {
+	/** The singleton instance */
+	private static volatile IngestThrottle instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** The nominal work weight of a message in addition to any buffered bytes it carries */
+	public static final int MESSAGE_WEIGHT = 256;
+
+	/** The channel attribute key for the bytes pending on a channel */
+	private static final AttributeKey<AtomicLong> PENDING_KEY = AttributeKey.valueOf("ingestPending");
+
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The pending bytes at which reads are paused */
+	protected final long highWatermark;
+	/** The pending bytes at which reads resume */
+	protected final long lowWatermark;
+	/** The global pending bytes */
+	protected final AtomicLong pending = new AtomicLong(0L);
+	/** The registered ingest channels */
+	protected final ConcurrentHashMap<ChannelId, Channel> channels = new ConcurrentHashMap<ChannelId, Channel>();
+	/** Indicates if reads are paused */
+	protected volatile boolean paused = false;
+	/** The nano time the current pause started */
+	protected volatile long pauseStart = 0L;
+	/** The cummulative number of pauses */
+	protected final LongAdder pauseCount = new LongAdder();
+	/** The cummulative time paused in nanos, excluding the current pause */
+	protected final LongAdder pausedNanos = new LongAdder();
+
+	/** The handler that counts messages as pending on the way in to the hand off */
+	private final Acquirer acquirer = new Acquirer();
+	/** The handler that releases messages once the downstream handlers have processed them */
+	private final Releaser releaser = new Releaser();
+
+	/** Removes closed channels and releases their outstanding pending bytes */
+	private final ChannelFutureListener closeListener = new ChannelFutureListener() {
+		@Override
+		public void operationComplete(final ChannelFuture future) throws Exception {
+			deregister(future.channel());
+		}
+	};
+
+	/**
+	 * Acquires and returns the IngestThrottle singleton
+	 * @return the IngestThrottle singleton
+	 */
+	public static IngestThrottle getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new IngestThrottle();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private IngestThrottle() {
+		highWatermark = ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_INGEST_HIGH_WATERMARK, Constants.DEFAULT_INGEST_HIGH_WATERMARK);
+		final long low = ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_INGEST_LOW_WATERMARK, Constants.DEFAULT_INGEST_LOW_WATERMARK);
+		if(low >= highWatermark) {
+			log.warn("Ingest low watermark [{}] is not below the high watermark [{}]. Using half the high watermark.", low, highWatermark);
+			lowWatermark = highWatermark / 2;
+		} else {
+			lowWatermark = low;
+		}
+		JMXHelper.registerMBean(this, OBJECT_NAME);
+		log.info("IngestThrottle started. High watermark: [{}], Low watermark: [{}]", highWatermark, lowWatermark);
+	}
+
+	/**
+	 * Registers an ingest channel so its reads are paused and resumed with the throttle.
+	 * The channel is deregistered when it closes.
+	 * @param channel The channel to register
+	 */
+	public void register(final Channel channel) {
+		channel.attr(PENDING_KEY).set(new AtomicLong(0L));
+		channels.put(channel.id(), channel);
+		channel.closeFuture().addListener(closeListener);
+		// a channel registered while paused starts paused
+		if(paused) channel.config().setAutoRead(false);
+	}
+
+	/**
+	 * Deregisters an ingest channel and releases any pending bytes it still holds
+	 * @param channel The channel to deregister
+	 */
+	protected void deregister(final Channel channel) {
+		channels.remove(channel.id());
+		final AtomicLong channelPending = channel.attr(PENDING_KEY).get();
+		if(channelPending!=null) {
+			final long remaining = channelPending.getAndSet(0L);
+			if(remaining > 0L) release(remaining);
+		}
+	}
+
+	/**
+	 * Returns the handler to add on the event loop immediately before a hand off to another executor
+	 * @return the acquiring handler
+	 */
+	public ChannelInboundHandlerAdapter acquirer() {
+		return acquirer;
+	}
+
+	/**
+	 * Returns the handler to add with the hand off executor group, ahead of the handlers it runs
+	 * @return the releasing handler
+	 */
+	public ChannelInboundHandlerAdapter releaser() {
+		return releaser;
+	}
+
+	/**
+	 * Computes the work weight of a message
+	 * @param msg The message
+	 * @return the weight in bytes
+	 */
+	static long weight(final Object msg) {
+		if(msg instanceof ByteBuf) return MESSAGE_WEIGHT + ((ByteBuf)msg).readableBytes();
+		if(msg instanceof ByteBufHolder) return MESSAGE_WEIGHT + ((ByteBufHolder)msg).content().readableBytes();
+		return MESSAGE_WEIGHT;
+	}
+
+	/**
+	 * Adds pending bytes, pausing reads if the high watermark is reached
+	 * @param bytes The number of bytes
+	 */
+	protected void acquire(final long bytes) {
+		if(pending.addAndGet(bytes) >= highWatermark && !paused) pause();
+	}
+
+	/**
+	 * Removes pending bytes, resuming reads if the low watermark is reached
+	 * @param bytes The number of bytes
+	 */
+	protected void release(final long bytes) {
+		if(pending.addAndGet(-bytes) <= lowWatermark && paused) resume();
+	}
+
+	private synchronized void pause() {
+		if(paused || pending.get() < highWatermark) return;
+		paused = true;
+		pauseStart = System.nanoTime();
+		pauseCount.increment();
+		for(Channel channel: channels.values()) {
+			channel.config().setAutoRead(false);
+		}
+		log.warn("Ingest paused. Pending bytes: [{}], Channels: [{}]", pending.get(), channels.size());
+	}
+
+	private synchronized void resume() {
+		if(!paused || pending.get() > lowWatermark) return;
+		final long elapsed = System.nanoTime() - pauseStart;
+		pausedNanos.add(elapsed);
+		paused = false;
+		for(Channel channel: channels.values()) {
+			channel.config().setAutoRead(true);
+		}
+		log.info("Ingest resumed after [{}] ms. Pending bytes: [{}]", TimeUnit.NANOSECONDS.toMillis(elapsed), pending.get());
+	}
+
+	/**
+	 * <p>Title: Acquirer</p>
+	 * <p>Description: Counts each message as pending work before passing it on</p> 
+	 */
+	@Sharable
+	private class Acquirer extends ChannelInboundHandlerAdapter {
+		@Override
+		public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+			final long weight = weight(msg);
+			final AtomicLong channelPending = ctx.channel().attr(PENDING_KEY).get();
+			if(channelPending!=null) {
+				channelPending.addAndGet(weight);
+				acquire(weight);
+			}
+			ctx.fireChannelRead(msg);
+		}
+	}
+
+	/**
+	 * <p>Title: Releaser</p>
+	 * <p>Description: Releases each message's pending work once the downstream handlers have processed it</p> 
+	 */
+	@Sharable
+	private class Releaser extends ChannelInboundHandlerAdapter {
+		@Override
+		public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+			// the downstream handlers may consume the message, so weigh it first
+			final long weight = weight(msg);
+			try {
+				ctx.fireChannelRead(msg);
+			} finally {
+				final AtomicLong channelPending = ctx.channel().attr(PENDING_KEY).get();
+				if(channelPending!=null && releaseFrom(channelPending, weight)) {
+					release(weight);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decrements a channel's pending bytes unless the channel has already been deregistered and zeroed
+	 * @param channelPending The channel's pending bytes
+	 * @param weight The bytes to release
+	 * @return true if the bytes were released from the channel, false otherwise
+	 */
+	private static boolean releaseFrom(final AtomicLong channelPending, final long weight) {
+		while(true) {
+			final long current = channelPending.get();
+			if(current < weight) return false;
+			if(channelPending.compareAndSet(current, current - weight)) return true;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.handlers.IngestThrottleMXBean#getPendingBytes()
+	 */
+	@Override
+	public long getPendingBytes() {
+		return pending.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.handlers.IngestThrottleMXBean#getHighWatermark()
+	 */
+	@Override
+	public long getHighWatermark() {
+		return highWatermark;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.handlers.IngestThrottleMXBean#getLowWatermark()
+	 */
+	@Override
+	public long getLowWatermark() {
+		return lowWatermark;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.handlers.IngestThrottleMXBean#isPaused()
+	 */
+	@Override
+	public boolean isPaused() {
+		return paused;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.handlers.IngestThrottleMXBean#getChannels()
+	 */
+	@Override
+	public int getChannels() {
+		return channels.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.handlers.IngestThrottleMXBean#getPausedChannels()
+	 */
+	@Override
+	public int getPausedChannels() {
+		int count = 0;
+		for(Channel channel: channels.values()) {
+			if(!channel.config().isAutoRead()) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.handlers.IngestThrottleMXBean#getPauseCount()
+	 */
+	@Override
+	public long getPauseCount() {
+		return pauseCount.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.handlers.IngestThrottleMXBean#getPausedTime()
+	 */
+	@Override
+	public long getPausedTime() {
+		long nanos = pausedNanos.longValue();
+		if(paused) nanos += System.nanoTime() - pauseStart;
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.handlers;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: IngestThrottleMXBean</p>
+ * <p>Description: JMX MXBean for the {@link IngestThrottle} instance</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.handlers.IngestThrottleMXBean</code></p>
+ */
+
+public interface IngestThrottleMXBean {
+
+	/** The JMX ObjectName for the {@link IngestThrottle}  */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.tsdblite:service=IngestThrottle");
+
+	/**
+	 * Returns the number of ingest bytes read but not yet processed
+	 * @return the number of pending ingest bytes
+	 */
+	public long getPendingBytes();
+
+	/**
+	 * Returns the pending ingest bytes at which reads are paused
+	 * @return the high watermark in bytes
+	 */
+	public long getHighWatermark();
+
+	/**
+	 * Returns the pending ingest bytes at which paused reads resume
+	 * @return the low watermark in bytes
+	 */
+	public long getLowWatermark();
+
+	/**
+	 * Indicates if reads on ingest channels are currently paused
+	 * @return true if paused, false otherwise
+	 */
+	public boolean isPaused();
+
+	/**
+	 * Returns the number of registered ingest channels
+	 * @return the number of registered ingest channels
+	 */
+	public int getChannels();
+
+	/**
+	 * Returns the number of registered ingest channels that currently have reads paused
+	 * @return the number of paused ingest channels
+	 */
+	public int getPausedChannels();
+
+	/**
+	 * Returns the cummulative number of times reads were paused
+	 * @return the cummulative number of pauses
+	 */
+	public long getPauseCount();
+
+	/**
+	 * Returns the cummulative time reads have been paused in ms, including any current pause
+	 * @return the cummulative paused time in ms.
+	 */
+	public long getPausedTime();
+
+}
@@ -27,10 +27,10 @@ import org.slf4j.LoggerFactory;
 
 import com.heliosapm.tsdblite.Constants;
 import com.heliosapm.tsdblite.Server;
+import com.heliosapm.tsdblite.handlers.binary.BinaryTraceDecoder;
 import com.heliosapm.tsdblite.handlers.http.HttpStaticFileServerHandler;
 import com.heliosapm.tsdblite.handlers.http.HttpSwitch;
-import com.heliosapm.tsdblite.handlers.text.StringArrayTraceDecoder;
-import com.heliosapm.tsdblite.handlers.text.WordSplitter;
+import com.heliosapm.tsdblite.handlers.text.PutTraceDecoder;
 import com.heliosapm.tsdblite.jmx.ManagedDefaultExecutorServiceFactory;
 import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.utils.jmx.JMXHelper;
@@ -39,11 +39,9 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.ByteToMessageDecoder;
-import io.netty.handler.codec.LineBasedFrameDecoder;
 import io.netty.handler.codec.compression.ZlibCodecFactory;
 import io.netty.handler.codec.compression.ZlibWrapper;
 import io.netty.handler.codec.http.HttpContentDecompressor;
-import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.string.StringEncoder;
 import io.netty.handler.logging.LogLevel;
@@ -73,8 +71,6 @@ public class ProtocolSwitch extends ByteToMessageDecoder {
 
 	
     private static final StringEncoder PLAINTEXT_ENCODER = new StringEncoder();
-    private static final WordSplitter PLAINTEXT_DECODER = new WordSplitter();
-    private static final StringArrayTraceDecoder TRACE_DECODER = new StringArrayTraceDecoder();
     private final HttpSwitch HTTP_SWITCH = new HttpSwitch(eventExecutorGroup); 
     /** The child channel logging handler */
     @SuppressWarnings("unused")
@@ -137,6 +133,9 @@ public class ProtocolSwitch extends ByteToMessageDecoder {
         } else if (isHttp(magic1, magic2)) {
             switchToHttp(ctx);
             log.info("Switched to HTTP on channel [{}]", ctx.channel().id().asShortText());
+        } else if (BinaryTraceDecoder.isBinary(magic1, magic2)) {
+        	switchToBinary(ctx);
+        	log.info("Switched to Binary on channel [{}]", ctx.channel().id().asShortText());
         } else if (isText(magic1, magic2)) {
         	switchToPlainText(ctx);
         	log.info("Switched to PlainText on channel [{}]", ctx.channel().id().asShortText());
@@ -184,7 +183,7 @@ public class ProtocolSwitch extends ByteToMessageDecoder {
 //        p.addLast("logging", loggingHandler);
         //WebSocketServerHandler
         //p.addLast(eventExecutorGroup, "requestManager", new WebSocketServerHandler());
-        p.addLast(new HttpObjectAggregator(1048576 * 2));
+        // requests are aggregated per route by the http switch so put bodies can be streamed
         p.addLast("httpSwitch", HTTP_SWITCH);
 //        p.addLast(eventExecutorGroup, "requestManager", HttpRequestManager.getInstance());
 //        p.addLast("requestManager", HttpRequestManager.getInstance());        
@@ -193,12 +192,16 @@ public class ProtocolSwitch extends ByteToMessageDecoder {
     
 
     
+    private void switchToBinary(ChannelHandlerContext ctx) {
+        ChannelPipeline p = ctx.pipeline();
+        p.addLast("binaryDecoder", new BinaryTraceDecoder());
+        p.remove(this);
+    }
+    
     private void switchToPlainText(ChannelHandlerContext ctx) {
         ChannelPipeline p = ctx.pipeline();
-        p.addLast("framer", new LineBasedFrameDecoder(1024));
         p.addLast("encoder", PLAINTEXT_ENCODER);
-        p.addLast("decoder", PLAINTEXT_DECODER);
-        p.addLast("traceDecoder", TRACE_DECODER);        
+        p.addLast("putDecoder", new PutTraceDecoder());
         p.remove(this);    	
         log.info("switched to plain text: [{}]", ctx.channel().id());
     }
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.handlers.binary;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.handlers.text.PutTraceDecoder;
+import com.heliosapm.tsdblite.metric.AppMetric;
+import com.heliosapm.tsdblite.metric.Metric;
+import com.heliosapm.tsdblite.metric.MetricCache;
+import com.heliosapm.tsdblite.metric.SeriesKeyBuilder;
+import com.heliosapm.tsdblite.metric.TraceBatch;
+import com.heliosapm.utils.config.ConfigurationHelper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+/**
+ * <p>Title: BinaryTraceDecoder</p>
+ * <p>Description: Decodes the compact binary ingest protocol. All integers are big endian.</p>
+ * <p>A connection opens with a 4 byte header: {@link #MAGIC1}, {@link #MAGIC2}, the protocol {@link #VERSION} and a
+ * zero flags byte. The first byte is not printable, so {@link com.heliosapm.tsdblite.handlers.ProtocolSwitch} can tell the
+ * protocol apart from text, HTTP and gzip. The header is followed by frames of <b><code>[int length][byte type][payload]</code></b>,
+ * where the length counts the type byte and the payload.</p>
+ * <ul>
+ * 	<li>{@link #REGISTER}: <b><code>[short len][metric name]{[short len][tag key][short len][tag value]}*</code></b>, strings in UTF-8.
+ * 	The server replies with a {@link #REGISTERED} frame carrying the <b><code>int</code></b> series id, or an {@link #ERROR} frame.
+ * 	Replies are sent in request order and ids are only valid on the connection that registered them.</li>
+ * 	<li>{@link #LONG_POINTS} and {@link #DOUBLE_POINTS}: any number of fixed width {@link #RECORD_SIZE} byte records of
+ * 	<b><code>[int series id][long timestamp][long or double value]</code></b>. Timestamps are in seconds or ms. like the text protocol.</li>
+ * </ul>
+ * <p>Server {@link #ERROR} frames carry a UTF-8 message. A malformed frame is answered with an error and the connection is closed.
+ * Points for a registered series are added to the batch from a per connection table, so known series are never parsed or hashed.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.handlers.binary.BinaryTraceDecoder</code></p>
+ */
+
+public class BinaryTraceDecoder extends ByteToMessageDecoder {
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The endpoint where metrics are submitted to */
+	protected final MetricCache metricCache = MetricCache.getInstance();
+	/** The series key builder for registrations */
+	protected final SeriesKeyBuilder seriesKey = new SeriesKeyBuilder();
+	/** The batch of points decoded in the current read */
+	protected final TraceBatch batch = new TraceBatch();
+	/** The registered series, indexed by series id */
+	protected AppMetric[] series = new AppMetric[64];
+	/** The number of registered series */
+	protected int seriesCount = 0;
+	/** Indicates if the connection header has been read */
+	protected boolean headerRead = false;
+	/** Indicates if responses have been written and need flushing */
+	protected boolean pendingFlush = false;
+
+	/** The first header byte */
+	public static final int MAGIC1 = 0xB7;
+	/** The second header byte */
+	public static final int MAGIC2 = 'T';
+	/** The protocol version */
+	public static final int VERSION = 1;
+	/** The header length in bytes */
+	public static final int HEADER_SIZE = 4;
+
+	/** Client frame type to register a series */
+	public static final byte REGISTER = 1;
+	/** Client frame type for long value points */
+	public static final byte LONG_POINTS = 2;
+	/** Client frame type for double value points */
+	public static final byte DOUBLE_POINTS = 3;
+	/** Server frame type acknowledging a registration */
+	public static final byte REGISTERED = (byte)0x81;
+	/** Server frame type for an error */
+	public static final byte ERROR = (byte)0xFF;
+
+	/** The size of a point record in bytes */
+	public static final int RECORD_SIZE = 4 + 8 + 8;
+
+	/** The maximum frame length */
+	public static final int MAX_FRAME_LENGTH = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_BINARY_MAX_FRAME, Constants.DEFAULT_BINARY_MAX_FRAME);
+	/** The maximum number of series a connection can register */
+	public static final int MAX_SERIES = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_BINARY_MAX_SERIES, Constants.DEFAULT_BINARY_MAX_SERIES);
+
+	/** The UTF8 character set */
+	private static final Charset UTF8 = Charset.forName("UTF8");
+
+	/**
+	 * Indicates if the passed leading unsigned bytes are a binary protocol header
+	 * @param magic1 The first unsigned byte
+	 * @param magic2 The second unsigned byte
+	 * @return true if the bytes match the header, false otherwise
+	 */
+	public static boolean isBinary(final int magic1, final int magic2) {
+		return magic1 == MAGIC1 && magic2 == MAGIC2;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.codec.ByteToMessageDecoder#decode(io.netty.channel.ChannelHandlerContext, io.netty.buffer.ByteBuf, java.util.List)
+	 */
+	@Override
+	protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) throws Exception {
+		if(!headerRead) {
+			if(in.readableBytes() < HEADER_SIZE) return;
+			final int ri = in.readerIndex();
+			final int version = in.getUnsignedByte(ri + 2);
+			if(!isBinary(in.getUnsignedByte(ri), in.getUnsignedByte(ri + 1)) || version != VERSION) {
+				fatal(ctx, in, "unsupported protocol version [" + version + "]");
+				return;
+			}
+			in.skipBytes(HEADER_SIZE);
+			headerRead = true;
+		}
+		while(in.readableBytes() >= 4) {
+			final int ri = in.readerIndex();
+			final int length = in.getInt(ri);
+			if(length < 1 || length > MAX_FRAME_LENGTH) {
+				fatal(ctx, in, "invalid frame length [" + length + "]");
+				return;
+			}
+			if(in.readableBytes() < 4 + length) return;
+			final int start = ri + 5;
+			final int end = ri + 4 + length;
+			final byte type = in.getByte(ri + 4);
+			in.readerIndex(end);
+			switch(type) {
+				case LONG_POINTS:
+				case DOUBLE_POINTS:
+					if((end - start) % RECORD_SIZE != 0) {
+						fatal(ctx, in, "points frame length [" + (end - start) + "] is not a multiple of " + RECORD_SIZE);
+						return;
+					}
+					points(ctx, in, start, end, type==DOUBLE_POINTS);
+					break;
+				case REGISTER:
+					register(ctx, in, start, end);
+					break;
+				default:
+					fatal(ctx, in, "unknown frame type [" + type + "]");
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Adds the point records in the passed region to the batch
+	 * @param ctx The channel handler context
+	 * @param in The buffer
+	 * @param start The offset of the first record
+	 * @param end The end offset (exclusive)
+	 * @param doubleType true for double values, false for long values
+	 */
+	protected void points(final ChannelHandlerContext ctx, final ByteBuf in, final int start, final int end, final boolean doubleType) {
+		int unknown = 0;
+		for(int i = start; i < end; i += RECORD_SIZE) {
+			final int id = in.getInt(i);
+			final AppMetric appMetric = resolve(id);
+			if(appMetric==null) {
+				unknown++;
+				continue;
+			}
+			final long timestamp = in.getLong(i + 4);
+			if(doubleType) {
+				batch.add(appMetric, true, -1L, in.getDouble(i + 12), timestamp);
+			} else {
+				batch.add(appMetric, false, in.getLong(i + 12), -1d, timestamp);
+			}
+			if(batch.size() >= PutTraceDecoder.MAX_BATCH_SIZE) metricCache.submit(batch);
+		}
+		if(unknown > 0) {
+			metricCache.badMetric(unknown);
+			error(ctx, "[" + unknown + "] points for unregistered series ids");
+		}
+	}
+
+	/**
+	 * Returns the registered metric for the passed series id, re-resolving it if the cached one has expired
+	 * @param id The series id
+	 * @return the AppMetric or null if the id is not registered
+	 */
+	protected AppMetric resolve(final int id) {
+		if(id < 0 || id >= seriesCount) return null;
+		AppMetric appMetric = series[id];
+		if(appMetric.isExpired()) {
+			final Metric metric = appMetric.getMetricInstance();
+			appMetric = metricCache.getAppMetric(seriesKey.reset().metric(metric.getMetricName()).tags(metric.getTags()).build());
+			series[id] = appMetric;
+		}
+		return appMetric;
+	}
+
+	/**
+	 * Registers the series in the passed region and replies with its id or an error
+	 * @param ctx The channel handler context
+	 * @param in The buffer
+	 * @param start The offset of the registration payload
+	 * @param end The end offset (exclusive)
+	 */
+	protected void register(final ChannelHandlerContext ctx, final ByteBuf in, final int start, final int end) {
+		if(seriesCount==MAX_SERIES) {
+			metricCache.badMetric();
+			error(ctx, "too many series registered (maximum is " + MAX_SERIES + ")");
+			return;
+		}
+		final AppMetric appMetric;
+		try {
+			seriesKey.reset();
+			int pos = start;
+			final int nameEnd = string(in, pos, end);
+			seriesKey.metric(in, pos + 2, nameEnd);
+			pos = nameEnd;
+			while(pos < end) {
+				final int keyEnd = string(in, pos, end);
+				final int valueEnd = string(in, keyEnd, end);
+				seriesKey.tag(in, pos + 2, keyEnd, keyEnd + 2, valueEnd);
+				pos = valueEnd;
+			}
+			appMetric = metricCache.getAppMetric(seriesKey.build());
+		} catch (RuntimeException rex) {
+			metricCache.badMetric();
+			error(ctx, rex.getMessage()==null ? rex.toString() : rex.getMessage());
+			return;
+		}
+		if(seriesCount==series.length) series = Arrays.copyOf(series, Math.min(series.length * 2, MAX_SERIES));
+		final int id = seriesCount++;
+		series[id] = appMetric;
+		final ByteBuf reply = ctx.alloc().buffer(9);
+		reply.writeInt(5).writeByte(REGISTERED).writeInt(id);
+		ctx.write(reply);
+		pendingFlush = true;
+	}
+
+	/**
+	 * Validates the length prefixed string at the passed offset
+	 * @param in The buffer
+	 * @param pos The offset of the string's length prefix
+	 * @param end The end offset of the enclosing frame (exclusive)
+	 * @return the end offset of the string (exclusive)
+	 */
+	private static int string(final ByteBuf in, final int pos, final int end) {
+		if(pos + 2 > end) throw new IllegalArgumentException("truncated registration");
+		final int stringEnd = pos + 2 + in.getUnsignedShort(pos);
+		if(stringEnd > end) throw new IllegalArgumentException("truncated registration");
+		return stringEnd;
+	}
+
+	/**
+	 * Writes an error frame back to the caller
+	 * @param ctx The channel handler context
+	 * @param message The error message
+	 */
+	protected void error(final ChannelHandlerContext ctx, final String message) {
+		final byte[] bytes = message.getBytes(UTF8);
+		final ByteBuf reply = ctx.alloc().buffer(5 + bytes.length);
+		reply.writeInt(1 + bytes.length).writeByte(ERROR).writeBytes(bytes);
+		ctx.write(reply);
+		pendingFlush = true;
+	}
+
+	/**
+	 * Writes an error frame, discards the rest of the input and closes the connection
+	 * @param ctx The channel handler context
+	 * @param in The input buffer
+	 * @param message The error message
+	 */
+	protected void fatal(final ChannelHandlerContext ctx, final ByteBuf in, final String message) {
+		log.warn("Closing binary channel [{}]: {}", ctx.channel().id().asShortText(), message);
+		in.skipBytes(in.readableBytes());
+		metricCache.submit(batch);
+		error(ctx, message);
+		pendingFlush = false;
+		ctx.flush();
+		ctx.close();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.codec.ByteToMessageDecoder#channelReadComplete(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+		metricCache.submit(batch);
+		if(pendingFlush) {
+			pendingFlush = false;
+			ctx.flush();
+		}
+		super.channelReadComplete(ctx);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.codec.ByteToMessageDecoder#handlerRemoved0(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	protected void handlerRemoved0(final ChannelHandlerContext ctx) throws Exception {
+		metricCache.submit(batch);
+		Arrays.fill(series, 0, seriesCount, null);
+	}
+
+}
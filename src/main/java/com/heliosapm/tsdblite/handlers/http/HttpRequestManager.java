@@ -99,6 +99,8 @@ public class HttpRequestManager extends SimpleChannelInboundHandler<HttpRequest>
 		favSize = favicon.readableBytes();
 		log.info("Loaded favicon: [{}] Bytes", favSize);
 		requestHandlers.put("/api/put", new SubmitTracesHandler());		
+		requestHandlers.put("/api/query", new QueryHandler());
+		requestHandlers.put("/api/suggest", new SuggestHandler());
 		requestHandlers.put("/api/s", HttpStaticFileServerHandler.getInstance());
 	}
 	
@@ -27,14 +27,15 @@ import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
-import io.netty.handler.codec.http.FullHttpMessage;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.json.JsonObjectDecoder;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.EventExecutorGroup;
 
@@ -48,6 +49,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.net.HttpHeaders;
+import com.heliosapm.tsdblite.handlers.IngestThrottle;
 import com.heliosapm.tsdblite.handlers.json.SplitTraceInputHandler;
 import com.heliosapm.utils.url.URLHelper;
 
@@ -63,6 +65,7 @@ public class HttpSwitch extends MessageToMessageDecoder<HttpRequest> {
 	final EventExecutorGroup eventExecutorGroup;
 	final HttpToJsonAdapterHandler httpToJson = new HttpToJsonAdapterHandler();
 	final SplitTraceInputHandler traceHandler = new SplitTraceInputHandler();
+	final IngestThrottle ingestThrottle = IngestThrottle.getInstance();
 	/** Instance logger */
 	protected final Logger log = LoggerFactory.getLogger(getClass());
 	
@@ -73,10 +76,18 @@ public class HttpSwitch extends MessageToMessageDecoder<HttpRequest> {
 	protected final LoggingHandler loggingHandler = new LoggingHandler(getClass(), LogLevel.INFO);
 
 	
+	/** Endpoints whose bodies are streamed into a {@link StreamingPutHandler} without aggregation */
+	final Set<String> streamingEndPoints = new HashSet<String>(Arrays.asList(
+		"put"	
+	));
+	
 	final Set<String> pureJsonEndPoints = new HashSet<String>(Arrays.asList(
-		"put", "metadata/put"	
+		"metadata/put"	
 	));
 	
+	/** The maximum aggregated request size for endpoints that are not streamed */
+	public static final int MAX_CONTENT_LENGTH = 1048576 * 2;
+	
 	/**
 	 * Creates a new HttpSwitch
 	 */
@@ -103,27 +114,46 @@ public class HttpSwitch extends MessageToMessageDecoder<HttpRequest> {
 		ReferenceCountUtil.retain(msg);
 		final ChannelPipeline p = ctx.pipeline();
 		
-		final int index = uri.indexOf("/api/");
-		final String endpoint = index==-1 ? "" : uri.substring(5);
-		if(index != -1 && pureJsonEndPoints.contains(endpoint) ) {
+		final String endpoint = endpoint(uri);
+		out.add(msg);
+		if(streamingEndPoints.contains(endpoint)) {
+			log.info("Switching to streaming put handler");
+			p.addLast("throttleAcquire", ingestThrottle.acquirer());
+			p.addLast(eventExecutorGroup, "throttleRelease", ingestThrottle.releaser());
+			p.addLast(eventExecutorGroup, "putHandler", new StreamingPutHandler());
+		} else if(pureJsonEndPoints.contains(endpoint)) {
 			log.info("Switching to PureJSON handler");
+			p.addLast("aggregator", new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+			p.addLast("throttleAcquire", ingestThrottle.acquirer());
+			p.addLast(eventExecutorGroup, "throttleRelease", ingestThrottle.releaser());
 			p.addLast(eventExecutorGroup, "httpToJson", httpToJson);
 //			p.addLast("jsonLogger", loggingHandler);
 			p.addLast("jsonDecoder", new JsonObjectDecoder(true));
 //			p.addLast("jsonLogger", loggingHandler);
 			p.addLast("traceHandler", traceHandler);
-			p.remove(this);
-			if(msg instanceof FullHttpMessage) {
-				out.add(msg);
-			}
-			
 		} else {
 			log.info("Switching to Http Request Manager");
-			out.add(msg);
+			p.addLast("aggregator", new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+			p.addLast("throttleAcquire", ingestThrottle.acquirer());
+			p.addLast(eventExecutorGroup, "throttleRelease", ingestThrottle.releaser());
+			// lets handlers stream large responses, reading each chunk only while the channel is writable
+			p.addLast("chunkedWriter", new ChunkedWriteHandler());
 			p.addLast(eventExecutorGroup, "requestManager", HttpRequestManager.getInstance());
-			p.remove(this);			
 		}
-	}	
+		p.remove(this);
+	}
+	
+	/**
+	 * Extracts the endpoint following <b><code>/api/</code></b> from the passed uri, without any query string
+	 * @param uri The request uri
+	 * @return the endpoint, or an empty string if the uri is not an api uri
+	 */
+	static String endpoint(final String uri) {
+		final int index = uri.indexOf("/api/");
+		if(index==-1) return "";
+		final int query = uri.indexOf('?', index);
+		return uri.substring(index + 5, query==-1 ? uri.length() : query);
+	}
 
 	/**
 	 * Sends a 204 (No Content) response
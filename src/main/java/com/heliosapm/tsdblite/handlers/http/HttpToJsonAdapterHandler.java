@@ -18,7 +18,6 @@ under the License.
  */
 package com.heliosapm.tsdblite.handlers.http;
 
-import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
@@ -40,8 +39,8 @@ public class HttpToJsonAdapterHandler extends MessageToMessageDecoder<HttpReques
 	@Override
 	protected void decode(ChannelHandlerContext ctx, HttpRequest msg, List<Object> out) throws Exception {
 		if(msg instanceof FullHttpRequest) {
-			ByteBuf b = ((FullHttpRequest)msg).content().copy();
-			out.add(b);
+			// the request is released after decode, so retain the content rather than copy it
+			out.add(((FullHttpRequest)msg).content().retain());
 		}		
 	}
 
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.handlers.http;
+
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.json.JSON;
+import com.heliosapm.tsdblite.query.QueryExecutor;
+import com.heliosapm.tsdblite.query.QueryResult;
+import com.heliosapm.tsdblite.query.QueryResults;
+import com.heliosapm.tsdblite.query.TSQuery;
+import com.heliosapm.utils.config.ConfigurationHelper;
+
+
+/**
+ * <p>Title: QueryHandler</p>
+ * <p>Description: Answers OpenTSDB <code>/api/query</code> requests, either a GET with <code>start</code>, <code>end</code>
+ * and <code>m</code> parameters or a POST of a JSON query. The query is planned on the {@link QueryExecutor} pool
+ * and the results are streamed as a chunked response once the first group of series has run, each later group being run as the response reaches it.
+ * A query whose first group fails is answered with an error status, but a later group's failure can only cut the response short.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.handlers.QueryHandler</code></p>
+ */
+
+public class QueryHandler extends HttpRequestHandler {
+	
+	/** The executor queries are run on */
+	final QueryExecutor queryExecutor;
+	/** The target size in bytes of each chunk the results are streamed in */
+	final int chunkSize;
+
+	/**
+	 * Creates a new QueryHandler
+	 */
+	public QueryHandler() {
+		super();
+		queryExecutor = QueryExecutor.getInstance();
+		chunkSize = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_QUERY_CHUNK_SIZE, Constants.DEFAULT_QUERY_CHUNK_SIZE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.handlers.http.HttpRequestHandler#process(com.heliosapm.tsdblite.handlers.http.TSDBHttpRequest)
+	 */
+	@Override
+	protected void process(final TSDBHttpRequest request) {
+		log.debug("Processing [{}]", request.getRequest());
+		final TSQuery query;
+		try {
+			if(HttpMethod.POST.equals(request.getRequest().method()) && request.hasContent()) {
+				query = TSQuery.fromJson(JSON.parseToNode(request.getContent()));
+			} else {
+				query = TSQuery.fromParameters(request.getParameters());
+			}
+		} catch (Exception ex) {
+			log.debug("Invalid query", ex);
+			request.send400("Invalid query for route [", request.getRoute(), "]:", ex.getMessage());
+			return;
+		}
+		queryExecutor.execute(query, request.context().executor().<QueryResults>newPromise()).addListener(new GenericFutureListener<Future<QueryResults>>() {
+			@Override
+			public void operationComplete(final Future<QueryResults> f) throws Exception {
+				if(f.isSuccess()) {
+					send(request, query, new QueryResultInput(request.context(), f.getNow(), query.isMsResolution(), chunkSize));
+				} else {
+					fail(request, query, f.cause());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends the results once the first one has run, so a query that fails in its first group, such as by reading too many points,
+	 * is still answered with an error status rather than a truncated response
+	 * @param request The request to answer
+	 * @param query The query
+	 * @param input The results to stream
+	 */
+	protected void send(final TSDBHttpRequest request, final TSQuery query, final QueryResultInput input) {
+		final Future<QueryResult> first = input.first();
+		if(first==null) {
+			request.sendChunked(input, "application/json");
+			return;
+		}
+		first.addListener(new GenericFutureListener<Future<QueryResult>>() {
+			@Override
+			public void operationComplete(final Future<QueryResult> f) throws Exception {
+				if(f.isSuccess()) {
+					request.sendChunked(input, "application/json");
+				} else {
+					input.close();
+					fail(request, query, f.cause());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Answers a failed query, with a 400 if the query was invalid or exceeded a limit, or a 500 otherwise
+	 * @param request The request to answer
+	 * @param query The query
+	 * @param cause The failure
+	 */
+	protected void fail(final TSDBHttpRequest request, final TSQuery query, final Throwable cause) {
+		if(cause instanceof IllegalArgumentException) {
+			request.send400("Invalid query for route [", request.getRoute(), "]:", cause.getMessage());
+		} else {
+			log.error("Query failed [{}]", query, cause);
+			request.send500("Query failed: ", String.valueOf(cause));
+		}
+	}
+
+}
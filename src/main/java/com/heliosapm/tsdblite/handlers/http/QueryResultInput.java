@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.handlers.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.heliosapm.tsdblite.json.JSON;
+import com.heliosapm.tsdblite.query.QueryResult;
+import com.heliosapm.tsdblite.query.QueryResults;
+
+/**
+ * <p>Title: QueryResultInput</p>
+ * <p>Description: Streams query results as a JSON array in chunks of about a configured size, for a
+ * {@link ChunkedWriteHandler} to write. The results are written one at a time, and a
+ * result's points are written in runs, so a chunk never holds much more than the chunk size whatever the size of
+ * the result. One {@link JsonGenerator} is used for the whole response, and it writes into a fresh
+ * pooled buffer for each chunk. The write handler only reads the next chunk once the channel is writable again,
+ * so a slow client holds back the serialization instead of letting it pile up in memory.</p>
+ * <p>Each result is run on the query pool when the result before it starts being written, and released once it
+ * has been written, so at most two groups are held at a time. If a result is not ready, no chunk is returned, which
+ * suspends the write handler until the result completes and resumes it.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.handlers.QueryResultInput</code></p>
+ */
+
+public class QueryResultInput implements ChunkedInput<ByteBuf> {
+	/** The context of the channel the results are written to */
+	private final ChannelHandlerContext ctx;
+	/** The results still to be run */
+	private final QueryResults results;
+	/** Indicates if the points are keyed by ms. rather than by second */
+	private final boolean msResolution;
+	/** The target size of each chunk in bytes */
+	private final int chunkSize;
+	/** The stream the generator writes to, which writes to the current chunk */
+	private final ChunkStream stream = new ChunkStream();
+	/** The generator, created with the first chunk */
+	private JsonGenerator generator = null;
+	/** The result being written, or null if the next result has not been taken yet */
+	private QueryResult result = null;
+	/** The next result, which may still be running, or null if there are no more */
+	private Future<QueryResult> pending = null;
+	/** The index of the next point of the result being written */
+	private int pointIndex = 0;
+	/** Indicates if the closing of the array has been written */
+	private boolean ended = false;
+	/** The number of bytes written */
+	private long progress = 0;
+
+	/** The number of points written between checks of the chunk size */
+	private static final int POINT_RUN = 128;
+
+	/** Resumes the write handler once a result completes */
+	private final GenericFutureListener<Future<QueryResult>> resume = new GenericFutureListener<Future<QueryResult>>() {
+		@Override
+		public void operationComplete(final Future<QueryResult> f) {
+			// always deferred: a result that is already complete would otherwise resume the handler from inside readChunk
+			ctx.executor().execute(new Runnable() {
+				@Override
+				public void run() {
+					final ChunkedWriteHandler writer = ctx.pipeline().get(ChunkedWriteHandler.class);
+					if(writer!=null) writer.resumeTransfer();
+				}
+			});
+		}
+	};
+
+	/**
+	 * <p>Title: ChunkStream</p>
+	 * <p>Description: An output stream over the current chunk buffer</p>
+	 */
+	private static final class ChunkStream extends OutputStream {
+		/** The current chunk */
+		ByteBuf buf = null;
+
+		@Override
+		public void write(final int b) {
+			buf.writeByte(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			buf.writeBytes(b, off, len);
+		}
+	}
+
+	/**
+	 * Creates a new QueryResultInput and starts running the first result
+	 * @param ctx The context of the channel the results are written to, whose pipeline has a {@link ChunkedWriteHandler}
+	 * @param results The results to stream
+	 * @param msResolution true to key the points by ms., false to key them by second
+	 * @param chunkSize The target size of each chunk in bytes
+	 */
+	public QueryResultInput(final ChannelHandlerContext ctx, final QueryResults results, final boolean msResolution, final int chunkSize) {
+		this.ctx = ctx;
+		this.results = results;
+		this.msResolution = msResolution;
+		this.chunkSize = chunkSize;
+		pending = runNext();
+	}
+
+	/**
+	 * Returns the first result, which may still be running, so the caller can answer its failure before any of the response is sent.
+	 * Only meaningful before the first chunk is read.
+	 * @return the first result, or null if there are no results
+	 */
+	public Future<QueryResult> first() {
+		return pending;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.stream.ChunkedInput#isEndOfInput()
+	 */
+	@Override
+	public boolean isEndOfInput() {
+		return ended;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.stream.ChunkedInput#close()
+	 */
+	@Override
+	public void close() throws Exception {
+		ended = true;
+		result = null;
+		if(pending!=null) pending.cancel(false);
+		pending = null;
+		if(generator!=null) {
+			stream.buf = null;
+			// the stream is detached, so nothing buffered in the generator can be written
+			try { generator.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.stream.ChunkedInput#readChunk(io.netty.channel.ChannelHandlerContext)
+	 * @deprecated Use {@link #readChunk(ByteBufAllocator)}, as the write handler does
+	 */
+	@Deprecated
+	@Override
+	public ByteBuf readChunk(final ChannelHandlerContext ctx) throws Exception {
+		return readChunk(ctx.alloc());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.stream.ChunkedInput#readChunk(io.netty.buffer.ByteBufAllocator)
+	 */
+	@Override
+	public ByteBuf readChunk(final ByteBufAllocator allocator) throws Exception {
+		if(ended) return null;
+		final ByteBuf buf = allocator.buffer(chunkSize + chunkSize / 4);
+		stream.buf = buf;
+		boolean done = false;
+		try {
+			if(generator==null) {
+				generator = JSON.generatorFor(stream);
+				generator.writeStartArray();
+			}
+			while(buf.writerIndex() < chunkSize && !ended && write()) {
+				generator.flush();
+			}
+			done = true;
+		} finally {
+			stream.buf = null;
+			if(!done) buf.release();
+		}
+		if(!buf.isReadable()) {
+			// waiting for the next result, which resumes the write handler when it completes
+			buf.release();
+			return null;
+		}
+		progress += buf.readableBytes();
+		return buf;
+	}
+
+	/**
+	 * Writes the next run of the output: the head of a result, a run of its points and its tail, or the end of the array
+	 * @return false if nothing was written because the next result is still running
+	 * @throws Exception thrown on any error writing the JSON, or the failure of the next result
+	 */
+	private boolean write() throws Exception {
+		if(result==null) {
+			if(pending==null) {
+				generator.writeEndArray();
+				ended = true;
+				return true;
+			}
+			if(!pending.isDone()) return false;
+			if(!pending.isSuccess()) {
+				final Throwable cause = pending.cause();
+				if(cause instanceof Error) throw (Error)cause;
+				throw cause instanceof Exception ? (Exception)cause : new Exception(cause);
+			}
+			final QueryResult next = pending.getNow();
+			// the following result runs while this one is written
+			pending = runNext();
+			if(next==null) return true;
+			result = next;
+			result.writeHead(generator);
+			pointIndex = 0;
+		}
+		pointIndex = result.writePoints(generator, pointIndex, POINT_RUN, msResolution);
+		if(pointIndex==result.size()) {
+			result.writeTail(generator);
+			result = null;
+		}
+		return true;
+	}
+
+	/**
+	 * Starts running the next result on the query pool
+	 * @return the future result, or null if there are no more
+	 */
+	private Future<QueryResult> runNext() {
+		if(!results.hasNext()) return null;
+		return results.next(ctx.executor().<QueryResult>newPromise()).addListener(resume);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.stream.ChunkedInput#length()
+	 */
+	@Override
+	public long length() {
+		return -1L;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.stream.ChunkedInput#progress()
+	 */
+	@Override
+	public long progress() {
+		return progress;
+	}
+
+}
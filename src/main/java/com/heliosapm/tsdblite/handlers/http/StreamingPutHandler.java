@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.handlers.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.nio.charset.Charset;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.net.HttpHeaders;
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.handlers.json.JsonObjectFramer;
+import com.heliosapm.tsdblite.handlers.text.PutTraceDecoder;
+import com.heliosapm.tsdblite.json.JSON;
+import com.heliosapm.tsdblite.metric.MetricCache;
+import com.heliosapm.tsdblite.metric.TraceBatch;
+import com.heliosapm.tsdblite.metric.TraceReader;
+import com.heliosapm.utils.config.ConfigurationHelper;
+
+/**
+ * <p>Title: StreamingPutHandler</p>
+ * <p>Description: Ingests <b><code>/api/put</code></b> bodies as they stream in, without aggregating the request.
+ * Each {@link HttpContent} chunk is fed to a {@link JsonObjectFramer} and every point object is read by a
+ * {@link TraceReader} into a batch as soon as it completes. The batch is submitted whenever it fills and at the end
+ * of the body, so memory stays bounded by the batch and the largest single object however big the body is.</p>
+ * <p>Responds with a 204 when the body is complete, or a 400 if the body was not a well formed stream of points.
+ * Points that were read before a failure have already been submitted.</p>
+ * <p>Each channel needs its own instance.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.handlers.http.StreamingPutHandler</code></p>
+ */
+
+public class StreamingPutHandler extends SimpleChannelInboundHandler<HttpObject> implements JsonObjectFramer.ObjectSink {
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The endpoint where metrics are submitted to */
+	protected final MetricCache metricCache = MetricCache.getInstance();
+	/** The point object framer */
+	protected final JsonObjectFramer framer = new JsonObjectFramer(MAX_OBJECT_LENGTH);
+	/** The point reader */
+	protected final TraceReader reader = new TraceReader();
+	/** The batch of points read from the current body */
+	protected final TraceBatch batch = new TraceBatch();
+	/** Indicates if the current request should keep the connection alive */
+	protected boolean keepAlive = true;
+	/** The failure for the current body, or null if it has not failed */
+	protected String failure = null;
+
+	/** The maximum size in bytes of a single point object */
+	public static final int MAX_OBJECT_LENGTH = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_HTTP_PUT_MAX_OBJECT, Constants.DEFAULT_HTTP_PUT_MAX_OBJECT);
+
+	/** The UTF8 character set */
+	private static final Charset UTF8 = Charset.forName("UTF8");
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.SimpleChannelInboundHandler#channelRead0(io.netty.channel.ChannelHandlerContext, java.lang.Object)
+	 */
+	@Override
+	protected void channelRead0(final ChannelHandlerContext ctx, final HttpObject msg) throws Exception {
+		if(msg instanceof HttpRequest) {
+			final HttpRequest request = (HttpRequest)msg;
+			keepAlive = HttpUtil.isKeepAlive(request);
+			failure = null;
+			framer.reset();
+			if(HttpUtil.is100ContinueExpected(request)) {
+				ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+			}
+		}
+		if(msg instanceof HttpContent) {
+			if(failure==null) {
+				try {
+					framer.feed(((HttpContent)msg).content(), this);
+				} catch (Exception ex) {
+					// keep draining the body so the connection stays usable, and reply at the end
+					failure = ex.getMessage()==null ? ex.toString() : ex.getMessage();
+					framer.reset();
+					if(log.isDebugEnabled()) log.debug("Failed to read put body on [{}]", ctx.channel().id().asShortText(), ex);
+				}
+			}
+			if(msg instanceof LastHttpContent) {
+				metricCache.submit(batch);
+				if(failure==null && !framer.isIdle()) {
+					failure = "Truncated JSON body";
+				}
+				respond(ctx, failure==null ? new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NO_CONTENT) : badRequest(failure));
+				framer.reset();
+				failure = null;
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.handlers.json.JsonObjectFramer.ObjectSink#onObject(io.netty.buffer.ByteBuf)
+	 */
+	@Override
+	public void onObject(final ByteBuf object) throws Exception {
+		final JsonParser parser = JSON.parseToStream(new ByteBufInputStream(object));
+		try {
+			reader.read(parser, batch);
+		} finally {
+			parser.close();
+		}
+		if(batch.size() >= PutTraceDecoder.MAX_BATCH_SIZE) {
+			metricCache.submit(batch);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.ChannelHandlerAdapter#handlerRemoved(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void handlerRemoved(final ChannelHandlerContext ctx) throws Exception {
+		metricCache.submit(batch);
+		framer.release();
+		super.handlerRemoved(ctx);
+	}
+
+	private void respond(final ChannelHandlerContext ctx, final FullHttpResponse response) {
+		final ChannelFuture f = ctx.writeAndFlush(response);
+		if(!keepAlive) {
+			f.addListener(ChannelFutureListener.CLOSE);
+		}
+	}
+
+	private static FullHttpResponse badRequest(final String message) {
+		final ByteBuf buf = Unpooled.copiedBuffer(message, UTF8);
+		final DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_REQUEST, buf);
+		resp.headers().setInt(HttpHeaders.CONTENT_LENGTH, buf.readableBytes());
+		resp.headers().set(HttpHeaders.CONTENT_TYPE, "text/plain");
+		return resp;
+	}
+
+}
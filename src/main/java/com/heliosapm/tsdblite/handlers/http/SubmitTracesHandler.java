@@ -16,21 +16,23 @@
 package com.heliosapm.tsdblite.handlers.http;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.heliosapm.tsdblite.json.JSON;
-import com.heliosapm.tsdblite.json.JSONException;
 import com.heliosapm.tsdblite.metric.MetricCache;
-import com.heliosapm.tsdblite.metric.Trace;
+import com.heliosapm.tsdblite.metric.TraceBatch;
+import com.heliosapm.tsdblite.metric.TraceReader;
 import com.heliosapm.utils.time.SystemClock;
 import com.heliosapm.utils.time.SystemClock.ElapsedTime;
 
 
 /**
  * <p>Title: SubmitTracesHandler</p>
- * <p>Description: Accepts JSON trace submissions</p> 
+ * <p>Description: Accepts JSON trace submissions, streaming the points in the body straight into a batch</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.tsdblite.handlers.SubmitTracesHandler</code></p>
@@ -40,6 +42,14 @@ public class SubmitTracesHandler extends HttpRequestHandler {
 	
 	/** The endpoint where metrics are submitted to */
 	final MetricCache metricCache;
+	
+	/** The per thread batch the request points are read into */
+	private static final ThreadLocal<TraceBatch> threadBatch = new ThreadLocal<TraceBatch>() {
+		@Override
+		protected TraceBatch initialValue() {
+			return new TraceBatch();
+		}
+	};
 
 	/**
 	 * Creates a new SubmitTracesHandler
@@ -61,27 +71,26 @@ public class SubmitTracesHandler extends HttpRequestHandler {
 			return;
 		}
 		final ByteBuf content = request.getContent();
-		final Trace[] traces;
+		final TraceBatch batch = threadBatch.get();
+		final int count;
+		JsonParser parser = null;
 		try {
-			if(content.getByte(0)=='{') {
-				traces = new Trace[]{JSON.parseToObject(content, Trace.class)};
-			} else {
-				traces = JSON.parseToObject(content, Trace[].class);
-			}
-		} catch (JSONException jex) {
-			log.error("Failed to parse JSON payload", jex);
-			request.send400("Invalid JSON payload for route [", request.getRoute(), "]:", jex.toString());
+			parser = JSON.parseToStream(new ByteBufInputStream(content));
+			count = TraceReader.threadInstance().read(parser, batch);
+		} catch (Exception ex) {
+			batch.clear();
+			log.error("Failed to parse JSON payload", ex);
+			request.send400("Invalid JSON payload for route [", request.getRoute(), "]:", ex.toString());
 			return;
+		} finally {
+			if(parser!=null) try { parser.close(); } catch (Exception x) {/* No Op */}
 		}
 		final ElapsedTime et = SystemClock.startClock();
-		for(Trace trace: traces) {
-			//log.debug("TRACE: {}", trace);
-			metricCache.submit(trace);
-		}		
+		metricCache.submit(batch);
 		request.send204().addListener(new GenericFutureListener<Future<? super Void>>() {
 			public void operationComplete(final Future<? super Void> f) throws Exception {
 				if(f.isSuccess()) {
-					log.info("Traces Processed: {}", et.printAvg("traces", traces.length));
+					log.info("Traces Processed: {}", et.printAvg("traces", count));
 				} else {
 					log.error("Traces failed", f.cause());
 				}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.handlers.http;
+
+import io.netty.handler.codec.http.HttpMethod;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.json.JSON;
+import com.heliosapm.tsdblite.metric.MetricCache;
+import com.heliosapm.tsdblite.metric.SeriesIndex;
+import com.heliosapm.tsdblite.metric.SeriesIndex.NameType;
+import com.heliosapm.utils.config.ConfigurationHelper;
+
+
+/**
+ * <p>Title: SuggestHandler</p>
+ * <p>Description: Answers OpenTSDB <code>/api/suggest</code> requests, either a GET with <code>type</code>, <code>q</code>
+ * and <code>max</code> parameters or a POST of the same fields as JSON. The type is one of <code>metrics</code>,
+ * <code>tagk</code> or <code>tagv</code>, and the response is a sorted JSON array of the names of that type which
+ * have queryable series and start with <code>q</code>.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.handlers.SuggestHandler</code></p>
+ */
+
+public class SuggestHandler extends HttpRequestHandler {
+	
+	/** The index the names are suggested from */
+	final SeriesIndex index;
+	/** The number of names returned when the request does not specify a maximum */
+	final int defaultMax;
+
+	/**
+	 * Creates a new SuggestHandler
+	 */
+	public SuggestHandler() {
+		super();
+		index = SeriesIndex.getInstance();
+		defaultMax = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_SUGGEST_MAX, Constants.DEFAULT_SUGGEST_MAX);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.handlers.http.HttpRequestHandler#process(com.heliosapm.tsdblite.handlers.http.TSDBHttpRequest)
+	 */
+	@Override
+	protected void process(final TSDBHttpRequest request) {
+		log.debug("Processing [{}]", request.getRequest());
+		final NameType type;
+		final String q;
+		final int max;
+		try {
+			final String typeName, maxValue;
+			if(HttpMethod.POST.equals(request.getRequest().method()) && request.hasContent()) {
+				final JsonNode node = JSON.parseToNode(request.getContent());
+				typeName = node.hasNonNull("type") ? node.get("type").asText() : null;
+				q = node.hasNonNull("q") ? node.get("q").asText() : null;
+				maxValue = node.hasNonNull("max") ? node.get("max").asText() : null;
+			} else {
+				typeName = request.getParameter("type");
+				q = request.getParameter("q");
+				maxValue = request.getParameter("max");
+			}
+			if(typeName==null) throw new IllegalArgumentException("A suggest request needs a type");
+			type = NameType.forName(typeName);
+			max = maxValue==null ? defaultMax : Integer.parseInt(maxValue.trim());
+		} catch (Exception ex) {
+			log.debug("Invalid suggest request", ex);
+			request.send400("Invalid suggest request for route [", request.getRoute(), "]:", ex.getMessage());
+			return;
+		}
+		// names are stored cleaned, so the prefix is cleaned the same way
+		final String prefix = q==null || q.trim().isEmpty() ? "" : MetricCache.clean(q);
+		request.sendJson(index.suggest(type, prefix, max));
+	}
+
+}
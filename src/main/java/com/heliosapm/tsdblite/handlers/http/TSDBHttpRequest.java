@@ -21,21 +21,30 @@ import java.util.Map;
 import java.util.regex.Pattern;
 
 import com.google.common.net.HttpHeaders;
+import com.heliosapm.tsdblite.json.JSON;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.stream.ChunkedInput;
 
 /**
  * <p>Title: TSDBHttpRequest</p>
@@ -195,6 +204,103 @@ public class TSDBHttpRequest  {
 		return sendResponse(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NO_CONTENT));
 	}
 	
+	/**
+	 * Sends a 500 (Internal Server Error) response
+	 * @param msgs An optional array of message segments to be concatenated and set as the response body
+	 * @return the write completion future
+	 */
+	public ChannelFuture send500(final String...msgs) {
+		return sendResponse(response(HttpResponseStatus.INTERNAL_SERVER_ERROR, msgs));
+	}
+	
+	/**
+	 * Sends a 200 (OK) response with the passed object serialized as the JSON body
+	 * @param body The object to serialize
+	 * @return the write completion future
+	 */
+	public ChannelFuture sendJson(final Object body) {
+		final ByteBuf buf = JSON.serializeToBuf(body, ctx.alloc().buffer());
+		final DefaultFullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, buf);
+		resp.headers().setInt(HttpHeaders.CONTENT_LENGTH, buf.readableBytes());
+		resp.headers().set(HttpHeaders.CONTENT_TYPE, "application/json");
+		return sendResponse(resp);
+	}
+	
+	/**
+	 * Sends a 200 (OK) response with a chunked body read from the passed input.
+	 * The channel pipeline must have a {@link io.netty.handler.stream.ChunkedWriteHandler}. The input can return a null chunk
+	 * before its end to suspend the write handler, and must then resume it once it has more to write.
+	 * If the body fails part way through, the channel is closed so the client sees a truncated response rather than a complete one.
+	 * @param body The input the body is read from
+	 * @param contentType The content type of the body
+	 * @return the write completion future of the body
+	 */
+	public ChannelFuture sendChunked(final ChunkedInput<ByteBuf> body, final String contentType) {
+		final DefaultHttpResponse resp = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+		HttpUtil.setTransferEncodingChunked(resp, true);
+		resp.headers().set(HttpHeaders.CONTENT_TYPE, contentType);
+		ctx.write(resp);
+		return ctx.writeAndFlush(new ChunkedBody(body)).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+	}
+
+	/**
+	 * <p>Title: ChunkedBody</p>
+	 * <p>Description: Reads an http body from a byte input, as {@link HttpChunkedInput} does, but passes on a null chunk
+	 * from the input instead of wrapping it, so the input can suspend the write handler.</p>
+	 */
+	private static final class ChunkedBody implements ChunkedInput<HttpContent> {
+		/** The body input */
+		private final ChunkedInput<ByteBuf> input;
+		/** Indicates if the last content has been read */
+		private boolean sentLast = false;
+
+		ChunkedBody(final ChunkedInput<ByteBuf> input) {
+			this.input = input;
+		}
+
+		@Override
+		public boolean isEndOfInput() throws Exception {
+			return sentLast && input.isEndOfInput();
+		}
+
+		@Override
+		public void close() throws Exception {
+			input.close();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see io.netty.handler.stream.ChunkedInput#readChunk(io.netty.channel.ChannelHandlerContext)
+		 * @deprecated Use {@link #readChunk(ByteBufAllocator)}, as the write handler does
+		 */
+		@Deprecated
+		@Override
+		public HttpContent readChunk(final ChannelHandlerContext ctx) throws Exception {
+			return readChunk(ctx.alloc());
+		}
+
+		@Override
+		public HttpContent readChunk(final ByteBufAllocator allocator) throws Exception {
+			if(input.isEndOfInput()) {
+				if(sentLast) return null;
+				sentLast = true;
+				return LastHttpContent.EMPTY_LAST_CONTENT;
+			}
+			final ByteBuf buf = input.readChunk(allocator);
+			return buf==null ? null : new DefaultHttpContent(buf);
+		}
+
+		@Override
+		public long length() {
+			return input.length();
+		}
+
+		@Override
+		public long progress() {
+			return input.progress();
+		}
+	}
+	
 	private static HttpResponse response(final HttpResponseStatus status, final String...msgs) {
 		final ByteBuf buf = join(msgs);
 		if(buf.readableBytes()==0) {
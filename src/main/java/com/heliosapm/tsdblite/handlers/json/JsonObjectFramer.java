@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.handlers.json;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+
+/**
+ * <p>Title: JsonObjectFramer</p>
+ * <p>Description: Incrementally splits a JSON stream of objects, or a single top level array of objects,
+ * into one complete object at a time as the bytes arrive. Chunk boundaries can fall anywhere. An object that is
+ * complete within one fed buffer is passed on as a slice of that buffer. Only an object spanning buffers is
+ * accumulated, so memory is bounded by the maximum object length and not by the size of the stream.</p>
+ * <p>This does the same job as Netty's {@link io.netty.handler.codec.json.JsonObjectDecoder} with array streaming,
+ * but it is driven directly by the caller so the end of the stream can be detected and the framer reused.</p>
+ * <p>Instances are not thread safe.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.handlers.json.JsonObjectFramer</code></p>
+ */
+
+public class JsonObjectFramer {
+	/** The maximum length of one object in bytes */
+	protected final int maxObjectLength;
+	/** The bytes of an object that spans fed buffers */
+	protected final ByteBuf partial = Unpooled.buffer(256);
+	/** The nesting depth within the current object, zero between objects */
+	protected int depth = 0;
+	/** Indicates if the scan is within a string */
+	protected boolean inString = false;
+	/** Indicates if the previous string byte was an escape */
+	protected boolean escaped = false;
+	/** Indicates if the scan is within the top level array */
+	protected boolean inArray = false;
+
+	/**
+	 * <p>Title: ObjectSink</p>
+	 * <p>Description: Receives each complete object</p> 
+	 */
+	public interface ObjectSink {
+		/**
+		 * Callback with a complete object. The buffer is only valid for the duration of the call.
+		 * @param object The buffer containing exactly one JSON object
+		 * @throws Exception thrown if the object cannot be handled
+		 */
+		public void onObject(ByteBuf object) throws Exception;
+	}
+
+	/**
+	 * Creates a new JsonObjectFramer
+	 * @param maxObjectLength The maximum length of one object in bytes
+	 */
+	public JsonObjectFramer(final int maxObjectLength) {
+		if(maxObjectLength < 2) throw new IllegalArgumentException("Invalid max object length [" + maxObjectLength + "]");
+		this.maxObjectLength = maxObjectLength;
+	}
+
+	/**
+	 * Scans all the readable bytes in the passed buffer, passing each object completed to the sink
+	 * @param in The buffer to scan. It is fully consumed.
+	 * @param sink The sink to pass completed objects to
+	 * @throws CorruptedFrameException thrown if the bytes are not a stream or array of objects
+	 * @throws TooLongFrameException thrown if an object is longer than the maximum length
+	 * @throws Exception thrown by the sink
+	 */
+	public void feed(final ByteBuf in, final ObjectSink sink) throws Exception {
+		final int end = in.writerIndex();
+		int objectStart = in.readerIndex();
+		for(int i = in.readerIndex(); i < end; i++) {
+			final byte c = in.getByte(i);
+			if(depth==0) {
+				if(c=='{') {
+					depth = 1;
+					objectStart = i;
+				} else if(c==' ' || c=='\t' || c=='\r' || c=='\n') {
+					continue;
+				} else if(c=='[' && !inArray) {
+					inArray = true;
+				} else if((c==',' || c==']') && inArray) {
+					if(c==']') inArray = false;
+				} else {
+					throw new CorruptedFrameException("Unexpected character [" + (char)c + "] between objects");
+				}
+			} else if(inString) {
+				if(escaped) escaped = false;
+				else if(c=='\\') escaped = true;
+				else if(c=='"') inString = false;
+			} else if(c=='"') {
+				inString = true;
+			} else if(c=='{' || c=='[') {
+				depth++;
+			} else if(c=='}' || c==']') {
+				if(--depth==0) {
+					final int length = i + 1 - objectStart;
+					checkLength(partial.readableBytes() + length);
+					if(partial.isReadable()) {
+						partial.writeBytes(in, objectStart, length);
+						try {
+							sink.onObject(partial);
+						} finally {
+							partial.clear();
+						}
+					} else {
+						sink.onObject(in.slice(objectStart, length));
+					}
+				}
+			}
+		}
+		if(depth > 0) {
+			checkLength(partial.readableBytes() + end - objectStart);
+			partial.writeBytes(in, objectStart, end - objectStart);
+		}
+		in.readerIndex(end);
+	}
+
+	/**
+	 * Indicates if the framer is between objects and outside of any top level array,
+	 * which is where a well formed stream ends
+	 * @return true if the framer is idle
+	 */
+	public boolean isIdle() {
+		return depth==0 && !inArray;
+	}
+
+	/**
+	 * Resets the framer for a new stream, discarding any partial object
+	 */
+	public void reset() {
+		depth = 0;
+		inString = false;
+		escaped = false;
+		inArray = false;
+		partial.clear();
+	}
+
+	/**
+	 * Releases the partial object buffer. The framer cannot be used afterwards.
+	 */
+	public void release() {
+		partial.release();
+	}
+
+	private void checkLength(final int length) throws TooLongFrameException {
+		if(length > maxObjectLength) {
+			reset();
+			throw new TooLongFrameException("JSON object exceeded the maximum length of [" + maxObjectLength + "] bytes");
+		}
+	}
+
+}
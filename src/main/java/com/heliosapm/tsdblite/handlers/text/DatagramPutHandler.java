@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.handlers.text;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.metric.MetricCache;
+import com.heliosapm.tsdblite.metric.TraceBatch;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.ByteProcessor;
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: DatagramPutHandler</p>
+ * <p>Description: Handles UDP datagrams containing one or more newline separated <b><code>put</code></b> lines.
+ * Lines are parsed in place with a {@link PutLineParser} and the points from each read are submitted as one batch.
+ * There is no reply channel, so bad lines and truncated packets are only counted.</p>
+ * <p>Each datagram socket needs its own instance.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.handlers.text.DatagramPutHandler</code></p>
+ */
+
+public class DatagramPutHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The line parser */
+	protected final PutLineParser parser = new PutLineParser();
+	/** The endpoint where metrics are submitted to */
+	protected final MetricCache metricCache = MetricCache.getInstance();
+	/** The batch of points parsed in the current read */
+	protected final TraceBatch batch = new TraceBatch();
+	/** The receive buffer size per packet. A packet that fills it may have been truncated. */
+	protected final int maxPacketSize;
+
+	/** A counter of received packets */
+	protected final LongAdder packets = new LongAdder();
+	/** A counter of dropped packets */
+	protected final LongAdder drops = new LongAdder();
+	/** A counter of lines that failed to parse */
+	protected final LongAdder parseErrors = new LongAdder();
+
+	/**
+	 * Creates a new DatagramPutHandler
+	 * @param maxPacketSize The receive buffer size per packet
+	 */
+	public DatagramPutHandler(final int maxPacketSize) {
+		this.maxPacketSize = maxPacketSize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.SimpleChannelInboundHandler#channelRead0(io.netty.channel.ChannelHandlerContext, java.lang.Object)
+	 */
+	@Override
+	protected void channelRead0(final ChannelHandlerContext ctx, final DatagramPacket packet) throws Exception {
+		packets.increment();
+		final ByteBuf in = packet.content();
+		if(in.readableBytes() >= maxPacketSize) {
+			// the packet filled the receive buffer so the last line is probably cut short
+			drops.increment();
+			if(log.isDebugEnabled()) log.debug("Dropped possibly truncated packet of [{}] bytes from [{}]", in.readableBytes(), packet.sender());
+			return;
+		}
+		final int limit = in.writerIndex();
+		int start = in.readerIndex();
+		while(start < limit) {
+			int eol = in.forEachByte(start, limit - start, ByteProcessor.FIND_LF);
+			if(eol==-1) eol = limit;
+			int end = eol;
+			if(end > start && in.getByte(end - 1)=='\r') end--;
+			if(end > start) {
+				try {
+					parser.parse(in, start, end, batch);
+				} catch (IllegalArgumentException iex) {
+					parseErrors.increment();
+					metricCache.badMetric();
+					if(log.isDebugEnabled()) log.debug("Bad put line from [{}]: {}", packet.sender(), iex.getMessage());
+				} catch (RuntimeException rex) {
+					// any other failure is still confined to its line, so the rest of the packet is read
+					parseErrors.increment();
+					metricCache.badMetric();
+					log.debug("Failed to process put line [{}] from [{}]", in.toString(start, end - start, PutLineParser.UTF8), packet.sender(), rex);
+				}
+			}
+			start = eol + 1;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.ChannelInboundHandlerAdapter#channelReadComplete(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+		metricCache.submit(batch);
+		super.channelReadComplete(ctx);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.channel.ChannelInboundHandlerAdapter#exceptionCaught(io.netty.channel.ChannelHandlerContext, java.lang.Throwable)
+	 */
+	@Override
+	public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+		// a datagram socket must stay open, so log and carry on
+		log.error("Datagram handler error", cause);
+	}
+
+	/**
+	 * Returns the cummulative number of received packets
+	 * @return the cummulative number of received packets
+	 */
+	public long getPackets() {
+		return packets.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of dropped packets
+	 * @return the cummulative number of dropped packets
+	 */
+	public long getDrops() {
+		return drops.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of lines that failed to parse
+	 * @return the cummulative number of lines that failed to parse
+	 */
+	public long getParseErrors() {
+		return parseErrors.longValue();
+	}
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.handlers.text;
+
+import java.nio.charset.Charset;
+
+import com.heliosapm.tsdblite.metric.AppMetric;
+import com.heliosapm.tsdblite.metric.MetricCache;
+import com.heliosapm.tsdblite.metric.SeriesKeyBuilder;
+import com.heliosapm.tsdblite.metric.TraceBatch;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ByteProcessor;
+
+/**
+ * <p>Title: PutLineParser</p>
+ * <p>Description: Parses an OpenTSDB telnet style <b><code>put &lt;metric&gt; &lt;ts&gt; &lt;value&gt; &lt;k=v&gt;...</code></b>
+ * line directly from the bytes in a {@link ByteBuf}. Tokens are located with {@link ByteProcessor} scans and
+ * recorded as offsets, the timestamp and value are parsed in place, and the series is resolved through a
+ * {@link SeriesKeyBuilder} fed straight from the metric and tag bytes, so a line for a series that has already
+ * been seen does not allocate.</p>
+ * <p>Instances keep per-line scratch state and are not thread safe. Each channel should have its own.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.handlers.text.PutLineParser</code></p>
+ */
+
+public class PutLineParser {
+	/** The endpoint where metrics are submitted to */
+	protected final MetricCache metricCache;
+	/** The start offsets of the tokens in the current line */
+	protected final int[] tokenStarts;
+	/** The end offsets (exclusive) of the tokens in the current line */
+	protected final int[] tokenEnds;
+	/** The number of tokens in the current line */
+	protected int tokenCount = 0;
+	/** The series key builder */
+	protected final SeriesKeyBuilder seriesKey = new SeriesKeyBuilder();
+
+	/** The maximum number of tokens in a line: put, metric, timestamp, value and the tags */
+	public static final int MAX_TOKENS = 4 + MetricCache.MAX_TAGS;
+	/** The UTF8 character set */
+	public static final Charset UTF8 = Charset.forName("UTF8");
+	/** The powers of ten that are exactly representable as a double */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	/** The maximum number of significant digits for which the fast double parse is exact */
+	private static final int MAX_EXACT_DIGITS = 15;
+
+	/** The "put" command bytes */
+	private static final byte[] PUT = {'p', 'u', 't'};
+
+	/**
+	 * Creates a new PutLineParser
+	 */
+	public PutLineParser() {
+		metricCache = MetricCache.getInstance();
+		tokenStarts = new int[MAX_TOKENS];
+		tokenEnds = new int[MAX_TOKENS];
+	}
+
+	/**
+	 * Parses the put line between the passed offsets and adds the resulting data point to the passed batch
+	 * @param buf The buffer containing the line
+	 * @param start The offset of the first byte of the line
+	 * @param end The offset after the last byte of the line, excluding any line terminator
+	 * @param batch The batch to add the data point to
+	 * @throws NumberFormatException if the timestamp or value is invalid
+	 * @throws IllegalArgumentException if any other part of the line is invalid
+	 */
+	public void parse(final ByteBuf buf, final int start, final int end, final TraceBatch batch) {
+		tokenize(buf, start, end);
+		if(tokenCount==0) return;  // blank line
+		if(!isPut(buf)) {
+			throw new IllegalArgumentException("unknown command: " + token(buf, 0));
+		}
+		if(tokenCount < 5) {  // Need at least: metric timestamp value tag
+			throw new IllegalArgumentException("not enough arguments"
+                    + " (need least 4, got " + (tokenCount - 1) + ')');
+		}
+		final long timestamp = parseTimestamp(buf, tokenStarts[2], tokenEnds[2]);
+		if (timestamp <= 0) {
+			throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+		}
+		final int vStart = tokenStarts[3];
+		final int vEnd = tokenEnds[3];
+		final boolean doubleType = !looksLikeInteger(buf, vStart, vEnd);
+		final long longValue = doubleType ? -1L : parseLong(buf, vStart, vEnd);
+		final double doubleValue = doubleType ? parseDouble(buf, vStart, vEnd) : -1d;
+		batch.add(resolve(buf), doubleType, longValue, doubleValue, timestamp);
+	}
+
+	/**
+	 * Resolves the AppMetric for the metric and tag tokens of the current line
+	 * @param buf The buffer containing the line
+	 * @return the AppMetric
+	 */
+	protected AppMetric resolve(final ByteBuf buf) {
+		seriesKey.reset().metric(buf, tokenStarts[1], tokenEnds[1]);
+		for(int i = 4; i < tokenCount; i++) {
+			final int start = tokenStarts[i];
+			final int end = tokenEnds[i];
+			final int eq = buf.forEachByte(start, end - start, FIND_EQUALS);
+			if(eq==-1 || eq==start || eq==end-1 || buf.forEachByte(eq + 1, end - eq - 1, FIND_EQUALS)!=-1) {
+				throw new IllegalArgumentException("invalid tag: " + buf.toString(start, end - start, UTF8));
+			}
+			seriesKey.tag(buf, start, eq, eq + 1, end);
+		}
+		return metricCache.getAppMetric(seriesKey.build());
+	}
+
+	/**
+	 * Splits the line into whitespace delimited tokens, recording their offsets
+	 * @param buf The buffer containing the line
+	 * @param start The offset of the first byte of the line
+	 * @param end The offset after the last byte of the line
+	 */
+	protected void tokenize(final ByteBuf buf, final int start, final int end) {
+		tokenCount = 0;
+		int pos = start;
+		while(pos < end) {
+			final int tStart = buf.forEachByte(pos, end - pos, ByteProcessor.FIND_NON_LINEAR_WHITESPACE);
+			if(tStart==-1) break;
+			int tEnd = buf.forEachByte(tStart, end - tStart, ByteProcessor.FIND_LINEAR_WHITESPACE);
+			if(tEnd==-1) tEnd = end;
+			if(tokenCount==MAX_TOKENS) {
+				throw new IllegalArgumentException("too many tags (maximum is " + MetricCache.MAX_TAGS + ")");
+			}
+			tokenStarts[tokenCount] = tStart;
+			tokenEnds[tokenCount] = tEnd;
+			tokenCount++;
+			pos = tEnd;
+		}
+	}
+
+	/**
+	 * Determines if the first token is the <b><code>put</code></b> command
+	 * @param buf The buffer containing the line
+	 * @return true if the first token is put, false otherwise
+	 */
+	protected boolean isPut(final ByteBuf buf) {
+		final int s = tokenStarts[0];
+		if(tokenEnds[0] - s != PUT.length) return false;
+		for(int i = 0; i < PUT.length; i++) {
+			if(buf.getByte(s + i) != PUT[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes the indexed token as a string
+	 * @param buf The buffer containing the line
+	 * @param index The token index
+	 * @return the token string
+	 */
+	protected String token(final ByteBuf buf, final int index) {
+		return buf.toString(tokenStarts[index], tokenEnds[index] - tokenStarts[index], UTF8);
+	}
+
+	/**
+	 * Parses a timestamp, ignoring a single decimal point so that <b><code>secs.millis</code></b>
+	 * reads as milliseconds, the same as the prior String based parser.
+	 * @param buf The buffer containing the timestamp
+	 * @param start The start offset of the timestamp
+	 * @param end The end offset of the timestamp
+	 * @return the parsed timestamp
+	 * @throws NumberFormatException if the value is malformed or overflows
+	 */
+	public static long parseTimestamp(final ByteBuf buf, final int start, final int end) {
+		long v = 0;
+		boolean dot = false;
+		int digits = 0;
+		for(int i = start; i < end; i++) {
+			final byte c = buf.getByte(i);
+			if(c=='.' && !dot) {
+				dot = true;
+				continue;
+			}
+			if(c < '0' || c > '9' || ++digits > 18) {
+				throw new NumberFormatException("Invalid timestamp: " + buf.toString(start, end - start, UTF8));
+			}
+			v = v * 10 + (c - '0');
+		}
+		if(digits==0) throw new NumberFormatException("Empty timestamp");
+		return v;
+	}
+
+	/**
+	 * Returns true if the given bytes look like an integer, i.e. contain none of the characters
+	 * generally found in floating point values such as '.' or 'e'.
+	 * @param buf The buffer containing the value
+	 * @param start The start offset of the value
+	 * @param end The end offset of the value
+	 * @return true if the value appears to be an integral number, false otherwise
+	 */
+	public static boolean looksLikeInteger(final ByteBuf buf, final int start, final int end) {
+		return buf.forEachByte(start, end - start, FIND_FLOAT_CHAR)==-1;
+	}
+
+	/**
+	 * Parses an integer value as a long from the given bytes.
+	 * Follows {@link StringArrayTraceDecoder#parseLong(CharSequence)}, accumulating
+	 * negatively so that {@link Long#MIN_VALUE} can be represented.
+	 * @param buf The buffer containing the value
+	 * @param start The start offset of the value
+	 * @param end The end offset of the value
+	 * @return The value parsed
+	 * @throws NumberFormatException if the value is malformed or overflows
+	 */
+	public static long parseLong(final ByteBuf buf, final int start, final int end) {
+		final int n = end - start;
+		if(n == 0) {
+			throw new NumberFormatException("Empty string");
+		}
+		final byte first = buf.getByte(start);
+		final boolean negative = first=='-';
+		int i = start;
+		if(first=='-' || first=='+') {
+			if(n == 1) {
+				throw new NumberFormatException("Just a sign, no value: " + buf.toString(start, n, UTF8));
+			} else if(n > 20) {
+				throw new NumberFormatException("Value too long: " + buf.toString(start, n, UTF8));
+			}
+			i++;
+		} else if(n > 19) {
+			throw new NumberFormatException("Value too long: " + buf.toString(start, n, UTF8));
+		}
+		long v = 0;
+		for(; i < end; i++) {
+			final byte c = buf.getByte(i);
+			if(c < '0' || c > '9') {
+				throw new NumberFormatException("Invalid character '" + (char)c + "' in " + buf.toString(start, n, UTF8));
+			}
+			v = v * 10 - (c - '0');
+			if(v > 0) {
+				throw new NumberFormatException("Overflow in " + buf.toString(start, n, UTF8));
+			}
+		}
+		if(negative) return v;
+		if(v == Long.MIN_VALUE) {
+			throw new NumberFormatException("Overflow in " + buf.toString(start, n, UTF8));
+		}
+		return -v;
+	}
+
+	/**
+	 * Parses a floating point value from the given bytes. Values with up to 15 significant digits
+	 * and a small decimal exponent are computed exactly from the digits in place. Anything else
+	 * (long mantissas, large exponents, NaN, Infinity) falls back to {@link Double#parseDouble(String)}.
+	 * @param buf The buffer containing the value
+	 * @param start The start offset of the value
+	 * @param end The end offset of the value
+	 * @return the parsed value
+	 * @throws NumberFormatException if the value is malformed
+	 */
+	public static double parseDouble(final ByteBuf buf, final int start, final int end) {
+		int i = start;
+		boolean negative = false;
+		if(i < end) {
+			final byte c = buf.getByte(i);
+			if(c=='-' || c=='+') {
+				negative = c=='-';
+				i++;
+			}
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean dot = false;
+		boolean any = false;
+		for(; i < end; i++) {
+			final byte c = buf.getByte(i);
+			if(c >= '0' && c <= '9') {
+				any = true;
+				if(mantissa==0 && c=='0') {
+					if(dot) scale--;
+					continue;
+				}
+				if(++digits > MAX_EXACT_DIGITS) return slowParseDouble(buf, start, end);
+				mantissa = mantissa * 10 + (c - '0');
+				if(dot) scale--;
+			} else if(c=='.' && !dot) {
+				dot = true;
+			} else if(c=='e' || c=='E') {
+				break;
+			} else {
+				return slowParseDouble(buf, start, end);
+			}
+		}
+		if(!any) return slowParseDouble(buf, start, end);
+		if(i < end) {
+			// exponent
+			i++;
+			boolean negExp = false;
+			if(i < end) {
+				final byte c = buf.getByte(i);
+				if(c=='-' || c=='+') {
+					negExp = c=='-';
+					i++;
+				}
+			}
+			if(i==end) return slowParseDouble(buf, start, end);
+			int exp = 0;
+			for(; i < end; i++) {
+				final byte c = buf.getByte(i);
+				if(c < '0' || c > '9' || exp > 1000) return slowParseDouble(buf, start, end);
+				exp = exp * 10 + (c - '0');
+			}
+			scale += negExp ? -exp : exp;
+		}
+		double d = mantissa;
+		if(mantissa!=0) {
+			if(scale < 0) {
+				if(-scale >= POWERS_OF_TEN.length) return slowParseDouble(buf, start, end);
+				d = d / POWERS_OF_TEN[-scale];
+			} else if(scale > 0) {
+				if(scale >= POWERS_OF_TEN.length) return slowParseDouble(buf, start, end);
+				d = d * POWERS_OF_TEN[scale];
+			}
+		}
+		return negative ? -d : d;
+	}
+
+	private static double slowParseDouble(final ByteBuf buf, final int start, final int end) {
+		return Double.parseDouble(buf.toString(start, end - start, UTF8));
+	}
+
+	/** Finds the first '=' */
+	private static final ByteProcessor FIND_EQUALS = new ByteProcessor.IndexOfProcessor((byte)'=');
+
+	/** Finds the first character that indicates a floating point value */
+	private static final ByteProcessor FIND_FLOAT_CHAR = new ByteProcessor() {
+		@Override
+		public boolean process(final byte value) throws Exception {
+			return value != '.' && value != 'e' && value != 'E';
+		}
+	};
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.handlers.text;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.metric.MetricCache;
+import com.heliosapm.tsdblite.metric.TraceBatch;
+import com.heliosapm.utils.config.ConfigurationHelper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.ByteProcessor;
+
+/**
+ * <p>Title: PutTraceDecoder</p>
+ * <p>Description: Frames, tokenizes and submits plain text <b><code>put</code></b> lines in one pass over the
+ * inbound {@link ByteBuf}, replacing the LineBasedFrameDecoder / {@link WordSplitter} / {@link StringArrayTraceDecoder}
+ * chain. Lines are never copied into Strings unless the series is new or the line is invalid.
+ * Invalid lines are answered with an OpenTSDB style <b><code>put: &lt;error&gt;</code></b> line.
+ * Parsed points are collected into a {@link TraceBatch} and submitted once per read, in {@link #channelReadComplete(ChannelHandlerContext)}.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.handlers.text.PutTraceDecoder</code></p>
+ */
+
+public class PutTraceDecoder extends ByteToMessageDecoder {
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The line parser for this channel */
+	protected final PutLineParser parser = new PutLineParser();
+	/** The endpoint where metrics are submitted to */
+	protected final MetricCache metricCache = MetricCache.getInstance();
+	/** The maximum length of a line */
+	protected final int maxLineLength;
+	/** The batch of points parsed in the current read */
+	protected final TraceBatch batch = new TraceBatch();
+	/** Indicates if we are discarding the rest of an over long line */
+	protected boolean discarding = false;
+	/** Indicates if error responses have been written and need flushing */
+	protected boolean pendingFlush = false;
+
+	/** The default maximum line length */
+	public static final int DEFAULT_MAX_LINE_LENGTH = 1024;
+	/** The maximum number of points batched before being submitted mid-read */
+	public static final int MAX_BATCH_SIZE = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_INGEST_BATCH_SIZE, Constants.DEFAULT_INGEST_BATCH_SIZE);
+
+	/**
+	 * Creates a new PutTraceDecoder
+	 * @param maxLineLength The maximum length of a line
+	 */
+	public PutTraceDecoder(final int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+	}
+
+	/**
+	 * Creates a new PutTraceDecoder with the default maximum line length
+	 */
+	public PutTraceDecoder() {
+		this(DEFAULT_MAX_LINE_LENGTH);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.codec.ByteToMessageDecoder#decode(io.netty.channel.ChannelHandlerContext, io.netty.buffer.ByteBuf, java.util.List)
+	 */
+	@Override
+	protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) throws Exception {
+		while(in.isReadable()) {
+			final int start = in.readerIndex();
+			final int eol = in.forEachByte(start, in.readableBytes(), ByteProcessor.FIND_LF);
+			if(eol==-1) {
+				if(in.readableBytes() > maxLineLength) {
+					discarding = true;
+					in.skipBytes(in.readableBytes());
+				}
+				return;
+			}
+			in.readerIndex(eol + 1);
+			if(discarding) {
+				discarding = false;
+				error(ctx, "line too long (maximum is " + maxLineLength + ")");
+				continue;
+			}
+			int end = eol;
+			if(end > start && in.getByte(end - 1)=='\r') end--;
+			if(end - start > maxLineLength) {
+				error(ctx, "line too long (maximum is " + maxLineLength + ")");
+				continue;
+			}
+			try {
+				parser.parse(in, start, end, batch);
+				if(batch.size() >= MAX_BATCH_SIZE) metricCache.submit(batch);
+			} catch (IllegalArgumentException iex) {
+				error(ctx, iex.getMessage());
+			} catch (RuntimeException rex) {
+				log.debug("Failed to process put line [{}]", in.toString(start, end - start, PutLineParser.UTF8), rex);
+				error(ctx, rex.toString());
+			}
+		}
+	}
+
+	/**
+	 * Records a bad submission and writes the error back to the caller
+	 * @param ctx The channel handler context
+	 * @param message The error message
+	 */
+	protected void error(final ChannelHandlerContext ctx, final String message) {
+		metricCache.badMetric();
+		ctx.write("put: " + message + "\n");
+		pendingFlush = true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.codec.ByteToMessageDecoder#channelReadComplete(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+		metricCache.submit(batch);
+		if(pendingFlush) {
+			pendingFlush = false;
+			ctx.flush();
+		}
+		super.channelReadComplete(ctx);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see io.netty.handler.codec.ByteToMessageDecoder#handlerRemoved0(io.netty.channel.ChannelHandlerContext)
+	 */
+	@Override
+	protected void handlerRemoved0(final ChannelHandlerContext ctx) throws Exception {
+		metricCache.submit(batch);
+	}
+
+}
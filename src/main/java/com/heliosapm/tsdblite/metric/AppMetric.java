@@ -23,10 +23,20 @@ import javax.management.Notification;
 import javax.management.ObjectName;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.chunk.PointSink;
+import com.heliosapm.tsdblite.chunk.SeriesChunks;
 import com.heliosapm.tsdblite.json.JSON;
+import com.heliosapm.tsdblite.rollup.RollupStore;
+import com.heliosapm.tsdblite.rollup.SeriesRollups;
+import com.heliosapm.tsdblite.store.RetentionPolicy;
+import com.heliosapm.tsdblite.store.SegmentStore;
+import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.utils.jmx.ExposedSubscribersNotificationBroadcaster;
 import com.heliosapm.utils.jmx.SharedNotificationExecutor;
 
+import jsr166e.LongAdder;
+
 /**
  * <p>Title: AppMetric</p>
  * <p>Description: </p> 
@@ -38,21 +48,39 @@ import com.heliosapm.utils.jmx.SharedNotificationExecutor;
 public class AppMetric extends ExposedSubscribersNotificationBroadcaster implements AppMetricMXBean {
 	/** The metric */
 	protected final Metric metric;
-	/** The JMX ObjectName the metric is registered under */
-	protected final ObjectName objectName;
 	/** The last value submitted */
-	protected double lastValue = Double.NaN;
+	protected volatile double lastValue = Double.NaN;
 	/** The timestamp of the last value submitted */
-	protected long lastSubmission = -1L;
-	/** The timestamp of the last activity */
-	protected long lastActivity = -1L;
+	protected volatile long lastSubmission = -1L;
+	/** The timestamp of the last activity, read by the expiry thread */
+	protected volatile long lastActivity = -1L;
+	/** Indicates if this metric has been expired out of the cache */
+	protected volatile boolean expired = false;
+	/** The recent points of this metric, or null if history is disabled, chunk storage is enabled or the metric has expired */
+	protected volatile SeriesHistory history = SeriesHistory.newInstance();
+	/** The compressed points of this metric, or null if chunk storage is disabled */
+	protected final SeriesChunks chunks;
+	/** The open rollup cells of this metric, or null if rollups are disabled */
+	protected final SeriesRollups rollups;
+	/** The points held back for reordering, or null if reordering is disabled */
+	protected final ReorderBuffer reorder;
+	/** The write-ahead log segment this metric was last defined in. Only accessed by the log writer thread. */
+	protected long walSegment = -1L;
+	/** The ObjectName this metric was registered under, or null until the registrar has registered it */
+	protected volatile ObjectName registeredName = null;
+	/** Indicates if this metric is registered under its host ObjectName */
+	protected volatile boolean hostObjectName = false;
+	/** The internal id of this series in the {@link SeriesIndex}, or -1 if it is not indexed. Only accessed under the index lock. */
+	int seriesId = -1;
 	
 	
 	/** Notification serial number generator */
 	protected final AtomicLong notifSerial = new AtomicLong(-1L);
 	
-	/** Place holder app metric */
-	public static final AppMetric PLACEHOLDER = new AppMetric();
+	/** The configured bound in ms. on how far ahead of the clock a point's timestamp may be, or 0 if unbounded */
+	public static final long MAX_FUTURE = Math.max(0L, ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_MAX_FUTURE, Constants.DEFAULT_MAX_FUTURE));
+	/** A counter of points rejected because their timestamp was too far ahead of the clock */
+	private static final LongAdder futurePoints = new LongAdder();
 	
 	private static final MBeanNotificationInfo[] NOTIFS = new MBeanNotificationInfo[] {
 		new MBeanNotificationInfo(new String[]{NOTIF_NEW_SUB}, Notification.class.getName(), "Emitted when a new submission is received")
@@ -67,41 +95,241 @@ public class AppMetric extends ExposedSubscribersNotificationBroadcaster impleme
 		super(SharedNotificationExecutor.getInstance(), NOTIFS);
 		if(metric==null) throw new IllegalArgumentException("The passed metric was null");
 		this.metric = metric;
-		objectName = this.metric.toObjectName();
+		final int policy = RetentionPolicy.forMetric(metric.getMetricName()).getId();
+		chunks = SeriesChunks.newInstance(metric.getHashCode(), metric.getHashCodeHigh(), policy);
+		rollups = SeriesRollups.newInstance(metric.getHashCode(), metric.getHashCodeHigh(), policy);
+		reorder = ReorderBuffer.newInstance(new PointSink() {
+			@Override
+			public void point(final long timestamp, final double value) {
+				store(timestamp, value);
+			}
+		});
 		lastActivity = System.currentTimeMillis();
 	}
 	
 	/**
-	 * Creates the AppMetric placeholder
+	 * Creates the stand-in the index keeps for an expired metric whose points are still in the persistent stores
+	 * @param expiredMetric The expired metric
 	 */
-	public AppMetric() {
-		this.metric = Metric.PLACEHOLDER;
-		objectName = null;
+	private AppMetric(final AppMetric expiredMetric) {
+		super(SharedNotificationExecutor.getInstance(), NOTIFS);
+		metric = expiredMetric.metric;
+		// freed, so they only hold the series key and policy and read through to the stores
+		chunks = expiredMetric.chunks;
+		rollups = expiredMetric.rollups;
+		reorder = null;
+		history = null;
+		expired = true;
+		lastValue = expiredMetric.lastValue;
+		lastSubmission = expiredMetric.lastSubmission;
+		lastActivity = expiredMetric.lastActivity;
 	}
 	
+	/**
+	 * Returns a stand-in for this expired metric that holds no points, reorder buffer or history of its own,
+	 * for the index to keep while the persistent stores still hold the metric's points
+	 * @return the stand-in
+	 */
+	AppMetric retired() {
+		return new AppMetric(this);
+	}
 
+	/**
+	 * Returns the cummulative number of points rejected because their timestamp was too far ahead of the clock
+	 * @return the cummulative number of future points
+	 */
+	public static long getFuturePoints() {
+		return futurePoints.longValue();
+	}
+	
 	/**
 	 * Submits a new trace for this metric
 	 * @param trace The trace to apply
 	 */
 	public void submit(final Trace trace) {		
-		lastValue = trace.isDoubleType() ? trace.getDoubleValue() : trace.getLongValue();
-		lastSubmission = trace.getTimestampMs();
+		accept(trace.getTimestampMs(), trace.isDoubleType() ? trace.getDoubleValue() : trace.getLongValue());
 		lastActivity = System.currentTimeMillis();
 		if(hasSubscribers()) {
-			final long serial = notifSerial.incrementAndGet();
-			final Notification notif = new Notification(NOTIF_NEW_SUB, objectName, notifSerial.incrementAndGet(), lastSubmission, JSON.serializeToString(new SubNotif(objectName.toString(), trace.isDoubleType() ? trace.getDoubleValue() : trace.getLongValue(), lastSubmission, serial)));
-			notif.setUserData(trace);
-			sendNotification(notif);
+			sendSubmission(trace);
+		}
+	}
+	
+	/**
+	 * Submits a new value for this metric. A trace is only created if there are subscribers to notify.
+	 * @param doubleType true for a double type value, false for a long type double
+	 * @param longValue The long value
+	 * @param doubleValue The double value
+	 * @param timestampMs The timestamp in ms.
+	 */
+	public void submit(final boolean doubleType, final long longValue, final double doubleValue, final long timestampMs) {
+		update(doubleType, longValue, doubleValue, timestampMs, System.currentTimeMillis());
+		if(hasSubscribers()) {
+			sendSubmission(new Trace(metric, doubleType, longValue, doubleValue, Trace.toMs(timestampMs)));
+		}
+	}
+	
+	/**
+	 * Applies a new value to this metric without notifying subscribers
+	 * @param doubleType true for a double type value, false for a long type double
+	 * @param longValue The long value
+	 * @param doubleValue The double value
+	 * @param timestampMs The timestamp in ms.
+	 * @param now The current time in ms.
+	 */
+	void update(final boolean doubleType, final long longValue, final double doubleValue, final long timestampMs, final long now) {
+		accept(Trace.toMs(timestampMs), doubleType ? doubleValue : longValue);
+		lastActivity = now;
+	}
+	
+	/**
+	 * Accepts a point, which may be older than the last one. The last value only moves forward in time,
+	 * and the point is stored through the reorder buffer so storage and rollups see the series in timestamp order.
+	 * The last value is updated under the reorder buffer's lock, or this metric's if reordering is disabled,
+	 * so racing submitters can neither move it back nor pair one point's value with another's timestamp.
+	 * A point too far ahead of the clock is rejected before it can move the last value, the reorder window or the head chunk,
+	 * since every later point would otherwise be treated as late.
+	 * @param timestamp The timestamp in ms.
+	 * @param value The value
+	 */
+	private void accept(final long timestamp, final double value) {
+		if(MAX_FUTURE > 0 && timestamp - System.currentTimeMillis() > MAX_FUTURE) {
+			futurePoints.increment();
+			return;
+		}
+		if(reorder!=null) {
+			synchronized(reorder) {
+				advance(timestamp, value);
+				reorder.add(timestamp, value);
+			}
+		} else {
+			synchronized(this) {
+				advance(timestamp, value);
+			}
+			store(timestamp, value);
 		}
 	}
 	
+	/**
+	 * Moves the last value forward if the passed point is not older than it. Must be called under the accept lock.
+	 * @param timestamp The timestamp in ms.
+	 * @param value The value
+	 */
+	private void advance(final long timestamp, final double value) {
+		if(timestamp >= lastSubmission) {
+			lastValue = value;
+			lastSubmission = timestamp;
+		}
+	}
+	
+	/**
+	 * Stores a point in the history, chunks and rollups
+	 * @param timestamp The timestamp in ms.
+	 * @param value The value
+	 */
+	private void store(final long timestamp, final double value) {
+		final SeriesHistory h = history;
+		if(h!=null) h.add(timestamp, value);
+		if(chunks!=null) chunks.append(timestamp, value);
+		if(rollups!=null) rollups.add(timestamp, value);
+	}
+	
+	/**
+	 * Releases the points held for reordering to storage, such as before the chunks or rollups are flushed
+	 * @return the number of released points
+	 */
+	public int drain() {
+		return reorder==null ? 0 : reorder.drain();
+	}
+	
+	/**
+	 * Sends a new submission notification for the passed trace
+	 * @param trace The submitted trace
+	 */
+	protected void sendSubmission(final Trace trace) {
+		final ObjectName objectName = getObjectName();
+		final long serial = notifSerial.incrementAndGet();
+		final Notification notif = new Notification(NOTIF_NEW_SUB, objectName, notifSerial.incrementAndGet(), trace.getTimestampMs(), JSON.serializeToString(new SubNotif(objectName.toString(), trace.isDoubleType() ? trace.getDoubleValue() : trace.getLongValue(), trace.getTimestampMs(), serial)));
+		notif.setUserData(trace);
+		sendNotification(notif);
+	}
+	
+	/**
+	 * Sends one new submission notification for all the passed traces, which are in submission order.
+	 * The notification carries the last trace's value and the whole trace array as the user data.
+	 * @param traces The submitted traces
+	 */
+	protected void sendSubmissions(final Trace[] traces) {
+		final Trace trace = traces[traces.length-1];
+		final ObjectName objectName = getObjectName();
+		final long serial = notifSerial.incrementAndGet();
+		final Notification notif = new Notification(NOTIF_NEW_SUB, objectName, notifSerial.incrementAndGet(), trace.getTimestampMs(), JSON.serializeToString(new SubNotif(objectName.toString(), trace.isDoubleType() ? trace.getDoubleValue() : trace.getLongValue(), trace.getTimestampMs(), serial)));
+		notif.setUserData(traces);
+		sendNotification(notif);
+	}
+	
+	/**
+	 * Indicates if this metric has been expired out of the cache
+	 * @return true if expired, false otherwise
+	 */
+	public boolean isExpired() {
+		return expired;
+	}
+	
+	/**
+	 * Marks this metric as expired, releases its held points, frees its off-heap chunks and history and hands over its open rollup cells
+	 */
+	void expire() {
+		expired = true;
+		drain();
+		if(chunks!=null) chunks.free();
+		if(rollups!=null) rollups.free();
+		history = null;
+	}
+
+	/**
+	 * Returns how long the points of this metric are kept by the persistent stores it writes to
+	 * @return the longest retention in ms. of those stores' tiers, {@link RetentionPolicy#KEEP}, or 0 if it writes to none
+	 */
+	public long getStoredRetention() {
+		final RetentionPolicy policy = RetentionPolicy.forMetric(metric.getMetricName());
+		long retention = 0L;
+		if(chunks!=null && SegmentStore.isEnabled()) retention = policy.getRetention(RetentionPolicy.RAW);
+		if(rollups!=null && RollupStore.isEnabled()) {
+			for(String tier: SeriesRollups.NAMES) {
+				retention = Math.max(retention, policy.getRetention(tier));
+			}
+		}
+		return retention;
+	}
+	
+	/**
+	 * Called by the {@link MBeanRegistrar} once this metric has been registered
+	 * @param objectName The ObjectName the metric was registered under
+	 * @param hostObjectName true if the ObjectName is the host ObjectName
+	 */
+	void registered(final ObjectName objectName, final boolean hostObjectName) {
+		this.hostObjectName = hostObjectName;
+		registeredName = objectName;
+	}
+
+	/**
+	 * Restores the state saved in a {@link RegistrySnapshot}, before the metric is published
+	 * @param lastValue The last value submitted
+	 * @param lastSubmission The timestamp of the last value submitted
+	 * @param lastActivity The timestamp of the last activity
+	 */
+	void restore(final double lastValue, final long lastSubmission, final long lastActivity) {
+		this.lastValue = lastValue;
+		this.lastSubmission = lastSubmission;
+		this.lastActivity = lastActivity;
+	}
+	
 	/**
 	 * Returns the most recent SubNotif for this metric
 	 * @return a SubNotif
 	 */
 	public SubNotif getSubNotif() {
-		return new SubNotif(objectName.toString(), lastValue, lastSubmission, -1L);
+		return new SubNotif(getObjectName().toString(), lastValue, lastSubmission, -1L);
 	}
 	
 	public class SubNotif {
@@ -178,6 +406,75 @@ public class AppMetric extends ExposedSubscribersNotificationBroadcaster impleme
 	public long getLastActivity() {
 		return lastActivity;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.AppMetricMXBean#getHistorySize()
+	 */
+	@Override
+	public int getHistorySize() {
+		final SeriesHistory h = history;
+		return h==null ? 0 : h.size();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.AppMetricMXBean#getChunkBytes()
+	 */
+	@Override
+	public int getChunkBytes() {
+		return chunks==null ? 0 : chunks.getBytes();
+	}
+	
+	/**
+	 * Returns the compressed points of this metric
+	 * @return the chunks or null if chunk storage is disabled
+	 */
+	public SeriesChunks getChunks() {
+		return chunks;
+	}
+	
+	/**
+	 * Returns the open rollup cells of this metric
+	 * @return the rollups or null if rollups are disabled
+	 */
+	public SeriesRollups getRollups() {
+		return rollups;
+	}
+	
+	/**
+	 * Returns the points held back for reordering
+	 * @return the reorder buffer or null if reordering is disabled
+	 */
+	public ReorderBuffer getReorderBuffer() {
+		return reorder;
+	}
+	
+	/**
+	 * Returns the write-ahead log segment this metric was last defined in.
+	 * Only for use by the {@link com.heliosapm.tsdblite.store.WriteAheadLog} writer thread.
+	 * @return the segment sequence number or -1
+	 */
+	public long getWalSegment() {
+		return walSegment;
+	}
+	
+	/**
+	 * Sets the write-ahead log segment this metric was last defined in.
+	 * Only for use by the {@link com.heliosapm.tsdblite.store.WriteAheadLog} writer thread.
+	 * @param walSegment the segment sequence number
+	 */
+	public void setWalSegment(final long walSegment) {
+		this.walSegment = walSegment;
+	}
+	
+	/**
+	 * Returns the recent points of this metric
+	 * @return the history or null if history is disabled or the metric has expired
+	 */
+	public SeriesHistory getHistory() {
+		return history;
+	}
 
 	/**
 	 * Returns the timestamp of the last submission as a java Date 
@@ -208,12 +505,13 @@ public class AppMetric extends ExposedSubscribersNotificationBroadcaster impleme
 
 
 	/**
-	 * Returns the JMX ObjectName for this metric 
+	 * Returns the JMX ObjectName for this metric. Until the metric has been registered, this is built on each call.
 	 * @return the objectName
 	 */
 	@Override
 	public ObjectName getObjectName() {
-		return objectName;
+		final ObjectName on = registeredName;
+		return on!=null ? on : metric.toObjectName();
 	}
 	
 	/**
@@ -224,6 +522,15 @@ public class AppMetric extends ExposedSubscribersNotificationBroadcaster impleme
 	public long getMetricHashCode() {
 		return metric.getHashCode();
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.AppMetricMXBean#getMetricHashCodeHigh()
+	 */
+	@Override
+	public long getMetricHashCodeHigh() {
+		return metric.getHashCodeHigh();
+	}
 
 	/**
 	 * {@inheritDoc}
@@ -266,7 +573,7 @@ public class AppMetric extends ExposedSubscribersNotificationBroadcaster impleme
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
 		builder.append("AppMetric [objectName=");
-		builder.append(objectName);
+		builder.append(getObjectName());
 		builder.append(", lastValue=");
 		builder.append(lastValue);
 		builder.append(", lastSubmission=");
@@ -103,9 +103,27 @@ public interface AppMetricMXBean {
 	 */
 	public long getMetricHashCode();
 	
+	/**
+	 * Returns the high 64 bits of the underlying metric's series key
+	 * @return the high 64 bits of the series key
+	 */
+	public long getMetricHashCodeHigh();
+	
 	/**
 	 * Returns the timestamp of the last activity in this MBean as a long UTC 
 	 * @return the timestamp of the last activity in this MBean as a long UTC
 	 */
 	public long getLastActivity();
+	
+	/**
+	 * Returns the number of recent points held in memory for this metric
+	 * @return the number of recent points held in memory
+	 */
+	public int getHistorySize();
+	
+	/**
+	 * Returns the size in bytes of the compressed points held for this metric
+	 * @return the compressed size in bytes
+	 */
+	public int getChunkBytes();
 }
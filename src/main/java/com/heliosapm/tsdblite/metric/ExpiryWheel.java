@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>Title: ExpiryWheel</p>
+ * <p>Description: A hashed timing wheel of metrics, keyed by the tick of their expiry deadline.
+ * Each metric is scheduled once, when it is created, and submissions only update its last activity.
+ * When a tick comes due, only the metrics in that tick's slot are examined.
+ * Inactive metrics are handed back as expired, and the active ones are moved to the slot of their new deadline.
+ * A live series is therefore touched about once per expiry, and a tick never walks the whole cache.</p>
+ * <p>{@link #schedule(AppMetric)} is thread safe. {@link #expire(long, Collection)} must only be called by one thread.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.ExpiryWheel</code></p>
+ */
+
+public class ExpiryWheel {
+	/** The wheel slots, each holding the metrics whose deadline falls in the slot's tick */
+	private final ConcurrentLinkedQueue<AppMetric>[] slots;
+	/** The tick length in ms. */
+	private final long period;
+	/** The maximum inactivity of a metric in ms. */
+	private final long expiry;
+	/** The last tick that was processed */
+	private long lastTick;
+
+	/**
+	 * Creates a new ExpiryWheel
+	 * @param period The tick length in ms.
+	 * @param expiry The maximum inactivity of a metric in ms.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public ExpiryWheel(final long period, final long expiry) {
+		if(period < 1) throw new IllegalArgumentException("Invalid period [" + period + "]");
+		if(expiry < 1) throw new IllegalArgumentException("Invalid expiry [" + expiry + "]");
+		this.period = period;
+		this.expiry = expiry;
+		// a deadline is never more than one expiry ahead, so it always lands in a slot other than the one being processed
+		final long size = expiry / period + 2;
+		if(size > Integer.MAX_VALUE) throw new IllegalArgumentException("Expiry [" + expiry + "] is too long for period [" + period + "]");
+		slots = new ConcurrentLinkedQueue[(int)size];
+		for(int i = 0; i < slots.length; i++) {
+			slots[i] = new ConcurrentLinkedQueue<AppMetric>();
+		}
+		lastTick = System.currentTimeMillis() / period;
+	}
+
+	/**
+	 * Schedules a new metric for expiry one expiry after its last activity
+	 * @param appMetric The metric to schedule
+	 */
+	public void schedule(final AppMetric appMetric) {
+		slot((appMetric.getLastActivity() + expiry) / period).add(appMetric);
+	}
+
+	/**
+	 * Processes every tick due up to the passed time, collecting the metrics that have expired
+	 * and rescheduling the rest
+	 * @param now The current time in ms.
+	 * @param expired The collection the expired metrics are added to
+	 * @return the number of metrics examined
+	 */
+	public int expire(final long now, final Collection<AppMetric> expired) {
+		final long tick = now / period;
+		// after a stall, one rotation covers every slot
+		final long start = Math.max(lastTick + 1, tick - slots.length + 1);
+		int examined = 0;
+		for(long t = start; t <= tick; t++) {
+			final ConcurrentLinkedQueue<AppMetric> slot = slot(t);
+			// only drain what is in the slot now: after a long stall a rescheduled metric can land back in this same slot
+			for(int remaining = slot.size(); remaining > 0; remaining--) {
+				final AppMetric appMetric = slot.poll();
+				if(appMetric==null) break;
+				examined++;
+				if(appMetric.isExpired()) continue;
+				final long deadline = appMetric.getLastActivity() + expiry;
+				if(deadline <= now) {
+					expired.add(appMetric);
+				} else {
+					slot(Math.max(deadline / period, tick + 1)).add(appMetric);
+				}
+			}
+		}
+		lastTick = tick;
+		return examined;
+	}
+
+	/**
+	 * Returns the number of metrics scheduled in the wheel. This walks every slot so it is not cheap.
+	 * @return the number of scheduled metrics
+	 */
+	public int size() {
+		int size = 0;
+		for(ConcurrentLinkedQueue<AppMetric> slot: slots) {
+			size += slot.size();
+		}
+		return size;
+	}
+
+	private ConcurrentLinkedQueue<AppMetric> slot(final long tick) {
+		return slots[(int)(tick % slots.length)];
+	}
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: MBeanRegistrar</p>
+ * <p>Description: Applies metric MBean registrations and unregistrations on a background thread, so the
+ * ingest threads never wait on the MBeanServer. A new series is usable in the {@link MetricCache} as soon as it is created,
+ * and it shows up in JMX shortly after. Operations are queued in order and drained in batches, so an unregistration
+ * always lands after the registration it follows.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.MBeanRegistrar</code></p>
+ */
+
+public class MBeanRegistrar implements MBeanRegistrarMXBean, Runnable {
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The MBeanServer the metrics are registered in */
+	protected final MBeanServer server;
+	/** The pending operations */
+	protected final LinkedBlockingQueue<Op> queue = new LinkedBlockingQueue<Op>();
+	/** The maximum number of operations applied per batch */
+	protected final int batchSize;
+	/** The registrar thread */
+	protected final Thread thread;
+
+	/** A counter of registered MBeans */
+	protected final LongAdder registered = new LongAdder();
+	/** A counter of unregistered MBeans */
+	protected final LongAdder unregistered = new LongAdder();
+	/** A counter of failed operations */
+	protected final LongAdder failures = new LongAdder();
+	/** A counter of applied operations */
+	protected final LongAdder applied = new LongAdder();
+	/** The total enqueue to completion latency in nanos */
+	protected final LongAdder totalLatency = new LongAdder();
+	/** The size of the last batch */
+	protected volatile int lastBatchSize = 0;
+	/** The enqueue to completion latency of the last operation in nanos */
+	protected volatile long lastLatency = 0L;
+	/** The highest enqueue to completion latency in nanos */
+	protected final AtomicLong maxLatency = new AtomicLong(0L);
+
+	/**
+	 * <p>Title: Op</p>
+	 * <p>Description: A queued registration or unregistration</p> 
+	 */
+	private static class Op {
+		/** The metric to register or unregister */
+		final AppMetric appMetric;
+		/** true for a registration, false for an unregistration */
+		final boolean register;
+		/** Indicates if a registration should use the host ObjectName */
+		final boolean hostObjectName;
+		/** The enqueue time in nanos */
+		final long enqueued = System.nanoTime();
+
+		Op(final AppMetric appMetric, final boolean register, final boolean hostObjectName) {
+			this.appMetric = appMetric;
+			this.register = register;
+			this.hostObjectName = hostObjectName;
+		}
+	}
+
+	/**
+	 * Creates a new MBeanRegistrar and starts its thread
+	 * @param server The MBeanServer the metrics are registered in
+	 */
+	MBeanRegistrar(final MBeanServer server) {
+		this.server = server;
+		batchSize = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_REGISTRAR_BATCH_SIZE, Constants.DEFAULT_REGISTRAR_BATCH_SIZE);
+		thread = new Thread(this, "MBeanRegistrarThread");
+		thread.setDaemon(true);
+		thread.start();
+		JMXHelper.registerMBean(this, OBJECT_NAME);
+	}
+
+	/**
+	 * Queues the registration of the passed metric
+	 * @param appMetric The metric to register
+	 * @param hostObjectName true to register under the host ObjectName, false for the plain ObjectName
+	 */
+	public void register(final AppMetric appMetric, final boolean hostObjectName) {
+		queue.add(new Op(appMetric, true, hostObjectName));
+	}
+
+	/**
+	 * Queues the unregistration of the passed metrics. Each is unregistered from whatever ObjectName it was
+	 * registered under, after any registration still pending for it.
+	 * @param appMetrics The metrics to unregister
+	 */
+	public void unregister(final Collection<AppMetric> appMetrics) {
+		final ArrayList<Op> ops = new ArrayList<Op>(appMetrics.size());
+		for(AppMetric appMetric: appMetrics) {
+			ops.add(new Op(appMetric, false, false));
+		}
+		queue.addAll(ops);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		final ArrayList<Op> batch = new ArrayList<Op>(batchSize);
+		while(true) {
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch, batchSize - 1);
+				for(Op op: batch) {
+					apply(op);
+				}
+				lastBatchSize = batch.size();
+			} catch (InterruptedException iex) {
+				/* No Op */
+			} catch (Throwable t) {
+				log.error("Registrar batch failure", t);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void apply(final Op op) {
+		try {
+			if(op.register) {
+				final Metric metric = op.appMetric.getMetricInstance();
+				final ObjectName on = op.hostObjectName ? metric.toHostObjectName() : metric.toObjectName();
+				// the metric may have been expired while it waited
+				if(!op.appMetric.isExpired()) {
+					server.registerMBean(op.appMetric, on);
+					op.appMetric.registered(on, op.hostObjectName);
+					registered.increment();
+				}
+			} else {
+				// a null name means the registration was skipped because the metric had already expired
+				final ObjectName on = op.appMetric.registeredName;
+				if(on!=null) {
+					server.unregisterMBean(on);
+					unregistered.increment();
+				}
+			}
+		} catch (InstanceAlreadyExistsException iae) {
+			failures.increment();
+			if(log.isDebugEnabled()) log.debug("MBean already registered: [{}]", iae.getMessage());
+		} catch (InstanceNotFoundException inf) {
+			failures.increment();
+			if(log.isDebugEnabled()) log.debug("MBean not registered: [{}]", op.appMetric.registeredName);
+		} catch (Exception ex) {
+			failures.increment();
+			log.warn("MBean registrar operation failed", ex);
+		}
+		final long latency = System.nanoTime() - op.enqueued;
+		applied.increment();
+		totalLatency.add(latency);
+		lastLatency = latency;
+		while(true) {
+			final long max = maxLatency.get();
+			if(latency <= max || maxLatency.compareAndSet(max, latency)) break;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.MBeanRegistrarMXBean#getQueueDepth()
+	 */
+	@Override
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.MBeanRegistrarMXBean#getRegistered()
+	 */
+	@Override
+	public long getRegistered() {
+		return registered.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.MBeanRegistrarMXBean#getUnregistered()
+	 */
+	@Override
+	public long getUnregistered() {
+		return unregistered.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.MBeanRegistrarMXBean#getFailures()
+	 */
+	@Override
+	public long getFailures() {
+		return failures.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.MBeanRegistrarMXBean#getLastBatchSize()
+	 */
+	@Override
+	public int getLastBatchSize() {
+		return lastBatchSize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.MBeanRegistrarMXBean#getLastLatency()
+	 */
+	@Override
+	public long getLastLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(lastLatency);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.MBeanRegistrarMXBean#getMaxLatency()
+	 */
+	@Override
+	public long getMaxLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(maxLatency.get());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.MBeanRegistrarMXBean#getAverageLatency()
+	 */
+	@Override
+	public long getAverageLatency() {
+		final long count = applied.longValue();
+		return count==0 ? 0L : TimeUnit.NANOSECONDS.toMillis(totalLatency.longValue() / count);
+	}
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: MBeanRegistrarMXBean</p>
+ * <p>Description: JMX MXBean for the {@link MBeanRegistrar} instance</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.MBeanRegistrarMXBean</code></p>
+ */
+
+public interface MBeanRegistrarMXBean {
+
+	/** The JMX ObjectName for the {@link MBeanRegistrar}  */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.tsdblite:service=MBeanRegistrar");
+
+	/**
+	 * Returns the number of registrations and unregistrations waiting to be applied
+	 * @return the queue depth
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * Returns the cummulative number of registered MBeans
+	 * @return the cummulative number of registered MBeans
+	 */
+	public long getRegistered();
+
+	/**
+	 * Returns the cummulative number of unregistered MBeans
+	 * @return the cummulative number of unregistered MBeans
+	 */
+	public long getUnregistered();
+
+	/**
+	 * Returns the cummulative number of registrations and unregistrations that failed
+	 * @return the cummulative number of failures
+	 */
+	public long getFailures();
+
+	/**
+	 * Returns the number of operations applied in the last batch
+	 * @return the last batch size
+	 */
+	public int getLastBatchSize();
+
+	/**
+	 * Returns the time from enqueue to completion of the last applied operation in ms.
+	 * @return the last queue latency in ms.
+	 */
+	public long getLastLatency();
+
+	/**
+	 * Returns the highest time from enqueue to completion of any operation in ms.
+	 * @return the highest queue latency in ms.
+	 */
+	public long getMaxLatency();
+
+	/**
+	 * Returns the average time from enqueue to completion in ms.
+	 * @return the average queue latency in ms.
+	 */
+	public long getAverageLatency();
+
+}
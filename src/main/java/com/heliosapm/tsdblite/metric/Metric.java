@@ -18,14 +18,12 @@ under the License.
  */
 package com.heliosapm.tsdblite.metric;
 
-import java.util.Iterator;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
 import javax.management.ObjectName;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.heliosapm.utils.jmx.JMXHelper;
 
 /**
@@ -41,58 +39,55 @@ public class Metric implements MetricMBean {
 	/** Placeholder metric */
 	public static final Metric PLACEHOLDER = new Metric();
 
+	/** The dictionary the name and tag codes are resolved against */
+	private static final StringDictionary DICTIONARY = StringDictionary.getInstance();
 	
-	/** The metric name */
-	protected final String metricName;
-	/** The metric tags */
-	protected final SortedMap<String, String> tags;
-	/** The long hash code for this metric */
+	/** The series identity as dictionary codes: the metric name, then each tag key and value, ordered by key */
+	protected final int[] codes;
+	/** The long hash code for this metric (the low 64 bits of the series key) */
 	protected final long hashCode;
+	/** The high 64 bits of the series key */
+	protected final long hashCodeHigh;
 	
 	
 	
 	private Metric() {
-		metricName = null;
-		tags = null;
+		codes = new int[0];
 		hashCode = 0;
+		hashCodeHigh = 0;
 	}
 	
 	/**
 	 * Creates a new Metric
 	 * @param metricName The metric name
 	 * @param tags The metric tags
-	 * @param hashCode The long hash code
+	 * @param hashCode The long hash code (the low 64 bits of the series key)
+	 * @param hashCodeHigh The high 64 bits of the series key
 	 */
-	Metric(final String metricName, final Map<String, String> tags, final long hashCode) {
+	Metric(final String metricName, final Map<String, String> tags, final long hashCode, final long hashCodeHigh) {
 		if(metricName==null || metricName.trim().isEmpty()) throw new IllegalArgumentException("The passed metric name was null or empty");
-		this.metricName = MetricCache.clean(metricName, "metric name");
-		if(tags==null || tags.isEmpty()) {
-			this.tags = new TreeMap<String, String>();
-		} else {
-			this.tags = MetricCache.clean(tags);
+		final SortedMap<String, String> cleanedTags = (tags==null || tags.isEmpty()) ? new TreeMap<String, String>() : MetricCache.clean(tags);
+		codes = new int[1 + (cleanedTags.size() * 2)];
+		codes[0] = DICTIONARY.code(MetricCache.clean(metricName, "metric name"));
+		int i = 1;
+		for(Map.Entry<String, String> entry: cleanedTags.entrySet()) {
+			codes[i++] = DICTIONARY.code(entry.getKey());
+			codes[i++] = DICTIONARY.code(entry.getValue());
 		}
 		this.hashCode = hashCode;
+		this.hashCodeHigh = hashCodeHigh;
 	}
-	
+
 	/**
-	 * Creates a new Metric
-	 * @param node The JSON node
-	 * @param hashCode The long hash code
-	 */
-	Metric(final JsonNode node, final long hashCode) {
-		metricName = node.get("metric").textValue();
-		final JsonNode tags = node.get("tags");
-		if(tags!=null) {
-			final TreeMap<String, String> tmp = new TreeMap<String, String>(TagKeySorter.INSTANCE);
-			for(final Iterator<String> keyIter = tags.fieldNames(); keyIter.hasNext();) {
-				final String key = keyIter.next();
-				tmp.put(key.trim(), tags.get(key).textValue().trim());
-			}
-			this.tags = tmp;
-		} else {
-			this.tags = new TreeMap<String, String>();
-		}
+	 * Creates a new Metric from dictionary codes that are already cleaned and ordered, such as those in a {@link RegistrySnapshot}
+	 * @param codes The metric name code, then each tag key and value code, ordered by key
+	 * @param hashCode The long hash code (the low 64 bits of the series key)
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 */
+	Metric(final int[] codes, final long hashCode, final long hashCodeHigh) {
+		this.codes = codes;
 		this.hashCode = hashCode;
+		this.hashCodeHigh = hashCodeHigh;
 	}
 	
 	
@@ -102,13 +97,8 @@ public class Metric implements MetricMBean {
 	 */
 	@Override
 	public String toString() {
-		final StringBuilder b = new StringBuilder(metricName).append(":{");
-		if(!tags.isEmpty()) {
-			for(Map.Entry<String, String> entry: tags.entrySet()) {
-				b.append(entry.getKey()).append("=").append(entry.getValue()).append(",");
-			}
-			b.deleteCharAt(b.length()-1);			
-		}
+		final StringBuilder b = new StringBuilder(getMetricName()).append(":{");
+		appendTags(b);
 		return b.append("}").toString();
 	}
 	
@@ -117,11 +107,16 @@ public class Metric implements MetricMBean {
 	 * @return the rendered map
 	 */
 	public String tagsToStr() {
-		final StringBuilder b = new StringBuilder();
-		for(Map.Entry<String, String> entry: tags.entrySet()) {
-			b.append(entry.getKey()).append("=").append(entry.getValue()).append(",");
+		return appendTags(new StringBuilder()).toString();
+	}
+	
+	private StringBuilder appendTags(final StringBuilder b) {
+		final int tagCount = getTagCount();
+		for(int i = 0; i < tagCount; i++) {
+			if(i > 0) b.append(",");
+			b.append(getTagKey(i)).append("=").append(getTagValue(i));
 		}
-		return b.deleteCharAt(b.length()-1).toString();
+		return b;
 	}
 	
 	/**
@@ -129,14 +124,15 @@ public class Metric implements MetricMBean {
 	 * @return a JMX ObjectName
 	 */
 	public ObjectName toObjectName() {			
-		return JMXHelper.objectName(new StringBuilder(metricName)
+		return JMXHelper.objectName(new StringBuilder(getMetricName())
 			.append(":").append(tagsToStr())
 		);
 	}
 	
 	public ObjectName toHostObjectName() {
+		final String metricName = getMetricName();
 		final StringBuilder b = new StringBuilder("metrics.");
-		TreeMap<String, String> tgs = new TreeMap<String, String>(tags);
+		TreeMap<String, String> tgs = new TreeMap<String, String>(getTags());
 		String h = tgs.remove("host");
 		String a = tgs.remove("app");
 		final String host = h==null ? "unknownhost" : h;
@@ -159,15 +155,96 @@ public class Metric implements MetricMBean {
 	 */
 	@Override
 	public String getMetricName() {
-		return metricName;
+		return codes.length==0 ? null : DICTIONARY.string(codes[0]);
+	}
+	
+	/**
+	 * Returns the dictionary code of the metric name
+	 * @return the metric name code
+	 */
+	public int getMetricNameCode() {
+		return codes[0];
+	}
+	
+	/**
+	 * Returns the number of tags
+	 * @return the number of tags
+	 */
+	public int getTagCount() {
+		return codes.length==0 ? 0 : (codes.length - 1) / 2;
+	}
+	
+	/**
+	 * Returns the dictionary code of the indexed tag key. Tags are indexed in key order.
+	 * @param index The tag index
+	 * @return the tag key code
+	 */
+	public int getTagKeyCode(final int index) {
+		return codes[1 + (index * 2)];
+	}
+	
+	/**
+	 * Returns the dictionary code of the indexed tag value. Tags are indexed in key order.
+	 * @param index The tag index
+	 * @return the tag value code
+	 */
+	public int getTagValueCode(final int index) {
+		return codes[2 + (index * 2)];
+	}
+	
+	/**
+	 * Returns the indexed tag key. Tags are indexed in key order.
+	 * @param index The tag index
+	 * @return the tag key
+	 */
+	public String getTagKey(final int index) {
+		return DICTIONARY.string(getTagKeyCode(index));
+	}
+	
+	/**
+	 * Returns the indexed tag value. Tags are indexed in key order.
+	 * @param index The tag index
+	 * @return the tag value
+	 */
+	public String getTagValue(final int index) {
+		return DICTIONARY.string(getTagValueCode(index));
+	}
+	
+	/**
+	 * Returns the code of the value of the tag with the passed key code
+	 * @param keyCode The tag key code
+	 * @return the tag value code or -1 if this metric does not have the tag
+	 */
+	public int getTagValueCodeFor(final int keyCode) {
+		for(int i = 1; i < codes.length; i += 2) {
+			if(codes[i]==keyCode) return codes[i + 1];
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the value of the tag with the passed key
+	 * @param key The tag key
+	 * @return the tag value or null if this metric does not have the tag
+	 */
+	public String getTag(final String key) {
+		final int keyCode = DICTIONARY.find(key);
+		if(keyCode==-1) return null;
+		final int valueCode = getTagValueCodeFor(keyCode);
+		return valueCode==-1 ? null : DICTIONARY.string(valueCode);
 	}
 	
 	/**
-	 * Returns the metric tags
+	 * Returns a new map of the metric tags
 	 * @return the metric tags
 	 */
 	@Override
 	public SortedMap<String, String> getTags() {
+		final TreeMap<String, String> tags = new TreeMap<String, String>(MetricCache.ROOT_COLLATOR);
+		final int tagCount = getTagCount();
+		for(int i = 0; i < tagCount; i++) {
+			tags.put(getTagKey(i), getTagValue(i));
+		}
 		return tags;
 	}
 	
@@ -188,6 +265,14 @@ public class Metric implements MetricMBean {
 	public long getHashCode() {
 		return hashCode;
 	}
+	
+	/**
+	 * Returns the high 64 bits of the series key
+	 * @return the high 64 bits of the series key
+	 */
+	public long getHashCodeHigh() {
+		return hashCodeHigh;
+	}
 
 	/**
 	 * {@inheritDoc}
@@ -216,6 +301,8 @@ public class Metric implements MetricMBean {
 		Metric other = (Metric) obj;
 		if (hashCode != other.hashCode)
 			return false;
+		if (hashCodeHigh != other.hashCodeHigh)
+			return false;
 		return true;
 	}
 
@@ -18,23 +18,18 @@ package com.heliosapm.tsdblite.metric;
 import java.nio.charset.Charset;
 import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
-import javax.management.Query;
-import javax.management.QueryExp;
-import javax.management.StringValueExp;
 import javax.management.remote.JMXServiceURL;
 
 import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
@@ -43,16 +38,14 @@ import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.heliosapm.tsdblite.Constants;
-import com.heliosapm.tsdblite.jmx.ManagedDefaultExecutorServiceFactory;
-import com.heliosapm.tsdblite.jmx.Util;
+import com.heliosapm.tsdblite.chunk.SeriesChunks;
+import com.heliosapm.tsdblite.store.WriteAheadLog;
 import com.heliosapm.tsdblite.metric.AppMetric.SubNotif;
 import com.heliosapm.utils.config.ConfigurationHelper;
 import com.heliosapm.utils.jmx.JMXHelper;
-import com.heliosapm.utils.lang.StringHelper;
 import com.heliosapm.utils.time.SystemClock;
 
 import jsr166e.LongAdder;
-import net.openhft.hashing.LongHashFunction;
 
 /**
  * <p>Title: MetricCache</p>
@@ -71,16 +64,24 @@ public class MetricCache implements MetricCacheMXBean {
 	protected final Logger log = LoggerFactory.getLogger(getClass());
 	/** The metric cache, keyed by the long hash code */
 	protected final NonBlockingHashMapLong<AppMetric> metricCache = new NonBlockingHashMapLong<AppMetric>(8096, false);
+	/** Metrics whose cache key collided with a different series, keyed by the high 64 bits of the series key */
+	protected final NonBlockingHashMapLong<AppMetric> collisionCache = new NonBlockingHashMapLong<AppMetric>(16, false);
 	/** The metrics MBeanServer */
 	protected final MBeanServer metricMBeanServer;
+	/** The write-ahead log, or null if disabled */
+	protected final WriteAheadLog wal;
+	/** The background registrar that registers new metric MBeans */
+	protected final MBeanRegistrar registrar;
+	/** The inverted index of the cached series */
+	protected final SeriesIndex index = SeriesIndex.getInstance();
 	/** The UTF8 character set */
 	public static final Charset UTF8 = Charset.forName("UTF8");
-	/** The hasher to compute long hash codes for metric names */
-	public static final LongHashFunction METRIC_HASHER = LongHashFunction.murmur_3();
 
 	
 	/** A counter for bad metric submissions */
 	private final LongAdder badMetrics = new LongAdder();
+	/** A counter for series key collisions */
+	private final LongAdder hashCollisions = new LongAdder();
 	/** A counter for expired metrics */
 	private final LongAdder expiredMetrics = new LongAdder();
 	/** The last expiry dispatch elapsed time in ms */
@@ -97,9 +98,6 @@ public class MetricCache implements MetricCacheMXBean {
 	/** The maximum elapsed time an inactive metric can live for  in ms. */
 	final long expiry;
 	
-	/** The attribute names the expiry inquiry will request from each metric */
-	private static final String[] EXPIRY_ATTRIBUTES = new String[]{"MetricHashCode", "LastActivity"}; // "LastSubmission"
-	
 	/** The configuration key for the maximum number of tags per IMetricName */
 	public static final String CONF_MAX_TAGS = "tracing.tags.max";
 	/** The default maximum number of tags per IMetricName */
@@ -127,12 +125,18 @@ public class MetricCache implements MetricCacheMXBean {
 	
 
 	
-	/** The expiry task pool */
-	private final ExecutorService expiryService = new ManagedDefaultExecutorServiceFactory("expiry").newExecutorService(4);
-	/** The expiry task scheduler thread */
+	/** The timing wheel of metrics by expiry deadline */
+	private final ExpiryWheel expiryWheel;
+	/** The expiry thread */
 	private final Thread expiryThread;
-	/** The JMX query to find all registered instances of {@link com.heliosapm.tsdblite.metric.AppMetricMXBean} */
-	private final QueryExp metricBeanQuery = Query.isInstanceOf(new StringValueExp("com.heliosapm.tsdblite.metric.AppMetricMXBean"));
+	
+	/** A thread local batch for array submissions */
+	private static final ThreadLocal<TraceBatch> threadBatch = new ThreadLocal<TraceBatch>() {
+		@Override
+		protected TraceBatch initialValue() {
+			return new TraceBatch();
+		}
+	};
 	
 	/** An empty tag map const */
 	public static final SortedMap<String, String> EMPTY_TAG_MAP = Collections.unmodifiableSortedMap(new TreeMap<String, String>());
@@ -141,26 +145,6 @@ public class MetricCache implements MetricCacheMXBean {
 	
 	
 	
-	/**
-	 * Returns the long hash code for the passed metric JSON node
-	 * @param metricNode a metric JSON node
-	 * @return the long hash code
-	 */
-	public static long hashCode(final JsonNode metricNode) {
-		if(metricNode==null) throw new IllegalArgumentException("The passed node was null");
-		try {
-			final TreeMap<String, String> cleanedTags = new TreeMap<String, String>(ROOT_COLLATOR);
-			final JsonNode tags = metricNode.get("tags");
-			for(final Iterator<String> keyIter = tags.fieldNames(); keyIter.hasNext();) {
-				final String key = keyIter.next();
-				cleanedTags.put(key, tags.get(key).textValue());
-			}
-			return hashCode(metricNode.get("metric").textValue(), cleanedTags);
-		} catch (Exception ex) {
-			throw new RuntimeException("Failed to calc hash for metric node [" + metricNode + "]", ex);
-		}
-	}
-	
 	/**
 	 * Returns the long hash code for a metric name built from the passed metric name and tags
 	 * @param metricName The metric name
@@ -168,12 +152,7 @@ public class MetricCache implements MetricCacheMXBean {
 	 * @return the long hash code
 	 */
 	public static long hashCode(final String metricName, final Map<String, String> tags) {		
-		return METRIC_HASHER.hashChars(
-			StringHelper.getStringBuilder()
-				.append(clean(tags))
-				.append(clean(metricName, "metric name")
-			)
-		);
+		return SeriesKeyBuilder.threadInstance().metric(metricName).tags(tags).build().getHashCode();
 	}
 
 	/**
@@ -221,7 +200,13 @@ public class MetricCache implements MetricCacheMXBean {
 	 */
 	public static String clean(final String s, final String field) {
 		if(s==null || s.trim().isEmpty()) throw new IllegalArgumentException("The passed " + field + " was null or empty");
-		return s.trim().toLowerCase().replace(':', ';');
+		final char[] chars = s.trim().toCharArray();
+		for(int i = 0; i < chars.length; i++) {
+			final char c = chars[i];
+			if(c >= 'A' && c <= 'Z') chars[i] = (char)(c + 32);
+			else if(c == ':') chars[i] = ';';
+		}
+		return new String(chars);
 	}	
 
 	/**
@@ -241,16 +226,206 @@ public class MetricCache implements MetricCacheMXBean {
 	 * @return the metric
 	 */
 	public Metric getMetric(final String metricName, final Map<String, String> tags) {
-		final long hashCode = hashCode(metricName, tags);
-		AppMetric appMetric = metricCache.putIfAbsent(hashCode, AppMetric.PLACEHOLDER);
-		if(appMetric==null || appMetric==AppMetric.PLACEHOLDER) {			
-			appMetric = new AppMetric(new Metric(metricName, tags, hashCode));
-			metricCache.replace(hashCode, appMetric);			
-			JMXHelper.registerMBean(metricMBeanServer, appMetric.getMetricInstance().toObjectName(), appMetric);
-		}
-		return appMetric.getMetricInstance();		
+		return getAppMetric(metricName, tags).getMetricInstance();		
 	}
 	
+	/**
+	 * Acquires the AppMetric for the passed metric name and tags, creating and caching it if required
+	 * @param metricName The metric name
+	 * @param tags The metric tags
+	 * @return the AppMetric
+	 */
+	public AppMetric getAppMetric(final String metricName, final Map<String, String> tags) {
+		return getAppMetric(SeriesKeyBuilder.threadInstance().metric(metricName).tags(tags).build(), false);
+	}
+
+	/**
+	 * Acquires the AppMetric for the series key in the passed builder, creating and caching it if required
+	 * @param key A series key builder on which {@link SeriesKeyBuilder#build()} has been called
+	 * @return the AppMetric
+	 */
+	public AppMetric getAppMetric(final SeriesKeyBuilder key) {
+		return getAppMetric(key, false);
+	}
+
+	/**
+	 * Acquires the AppMetric for the series key in the passed builder, creating and caching it if required
+	 * @param key A series key builder on which {@link SeriesKeyBuilder#build()} has been called
+	 * @param hostObjectName true to register new metrics under the host ObjectName, false for the plain ObjectName
+	 * @return the AppMetric
+	 */
+	protected AppMetric getAppMetric(final SeriesKeyBuilder key, final boolean hostObjectName) {
+		final long hashCode = key.getHashCode();
+		AppMetric appMetric = metricCache.get(hashCode);
+		if(appMetric==null) {
+			// create speculatively: a losing thread just drops its instance, and the winner is usable before it is registered
+			final AppMetric newMetric = newAppMetric(key);
+			appMetric = metricCache.putIfAbsent(hashCode, newMetric);
+			if(appMetric==null) {
+				index.add(newMetric);
+				expiryWheel.schedule(newMetric);
+				registrar.register(newMetric, hostObjectName);
+				return newMetric;
+			}
+		}
+		if(key.matches(appMetric.getMetricInstance())) return appMetric;
+		return getCollidedAppMetric(key, hostObjectName);
+	}
+
+	/**
+	 * Acquires the AppMetric for a series key whose cache key is already taken by a different series
+	 * @param key The built series key
+	 * @param hostObjectName true to register new metrics under the host ObjectName, false for the plain ObjectName
+	 * @return the AppMetric
+	 */
+	private AppMetric getCollidedAppMetric(final SeriesKeyBuilder key, final boolean hostObjectName) {
+		final long hashCodeHigh = key.getHashCodeHigh();
+		AppMetric appMetric = collisionCache.get(hashCodeHigh);
+		if(appMetric==null) {
+			final AppMetric newMetric = newAppMetric(key);
+			appMetric = collisionCache.putIfAbsent(hashCodeHigh, newMetric);
+			if(appMetric==null) {
+				hashCollisions.increment();
+				log.warn("Series key collision on [{}] for metric [{}]", key.getHashCode(), newMetric.getMetricInstance());
+				index.add(newMetric);
+				expiryWheel.schedule(newMetric);
+				registrar.register(newMetric, hostObjectName);
+				return newMetric;
+			}
+		}
+		if(!key.matches(appMetric.getMetricInstance())) {
+			throw new IllegalStateException("Unresolvable series key collision for metric [" + key.getMetricName() + "], tags:" + key.getTags());
+		}
+		return appMetric;
+	}
+
+	/**
+	 * Looks up a cached AppMetric by its full series key
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 * @return the AppMetric or null if it was not found
+	 */
+	public AppMetric lookup(final long hashCode, final long hashCodeHigh) {
+		AppMetric appMetric = metricCache.get(hashCode);
+		if(appMetric!=null && appMetric.getMetricInstance().getHashCodeHigh()==hashCodeHigh) {
+			return appMetric;
+		}
+		appMetric = collisionCache.get(hashCodeHigh);
+		if(appMetric!=null && appMetric.getMetricInstance().getHashCode()==hashCode) {
+			return appMetric;
+		}
+		return null;
+	}
+
+	/**
+	 * Finds every cached series of the passed metric name
+	 * @param metricName The cleaned metric name
+	 * @return the matching AppMetrics, which may be empty
+	 */
+	public List<AppMetric> find(final String metricName) {
+		return index.find(metricName);
+	}
+
+	/**
+	 * Removes the passed AppMetric from the cache and marks it expired. If a persistent store holds its points,
+	 * a stand-in is retired in the index until they age out, so they can still be queried.
+	 * @param appMetric The metric to evict
+	 * @return true if the metric was removed, false if it was no longer cached
+	 */
+	protected boolean evict(final AppMetric appMetric) {
+		final Metric metric = appMetric.getMetricInstance();
+		appMetric.expire();
+		final long retention = appMetric.getStoredRetention();
+		if(retention > 0L) {
+			// retired before it leaves the cache, so the series created again in between replaces the retired entry
+			final long last = Math.max(appMetric.getLastSubmission(), appMetric.getLastActivity());
+			index.retire(appMetric, retention > Long.MAX_VALUE - last ? Long.MAX_VALUE : last + retention);
+		}
+		if(metricCache.remove(metric.getHashCode(), appMetric) || collisionCache.remove(metric.getHashCodeHigh(), appMetric)) {
+			if(retention==0L) index.remove(appMetric);
+			return true;
+		}
+		index.remove(appMetric);
+		return false;
+	}
+
+	/**
+	 * Releases the points held for reordering and hands the open head chunk of every cached metric to the chunk listener, so a persistent store
+	 * holds every point. For use at shutdown, once ingest has stopped.
+	 * @return the number of metrics flushed
+	 */
+	public int flushChunks() {
+		int flushed = 0;
+		for(AppMetric appMetric: metricCache.values()) {
+			appMetric.drain();
+			if(appMetric.chunks!=null) {
+				appMetric.chunks.flush();
+				flushed++;
+			}
+		}
+		for(AppMetric appMetric: collisionCache.values()) {
+			appMetric.drain();
+			if(appMetric.chunks!=null) {
+				appMetric.chunks.flush();
+				flushed++;
+			}
+		}
+		return flushed;
+	}
+
+	/**
+	 * Releases the points held for reordering and hands a copy of the open rollup cells of every cached metric to the rollup store.
+	 * For use at shutdown, once ingest has stopped.
+	 * @return the number of metrics flushed
+	 */
+	public int flushRollups() {
+		int flushed = 0;
+		for(AppMetric appMetric: metricCache.values()) {
+			appMetric.drain();
+			if(appMetric.rollups!=null) {
+				appMetric.rollups.flush();
+				flushed++;
+			}
+		}
+		for(AppMetric appMetric: collisionCache.values()) {
+			appMetric.drain();
+			if(appMetric.rollups!=null) {
+				appMetric.rollups.flush();
+				flushed++;
+			}
+		}
+		return flushed;
+	}
+
+	/**
+	 * Caches a metric restored from a {@link RegistrySnapshot}, with no rehashing, and queues its registration
+	 * @param metric The restored metric
+	 * @param hostObjectName true to register under the host ObjectName, false for the plain ObjectName
+	 * @param lastValue The last value submitted
+	 * @param lastSubmission The timestamp of the last value submitted
+	 * @param lastActivity The timestamp of the last activity
+	 * @return true if the metric was cached, false if it was already cached
+	 */
+	boolean restore(final Metric metric, final boolean hostObjectName, final double lastValue, final long lastSubmission, final long lastActivity) {
+		final AppMetric appMetric = new AppMetric(metric);
+		appMetric.restore(lastValue, lastSubmission, lastActivity);
+		final AppMetric existing = metricCache.putIfAbsent(metric.getHashCode(), appMetric);
+		if(existing!=null) {
+			if(existing.getMetricInstance().getHashCodeHigh()==metric.getHashCodeHigh()) return false;
+			if(collisionCache.putIfAbsent(metric.getHashCodeHigh(), appMetric)!=null) return false;
+			hashCollisions.increment();
+		}
+		index.add(appMetric);
+		expiryWheel.schedule(appMetric);
+		registrar.register(appMetric, hostObjectName);
+		return true;
+	}
+
+	private static AppMetric newAppMetric(final SeriesKeyBuilder key) {
+		return new AppMetric(new Metric(key.getMetricName(), key.getTags(), key.getHashCode(), key.getHashCodeHigh()));
+	}
+
+
 	/**
 	 * Returns the metric MBeanServer
 	 * @return the metric MBeanServer
@@ -266,17 +441,16 @@ public class MetricCache implements MetricCacheMXBean {
 	 */
 	public Metric getMetric(final JsonNode node) {
 		try {
-			final long hashCode = hashCode(node);
-			AppMetric appMetric = metricCache.putIfAbsent(hashCode, AppMetric.PLACEHOLDER);
-			if(appMetric==null || appMetric==AppMetric.PLACEHOLDER) {			
-				appMetric = new AppMetric(new Metric(node, hashCode));
-				metricCache.replace(hashCode, appMetric);
-				final ObjectName on = appMetric.getMetricInstance().toHostObjectName();
-				//FIXME:  make this config
-//				JMXHelper.registerMBean(metricMBeanServer, on, appMetric);
-				JMXHelper.registerMBean(metricMBeanServer, appMetric.getMetricInstance().toHostObjectName(), appMetric);
+			final SeriesKeyBuilder key = SeriesKeyBuilder.threadInstance().metric(node.get("metric").textValue());
+			final JsonNode tags = node.get("tags");
+			if(tags!=null) {
+				for(final Iterator<Map.Entry<String, JsonNode>> iter = tags.fields(); iter.hasNext();) {
+					final Map.Entry<String, JsonNode> entry = iter.next();
+					key.tag(entry.getKey(), entry.getValue().textValue());
+				}
 			}
-			return appMetric.getMetricInstance();
+			//FIXME:  make the ObjectName type config
+			return getAppMetric(key.build(), true).getMetricInstance();
 		} catch (Exception ex) {
 			badMetrics.increment();
 			return null;
@@ -297,57 +471,42 @@ public class MetricCache implements MetricCacheMXBean {
 		} else {
 			metricMBeanServer = JMXHelper.getHeliosMBeanServer();
 		}
+		registrar = new MBeanRegistrar(metricMBeanServer);
+		wal = WriteAheadLog.isEnabled() ? WriteAheadLog.getInstance() : null;
 		expiry = ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_METRIC_EXPIRY, Constants.DEFAULT_METRIC_EXPIRY);
 		expiryPeriod = ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_METRIC_EXPIRY_PERIOD, Constants.DEFAULT_METRIC_EXPIRY_PERIOD);
+		expiryWheel = new ExpiryWheel(expiryPeriod, expiry);
 		expiryThread = new Thread(new Runnable(){
 			@Override
 			public void run() {
+				final ArrayList<AppMetric> expired = new ArrayList<AppMetric>();
 				while(true) {
-					final AtomicInteger expiredMetricCount = new AtomicInteger(0);
 					SystemClock.sleep(expiryPeriod);
-					final long startTime = System.currentTimeMillis();
-					final ObjectName[] metricObjectNames = JMXHelper.query(JMXHelper.ALL_MBEANS_FILTER, metricBeanQuery);					
-					final Collection<Future<?>> taskFutures = new ArrayList<Future<?>>(metricObjectNames.length);					
-					for(final ObjectName on : metricObjectNames) {
-						taskFutures.add(expiryService.submit(new Runnable(){
-							@Override
-							public void run() {
-								try {
-									final long now = System.currentTimeMillis();
-									final Map<String, Object> attrMap = JMXHelper.getAttributes(on, EXPIRY_ATTRIBUTES);
-									if(!attrMap.containsKey("LastActivity")) {
-										log.warn("No LA for [{}], AttrMap: {}", on, attrMap);
-										return;
-									}
-									final long lastActivity = (Long)attrMap.get("LastActivity");
-									final long age = now - lastActivity; 
-									if(age > expiry) {
-										expiredMetricCount.incrementAndGet();
-										metricMBeanServer.unregisterMBean(on);
-										expiredMetrics.increment();
-										final long hc = (Long)attrMap.get("MetricHashCode");
-										metricCache.remove(hc);										
-									}
-								} catch (Exception x) { 
-									log.error("Expiry Task Failure", x);
-								}
+					try {
+						final long startTime = System.currentTimeMillis();
+						final int examined = expiryWheel.expire(startTime, expired);
+						final long dispatchElapsed = System.currentTimeMillis() - startTime;
+						lastExpiryDispatchTime.set(dispatchElapsed);
+						final int exp = expired.size();
+						if(exp != 0) {
+							// queued before the metrics leave the cache, so a series created again is registered after its old MBean is gone
+							registrar.unregister(expired);
+							for(AppMetric appMetric: expired) {
+								evict(appMetric);
 							}
-						}));
+							expiredMetrics.add(exp);
+							log.info("Expiry examined [{}] Metrics in [{}] ms. Expired [{}] metrics.", examined, dispatchElapsed, exp);
+						}
+						final int purged = index.purge(startTime);
+						if(purged != 0) log.info("Removed [{}] retired series whose stored points have aged out.", purged);
+						final long expiryElapsed = System.currentTimeMillis() - startTime;
+						lastExpiryTime.set(expiryElapsed);
+						if(log.isDebugEnabled()) log.debug("Expiry Completed in [{}] ms. Examined: {}, Expired: {}", expiryElapsed, examined, exp);
+					} catch (Exception x) {
+						log.error("Expiry Failure", x);
+					} finally {
+						expired.clear();
 					}
-					final long dispatchElapsed = System.currentTimeMillis() - startTime;
-					lastExpiryDispatchTime.set(dispatchElapsed);
-					int fails = 0;
-					for(Future<?> f: taskFutures) {
-						try { f.get(); } catch (Exception x) {fails++;}
-					}
-					final long expiryElapsed = System.currentTimeMillis() - startTime;
-					final int exp = expiredMetricCount.get();
-					if(exp != 0) {
-						log.info("Expiry Dispatch for [{}] Metrics Completed in [{}] ms. Expired [{}] metrics.", metricObjectNames.length, dispatchElapsed, exp);
-					}
-					
-					lastExpiryTime.set(expiryElapsed);
-					if(log.isDebugEnabled()) log.debug("Expiry Completed in [{}] ms. Tasks: {}, Fails: {}", expiryElapsed, taskFutures.size(), fails);
 				}
 			}
 		}, "MetricExpiryThread");
@@ -364,9 +523,15 @@ public class MetricCache implements MetricCacheMXBean {
 	 */
 	public void submit(final Trace trace) {
 		if(trace!=null) {
-			final AppMetric appMetric = metricCache.get(trace.getHashCode());
+			final Metric metric = trace.getMetric();
+			final AppMetric appMetric = lookup(metric.getHashCode(), metric.getHashCodeHigh());
+			if(appMetric==null) {
+				badMetrics.increment();
+				return;
+			}
+			if(wal!=null) wal.append(appMetric, trace.isDoubleType(), trace.getLongValue(), trace.getDoubleValue(), trace.getTimestampMs());
 			appMetric.submit(trace);
-			log.info("Trace: {}", trace);
+			if(log.isDebugEnabled()) log.debug("Trace: {}", trace);
 //			final Map<String, String> p = metaPairs.get(appMetric.getMetricHashCode());
 //			if(p!=null) {
 //				log.info("AppMetric matched Meta: {}", p);
@@ -375,6 +540,120 @@ public class MetricCache implements MetricCacheMXBean {
 	}
 	
 	
+	/**
+	 * Submits an array of traces as one batch
+	 * @param traces The traces to submit
+	 */
+	public void submit(final Trace[] traces) {
+		if(traces==null || traces.length==0) return;
+		final TraceBatch batch = threadBatch.get();
+		Metric lastMetric = null;
+		AppMetric appMetric = null;
+		for(final Trace trace: traces) {
+			if(trace==null) continue;
+			final Metric metric = trace.getMetric();
+			if(metric!=lastMetric) {
+				appMetric = lookup(metric.getHashCode(), metric.getHashCodeHigh());
+				lastMetric = metric;
+			}
+			if(appMetric==null) {
+				badMetrics.increment();
+				continue;
+			}
+			batch.add(appMetric, trace);
+		}
+		submit(batch);
+	}
+	
+	/**
+	 * Submits a batch of data points. The current time is read once for the whole batch and
+	 * each subscribed metric receives a single notification carrying all of its points from the batch.
+	 * The batch is cleared on return.
+	 * @param batch The batch to submit
+	 */
+	public void submit(final TraceBatch batch) {
+		if(wal!=null && batch.size > 0) {
+			wal.append(batch.metrics, batch.doubleTypes, batch.longValues, batch.doubleValues, batch.timestamps, batch.size);
+		}
+		restore(batch);
+	}
+	
+	/**
+	 * Applies a batch of data points without logging them to the write-ahead log.
+	 * Used to apply points recovered from the log. The batch is cleared on return.
+	 * @param batch The batch to apply
+	 */
+	public void restore(final TraceBatch batch) {
+		final int size = batch.size;
+		if(size==0) return;
+		try {
+			final long now = System.currentTimeMillis();
+			final AppMetric[] metrics = batch.metrics;
+			boolean subscribed = false;
+			for(int i = 0; i < size; i++) {
+				final AppMetric appMetric = metrics[i];
+				appMetric.update(batch.doubleTypes[i], batch.longValues[i], batch.doubleValues[i], batch.timestamps[i], now);
+				if(!subscribed && appMetric.hasSubscribers()) subscribed = true;
+			}
+			if(subscribed) {
+				sendSubmissions(batch);
+			}
+			if(log.isDebugEnabled()) log.debug("Submitted batch of [{}] traces", size);
+		} finally {
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * Groups the points in the passed batch by subscribed metric and sends one notification per metric
+	 * @param batch The batch to notify for
+	 */
+	private static void sendSubmissions(final TraceBatch batch) {
+		final IdentityHashMap<AppMetric, ArrayList<Trace>> grouped = new IdentityHashMap<AppMetric, ArrayList<Trace>>();
+		for(int i = 0; i < batch.size; i++) {
+			final AppMetric appMetric = batch.metrics[i];
+			if(!appMetric.hasSubscribers()) continue;
+			ArrayList<Trace> traces = grouped.get(appMetric);
+			if(traces==null) {
+				traces = new ArrayList<Trace>(4);
+				grouped.put(appMetric, traces);
+			}
+			traces.add(batch.trace(i));
+		}
+		for(Map.Entry<AppMetric, ArrayList<Trace>> entry: grouped.entrySet()) {
+			final ArrayList<Trace> traces = entry.getValue();
+			entry.getKey().sendSubmissions(traces.toArray(new Trace[traces.size()]));
+		}
+	}
+	
+	/**
+	 * Submits a value for the passed AppMetric without allocating a trace unless there are subscribers
+	 * @param appMetric The AppMetric to submit to
+	 * @param doubleType true for a double type value, false for a long type double
+	 * @param longValue The long value
+	 * @param doubleValue The double value
+	 * @param timestampMs The timestamp in ms.
+	 */
+	public void submit(final AppMetric appMetric, final boolean doubleType, final long longValue, final double doubleValue, final long timestampMs) {
+		if(wal!=null) wal.append(appMetric, doubleType, longValue, doubleValue, timestampMs);
+		appMetric.submit(doubleType, longValue, doubleValue, timestampMs);
+	}
+	
+	/**
+	 * Increments the bad metric submission counter
+	 */
+	public void badMetric() {
+		badMetrics.increment();
+	}
+	
+	/**
+	 * Adds the passed number of bad metric submissions to the counter
+	 * @param count The number of bad submissions
+	 */
+	public void badMetric(final int count) {
+		badMetrics.add(count);
+	}
+	
 	/**
 	 * Registers a new meta-source ObjectName
 	 * @param meta The meta ObjectName
@@ -402,7 +681,13 @@ public class MetricCache implements MetricCacheMXBean {
 	 */
 	public AppMetric getAppMetric(final ObjectName on) {
 		if(on==null) throw new IllegalArgumentException("The passed ObjectName was null");		
-		return metricCache.get(Util.hashCode(on));
+		final SeriesKeyBuilder key;
+		try {
+			key = SeriesKeyBuilder.threadInstance().metric(on.getDomain()).tags(on.getKeyPropertyList()).build();
+		} catch (IllegalArgumentException iex) {
+			return null;
+		}
+		return lookup(key.getHashCode(), key.getHashCodeHigh());
 	}
 	
 	/**
@@ -472,6 +757,51 @@ public class MetricCache implements MetricCacheMXBean {
 		return badMetrics.longValue();
 	}
 
+	/**
+	 * Returns the cummulative number of series key collisions
+	 * @return the cummulative number of series key collisions
+	 */
+	@Override
+	public long getHashCollisions() {
+		return hashCollisions.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of points dropped from compressed storage because their chunk had already been sealed
+	 * @return the cummulative number of late points
+	 */
+	@Override
+	public long getLatePoints() {
+		return SeriesChunks.getLatePoints();
+	}
+
+	/**
+	 * Returns the cummulative number of points accepted out of order and reordered before storage
+	 * @return the cummulative number of reordered points
+	 */
+	@Override
+	public long getReorderedPoints() {
+		return ReorderBuffer.getReorderedPoints();
+	}
+
+	/**
+	 * Returns the cummulative number of points rejected because they arrived after the reorder window had moved past them
+	 * @return the cummulative number of too late points
+	 */
+	@Override
+	public long getTooLatePoints() {
+		return ReorderBuffer.getTooLatePoints();
+	}
+
+	/**
+	 * Returns the cummulative number of points rejected because their timestamp was too far ahead of the clock
+	 * @return the cummulative number of future points
+	 */
+	@Override
+	public long getFuturePoints() {
+		return AppMetric.getFuturePoints();
+	}
+
 	/**
 	 * Returns the cummulative number of expired metrics
 	 * @return the cummulative number of expired metrics
@@ -57,6 +57,36 @@ public interface MetricCacheMXBean {
 	 * @return the cummulative number of bad metric submissions
 	 */
 	public long getBadMetrics();
+	
+	/**
+	 * Returns the cummulative number of series whose 64 bit cache key collided with a different series
+	 * @return the cummulative number of series key collisions
+	 */
+	public long getHashCollisions();
+	
+	/**
+	 * Returns the cummulative number of points dropped from compressed storage because their chunk had already been sealed
+	 * @return the cummulative number of late points
+	 */
+	public long getLatePoints();
+	
+	/**
+	 * Returns the cummulative number of points accepted out of order and reordered before storage
+	 * @return the cummulative number of reordered points
+	 */
+	public long getReorderedPoints();
+	
+	/**
+	 * Returns the cummulative number of points rejected because they arrived after the reorder window had moved past them
+	 * @return the cummulative number of too late points
+	 */
+	public long getTooLatePoints();
+	
+	/**
+	 * Returns the cummulative number of points rejected because their timestamp was too far ahead of the clock
+	 * @return the cummulative number of future points
+	 */
+	public long getFuturePoints();
 
 	/**
 	 * Returns the cummulative number of expired metrics
@@ -26,7 +26,11 @@ package com.heliosapm.tsdblite.metric;
 
 import io.netty.channel.Channel;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -134,13 +138,81 @@ public class MetricSubscription implements NotificationListener {
 		metricServer = MetricCache.getInstance().getMetricServer();
 		JMXHelper.addMBeanRegistrationListener(metricServer, this.pattern, onNew, 0);
 		JMXHelper.addMBeanUnregistrationListener(metricServer, this.pattern, onUnReg, 0);
-		for(ObjectName on: metricServer.queryNames(pattern, null)) {
+		for(ObjectName on: match(pattern)) {
 			if(objectNames.add(on)) {
 				JMXHelper.addNotificationListener(metricServer, on, this, null, null);				
 			}
 		}
 	}
 	
+	/**
+	 * Finds the registered metric ObjectNames that match the passed pattern. A pattern whose domain is a metric name
+	 * is resolved through the {@link SeriesIndex}, with its literal key properties as tag filters, and the candidates
+	 * are then checked against the full pattern. Any other pattern is queried from the metric MBeanServer.
+	 * @param pattern The pattern to match
+	 * @return the matching ObjectNames
+	 */
+	protected Set<ObjectName> match(final ObjectName pattern) {
+		final SeriesIndex index = SeriesIndex.getInstance();
+		if(pattern.isDomainPattern() || !index.hasMetric(pattern.getDomain())) {
+			return metricServer.queryNames(pattern, null);
+		}
+		final List<PropertyFilter> filters = new ArrayList<PropertyFilter>();
+		for(Map.Entry<String, String> entry: pattern.getKeyPropertyList().entrySet()) {
+			final String value = entry.getValue();
+			final boolean literal = !pattern.isPropertyValuePattern(entry.getKey()) && !value.startsWith("\"");
+			filters.add(new PropertyFilter(entry.getKey(), literal ? value : null));
+		}
+		final Set<ObjectName> matched = new HashSet<ObjectName>();
+		for(AppMetric appMetric: index.find(pattern.getDomain(), filters)) {
+			// only registered metrics, as the query would return: the registration listener picks up the rest
+			final ObjectName on = appMetric.registeredName;
+			if(on!=null && pattern.apply(on)) matched.add(on);
+		}
+		return matched;
+	}
+	
+	/**
+	 * <p>Title: PropertyFilter</p>
+	 * <p>Description: A tag filter for one ObjectName key property: the exact value, or any value for a value pattern</p>
+	 */
+	private static class PropertyFilter implements TagValueFilter {
+		/** The tag key */
+		private final String tagKey;
+		/** The literal value, or null to match any value */
+		private final Collection<String> literals;
+		
+		PropertyFilter(final String tagKey, final String value) {
+			this.tagKey = tagKey;
+			literals = value==null ? null : Collections.singleton(value);
+		}
+		
+		@Override
+		public String getTagKey() {
+			return tagKey;
+		}
+
+		@Override
+		public boolean matchesAll() {
+			return literals==null;
+		}
+
+		@Override
+		public Collection<String> getLiterals() {
+			return literals;
+		}
+
+		@Override
+		public boolean isNegated() {
+			return false;
+		}
+
+		@Override
+		public boolean matches(final String tagValue) {
+			return literals==null || literals.contains(tagValue);
+		}
+	}
+	
 	private MetricSubscription() {
 		pattern = null;
 		subscribedChannels = null;
@@ -184,12 +256,21 @@ public class MetricSubscription implements NotificationListener {
 	 */
 	@Override
 	public void handleNotification(final Notification notification, final Object handback) {		
-		final Map<String, Object> data = FluentMap
-				.newMap(String.class, Object.class)
-				.fput(Event.KEY, Event.NEWSUBMISSION.code)
-				.fput(Event.DATA, notification.getUserData()).map();
+		final Object userData = notification.getUserData();
+		// a batched submission carries a trace array, but subscribers still get one message per trace
+		final Object[] submissions = userData instanceof Trace[] ? (Trace[])userData : new Object[]{userData};
+		final List<Map<String, Object>> messages = new ArrayList<Map<String, Object>>(submissions.length);
+		for(Object submission: submissions) {
+			messages.add(FluentMap
+					.newMap(String.class, Object.class)
+					.fput(Event.KEY, Event.NEWSUBMISSION.code)
+					.fput(Event.DATA, submission).map());
+		}
 		for(Channel channel: subscribedChannels.values()) {
-			channel.writeAndFlush(data);
+			for(Map<String, Object> data: messages) {
+				channel.write(data);
+			}
+			channel.flush();
 		}		
 	}
 
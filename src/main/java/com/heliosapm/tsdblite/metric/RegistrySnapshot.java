@@ -0,0 +1,515 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.jmx.JMXHelper;
+import com.heliosapm.utils.time.SystemClock;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: RegistrySnapshot</p>
+ * <p>Description: A compact binary snapshot of the series registry, so a restart does not have to rediscover, rehash
+ * and re-register every series while traffic is arriving. The snapshot holds each series' key, name and tags as
+ * dictionary codes, its last value, last submission and last activity. It is written periodically and at shutdown,
+ * to a temporary file that atomically replaces the previous snapshot.</p>
+ * <p>{@link #load()} maps the snapshot and restores the series on parallel workers, one section each at a time.
+ * It must be called before the write-ahead log replay and before the server binds its port. The time the process
+ * was down is not counted as inactivity when the restored series are scheduled for expiry.</p>
+ * <p>File format: <code>[int magic][int version][long created][int string count][int section count]</code>, then the
+ * dictionary strings in code order as <code>[short len][utf8]</code>, then the sections as
+ * <code>[int length][int CRC32][int record count][records]</code>. A record is
+ * <code>[long key][long key high][byte flags][byte tag count][int name code]{[int key code][int value code]}[long last value bits][long last submission][long last activity]</code>.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.RegistrySnapshot</code></p>
+ */
+
+public class RegistrySnapshot implements RegistrySnapshotMXBean, Runnable {
+	/** The singleton instance */
+	private static volatile RegistrySnapshot instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The snapshot file */
+	protected final File file;
+	/** The period between snapshots in ms. */
+	protected final long period;
+	/** The periodic snapshot thread, or null if snapshots are only written at shutdown */
+	protected final Thread writerThread;
+
+	/** The time of the last snapshot */
+	protected volatile long lastWriteTime = 0L;
+	/** The number of series in the last snapshot */
+	protected volatile int lastWriteSeries = 0;
+	/** The size of the last snapshot in bytes */
+	protected volatile long lastWriteBytes = 0L;
+	/** The elapsed time of the last snapshot in ms. */
+	protected volatile long lastWriteElapsed = 0L;
+	/** The number of series loaded at startup */
+	protected volatile int loadedSeries = 0;
+	/** The elapsed time of the startup load in ms. */
+	protected volatile long loadTime = 0L;
+	/** A counter of failed snapshots */
+	protected final LongAdder writeFailures = new LongAdder();
+
+	/** The snapshot file header */
+	public static final int MAGIC = 0x534E4150; // SNAP
+	/** The snapshot format version */
+	public static final int VERSION = 1;
+	/** The file header size */
+	public static final int HEADER = 24;
+	/** The section header size */
+	public static final int SECTION_HEADER = 12;
+	/** The record flag for series registered under the host ObjectName */
+	public static final byte HOST_OBJECT_NAME = 1;
+	/** The maximum number of records in a section */
+	private static final int SECTION_SIZE = 8192;
+	/** The buffered size at which output is written to the file */
+	private static final int FLUSH_SIZE = 1024 * 1024;
+	/** The UTF8 character set */
+	private static final Charset UTF8 = Charset.forName("UTF8");
+
+	/**
+	 * Indicates if the registry snapshot is enabled
+	 * @return true if enabled, false otherwise
+	 */
+	public static boolean isEnabled() {
+		return ConfigurationHelper.getBooleanSystemThenEnvProperty(Constants.CONF_SNAPSHOT_ENABLED, Constants.DEFAULT_SNAPSHOT_ENABLED);
+	}
+
+	/**
+	 * Acquires the RegistrySnapshot singleton
+	 * @return the RegistrySnapshot singleton
+	 */
+	public static RegistrySnapshot getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new RegistrySnapshot();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private RegistrySnapshot() {
+		file = new File(ConfigurationHelper.getSystemThenEnvProperty(Constants.CONF_SNAPSHOT_FILE, Constants.DEFAULT_SNAPSHOT_FILE)).getAbsoluteFile();
+		period = Math.max(0L, ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_SNAPSHOT_PERIOD, Constants.DEFAULT_SNAPSHOT_PERIOD));
+		final File dir = file.getParentFile();
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new RuntimeException("Failed to create registry snapshot directory [" + dir + "]");
+		}
+		if(period > 0) {
+			writerThread = new Thread(this, "RegistrySnapshotWriter");
+			writerThread.setDaemon(true);
+			writerThread.start();
+		} else {
+			writerThread = null;
+		}
+		JMXHelper.registerMBean(this, OBJECT_NAME);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while(true) {
+			try {
+				SystemClock.sleep(period);
+				write();
+			} catch (Throwable t) {
+				log.error("Registry snapshot failure", t);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.RegistrySnapshotMXBean#write()
+	 */
+	@Override
+	public synchronized int write() {
+		final long start = System.currentTimeMillis();
+		final MetricCache metricCache = MetricCache.getInstance();
+		final StringDictionary dictionary = StringDictionary.getInstance();
+		// series created after this point may use codes beyond the table, and are left to the write-ahead log
+		final int stringCount = dictionary.getSize();
+		final ArrayList<Collection<AppMetric>> caches = new ArrayList<Collection<AppMetric>>(2);
+		caches.add(metricCache.metricCache.values());
+		caches.add(metricCache.collisionCache.values());
+		final File tmp = new File(file.getPath() + ".tmp");
+		final ByteBuf out = Unpooled.buffer(FLUSH_SIZE * 2);
+		final ByteBuf section = Unpooled.buffer(SECTION_SIZE * 64);
+		final CRC32 crc = new CRC32();
+		FileChannel ch = null;
+		int series = 0, sections = 0, count = 0;
+		long bytes = 0L;
+		try {
+			ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			out.writeInt(MAGIC).writeInt(VERSION).writeLong(start).writeInt(stringCount).writeInt(0);
+			for(int i = 0; i < stringCount; i++) {
+				final byte[] b = dictionary.string(i).getBytes(UTF8);
+				out.writeShort(b.length).writeBytes(b);
+				if(out.readableBytes() > FLUSH_SIZE) bytes += drain(ch, out);
+			}
+			for(Collection<AppMetric> cache: caches) {
+				for(AppMetric appMetric: cache) {
+					if(appMetric.isExpired()) continue;
+					final Metric metric = appMetric.getMetricInstance();
+					if(!encodable(metric, stringCount)) continue;
+					encode(section, appMetric);
+					series++;
+					if(++count==SECTION_SIZE) {
+						writeSection(out, section, count, crc);
+						sections++;
+						count = 0;
+						if(out.readableBytes() > FLUSH_SIZE) bytes += drain(ch, out);
+					}
+				}
+			}
+			if(count > 0) {
+				writeSection(out, section, count, crc);
+				sections++;
+			}
+			bytes += drain(ch, out);
+			final ByteBuffer sectionCount = ByteBuffer.allocate(4);
+			sectionCount.putInt(0, sections);
+			ch.write(sectionCount, HEADER - 4);
+			ch.force(true);
+			ch.close();
+			ch = null;
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException iex) {
+			writeFailures.increment();
+			log.error("Failed to write registry snapshot [{}]", file, iex);
+			return -1;
+		} finally {
+			if(ch!=null) try { ch.close(); } catch (Exception x) {/* No Op */}
+			out.release();
+			section.release();
+		}
+		lastWriteTime = start;
+		lastWriteSeries = series;
+		lastWriteBytes = bytes;
+		lastWriteElapsed = System.currentTimeMillis() - start;
+		log.info("Wrote registry snapshot of [{}] series, [{}] bytes in [{}] ms.", series, bytes, lastWriteElapsed);
+		return series;
+	}
+
+	private static boolean encodable(final Metric metric, final int stringCount) {
+		final int[] codes = metric.codes;
+		if(codes.length==0 || metric.getTagCount() > 255) return false;
+		for(int code: codes) {
+			if(code >= stringCount) return false;
+		}
+		return true;
+	}
+
+	private static void encode(final ByteBuf section, final AppMetric appMetric) {
+		final Metric metric = appMetric.getMetricInstance();
+		final int tagCount = metric.getTagCount();
+		section.writeLong(metric.getHashCode());
+		section.writeLong(metric.getHashCodeHigh());
+		section.writeByte(appMetric.hostObjectName ? HOST_OBJECT_NAME : 0);
+		section.writeByte(tagCount);
+		for(int code: metric.codes) {
+			section.writeInt(code);
+		}
+		section.writeLong(Double.doubleToRawLongBits(appMetric.getLastValue()));
+		section.writeLong(appMetric.getLastSubmission());
+		section.writeLong(appMetric.getLastActivity());
+	}
+
+	private static void writeSection(final ByteBuf out, final ByteBuf section, final int count, final CRC32 crc) {
+		crc.reset();
+		crc.update(section.array(), section.arrayOffset() + section.readerIndex(), section.readableBytes());
+		out.writeInt(section.readableBytes()).writeInt((int)crc.getValue()).writeInt(count).writeBytes(section);
+		section.clear();
+	}
+
+	private static int drain(final FileChannel ch, final ByteBuf out) throws IOException {
+		final ByteBuffer b = out.nioBuffer();
+		final int size = b.remaining();
+		while(b.hasRemaining()) {
+			ch.write(b);
+		}
+		out.clear();
+		return size;
+	}
+
+	/**
+	 * Restores the series in the snapshot file, if there is one, into the {@link MetricCache}
+	 * @return the number of restored series
+	 */
+	public int load() {
+		if(!file.isFile()) return 0;
+		final long start = System.currentTimeMillis();
+		final MappedByteBuffer buf;
+		try {
+			final FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				buf = ch.map(MapMode.READ_ONLY, 0, ch.size());
+			} finally {
+				ch.close();
+			}
+		} catch (IOException iex) {
+			log.error("Failed to read registry snapshot [{}]", file, iex);
+			return 0;
+		}
+		final int limit = buf.limit();
+		try {
+			if(limit < HEADER || buf.getInt(0)!=MAGIC || buf.getInt(4)!=VERSION) {
+				log.warn("Ignoring registry snapshot [{}] with an invalid header", file);
+				return 0;
+			}
+			final long created = buf.getLong(8);
+			final int stringCount = buf.getInt(16);
+			final int sectionCount = buf.getInt(20);
+			// the snapshot's codes are remapped to this process' dictionary
+			final StringDictionary dictionary = StringDictionary.getInstance();
+			final int[] codes = new int[stringCount];
+			final ByteBuffer strings = buf.duplicate();
+			strings.position(HEADER);
+			for(int i = 0; i < stringCount; i++) {
+				final byte[] b = new byte[strings.getShort() & 0xFFFF];
+				strings.get(b);
+				codes[i] = dictionary.code(new String(b, UTF8));
+			}
+			final int[] offsets = new int[sectionCount];
+			int found = 0;
+			int pos = strings.position();
+			while(found < sectionCount && pos + SECTION_HEADER <= limit) {
+				final int length = buf.getInt(pos);
+				if(length < 0 || pos + SECTION_HEADER + length > limit) break;
+				offsets[found++] = pos;
+				pos += SECTION_HEADER + length;
+			}
+			if(found < sectionCount) log.warn("Registry snapshot [{}] is truncated after [{}] of [{}] sections", file, found, sectionCount);
+			// the time the process was down does not count as inactivity
+			final long shift = Math.max(0L, start - created);
+			final int workerCount = Math.max(1, Math.min(Constants.CORES, found));
+			final LoadWorker[] workers = new LoadWorker[workerCount];
+			for(int i = 0; i < workerCount; i++) {
+				workers[i] = new LoadWorker(i, workerCount, buf, offsets, found, codes, shift);
+				workers[i].start();
+			}
+			int loaded = 0, corrupt = 0;
+			for(LoadWorker worker: workers) {
+				try {
+					worker.join();
+				} catch (InterruptedException iex) {
+					Thread.currentThread().interrupt();
+				}
+				loaded += worker.loaded;
+				corrupt += worker.corrupt;
+			}
+			loadedSeries = loaded;
+			loadTime = System.currentTimeMillis() - start;
+			if(corrupt > 0) log.warn("Skipped [{}] corrupt sections in registry snapshot [{}]", corrupt, file);
+			log.info("Loaded [{}] series from registry snapshot [{}] in [{}] ms.", loaded, file, loadTime);
+			return loaded;
+		} catch (IndexOutOfBoundsException | BufferUnderflowException ex) {
+			log.warn("Ignoring corrupt registry snapshot [{}]", file, ex);
+			return 0;
+		}
+	}
+
+	/**
+	 * <p>Title: LoadWorker</p>
+	 * <p>Description: Restores every n-th section of a snapshot</p> 
+	 */
+	private static class LoadWorker extends Thread {
+		/** The snapshot mapping */
+		private final ByteBuffer buf;
+		/** The section offsets */
+		private final int[] offsets;
+		/** The number of sections */
+		private final int sections;
+		/** The first section this worker restores */
+		private final int first;
+		/** The section stride */
+		private final int stride;
+		/** The dictionary codes of this process indexed by snapshot code */
+		private final int[] codes;
+		/** The shift applied to the last activity */
+		private final long shift;
+		/** The number of restored series */
+		int loaded = 0;
+		/** The number of corrupt sections */
+		int corrupt = 0;
+
+		LoadWorker(final int first, final int stride, final ByteBuffer buf, final int[] offsets, final int sections, final int[] codes, final long shift) {
+			super("RegistrySnapshotLoader#" + first);
+			setDaemon(true);
+			this.first = first;
+			this.stride = stride;
+			this.buf = buf.duplicate();
+			this.offsets = offsets;
+			this.sections = sections;
+			this.codes = codes;
+			this.shift = shift;
+		}
+
+		@Override
+		public void run() {
+			final MetricCache metricCache = MetricCache.getInstance();
+			final CRC32 crc = new CRC32();
+			for(int s = first; s < sections; s += stride) {
+				final int offset = offsets[s];
+				final byte[] records = new byte[buf.getInt(offset)];
+				final int checksum = buf.getInt(offset + 4);
+				final int count = buf.getInt(offset + 8);
+				buf.position(offset + SECTION_HEADER);
+				buf.get(records);
+				crc.reset();
+				crc.update(records, 0, records.length);
+				if((int)crc.getValue()!=checksum) {
+					corrupt++;
+					continue;
+				}
+				final ByteBuffer r = ByteBuffer.wrap(records);
+				try {
+					for(int i = 0; i < count; i++) {
+						final long hashCode = r.getLong();
+						final long hashCodeHigh = r.getLong();
+						final byte flags = r.get();
+						final int[] metricCodes = new int[1 + ((r.get() & 0xFF) * 2)];
+						for(int c = 0; c < metricCodes.length; c++) {
+							metricCodes[c] = codes[r.getInt()];
+						}
+						final double lastValue = Double.longBitsToDouble(r.getLong());
+						final long lastSubmission = r.getLong();
+						final long lastActivity = r.getLong() + shift;
+						if(metricCache.restore(new Metric(metricCodes, hashCode, hashCodeHigh), (flags & HOST_OBJECT_NAME)!=0, lastValue, lastSubmission, lastActivity)) {
+							loaded++;
+						}
+					}
+				} catch (IndexOutOfBoundsException | BufferUnderflowException ex) {
+					corrupt++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.RegistrySnapshotMXBean#getFile()
+	 */
+	@Override
+	public String getFile() {
+		return file.getPath();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.RegistrySnapshotMXBean#getPeriod()
+	 */
+	@Override
+	public long getPeriod() {
+		return period;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.RegistrySnapshotMXBean#getLastWriteTime()
+	 */
+	@Override
+	public long getLastWriteTime() {
+		return lastWriteTime;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.RegistrySnapshotMXBean#getLastWriteSeries()
+	 */
+	@Override
+	public int getLastWriteSeries() {
+		return lastWriteSeries;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.RegistrySnapshotMXBean#getLastWriteBytes()
+	 */
+	@Override
+	public long getLastWriteBytes() {
+		return lastWriteBytes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.RegistrySnapshotMXBean#getLastWriteElapsed()
+	 */
+	@Override
+	public long getLastWriteElapsed() {
+		return lastWriteElapsed;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.RegistrySnapshotMXBean#getWriteFailures()
+	 */
+	@Override
+	public long getWriteFailures() {
+		return writeFailures.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.RegistrySnapshotMXBean#getLoadedSeries()
+	 */
+	@Override
+	public int getLoadedSeries() {
+		return loadedSeries;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.RegistrySnapshotMXBean#getLoadTime()
+	 */
+	@Override
+	public long getLoadTime() {
+		return loadTime;
+	}
+
+}
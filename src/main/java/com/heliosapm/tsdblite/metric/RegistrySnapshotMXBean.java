@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: RegistrySnapshotMXBean</p>
+ * <p>Description: JMX MXBean for the {@link RegistrySnapshot} instance</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.RegistrySnapshotMXBean</code></p>
+ */
+
+public interface RegistrySnapshotMXBean {
+
+	/** The JMX ObjectName for the {@link RegistrySnapshot}  */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.tsdblite:service=RegistrySnapshot");
+
+	/**
+	 * Returns the snapshot file
+	 * @return the snapshot file
+	 */
+	public String getFile();
+
+	/**
+	 * Returns the period between snapshots in ms., or 0 if snapshots are only written at shutdown
+	 * @return the snapshot period
+	 */
+	public long getPeriod();
+
+	/**
+	 * Returns the time of the last snapshot
+	 * @return the time of the last snapshot, or 0 if none has been written
+	 */
+	public long getLastWriteTime();
+
+	/**
+	 * Returns the number of series in the last snapshot
+	 * @return the number of series
+	 */
+	public int getLastWriteSeries();
+
+	/**
+	 * Returns the size of the last snapshot in bytes
+	 * @return the snapshot size
+	 */
+	public long getLastWriteBytes();
+
+	/**
+	 * Returns the elapsed time of the last snapshot in ms.
+	 * @return the elapsed time in ms.
+	 */
+	public long getLastWriteElapsed();
+
+	/**
+	 * Returns the cummulative number of failed snapshots
+	 * @return the number of failed snapshots
+	 */
+	public long getWriteFailures();
+
+	/**
+	 * Returns the number of series loaded from the snapshot at startup
+	 * @return the number of loaded series
+	 */
+	public int getLoadedSeries();
+
+	/**
+	 * Returns the elapsed time of the startup load in ms.
+	 * @return the elapsed time in ms.
+	 */
+	public long getLoadTime();
+
+	/**
+	 * Writes a snapshot now
+	 * @return the number of series written, or -1 if the snapshot failed
+	 */
+	public int write();
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.chunk.PointSink;
+import com.heliosapm.utils.config.ConfigurationHelper;
+
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: ReorderBuffer</p>
+ * <p>Description: A bounded, sorted window of the most recent points of one series, so points that arrive out of order,
+ * such as from collector retries, still reach storage and rollups in timestamp order.
+ * A point is held until it falls further behind the series' newest point than the reorder window, or until the
+ * buffer is full, and is then released to the sink, oldest first.</p>
+ * <p>A point at or before the last released point is too late: it is rejected and counted.
+ * A point with the same timestamp as a held point replaces it. An in-order point is appended in constant time,
+ * and a late point is inserted with a search and shift bounded by the buffer size.</p>
+ * <p>Adds are serialized on the instance, and points are released under the same lock, so the sink sees them in order.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.ReorderBuffer</code></p>
+ */
+
+public class ReorderBuffer {
+	/** The sink released points are delivered to */
+	private final PointSink sink;
+	/** The held point timestamps in ms., a ring */
+	private final long[] timestamps;
+	/** The held point values, a ring */
+	private final double[] values;
+	/** The index mask */
+	private final int mask;
+	/** The ring index of the oldest held point */
+	private int head = 0;
+	/** The number of held points */
+	private int size = 0;
+	/** The timestamp of the last released point */
+	private long released = Long.MIN_VALUE;
+	/** The timestamp of the newest point */
+	private long newest = Long.MIN_VALUE;
+
+	/** The configured reorder window in ms. */
+	public static final long REORDER_WINDOW;
+	/** The configured maximum number of points held per series, rounded up to a power of 2 */
+	public static final int REORDER_SIZE;
+
+	/** A counter of points accepted out of order */
+	private static final LongAdder reorderedPoints = new LongAdder();
+	/** A counter of points rejected as too late */
+	private static final LongAdder tooLatePoints = new LongAdder();
+
+	static {
+		REORDER_WINDOW = ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_REORDER_WINDOW, Constants.DEFAULT_REORDER_WINDOW);
+		final int size = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_REORDER_SIZE, Constants.DEFAULT_REORDER_SIZE);
+		REORDER_SIZE = size < 1 ? 0 : Integer.highestOneBit(Math.min(size, 1 << 20) * 2 - 1);
+	}
+
+	/**
+	 * Creates a new ReorderBuffer with the configured window and size, or returns null if reordering is disabled
+	 * @param sink The sink released points are delivered to
+	 * @return a new ReorderBuffer or null
+	 */
+	static ReorderBuffer newInstance(final PointSink sink) {
+		return REORDER_WINDOW < 1 || REORDER_SIZE==0 ? null : new ReorderBuffer(sink, REORDER_SIZE);
+	}
+
+	/**
+	 * Creates a new ReorderBuffer
+	 * @param sink The sink released points are delivered to
+	 * @param size The maximum number of held points, a power of 2
+	 */
+	private ReorderBuffer(final PointSink sink, final int size) {
+		this.sink = sink;
+		timestamps = new long[size];
+		values = new double[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Returns the cummulative number of points accepted out of order
+	 * @return the number of reordered points
+	 */
+	public static long getReorderedPoints() {
+		return reorderedPoints.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of points rejected because they arrived after a later point was released
+	 * @return the number of too late points
+	 */
+	public static long getTooLatePoints() {
+		return tooLatePoints.longValue();
+	}
+
+	/**
+	 * Adds a point, releasing the points that have left the window
+	 * @param timestamp The timestamp in ms.
+	 * @param value The value
+	 * @return true if the point was accepted, false if it was too late and rejected
+	 */
+	public synchronized boolean add(final long timestamp, final double value) {
+		if(timestamp <= released) {
+			tooLatePoints.increment();
+			return false;
+		}
+		if(size==timestamps.length) {
+			final long oldest = timestamps[head];
+			if(timestamp < oldest) {
+				// the buffer is full and the point would be the oldest held, so it is released straight away
+				released = timestamp;
+				reorderedPoints.increment();
+				sink.point(timestamp, value);
+				return true;
+			}
+			// a point equal to the oldest replaces it and needs no room
+			if(timestamp > oldest) release();
+		}
+		if(size==0 || timestamp > timestamps[(head + size - 1) & mask]) {
+			final int index = (head + size) & mask;
+			timestamps[index] = timestamp;
+			values[index] = value;
+			size++;
+		} else {
+			insert(timestamp, value);
+		}
+		if(timestamp > newest) newest = timestamp;
+		final long watermark = newest - REORDER_WINDOW;
+		while(size > 0 && timestamps[head] <= watermark) {
+			release();
+		}
+		return true;
+	}
+
+	/**
+	 * Inserts a point before the newest held point
+	 * @param timestamp The timestamp in ms.
+	 * @param value The value
+	 */
+	private void insert(final long timestamp, final double value) {
+		// lower bound binary search over the held points, oldest first
+		int lo = 0, hi = size;
+		while(lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if(timestamps[(head + mid) & mask] < timestamp) lo = mid + 1;
+			else hi = mid;
+		}
+		final int at = (head + lo) & mask;
+		if(timestamps[at]==timestamp) {
+			// a retried point replaces the one held
+			values[at] = value;
+			return;
+		}
+		for(int i = size; i > lo; i--) {
+			final int to = (head + i) & mask, from = (head + i - 1) & mask;
+			timestamps[to] = timestamps[from];
+			values[to] = values[from];
+		}
+		timestamps[at] = timestamp;
+		values[at] = value;
+		size++;
+		reorderedPoints.increment();
+	}
+
+	/**
+	 * Releases the oldest held point
+	 */
+	private void release() {
+		final long timestamp = timestamps[head];
+		final double value = values[head];
+		head = (head + 1) & mask;
+		size--;
+		released = timestamp;
+		sink.point(timestamp, value);
+	}
+
+	/**
+	 * Releases every held point, such as before the series is flushed at shutdown or expired.
+	 * Later points are still accepted if they are newer than the last released point.
+	 * @return the number of released points
+	 */
+	public synchronized int drain() {
+		final int drained = size;
+		while(size > 0) {
+			release();
+		}
+		return drained;
+	}
+
+	/**
+	 * Reads the held points in the passed range, oldest first
+	 * @param fromMs The range start in ms., inclusive
+	 * @param toMs The range end in ms., inclusive
+	 * @param pointSink The sink the points are delivered to
+	 * @return the number of points delivered
+	 */
+	public synchronized int read(final long fromMs, final long toMs, final PointSink pointSink) {
+		int delivered = 0;
+		for(int i = 0; i < size; i++) {
+			final int index = (head + i) & mask;
+			if(timestamps[index] >= fromMs && timestamps[index] <= toMs) {
+				pointSink.point(timestamps[index], values[index]);
+				delivered++;
+			}
+		}
+		return delivered;
+	}
+
+	/**
+	 * Returns the number of held points
+	 * @return the number of held points
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+}
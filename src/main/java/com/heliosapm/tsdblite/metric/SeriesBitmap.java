@@ -0,0 +1,619 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * <p>Title: SeriesBitmap</p>
+ * <p>Description: A compressed bitmap of internal series ids, laid out like a Roaring bitmap.
+ * The high 16 bits of an id select a container and the low 16 bits are held in it.
+ * A sparse container is a sorted array of its low bits. Once it holds more than {@link #ARRAY_MAX} ids it becomes a
+ * fixed 8KB bit set, and it turns back into an array when it drops below half of that.
+ * Dense id ranges cost about one bit per series, and sparse ones cost two bytes per series.</p>
+ * <p>{@link #and(SeriesBitmap)}, {@link #or(SeriesBitmap)} and {@link #andNot(SeriesBitmap)} leave both operands
+ * unchanged and return a new bitmap that shares no containers with them.</p>
+ * <p>Not thread safe. The {@link SeriesIndex} guards its bitmaps with its own lock.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.SeriesBitmap</code></p>
+ */
+
+public class SeriesBitmap {
+	/** The maximum number of ids held in an array container */
+	static final int ARRAY_MAX = 4096;
+
+	/** The high 16 bits of the ids in each container, ascending */
+	private char[] keys;
+	/** The containers, in the same order as their keys */
+	private Container[] containers;
+	/** The number of containers */
+	private int size = 0;
+
+	/**
+	 * Creates a new empty SeriesBitmap
+	 */
+	public SeriesBitmap() {
+		this(4);
+	}
+
+	private SeriesBitmap(final int capacity) {
+		keys = new char[Math.max(1, capacity)];
+		containers = new Container[keys.length];
+	}
+
+	/**
+	 * Adds an id
+	 * @param id The id to add
+	 * @return true if the id was added, false if it was already present
+	 */
+	public boolean add(final int id) {
+		final char high = (char)(id >>> 16);
+		int index = indexOf(high);
+		if(index < 0) {
+			index = -index - 1;
+			insert(index, high, new ArrayContainer(4));
+		}
+		final int before = containers[index].cardinality;
+		containers[index] = containers[index].add((char)id);
+		return containers[index].cardinality > before;
+	}
+
+	/**
+	 * Removes an id
+	 * @param id The id to remove
+	 * @return true if the id was removed, false if it was not present
+	 */
+	public boolean remove(final int id) {
+		final int index = indexOf((char)(id >>> 16));
+		if(index < 0) return false;
+		final int before = containers[index].cardinality;
+		final Container container = containers[index].remove((char)id);
+		if(container.cardinality==0) {
+			System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+			System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+			containers[--size] = null;
+		} else {
+			containers[index] = container;
+		}
+		return container.cardinality < before;
+	}
+
+	/**
+	 * Indicates if the passed id is present
+	 * @param id The id to test
+	 * @return true if the id is present
+	 */
+	public boolean contains(final int id) {
+		final int index = indexOf((char)(id >>> 16));
+		return index >= 0 && containers[index].contains((char)id);
+	}
+
+	/**
+	 * Indicates if this bitmap holds no ids
+	 * @return true if this bitmap is empty
+	 */
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	/**
+	 * Returns the number of ids held
+	 * @return the number of ids
+	 */
+	public int cardinality() {
+		int cardinality = 0;
+		for(int i = 0; i < size; i++) {
+			cardinality += containers[i].cardinality;
+		}
+		return cardinality;
+	}
+
+	/**
+	 * Returns the ids present in both this bitmap and the passed one
+	 * @param other The other bitmap
+	 * @return the intersection
+	 */
+	public SeriesBitmap and(final SeriesBitmap other) {
+		final SeriesBitmap result = new SeriesBitmap(Math.min(size, other.size));
+		int i = 0, j = 0;
+		while(i < size && j < other.size) {
+			if(keys[i] < other.keys[j]) {
+				i++;
+			} else if(keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				result.append(keys[i], containers[i].and(other.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ids present in either this bitmap or the passed one
+	 * @param other The other bitmap
+	 * @return the union
+	 */
+	public SeriesBitmap or(final SeriesBitmap other) {
+		final SeriesBitmap result = new SeriesBitmap(size + other.size);
+		int i = 0, j = 0;
+		while(i < size || j < other.size) {
+			if(j==other.size || (i < size && keys[i] < other.keys[j])) {
+				result.append(keys[i], containers[i].copy());
+				i++;
+			} else if(i==size || keys[i] > other.keys[j]) {
+				result.append(other.keys[j], other.containers[j].copy());
+				j++;
+			} else {
+				result.append(keys[i], containers[i].or(other.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Adds every id of the passed bitmap to this one, leaving the passed bitmap unchanged
+	 * @param other The bitmap whose ids are added
+	 */
+	public void addAll(final SeriesBitmap other) {
+		for(int j = 0; j < other.size; j++) {
+			final int index = indexOf(other.keys[j]);
+			if(index < 0) {
+				insert(-index - 1, other.keys[j], other.containers[j].copy());
+			} else {
+				containers[index] = containers[index].addAll(other.containers[j]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the ids present in any of the passed bitmaps. Each container is accumulated as a bit set and only compacted
+	 * at the end, so the cost is linear in the number of ids however many bitmaps are passed.
+	 * @param bitmaps The bitmaps to union
+	 * @return the union
+	 */
+	public static SeriesBitmap union(final Collection<SeriesBitmap> bitmaps) {
+		final SeriesBitmap result = new SeriesBitmap();
+		for(SeriesBitmap bitmap: bitmaps) {
+			for(int j = 0; j < bitmap.size; j++) {
+				int index = result.indexOf(bitmap.keys[j]);
+				if(index < 0) {
+					index = -index - 1;
+					result.insert(index, bitmap.keys[j], new BitmapContainer());
+				}
+				((BitmapContainer)result.containers[index]).set(bitmap.containers[j]);
+			}
+		}
+		for(int i = 0; i < result.size; i++) {
+			result.containers[i] = ((BitmapContainer)result.containers[i]).recount();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ids present in this bitmap but not in the passed one
+	 * @param other The other bitmap
+	 * @return the difference
+	 */
+	public SeriesBitmap andNot(final SeriesBitmap other) {
+		final SeriesBitmap result = new SeriesBitmap(size);
+		int i = 0, j = 0;
+		while(i < size) {
+			if(j==other.size || keys[i] < other.keys[j]) {
+				result.append(keys[i], containers[i].copy());
+				i++;
+			} else if(keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				result.append(keys[i], containers[i].andNot(other.containers[j]));
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ids held, ascending
+	 * @return an array of ids
+	 */
+	public int[] toArray() {
+		final int[] ids = new int[cardinality()];
+		int offset = 0;
+		for(int i = 0; i < size; i++) {
+			offset = containers[i].fill(ids, offset, keys[i] << 16);
+		}
+		return ids;
+	}
+
+	/**
+	 * Returns the approximate heap size of this bitmap in bytes
+	 * @return the approximate size in bytes
+	 */
+	public long getBytes() {
+		long bytes = 16 + keys.length * 2 + containers.length * 4;
+		for(int i = 0; i < size; i++) {
+			bytes += containers[i].getBytes();
+		}
+		return bytes;
+	}
+
+	private int indexOf(final char high) {
+		// most ids fall in the last container, so try it before searching
+		if(size > 0 && keys[size - 1]==high) return size - 1;
+		return Arrays.binarySearch(keys, 0, size, high);
+	}
+
+	private void insert(final int index, final char high, final Container container) {
+		if(size==keys.length) grow();
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(containers, index, containers, index + 1, size - index);
+		keys[index] = high;
+		containers[index] = container;
+		size++;
+	}
+
+	private void append(final char high, final Container container) {
+		if(container.cardinality==0) return;
+		if(size==keys.length) grow();
+		keys[size] = high;
+		containers[size] = container;
+		size++;
+	}
+
+	private void grow() {
+		keys = Arrays.copyOf(keys, keys.length * 2);
+		containers = Arrays.copyOf(containers, containers.length * 2);
+	}
+
+	/**
+	 * <p>Title: Container</p>
+	 * <p>Description: Holds the low 16 bits of the ids that share one high 16 bits.
+	 * Mutators return the container to use from then on, which is a different one when the representation changes.</p>
+	 */
+	private abstract static class Container {
+		/** The number of ids held */
+		int cardinality = 0;
+
+		abstract Container add(char value);
+		abstract Container remove(char value);
+		abstract boolean contains(char value);
+		abstract Container and(Container other);
+		abstract Container or(Container other);
+		abstract Container andNot(Container other);
+		abstract Container addAll(Container other);
+		abstract Container copy();
+		abstract int fill(int[] ids, int offset, int high);
+		abstract int getBytes();
+	}
+
+	/**
+	 * <p>Title: ArrayContainer</p>
+	 * <p>Description: A sparse container holding its values in a sorted array</p>
+	 */
+	private static final class ArrayContainer extends Container {
+		/** The values, ascending */
+		char[] values;
+
+		ArrayContainer(final int capacity) {
+			values = new char[capacity];
+		}
+
+		@Override
+		Container add(final char value) {
+			int index = Arrays.binarySearch(values, 0, cardinality, value);
+			if(index >= 0) return this;
+			if(cardinality==ARRAY_MAX) return toBitmap().add(value);
+			index = -index - 1;
+			if(cardinality==values.length) {
+				values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, cardinality * 2)));
+			}
+			System.arraycopy(values, index, values, index + 1, cardinality - index);
+			values[index] = value;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		Container remove(final char value) {
+			final int index = Arrays.binarySearch(values, 0, cardinality, value);
+			if(index >= 0) {
+				System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+				cardinality--;
+			}
+			return this;
+		}
+
+		@Override
+		boolean contains(final char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		@Override
+		Container and(final Container other) {
+			final ArrayContainer result = new ArrayContainer(Math.min(cardinality, other.cardinality));
+			if(other instanceof ArrayContainer) {
+				final ArrayContainer o = (ArrayContainer)other;
+				int i = 0, j = 0;
+				while(i < cardinality && j < o.cardinality) {
+					if(values[i] < o.values[j]) {
+						i++;
+					} else if(values[i] > o.values[j]) {
+						j++;
+					} else {
+						result.values[result.cardinality++] = values[i];
+						i++;
+						j++;
+					}
+				}
+			} else {
+				for(int i = 0; i < cardinality; i++) {
+					if(other.contains(values[i])) result.values[result.cardinality++] = values[i];
+				}
+			}
+			return result;
+		}
+
+		@Override
+		Container or(final Container other) {
+			if(other instanceof BitmapContainer) return other.or(this);
+			final ArrayContainer o = (ArrayContainer)other;
+			if(cardinality + o.cardinality > ARRAY_MAX) {
+				final BitmapContainer result = toBitmap();
+				for(int j = 0; j < o.cardinality; j++) {
+					result.add(o.values[j]);
+				}
+				return result.cardinality > ARRAY_MAX ? result : result.toArray();
+			}
+			final ArrayContainer result = new ArrayContainer(cardinality + o.cardinality);
+			int i = 0, j = 0;
+			while(i < cardinality || j < o.cardinality) {
+				if(j==o.cardinality || (i < cardinality && values[i] < o.values[j])) {
+					result.values[result.cardinality++] = values[i++];
+				} else if(i==cardinality || values[i] > o.values[j]) {
+					result.values[result.cardinality++] = o.values[j++];
+				} else {
+					result.values[result.cardinality++] = values[i];
+					i++;
+					j++;
+				}
+			}
+			return result;
+		}
+
+		@Override
+		Container addAll(final Container other) {
+			return or(other);
+		}
+
+		@Override
+		Container andNot(final Container other) {
+			final ArrayContainer result = new ArrayContainer(cardinality);
+			for(int i = 0; i < cardinality; i++) {
+				if(!other.contains(values[i])) result.values[result.cardinality++] = values[i];
+			}
+			return result;
+		}
+
+		@Override
+		Container copy() {
+			final ArrayContainer result = new ArrayContainer(0);
+			result.values = Arrays.copyOf(values, cardinality);
+			result.cardinality = cardinality;
+			return result;
+		}
+
+		@Override
+		int fill(final int[] ids, final int offset, final int high) {
+			int index = offset;
+			for(int i = 0; i < cardinality; i++) {
+				ids[index++] = high | values[i];
+			}
+			return index;
+		}
+
+		@Override
+		int getBytes() {
+			return 24 + values.length * 2;
+		}
+
+		BitmapContainer toBitmap() {
+			final BitmapContainer result = new BitmapContainer();
+			for(int i = 0; i < cardinality; i++) {
+				result.words[values[i] >>> 6] |= 1L << values[i];
+			}
+			result.cardinality = cardinality;
+			return result;
+		}
+	}
+
+	/**
+	 * <p>Title: BitmapContainer</p>
+	 * <p>Description: A dense container holding one bit per possible value</p>
+	 */
+	private static final class BitmapContainer extends Container {
+		/** The bits of all 65536 values */
+		final long[] words = new long[1024];
+
+		@Override
+		Container add(final char value) {
+			final long bit = 1L << value;
+			if((words[value >>> 6] & bit)==0) {
+				words[value >>> 6] |= bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(final char value) {
+			final long bit = 1L << value;
+			if((words[value >>> 6] & bit)!=0) {
+				words[value >>> 6] &= ~bit;
+				cardinality--;
+			}
+			// the gap between the two thresholds keeps a container at the boundary from flipping on every change
+			return cardinality < ARRAY_MAX / 2 ? toArray() : this;
+		}
+
+		@Override
+		boolean contains(final char value) {
+			return (words[value >>> 6] & (1L << value))!=0;
+		}
+
+		@Override
+		Container and(final Container other) {
+			if(other instanceof ArrayContainer) return other.and(this);
+			final long[] o = ((BitmapContainer)other).words;
+			final BitmapContainer result = new BitmapContainer();
+			for(int i = 0; i < words.length; i++) {
+				result.words[i] = words[i] & o[i];
+			}
+			return result.recount();
+		}
+
+		@Override
+		Container or(final Container other) {
+			final BitmapContainer result = (BitmapContainer)copy();
+			if(other instanceof ArrayContainer) {
+				final ArrayContainer o = (ArrayContainer)other;
+				for(int j = 0; j < o.cardinality; j++) {
+					result.add(o.values[j]);
+				}
+				return result;
+			}
+			final long[] o = ((BitmapContainer)other).words;
+			for(int i = 0; i < words.length; i++) {
+				result.words[i] |= o[i];
+			}
+			return result.recount();
+		}
+
+		@Override
+		Container addAll(final Container other) {
+			if(other instanceof ArrayContainer) {
+				final ArrayContainer o = (ArrayContainer)other;
+				for(int j = 0; j < o.cardinality; j++) {
+					add(o.values[j]);
+				}
+				return this;
+			}
+			final long[] o = ((BitmapContainer)other).words;
+			for(int i = 0; i < words.length; i++) {
+				words[i] |= o[i];
+			}
+			return recount();
+		}
+
+		/**
+		 * Sets the bits of the passed container without maintaining the cardinality. {@link #recount()} must follow.
+		 * @param other The container whose bits are set
+		 */
+		void set(final Container other) {
+			if(other instanceof ArrayContainer) {
+				final ArrayContainer o = (ArrayContainer)other;
+				for(int j = 0; j < o.cardinality; j++) {
+					words[o.values[j] >>> 6] |= 1L << o.values[j];
+				}
+			} else {
+				final long[] o = ((BitmapContainer)other).words;
+				for(int i = 0; i < words.length; i++) {
+					words[i] |= o[i];
+				}
+			}
+		}
+
+		@Override
+		Container andNot(final Container other) {
+			final BitmapContainer result = (BitmapContainer)copy();
+			if(other instanceof ArrayContainer) {
+				final ArrayContainer o = (ArrayContainer)other;
+				for(int j = 0; j < o.cardinality; j++) {
+					result.words[o.values[j] >>> 6] &= ~(1L << o.values[j]);
+				}
+			} else {
+				final long[] o = ((BitmapContainer)other).words;
+				for(int i = 0; i < words.length; i++) {
+					result.words[i] &= ~o[i];
+				}
+			}
+			return result.recount();
+		}
+
+		@Override
+		Container copy() {
+			final BitmapContainer result = new BitmapContainer();
+			System.arraycopy(words, 0, result.words, 0, words.length);
+			result.cardinality = cardinality;
+			return result;
+		}
+
+		@Override
+		int fill(final int[] ids, final int offset, final int high) {
+			int index = offset;
+			for(int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while(word!=0) {
+					ids[index++] = high | (i << 6) | Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+				}
+			}
+			return index;
+		}
+
+		@Override
+		int getBytes() {
+			return 24 + words.length * 8;
+		}
+
+		/**
+		 * Recomputes the cardinality after a bulk operation
+		 * @return this container, or an array container if the result is sparse
+		 */
+		private Container recount() {
+			int count = 0;
+			for(int i = 0; i < words.length; i++) {
+				count += Long.bitCount(words[i]);
+			}
+			cardinality = count;
+			return count > ARRAY_MAX ? this : toArray();
+		}
+
+		ArrayContainer toArray() {
+			final ArrayContainer result = new ArrayContainer(cardinality);
+			fill(result.values, 0);
+			result.cardinality = cardinality;
+			return result;
+		}
+
+		private void fill(final char[] values, final int offset) {
+			int index = offset;
+			for(int i = 0; i < words.length; i++) {
+				long word = words[i];
+				while(word!=0) {
+					values[index++] = (char)((i << 6) | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.chunk.SeriesChunks;
+import com.heliosapm.utils.config.ConfigurationHelper;
+
+/**
+ * <p>Title: SeriesHistory</p>
+ * <p>Description: A fixed size ring buffer of the most recent points of one series, held in parallel
+ * <code>long[]</code> timestamp and <code>double[]</code> value arrays. Once the ring is full, each new point overwrites the oldest.</p>
+ * <p>The history is only kept when chunk storage is disabled, since queries otherwise read the chunks and nothing reads it.
+ * It holds at most the configured number of points, so it only covers the whole history window if points arrive no faster than that.</p>
+ * <p>Writes are serialized on the instance, which is uncontended when points are released through the reorder buffer's lock.
+ * Readers take no lock: they copy the published range, then drop any entries that a writer may have overwritten while they were copying.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.SeriesHistory</code></p>
+ */
+
+public class SeriesHistory {
+	/** The point timestamps in ms. */
+	private final long[] timestamps;
+	/** The point values */
+	private final double[] values;
+	/** The index mask */
+	private final int mask;
+	/** The next sequence to be published. Every sequence below it has been written. */
+	private volatile long published = 0L;
+
+	/** The configured number of points kept per series, rounded up to a power of 2 */
+	public static final int HISTORY_SIZE;
+	/** The configured maximum age of returned points in ms. */
+	public static final long HISTORY_WINDOW;
+
+	static {
+		final int size = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_HISTORY_SIZE, Constants.DEFAULT_HISTORY_SIZE);
+		HISTORY_SIZE = size < 1 ? 0 : pow2(size);
+		HISTORY_WINDOW = ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_HISTORY_WINDOW, Constants.DEFAULT_HISTORY_WINDOW);
+	}
+
+	/**
+	 * Creates a new SeriesHistory with the configured size, or returns null if history is disabled or chunk storage is enabled
+	 * @return a new SeriesHistory or null
+	 */
+	static SeriesHistory newInstance() {
+		return HISTORY_SIZE==0 || SeriesChunks.CHUNK_SPAN > 0 ? null : new SeriesHistory(HISTORY_SIZE);
+	}
+
+	/**
+	 * Creates a new SeriesHistory
+	 * @param size The number of points to keep, rounded up to a power of 2
+	 */
+	public SeriesHistory(final int size) {
+		if(size < 1 || size > (1 << 30)) throw new IllegalArgumentException("Invalid history size [" + size + "]");
+		final int capacity = pow2(size);
+		timestamps = new long[capacity];
+		values = new double[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Adds a point to the history
+	 * @param timestampMs The point timestamp in ms.
+	 * @param value The point value
+	 */
+	public synchronized void add(final long timestampMs, final double value) {
+		final long seq = published;
+		final int index = (int)(seq & mask);
+		timestamps[index] = timestampMs;
+		values[index] = value;
+		published = seq + 1;
+	}
+
+	/**
+	 * Copies the retained points no older than the passed time into the passed arrays, oldest first
+	 * @param fromMs The earliest timestamp to copy in ms.
+	 * @param ts The array to copy timestamps into. Must be at least {@link #capacity()} long.
+	 * @param vals The array to copy values into. Must be at least {@link #capacity()} long.
+	 * @return the number of points copied
+	 */
+	public int copy(final long fromMs, final long[] ts, final double[] vals) {
+		final int capacity = mask + 1;
+		final long end = published;
+		final long start = Math.max(0L, end - capacity);
+		int count = 0;
+		for(long seq = start; seq < end; seq++) {
+			final int index = (int)(seq & mask);
+			ts[count] = timestamps[index];
+			vals[count] = values[index];
+			count++;
+		}
+		// every sequence published since, and the one being written, may have overwritten the oldest copied slots
+		final long overwritten = published + 1 - capacity;
+		if(overwritten > start) {
+			final int drop = (int)Math.min(count, overwritten - start);
+			System.arraycopy(ts, drop, ts, 0, count - drop);
+			System.arraycopy(vals, drop, vals, 0, count - drop);
+			count -= drop;
+		}
+		int keep = 0;
+		for(int i = 0; i < count; i++) {
+			if(ts[i] >= fromMs) {
+				ts[keep] = ts[i];
+				vals[keep] = vals[i];
+				keep++;
+			}
+		}
+		return keep;
+	}
+
+	/**
+	 * Copies the retained points within the configured history window into the passed arrays, oldest first
+	 * @param ts The array to copy timestamps into. Must be at least {@link #capacity()} long.
+	 * @param vals The array to copy values into. Must be at least {@link #capacity()} long.
+	 * @return the number of points copied
+	 */
+	public int copy(final long[] ts, final double[] vals) {
+		return copy(System.currentTimeMillis() - HISTORY_WINDOW, ts, vals);
+	}
+
+	/**
+	 * Returns the number of points this history can hold
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Returns the number of points currently retained
+	 * @return the number of retained points
+	 */
+	public int size() {
+		return (int)Math.min(published, mask + 1);
+	}
+
+	private static int pow2(final int size) {
+		return Integer.bitCount(size)==1 ? size : Integer.highestOneBit(size) << 1;
+	}
+
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: SeriesIndex</p>
+ * <p>Description: An in-memory inverted index of the cached series. Each series is given a dense internal id when it is
+ * created, and the id is recycled when the series is removed. The index maps each metric name, each tag key and each
+ * tag key/value pair to a {@link SeriesBitmap} of the ids that have it.
+ * A query such as <code>host=web* AND dc=east</code> unions the postings of the <code>host</code> values that match
+ * <code>web*</code> and intersects that with the postings of <code>dc=east</code> and of the metric name, without
+ * looking at any series outside the result.</p>
+ * <p>A series that expires while a persistent store still holds its points is {@link #retire(AppMetric, long) retired}
+ * rather than removed: a stand-in that only reads through to the stores keeps its id for queries until its points have
+ * aged out, live lookups skip it, and it is replaced if the series is created again.</p>
+ * <p>Postings are keyed by {@link StringDictionary} codes. Updates take a write lock, and each lookup runs entirely under
+ * a read lock, so a recycled id is never seen with two different series within one lookup.</p>
+ * <p>The index also keeps the metric names, tag keys and tag values that have indexed series in sorted concurrent sets,
+ * updated as postings are created and emptied, so prefix {@link #suggest(NameType, String, int) suggestions} take
+ * no lock and only walk the names they return.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.SeriesIndex</code></p>
+ */
+
+public class SeriesIndex implements SeriesIndexMXBean {
+	/** The singleton instance */
+	private static volatile SeriesIndex instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** The dictionary the postings are keyed by */
+	private final StringDictionary dictionary = StringDictionary.getInstance();
+	/** Guards the postings and the id table */
+	private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+	/** The series ids keyed by metric name code */
+	private final NonBlockingHashMapLong<SeriesBitmap> metricPostings = new NonBlockingHashMapLong<SeriesBitmap>(1024, false);
+	/** The postings of each tag key keyed by tag key code */
+	private final NonBlockingHashMapLong<TagPostings> tagPostings = new NonBlockingHashMapLong<TagPostings>(128, false);
+	/** The series indexed by id */
+	private AppMetric[] series = new AppMetric[1024];
+	/** The released ids, reused before new ones are assigned */
+	private int[] freeIds = new int[64];
+	/** The number of released ids */
+	private int freeCount = 0;
+	/** The next never assigned id */
+	private int nextId = 0;
+	/** The number of indexed series */
+	private volatile int seriesCount = 0;
+	/** The ids of the retired series */
+	private final SeriesBitmap retired = new SeriesBitmap();
+	/** The retired series ids keyed by metric hash code, so a series created again can replace its retired entry */
+	private final NonBlockingHashMapLong<Integer> retiredIds = new NonBlockingHashMapLong<Integer>(64, false);
+	/** The time in ms. after which each retired series is removed, indexed by id */
+	private long[] retiredUntil = new long[1024];
+	/** The earliest time in ms. a retired series can be removed */
+	private volatile long nextPurge = Long.MAX_VALUE;
+	/** The number of retired series */
+	private volatile int retiredCount = 0;
+	/** The metric names with indexed series */
+	private final ConcurrentSkipListSet<String> metricNames = new ConcurrentSkipListSet<String>();
+	/** The tag keys with indexed series */
+	private final ConcurrentSkipListSet<String> tagKeys = new ConcurrentSkipListSet<String>();
+	/** The tag values with indexed series */
+	private final ConcurrentSkipListSet<String> tagValues = new ConcurrentSkipListSet<String>();
+	/** The number of tag keys each tag value has postings under, indexed by tag value code */
+	private int[] valueRefs = new int[1024];
+
+	/** A counter of lookups */
+	private final LongAdder lookups = new LongAdder();
+	/** The cummulative lookup time in ns. */
+	private final LongAdder lookupTime = new LongAdder();
+	/** A counter of suggest requests */
+	private final LongAdder suggestions = new LongAdder();
+
+	/** No filters */
+	private static final List<TagValueFilter> NO_FILTERS = new ArrayList<TagValueFilter>(0);
+
+	/**
+	 * <p>Title: TagPostings</p>
+	 * <p>Description: The postings of one tag key</p>
+	 */
+	private static final class TagPostings {
+		/** Every series that has the tag key */
+		final SeriesBitmap all = new SeriesBitmap();
+		/** The series ids keyed by tag value code */
+		final NonBlockingHashMapLong<SeriesBitmap> values = new NonBlockingHashMapLong<SeriesBitmap>(16, false);
+	}
+
+	/**
+	 * <p>Title: NameType</p>
+	 * <p>Description: The kinds of names that can be suggested</p>
+	 */
+	public static enum NameType {
+		/** Metric names */
+		METRICS,
+		/** Tag keys */
+		TAGK,
+		/** Tag values */
+		TAGV;
+
+		/**
+		 * Decodes the passed name to a NameType
+		 * @param name The name to decode, as in <code>metrics</code>, <code>tagk</code> or <code>tagv</code>
+		 * @return the NameType
+		 */
+		public static NameType forName(final String name) {
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (Exception ex) {
+				throw new IllegalArgumentException("Unsupported suggest type [" + name + "]");
+			}
+		}
+	}
+
+	/**
+	 * Acquires and returns the SeriesIndex singleton
+	 * @return the SeriesIndex singleton
+	 */
+	public static SeriesIndex getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new SeriesIndex();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private SeriesIndex() {
+		JMXHelper.registerMBean(this, OBJECT_NAME);
+	}
+
+	/**
+	 * Assigns the passed series an id and indexes it, replacing the retired entry of the same series if there is one
+	 * @param appMetric The new series
+	 */
+	public void add(final AppMetric appMetric) {
+		final Metric metric = appMetric.getMetricInstance();
+		rwLock.writeLock().lock();
+		try {
+			if(appMetric.seriesId!=-1) return;
+			final Integer retiredId = retiredIds.get(metric.getHashCode());
+			// the new series reads the same stored points, so the retired one would only duplicate them
+			if(retiredId!=null && series[retiredId].getMetricInstance().equals(metric)) remove(series[retiredId]);
+			final int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+			if(id==series.length) series = Arrays.copyOf(series, series.length * 2);
+			series[id] = appMetric;
+			appMetric.seriesId = id;
+			SeriesBitmap postings = metricPostings.get(metric.getMetricNameCode());
+			if(postings==null) {
+				postings = new SeriesBitmap();
+				metricPostings.put(metric.getMetricNameCode(), postings);
+				metricNames.add(metric.getMetricName());
+			}
+			postings.add(id);
+			for(int i = 0, count = metric.getTagCount(); i < count; i++) {
+				TagPostings tag = tagPostings.get(metric.getTagKeyCode(i));
+				if(tag==null) {
+					tag = new TagPostings();
+					tagPostings.put(metric.getTagKeyCode(i), tag);
+					tagKeys.add(metric.getTagKey(i));
+				}
+				tag.all.add(id);
+				postings = tag.values.get(metric.getTagValueCode(i));
+				if(postings==null) {
+					postings = new SeriesBitmap();
+					tag.values.put(metric.getTagValueCode(i), postings);
+					final int valueCode = metric.getTagValueCode(i);
+					if(valueCode >= valueRefs.length) valueRefs = Arrays.copyOf(valueRefs, Math.max(valueRefs.length * 2, valueCode + 1));
+					if(valueRefs[valueCode]++==0) tagValues.add(metric.getTagValue(i));
+				}
+				postings.add(id);
+			}
+			seriesCount++;
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Keeps an expired series indexed so its stored points can still be queried, until the passed time.
+	 * The series' id passes to a {@link AppMetric#retired() stand-in}, so the expired series itself is no longer indexed.
+	 * @param appMetric The expired series
+	 * @param until The time in ms. after which the stand-in is removed by {@link #purge(long)}
+	 */
+	public void retire(final AppMetric appMetric, final long until) {
+		rwLock.writeLock().lock();
+		try {
+			final int id = appMetric.seriesId;
+			if(id==-1 || series[id]!=appMetric || !retired.add(id)) return;
+			final AppMetric retiredMetric = appMetric.retired();
+			retiredMetric.seriesId = id;
+			series[id] = retiredMetric;
+			appMetric.seriesId = -1;
+			retiredIds.put(appMetric.getMetricInstance().getHashCode(), Integer.valueOf(id));
+			if(id >= retiredUntil.length) retiredUntil = Arrays.copyOf(retiredUntil, Math.max(retiredUntil.length * 2, id + 1));
+			retiredUntil[id] = until;
+			if(until < nextPurge) nextPurge = until;
+			retiredCount++;
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the retired series whose stored points have aged out
+	 * @param now The current time in ms.
+	 * @return the number of removed series
+	 */
+	public int purge(final long now) {
+		if(now < nextPurge) return 0;
+		final List<AppMetric> purged = new ArrayList<AppMetric>();
+		rwLock.writeLock().lock();
+		try {
+			long next = Long.MAX_VALUE;
+			for(int id: retired.toArray()) {
+				if(retiredUntil[id] <= now) purged.add(series[id]);
+				else if(retiredUntil[id] < next) next = retiredUntil[id];
+			}
+			for(AppMetric appMetric: purged) {
+				remove(appMetric);
+			}
+			nextPurge = next;
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+		return purged.size();
+	}
+
+	/**
+	 * Removes the passed series from the index and releases its id
+	 * @param appMetric The expired series
+	 */
+	public void remove(final AppMetric appMetric) {
+		final Metric metric = appMetric.getMetricInstance();
+		rwLock.writeLock().lock();
+		try {
+			final int id = appMetric.seriesId;
+			if(id==-1 || series[id]!=appMetric) return;
+			if(remove(metricPostings, metric.getMetricNameCode(), id)) {
+				metricNames.remove(metric.getMetricName());
+			}
+			for(int i = 0, count = metric.getTagCount(); i < count; i++) {
+				final TagPostings tag = tagPostings.get(metric.getTagKeyCode(i));
+				if(tag==null) continue;
+				tag.all.remove(id);
+				if(remove(tag.values, metric.getTagValueCode(i), id) && --valueRefs[metric.getTagValueCode(i)]==0) {
+					tagValues.remove(metric.getTagValue(i));
+				}
+				if(tag.all.isEmpty()) {
+					tagPostings.remove(metric.getTagKeyCode(i));
+					tagKeys.remove(metric.getTagKey(i));
+				}
+			}
+			if(retired.remove(id)) {
+				if(Integer.valueOf(id).equals(retiredIds.get(metric.getHashCode()))) retiredIds.remove(metric.getHashCode());
+				retiredCount--;
+			}
+			series[id] = null;
+			appMetric.seriesId = -1;
+			if(freeCount==freeIds.length) freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+			freeIds[freeCount++] = id;
+			seriesCount--;
+		} finally {
+			rwLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes an id from the postings of a code, dropping the postings once they are empty
+	 * @param postings The postings map
+	 * @param code The code the postings are keyed by
+	 * @param id The id to remove
+	 * @return true if the postings were dropped
+	 */
+	private static boolean remove(final NonBlockingHashMapLong<SeriesBitmap> postings, final int code, final int id) {
+		final SeriesBitmap bitmap = postings.get(code);
+		if(bitmap!=null && bitmap.remove(id) && bitmap.isEmpty()) {
+			postings.remove(code);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Indicates if any series of the passed metric name is indexed
+	 * @param metricName The cleaned metric name
+	 * @return true if the metric name has series
+	 */
+	public boolean hasMetric(final String metricName) {
+		final int code = dictionary.find(metricName);
+		return code!=-1 && metricPostings.containsKey(code);
+	}
+
+	/**
+	 * Finds every live series of the passed metric name
+	 * @param metricName The cleaned metric name
+	 * @return the matching series, which may be empty
+	 */
+	public List<AppMetric> find(final String metricName) {
+		return find(metricName, NO_FILTERS, false);
+	}
+
+	/**
+	 * Finds the live series of the passed metric name that match all the passed filters
+	 * @param metricName The cleaned metric name
+	 * @param filters The tag filters
+	 * @return the matching series, which may be empty
+	 */
+	public List<AppMetric> find(final String metricName, final List<? extends TagValueFilter> filters) {
+		return find(metricName, filters, false);
+	}
+
+	/**
+	 * Finds the series of the passed metric name that match all the passed filters
+	 * @param metricName The cleaned metric name
+	 * @param filters The tag filters
+	 * @param includeRetired true to include the retired series, whose points are only in the stores
+	 * @return the matching series, which may be empty
+	 */
+	public List<AppMetric> find(final String metricName, final List<? extends TagValueFilter> filters, final boolean includeRetired) {
+		final long start = System.nanoTime();
+		rwLock.readLock().lock();
+		try {
+			final int code = dictionary.find(metricName);
+			SeriesBitmap selected = code==-1 ? null : metricPostings.get(code);
+			for(int i = 0, count = filters.size(); i < count && selected!=null && !selected.isEmpty(); i++) {
+				final SeriesBitmap matched = select(filters.get(i));
+				selected = matched==null ? null : selected.and(matched);
+			}
+			if(selected==null) return new ArrayList<AppMetric>(0);
+			if(!includeRetired && retiredCount!=0) selected = selected.andNot(retired);
+			final int[] ids = selected.toArray();
+			final List<AppMetric> found = new ArrayList<AppMetric>(ids.length);
+			for(int id: ids) {
+				found.add(series[id]);
+			}
+			return found;
+		} finally {
+			rwLock.readLock().unlock();
+			lookups.increment();
+			lookupTime.add(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Returns the names of the passed type that have indexed series and start with the passed prefix, in sort order
+	 * @param type The type of name
+	 * @param prefix The cleaned prefix, or an empty string for all names
+	 * @param max The maximum number of names to return
+	 * @return the matching names
+	 */
+	public List<String> suggest(final NameType type, final String prefix, final int max) {
+		final NavigableSet<String> names;
+		switch(type) {
+			case METRICS:
+				names = metricNames;
+				break;
+			case TAGK:
+				names = tagKeys;
+				break;
+			default:
+				names = tagValues;
+		}
+		final List<String> found = new ArrayList<String>(Math.min(max, 64));
+		if(max < 1) return found;
+		for(String name: names.tailSet(prefix, true)) {
+			if(!name.startsWith(prefix)) break;
+			found.add(name);
+			if(found.size()==max) break;
+		}
+		suggestions.increment();
+		return found;
+	}
+
+	/**
+	 * Resolves one filter to the ids of the series that match it. Must be called under the read lock.
+	 * @param filter The filter
+	 * @return the matching ids, or null if no series has the tag key
+	 */
+	private SeriesBitmap select(final TagValueFilter filter) {
+		final int keyCode = dictionary.find(filter.getTagKey());
+		final TagPostings tag = keyCode==-1 ? null : tagPostings.get(keyCode);
+		if(tag==null) return null;
+		if(filter.matchesAll()) return tag.all;
+		final Collection<String> literals = filter.getLiterals();
+		if(literals!=null) {
+			final SeriesBitmap selected = new SeriesBitmap();
+			for(String literal: literals) {
+				final int valueCode = dictionary.find(literal);
+				final SeriesBitmap postings = valueCode==-1 ? null : tag.values.get(valueCode);
+				if(postings!=null) selected.addAll(postings);
+			}
+			return filter.isNegated() ? tag.all.andNot(selected) : selected;
+		}
+		final List<SeriesBitmap> matched = new ArrayList<SeriesBitmap>();
+		for(Map.Entry<Long, SeriesBitmap> entry: tag.values.entrySet()) {
+			if(filter.matches(dictionary.string(entry.getKey().intValue()))) {
+				matched.add(entry.getValue());
+			}
+		}
+		return SeriesBitmap.union(matched);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.SeriesIndexMXBean#getSeriesCount()
+	 */
+	@Override
+	public int getSeriesCount() {
+		return seriesCount;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.SeriesIndexMXBean#getRetiredCount()
+	 */
+	@Override
+	public int getRetiredCount() {
+		return retiredCount;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.SeriesIndexMXBean#getMetricNameCount()
+	 */
+	@Override
+	public int getMetricNameCount() {
+		return metricPostings.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.SeriesIndexMXBean#getTagKeyCount()
+	 */
+	@Override
+	public int getTagKeyCount() {
+		return tagPostings.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.SeriesIndexMXBean#getTagPairCount()
+	 */
+	@Override
+	public int getTagPairCount() {
+		int count = 0;
+		for(TagPostings tag: tagPostings.values()) {
+			count += tag.values.size();
+		}
+		return count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.SeriesIndexMXBean#getIdCapacity()
+	 */
+	@Override
+	public int getIdCapacity() {
+		return series.length;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.SeriesIndexMXBean#getPostingsBytes()
+	 */
+	@Override
+	public long getPostingsBytes() {
+		rwLock.readLock().lock();
+		try {
+			long bytes = 0;
+			for(SeriesBitmap postings: metricPostings.values()) {
+				bytes += postings.getBytes();
+			}
+			for(TagPostings tag: tagPostings.values()) {
+				bytes += tag.all.getBytes();
+				for(SeriesBitmap postings: tag.values.values()) {
+					bytes += postings.getBytes();
+				}
+			}
+			return bytes;
+		} finally {
+			rwLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.SeriesIndexMXBean#getLookups()
+	 */
+	@Override
+	public long getLookups() {
+		return lookups.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.SeriesIndexMXBean#getSuggestions()
+	 */
+	@Override
+	public long getSuggestions() {
+		return suggestions.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.SeriesIndexMXBean#getAverageLookupTime()
+	 */
+	@Override
+	public long getAverageLookupTime() {
+		final long count = lookups.longValue();
+		return count==0 ? 0L : lookupTime.longValue() / count / 1000L;
+	}
+
+}
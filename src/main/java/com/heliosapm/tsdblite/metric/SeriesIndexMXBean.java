@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: SeriesIndexMXBean</p>
+ * <p>Description: JMX MXBean for the {@link SeriesIndex} instance</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.SeriesIndexMXBean</code></p>
+ */
+
+public interface SeriesIndexMXBean {
+
+	/** The JMX ObjectName for the {@link SeriesIndex}  */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.tsdblite:service=SeriesIndex");
+
+	/**
+	 * Returns the number of indexed series, including the retired ones
+	 * @return the number of indexed series
+	 */
+	public int getSeriesCount();
+
+	/**
+	 * Returns the number of expired series kept indexed so their stored points can still be queried
+	 * @return the number of retired series
+	 */
+	public int getRetiredCount();
+
+	/**
+	 * Returns the number of distinct metric names with indexed series
+	 * @return the number of metric names
+	 */
+	public int getMetricNameCount();
+
+	/**
+	 * Returns the number of distinct tag keys with indexed series
+	 * @return the number of tag keys
+	 */
+	public int getTagKeyCount();
+
+	/**
+	 * Returns the number of distinct tag key/value pairs with indexed series
+	 * @return the number of tag pairs
+	 */
+	public int getTagPairCount();
+
+	/**
+	 * Returns the capacity of the series id table
+	 * @return the id table capacity
+	 */
+	public int getIdCapacity();
+
+	/**
+	 * Returns the approximate heap size of all the postings in bytes
+	 * @return the approximate postings size in bytes
+	 */
+	public long getPostingsBytes();
+
+	/**
+	 * Returns the cummulative number of lookups
+	 * @return the number of lookups
+	 */
+	public long getLookups();
+
+	/**
+	 * Returns the average lookup time in microseconds
+	 * @return the average lookup time in us.
+	 */
+	public long getAverageLookupTime();
+
+	/**
+	 * Returns the cummulative number of name suggestions served
+	 * @return the number of suggestions
+	 */
+	public long getSuggestions();
+
+}
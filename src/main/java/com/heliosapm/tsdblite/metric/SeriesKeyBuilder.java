@@ -0,0 +1,537 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: SeriesKeyBuilder</p>
+ * <p>Description: Computes the canonical 128 bit identity of a series from its metric name and tags.
+ * Each part is cleaned as it is appended (trimmed, ASCII lower-cased and ':' replaced with ';', the same
+ * as {@link MetricCache#clean(String, String)}) and UTF-8 encoded into a reusable scratch buffer. On {@link #build()},
+ * the tags are ordered by key through a small index array and the canonical bytes are hashed with
+ * MurmurHash3 x64/128. The low 64 bits key the metric cache and the high 64 bits verify the match.</p>
+ * <p>Parts can be appended from a {@link ByteBuf} region, a char array or a {@link CharSequence}, so the telnet,
+ * JSON and JMX paths all arrive at the same key without building intermediate strings or maps.</p>
+ * <p>Instances are not thread safe and are intended to be reused via {@link #reset()}.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.SeriesKeyBuilder</code></p>
+ */
+
+public class SeriesKeyBuilder {
+	/** The cleaned UTF-8 bytes of the appended parts */
+	private byte[] parts = new byte[256];
+	/** The canonical bytes that are hashed */
+	private byte[] canonical = new byte[256];
+	/** The write position in the parts buffer */
+	private int partsLength = 0;
+	/** The offsets of the parts: the metric name, then key/value pairs */
+	private final int[] partOffsets;
+	/** The lengths of the parts */
+	private final int[] partLengths;
+	/** The tag indexes sorted by key */
+	private final int[] tagOrder;
+	/** The number of appended parts */
+	private int partCount = 1;
+	/** Indicates if the metric name has been appended */
+	private boolean hasMetric = false;
+	/** The low 64 bits of the last built key */
+	private long hashCode = 0L;
+	/** The high 64 bits of the last built key */
+	private long hashCodeHigh = 0L;
+
+	/** The metric name part index */
+	private static final int METRIC = 0;
+
+	/** Murmur3 x64/128 constant */
+	private static final long C1 = 0x87c37b91114253d5L;
+	/** Murmur3 x64/128 constant */
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	/** A thread local builder for callers without their own instance */
+	private static final ThreadLocal<SeriesKeyBuilder> threadBuilder = new ThreadLocal<SeriesKeyBuilder>() {
+		@Override
+		protected SeriesKeyBuilder initialValue() {
+			return new SeriesKeyBuilder();
+		}
+	};
+
+	/**
+	 * Returns this thread's builder, reset and ready for use
+	 * @return a reset builder
+	 */
+	public static SeriesKeyBuilder threadInstance() {
+		return threadBuilder.get().reset();
+	}
+
+	/**
+	 * Creates a new SeriesKeyBuilder
+	 */
+	public SeriesKeyBuilder() {
+		final int maxParts = 1 + (MetricCache.MAX_TAGS * 2);
+		partOffsets = new int[maxParts];
+		partLengths = new int[maxParts];
+		tagOrder = new int[MetricCache.MAX_TAGS];
+	}
+
+	/**
+	 * Resets this builder for a new key
+	 * @return this builder
+	 */
+	public SeriesKeyBuilder reset() {
+		partsLength = 0;
+		partCount = 1;
+		hasMetric = false;
+		hashCode = 0L;
+		hashCodeHigh = 0L;
+		return this;
+	}
+
+	/**
+	 * Sets the metric name from the bytes in the passed buffer region
+	 * @param buf The buffer
+	 * @param start The start offset
+	 * @param end The end offset (exclusive)
+	 * @return this builder
+	 */
+	public SeriesKeyBuilder metric(final ByteBuf buf, final int start, final int end) {
+		beginMetric();
+		appendPart(METRIC, buf, start, end, "metric name");
+		return this;
+	}
+
+	/**
+	 * Sets the metric name from the passed characters
+	 * @param chars The character array
+	 * @param offset The offset of the first character
+	 * @param length The number of characters
+	 * @return this builder
+	 */
+	public SeriesKeyBuilder metric(final char[] chars, final int offset, final int length) {
+		beginMetric();
+		appendPart(METRIC, chars, offset, length, "metric name");
+		return this;
+	}
+
+	/**
+	 * Sets the metric name
+	 * @param metricName The metric name
+	 * @return this builder
+	 */
+	public SeriesKeyBuilder metric(final CharSequence metricName) {
+		beginMetric();
+		appendPart(METRIC, metricName, "metric name");
+		return this;
+	}
+
+	/**
+	 * Adds a tag from the key and value regions in the passed buffer
+	 * @param buf The buffer
+	 * @param keyStart The key start offset
+	 * @param keyEnd The key end offset (exclusive)
+	 * @param valueStart The value start offset
+	 * @param valueEnd The value end offset (exclusive)
+	 * @return this builder
+	 */
+	public SeriesKeyBuilder tag(final ByteBuf buf, final int keyStart, final int keyEnd, final int valueStart, final int valueEnd) {
+		final int index = beginTag();
+		appendPart(index, buf, keyStart, keyEnd, "Tag Key");
+		appendPart(index + 1, buf, valueStart, valueEnd, "Tag Value");
+		partCount += 2;
+		return this;
+	}
+
+	/**
+	 * Adds a tag from the passed key and value characters
+	 * @param keyChars The key character array
+	 * @param keyOffset The offset of the first key character
+	 * @param keyLength The number of key characters
+	 * @param valueChars The value character array
+	 * @param valueOffset The offset of the first value character
+	 * @param valueLength The number of value characters
+	 * @return this builder
+	 */
+	public SeriesKeyBuilder tag(final char[] keyChars, final int keyOffset, final int keyLength, final char[] valueChars, final int valueOffset, final int valueLength) {
+		final int index = beginTag();
+		appendPart(index, keyChars, keyOffset, keyLength, "Tag Key");
+		appendPart(index + 1, valueChars, valueOffset, valueLength, "Tag Value");
+		partCount += 2;
+		return this;
+	}
+
+	/**
+	 * Adds a tag from the passed key and value characters
+	 * @param key The tag key
+	 * @param valueChars The value character array
+	 * @param valueOffset The offset of the first value character
+	 * @param valueLength The number of value characters
+	 * @return this builder
+	 */
+	public SeriesKeyBuilder tag(final CharSequence key, final char[] valueChars, final int valueOffset, final int valueLength) {
+		final int index = beginTag();
+		appendPart(index, key, "Tag Key");
+		appendPart(index + 1, valueChars, valueOffset, valueLength, "Tag Value");
+		partCount += 2;
+		return this;
+	}
+
+	/**
+	 * Adds a tag
+	 * @param key The tag key
+	 * @param value The tag value
+	 * @return this builder
+	 */
+	public SeriesKeyBuilder tag(final CharSequence key, final CharSequence value) {
+		final int index = beginTag();
+		appendPart(index, key, "Tag Key");
+		appendPart(index + 1, value, "Tag Value");
+		partCount += 2;
+		return this;
+	}
+
+	/**
+	 * Adds all the tags in the passed map
+	 * @param tags The tags to add
+	 * @return this builder
+	 */
+	public SeriesKeyBuilder tags(final Map<String, String> tags) {
+		if(tags==null) throw new IllegalArgumentException("The passed tags map was empty");
+		for(Map.Entry<String, String> entry: tags.entrySet()) {
+			tag(entry.getKey(), entry.getValue());
+		}
+		return this;
+	}
+
+	/**
+	 * Validates the appended parts, orders the tags and computes the 128 bit key.
+	 * A tag given more than once with the same value is only keyed once.
+	 * @return this builder
+	 * @throws IllegalArgumentException if the metric name is missing, the tag count is out of range or a tag key is given conflicting values
+	 */
+	public SeriesKeyBuilder build() {
+		if(!hasMetric) throw new IllegalArgumentException("The passed metric name was null or empty");
+		int tagCount = getTagCount();
+		// insertion sort on the key bytes: there are never more than MAX_TAGS
+		sort:
+		for(int i = 0; i < tagCount; i++) {
+			final int part = 1 + (i * 2);
+			int j = i - 1;
+			while(j >= 0) {
+				final int c = compareParts(tagOrder[j], part);
+				if(c==0) {
+					if(compareParts(tagOrder[j] + 1, part + 1)!=0) {
+						throw new IllegalArgumentException("Conflicting values [" + partToString(tagOrder[j] + 1) + "] and [" + partToString(part + 1) + "] for tag key [" + partToString(part) + "]");
+					}
+					// the same tag repeated: drop it and sort again, which is rare enough not to be worth undoing the shifts
+					dropTag(part);
+					tagCount--;
+					i = -1;
+					continue sort;
+				}
+				if(c < 0) break;
+				tagOrder[j + 1] = tagOrder[j];
+				j--;
+			}
+			tagOrder[j + 1] = part;
+		}
+		if(tagCount < MetricCache.MIN_TAGS) throw new IllegalArgumentException("The passed tags map had [" + tagCount + "] tags, but the minimum is [" + MetricCache.MIN_TAGS + "]");
+		int len = 0;
+		ensureCanonical(partsLength + partCount);
+		len = copyPart(METRIC, len);
+		for(int i = 0; i < tagCount; i++) {
+			canonical[len++] = 0;
+			len = copyPart(tagOrder[i], len);
+			canonical[len++] = '=';
+			len = copyPart(tagOrder[i] + 1, len);
+		}
+		murmur3(canonical, len);
+		return this;
+	}
+
+	/**
+	 * Returns the low 64 bits of the last built key, used as the metric cache key
+	 * @return the low 64 bits of the key
+	 */
+	public long getHashCode() {
+		return hashCode;
+	}
+
+	/**
+	 * Returns the high 64 bits of the last built key, used to verify a metric cache match
+	 * @return the high 64 bits of the key
+	 */
+	public long getHashCodeHigh() {
+		return hashCodeHigh;
+	}
+
+	/**
+	 * Returns the number of tags appended
+	 * @return the number of tags
+	 */
+	public int getTagCount() {
+		return (partCount - 1) / 2;
+	}
+
+	/**
+	 * Decodes the cleaned metric name
+	 * @return the cleaned metric name
+	 */
+	public String getMetricName() {
+		return partToString(METRIC);
+	}
+
+	/**
+	 * Decodes the cleaned tags into a new map
+	 * @return the cleaned tags
+	 */
+	public Map<String, String> getTags() {
+		final int tagCount = getTagCount();
+		final Map<String, String> tags = new HashMap<String, String>(tagCount * 2);
+		for(int i = 0; i < tagCount; i++) {
+			final int part = 1 + (i * 2);
+			tags.put(partToString(part), partToString(part + 1));
+		}
+		return tags;
+	}
+
+	/**
+	 * Determines if the passed metric matches the last built key
+	 * @param metric The metric to test
+	 * @return true if the metric has this key, false otherwise
+	 */
+	public boolean matches(final Metric metric) {
+		return metric.getHashCode()==hashCode && metric.getHashCodeHigh()==hashCodeHigh;
+	}
+
+	private void beginMetric() {
+		if(hasMetric) throw new IllegalStateException("The metric name has already been set");
+		hasMetric = true;
+	}
+
+	private int beginTag() {
+		if(partCount==partOffsets.length) throw new IllegalArgumentException("Too many tags. The maximum is [" + MetricCache.MAX_TAGS + "]");
+		return partCount;
+	}
+
+	private void appendPart(final int index, final ByteBuf buf, final int start, final int end, final String field) {
+		int s = start, e = end;
+		while(s < e && (buf.getByte(s) & 0xFF) <= ' ') s++;
+		while(e > s && (buf.getByte(e - 1) & 0xFF) <= ' ') e--;
+		if(s==e) throw new IllegalArgumentException("The passed " + field + " was null or empty");
+		ensureParts(e - s);
+		partOffsets[index] = partsLength;
+		for(int i = s; i < e; i++) {
+			parts[partsLength++] = (byte)clean(buf.getByte(i));
+		}
+		partLengths[index] = partsLength - partOffsets[index];
+	}
+
+	private void appendPart(final int index, final char[] chars, final int offset, final int length, final String field) {
+		int s = offset, e = offset + length;
+		while(s < e && chars[s] <= ' ') s++;
+		while(e > s && chars[e - 1] <= ' ') e--;
+		if(s==e) throw new IllegalArgumentException("The passed " + field + " was null or empty");
+		ensureParts((e - s) * 3);
+		partOffsets[index] = partsLength;
+		for(int i = s; i < e; i++) {
+			final char c = chars[i];
+			if(c < 0x80) {
+				parts[partsLength++] = (byte)clean(c);
+			} else {
+				i = encode(c, i + 1 < e ? chars[i + 1] : 0, i);
+			}
+		}
+		partLengths[index] = partsLength - partOffsets[index];
+	}
+
+	private void appendPart(final int index, final CharSequence cs, final String field) {
+		if(cs==null) throw new IllegalArgumentException("The passed " + field + " was null or empty");
+		int s = 0, e = cs.length();
+		while(s < e && cs.charAt(s) <= ' ') s++;
+		while(e > s && cs.charAt(e - 1) <= ' ') e--;
+		if(s==e) throw new IllegalArgumentException("The passed " + field + " was null or empty");
+		ensureParts((e - s) * 3);
+		partOffsets[index] = partsLength;
+		for(int i = s; i < e; i++) {
+			final char c = cs.charAt(i);
+			if(c < 0x80) {
+				parts[partsLength++] = (byte)clean(c);
+			} else {
+				i = encode(c, i + 1 < e ? cs.charAt(i + 1) : 0, i);
+			}
+		}
+		partLengths[index] = partsLength - partOffsets[index];
+	}
+
+	/**
+	 * UTF-8 encodes a non ASCII char into the parts buffer
+	 * @param c The char to encode
+	 * @param next The following char, or 0 if there is none
+	 * @param index The index of the char
+	 * @return the index of the last char consumed
+	 */
+	private int encode(final char c, final char next, final int index) {
+		if(c < 0x800) {
+			parts[partsLength++] = (byte)(0xC0 | (c >> 6));
+			parts[partsLength++] = (byte)(0x80 | (c & 0x3F));
+		} else if(Character.isHighSurrogate(c) && Character.isLowSurrogate(next)) {
+			final int cp = Character.toCodePoint(c, next);
+			parts[partsLength++] = (byte)(0xF0 | (cp >> 18));
+			parts[partsLength++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+			parts[partsLength++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+			parts[partsLength++] = (byte)(0x80 | (cp & 0x3F));
+			return index + 1;
+		} else if(Character.isSurrogate(c)) {
+			parts[partsLength++] = '?';
+		} else {
+			parts[partsLength++] = (byte)(0xE0 | (c >> 12));
+			parts[partsLength++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+			parts[partsLength++] = (byte)(0x80 | (c & 0x3F));
+		}
+		return index;
+	}
+
+	/**
+	 * Applies the standard cleaning to a single ASCII character or byte
+	 * @param c The character
+	 * @return the cleaned character
+	 */
+	private static int clean(final int c) {
+		if(c >= 'A' && c <= 'Z') return c + 32;
+		if(c == ':') return ';';
+		return c;
+	}
+
+	private int compareParts(final int a, final int b) {
+		final int aOff = partOffsets[a], aLen = partLengths[a];
+		final int bOff = partOffsets[b], bLen = partLengths[b];
+		final int len = Math.min(aLen, bLen);
+		for(int i = 0; i < len; i++) {
+			final int d = (parts[aOff + i] & 0xFF) - (parts[bOff + i] & 0xFF);
+			if(d != 0) return d;
+		}
+		return aLen - bLen;
+	}
+
+	private int copyPart(final int index, final int pos) {
+		final int len = partLengths[index];
+		System.arraycopy(parts, partOffsets[index], canonical, pos, len);
+		return pos + len;
+	}
+
+	/**
+	 * Removes a tag's key and value parts, leaving their bytes unused in the parts buffer
+	 * @param part The index of the tag key part
+	 */
+	private void dropTag(final int part) {
+		System.arraycopy(partOffsets, part + 2, partOffsets, part, partCount - part - 2);
+		System.arraycopy(partLengths, part + 2, partLengths, part, partCount - part - 2);
+		partCount -= 2;
+	}
+
+	private String partToString(final int index) {
+		return new String(parts, partOffsets[index], partLengths[index], MetricCache.UTF8);
+	}
+
+	private void ensureParts(final int additional) {
+		if(partsLength + additional > parts.length) {
+			final byte[] tmp = new byte[Math.max(parts.length * 2, partsLength + additional)];
+			System.arraycopy(parts, 0, tmp, 0, partsLength);
+			parts = tmp;
+		}
+	}
+
+	private void ensureCanonical(final int size) {
+		if(size > canonical.length) {
+			canonical = new byte[Math.max(canonical.length * 2, size)];
+		}
+	}
+
+	/**
+	 * Computes MurmurHash3 x64/128 (seed 0) over the first <b><code>len</code></b> bytes of the passed array,
+	 * storing the two halves in {@link #hashCode} and {@link #hashCodeHigh}
+	 * @param data The bytes to hash
+	 * @param len The number of bytes to hash
+	 */
+	// the tail switch falls through on purpose, as in the reference MurmurHash3_x64_128
+	@SuppressWarnings("fallthrough")
+	private void murmur3(final byte[] data, final int len) {
+		long h1 = 0L, h2 = 0L;
+		final int blocks = len >>> 4;
+		for(int i = 0; i < blocks; i++) {
+			final int off = i << 4;
+			long k1 = getLongLE(data, off);
+			long k2 = getLongLE(data, off + 8);
+			k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+			k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+		}
+		final int tail = blocks << 4;
+		long k1 = 0L, k2 = 0L;
+		switch(len & 15) {
+			case 15: k2 ^= (long)(data[tail + 14] & 0xFF) << 48;
+			case 14: k2 ^= (long)(data[tail + 13] & 0xFF) << 40;
+			case 13: k2 ^= (long)(data[tail + 12] & 0xFF) << 32;
+			case 12: k2 ^= (long)(data[tail + 11] & 0xFF) << 24;
+			case 11: k2 ^= (long)(data[tail + 10] & 0xFF) << 16;
+			case 10: k2 ^= (long)(data[tail + 9] & 0xFF) << 8;
+			case 9:  k2 ^= (long)(data[tail + 8] & 0xFF);
+				k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+			case 8:  k1 ^= (long)(data[tail + 7] & 0xFF) << 56;
+			case 7:  k1 ^= (long)(data[tail + 6] & 0xFF) << 48;
+			case 6:  k1 ^= (long)(data[tail + 5] & 0xFF) << 40;
+			case 5:  k1 ^= (long)(data[tail + 4] & 0xFF) << 32;
+			case 4:  k1 ^= (long)(data[tail + 3] & 0xFF) << 24;
+			case 3:  k1 ^= (long)(data[tail + 2] & 0xFF) << 16;
+			case 2:  k1 ^= (long)(data[tail + 1] & 0xFF) << 8;
+			case 1:  k1 ^= (long)(data[tail] & 0xFF);
+				k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+			default:
+		}
+		h1 ^= len; h2 ^= len;
+		h1 += h2; h2 += h1;
+		h1 = fmix(h1); h2 = fmix(h2);
+		h1 += h2; h2 += h1;
+		hashCode = h1;
+		hashCodeHigh = h2;
+	}
+
+	private static long getLongLE(final byte[] b, final int off) {
+		return (b[off] & 0xFFL)
+			| ((b[off + 1] & 0xFFL) << 8)
+			| ((b[off + 2] & 0xFFL) << 16)
+			| ((b[off + 3] & 0xFFL) << 24)
+			| ((b[off + 4] & 0xFFL) << 32)
+			| ((b[off + 5] & 0xFFL) << 40)
+			| ((b[off + 6] & 0xFFL) << 48)
+			| ((b[off + 7] & 0xFFL) << 56);
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: StringDictionary</p>
+ * <p>Description: A concurrent interning dictionary that maps each distinct metric name, tag key and tag value
+ * to a dense int code, so each string is held once on the heap however many series use it.
+ * Lookups by string go through a concurrent map and lookups by code are a plain array read.</p>
+ * <p>Codes are never reused or released. The dictionary only grows, which is fine for the vocabulary of
+ * names, keys and values, since it is far smaller than the number of series.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.StringDictionary</code></p>
+ */
+
+public class StringDictionary implements StringDictionaryMXBean {
+	/** The singleton instance */
+	private static volatile StringDictionary instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** The codes keyed by string */
+	private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>(1024);
+	/** The strings indexed by code */
+	private volatile String[] strings = new String[1024];
+	/** The number of assigned codes */
+	private volatile int size = 0;
+
+	/**
+	 * Acquires and returns the StringDictionary singleton
+	 * @return the StringDictionary singleton
+	 */
+	public static StringDictionary getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new StringDictionary();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private StringDictionary() {
+		JMXHelper.registerMBean(this, OBJECT_NAME);
+	}
+
+	/**
+	 * Returns the code for the passed string, assigning one if the string is new
+	 * @param s The string
+	 * @return the code
+	 */
+	public int code(final String s) {
+		if(s==null) throw new IllegalArgumentException("The passed string was null");
+		final Integer code = codes.get(s);
+		if(code!=null) return code;
+		return assign(s);
+	}
+
+	/**
+	 * Returns the code for the passed string without assigning one
+	 * @param s The string
+	 * @return the code or -1 if the string is not in the dictionary
+	 */
+	public int find(final String s) {
+		if(s==null) return -1;
+		final Integer code = codes.get(s);
+		return code==null ? -1 : code;
+	}
+
+	/**
+	 * Returns the string for the passed code
+	 * @param code The code
+	 * @return the string
+	 */
+	public String string(final int code) {
+		final String[] arr = strings;
+		final String s = code < 0 || code >= arr.length ? null : arr[code];
+		if(s==null) throw new IllegalArgumentException("Unassigned dictionary code [" + code + "]");
+		return s;
+	}
+
+	private synchronized int assign(final String s) {
+		final Integer existing = codes.get(s);
+		if(existing!=null) return existing;
+		final int code = size;
+		String[] arr = strings;
+		if(code==arr.length) {
+			arr = Arrays.copyOf(arr, arr.length * 2);
+		}
+		arr[code] = s;
+		// publish the array and the entry before the code is visible in the map
+		strings = arr;
+		size = code + 1;
+		codes.put(s, code);
+		return code;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.StringDictionaryMXBean#getSize()
+	 */
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.StringDictionaryMXBean#getCapacity()
+	 */
+	@Override
+	public int getCapacity() {
+		return strings.length;
+	}
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: StringDictionaryMXBean</p>
+ * <p>Description: JMX MXBean for the {@link StringDictionary} instance</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.StringDictionaryMXBean</code></p>
+ */
+
+public interface StringDictionaryMXBean {
+
+	/** The JMX ObjectName for the {@link StringDictionary}  */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.tsdblite:service=StringDictionary");
+
+	/**
+	 * Returns the number of distinct strings in the dictionary
+	 * @return the dictionary size
+	 */
+	public int getSize();
+
+	/**
+	 * Returns the capacity of the code table
+	 * @return the code table capacity
+	 */
+	public int getCapacity();
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import java.util.Collection;
+
+/**
+ * <p>Title: TagValueFilter</p>
+ * <p>Description: A filter on the values of one tag key, resolved against the {@link SeriesIndex}.
+ * A series only matches a filter if it has the filter's tag key. Literal filters are resolved by direct lookups;
+ * any other filter is tested against each distinct value the key has.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.TagValueFilter</code></p>
+ */
+
+public interface TagValueFilter {
+
+	/**
+	 * Returns the cleaned tag key this filter applies to
+	 * @return the tag key
+	 */
+	public String getTagKey();
+
+	/**
+	 * Indicates if this filter matches every value of its tag key
+	 * @return true if any value matches
+	 */
+	public boolean matchesAll();
+
+	/**
+	 * Returns the exact values this filter matches, or excludes if it {@link #isNegated()}
+	 * @return the literal values, or null if this is not a literal filter
+	 */
+	public Collection<String> getLiterals();
+
+	/**
+	 * Indicates if this filter matches every value except its literals
+	 * @return true if the literals are excluded
+	 */
+	public boolean isNegated();
+
+	/**
+	 * Tests a tag value
+	 * @param tagValue The cleaned tag value
+	 * @return true if the value matches
+	 */
+	public boolean matches(String tagValue);
+
+}
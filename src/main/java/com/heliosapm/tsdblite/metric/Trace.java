@@ -20,22 +20,21 @@ import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.nio.charset.Charset;
 import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonDeserializer;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.heliosapm.tsdblite.Constants;
 import com.heliosapm.tsdblite.json.JSON;
 
@@ -277,11 +276,8 @@ public class Trace implements Comparable<Trace>, Serializable {
 	@Override
 	public String toString() {
 		final StringBuilder b = new StringBuilder("Trace: [");
-		b.append(metric.getMetricName()).append(":").append("{");
-		for(Map.Entry<String, String> entry: metric.getTags().entrySet()) {
-			b.append(entry.getKey()).append("=").append(entry.getValue()).append(",");
-		}
-		b.deleteCharAt(b.length()-1).append("}")
+		b.append(metric.getMetricName()).append(":").append("{")
+		.append(metric.tagsToStr()).append("}")
 		.append(" ts:").append(new Date(timestampMs))
 		.append(" value:");
 		if(doubleType) b.append(doubleValue);
@@ -296,6 +292,14 @@ public class Trace implements Comparable<Trace>, Serializable {
 	public long getHashCode() {
 		return metric.getHashCode();
 	}
+	
+	/**
+	 * Returns the metric this trace was submitted for
+	 * @return the metric
+	 */
+	public Metric getMetric() {
+		return metric;
+	}
 
 	
 	/** Nasty hack to inject whether or not we want times to be reported in UNIX time or ms. */
@@ -357,9 +361,11 @@ public class Trace implements Comparable<Trace>, Serializable {
 			jgen.writeFieldName("value");			
 			jgen.writeNumber(trace.doubleType ? trace.doubleValue : trace.longValue);
 			jgen.writeObjectFieldStart("tags");
-			for(Map.Entry<String, String> entry: trace.getTags().entrySet()) {
-				jgen.writeFieldName(entry.getKey());
-				jgen.writeString(entry.getValue());
+			final Metric metric = trace.metric;
+			final int tagCount = metric.getTagCount();
+			for(int i = 0; i < tagCount; i++) {
+				jgen.writeFieldName(metric.getTagKey(i));
+				jgen.writeString(metric.getTagValue(i));
 			}
 			jgen.writeEndObject();
 			jgen.writeEndObject();
@@ -381,12 +387,9 @@ public class Trace implements Comparable<Trace>, Serializable {
 		 */
 		@Override
 		public Trace deserialize(final JsonParser p, final DeserializationContext ctxt) throws IOException, JsonProcessingException {
-			final JsonNode node = p.getCodec().readTree(p);			
-			final Metric metric = MetricCache.getInstance().getMetric(node);	
-			if(metric==null) return null;
-			final Number v = node.get("value").numberValue();
-			final boolean isDouble = (v instanceof Double);
-			return new Trace(metric, isDouble, v.longValue(), v.doubleValue(), node.get("timestamp").longValue());
+			if(p.getCurrentToken()!=JsonToken.START_OBJECT) throw ctxt.mappingException(Trace.class, p.getCurrentToken());
+			final TraceReader reader = TraceReader.threadInstance();
+			return reader.readPoint(p) ? reader.toTrace() : null;
 		}
 	}
 	
@@ -404,16 +407,17 @@ public class Trace implements Comparable<Trace>, Serializable {
 		 */
 		@Override
 		public Trace[] deserialize(final JsonParser p, final DeserializationContext ctxt) throws IOException, JsonProcessingException {
-			final ArrayNode node = p.getCodec().readTree(p);
-			final int size = node.size();
-			final Set<Trace> traces = new LinkedHashSet<Trace>(size);
-			for(int i = 0; i < size; i++) {
-				final Trace t = JSON.parseToObject(node.get(i), Trace.class);
-				if(t!=null) {
-					traces.add(JSON.parseToObject(node.get(i), Trace.class));
+			if(p.getCurrentToken()!=JsonToken.START_ARRAY) throw ctxt.mappingException(Trace[].class, p.getCurrentToken());
+			final TraceReader reader = TraceReader.threadInstance();
+			final List<Trace> traces = new ArrayList<Trace>();
+			JsonToken t;
+			while((t = p.nextToken())!=JsonToken.END_ARRAY) {
+				if(t!=JsonToken.START_OBJECT) throw ctxt.mappingException(Trace[].class, t);
+				if(reader.readPoint(p)) {
+					traces.add(reader.toTrace());
 				}
 			}
-			return traces.toArray(new Trace[size]);
+			return traces.toArray(new Trace[traces.size()]);
 		}
 	}
 	
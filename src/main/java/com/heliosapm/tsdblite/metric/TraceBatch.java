@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import java.util.Arrays;
+
+/**
+ * <p>Title: TraceBatch</p>
+ * <p>Description: A reusable batch of resolved data points, held in parallel primitive arrays,
+ * for submission to {@link MetricCache#submit(TraceBatch)} in one call. Submission clears the batch
+ * so the same instance can be refilled for the next read.</p>
+ * <p>Instances are not thread safe. Each producer (typically a channel) should have its own.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.TraceBatch</code></p>
+ */
+
+public class TraceBatch {
+	/** The resolved metric of each point */
+	AppMetric[] metrics;
+	/** The original trace of each point, if the point was added as a trace */
+	Trace[] traces;
+	/** The value type of each point */
+	boolean[] doubleTypes;
+	/** The long value of each point */
+	long[] longValues;
+	/** The double value of each point */
+	double[] doubleValues;
+	/** The timestamp of each point */
+	long[] timestamps;
+	/** The number of points in the batch */
+	int size = 0;
+
+	/** The default initial capacity */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Creates a new TraceBatch
+	 * @param capacity The initial capacity
+	 */
+	public TraceBatch(final int capacity) {
+		if(capacity < 1) throw new IllegalArgumentException("Invalid capacity [" + capacity + "]");
+		metrics = new AppMetric[capacity];
+		traces = new Trace[capacity];
+		doubleTypes = new boolean[capacity];
+		longValues = new long[capacity];
+		doubleValues = new double[capacity];
+		timestamps = new long[capacity];
+	}
+
+	/**
+	 * Creates a new TraceBatch with the default capacity
+	 */
+	public TraceBatch() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Adds a data point to the batch
+	 * @param appMetric The resolved metric
+	 * @param doubleType true for a double type value, false for a long type double
+	 * @param longValue The long value
+	 * @param doubleValue The double value
+	 * @param timestamp The timestamp in ms. or secs.
+	 */
+	public void add(final AppMetric appMetric, final boolean doubleType, final long longValue, final double doubleValue, final long timestamp) {
+		if(appMetric==null) throw new IllegalArgumentException("The passed AppMetric was null");
+		if(size==metrics.length) grow();
+		metrics[size] = appMetric;
+		doubleTypes[size] = doubleType;
+		longValues[size] = longValue;
+		doubleValues[size] = doubleValue;
+		timestamps[size] = timestamp;
+		size++;
+	}
+
+	/**
+	 * Adds a trace to the batch
+	 * @param appMetric The resolved metric for the trace
+	 * @param trace The trace
+	 */
+	public void add(final AppMetric appMetric, final Trace trace) {
+		add(appMetric, trace.isDoubleType(), trace.getLongValue(), trace.getDoubleValue(), trace.getTimestampMs());
+		traces[size-1] = trace;
+	}
+
+	/**
+	 * Returns the number of points in the batch
+	 * @return the number of points in the batch
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Indicates if the batch is empty
+	 * @return true if the batch is empty, false otherwise
+	 */
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	/**
+	 * Returns the trace for the indexed point, creating one if the point was not added as a trace
+	 * @param index The point index
+	 * @return the trace
+	 */
+	Trace trace(final int index) {
+		final Trace trace = traces[index];
+		if(trace!=null) return trace;
+		return new Trace(metrics[index].getMetricInstance(), doubleTypes[index], longValues[index], doubleValues[index], timestamps[index]);
+	}
+
+	/**
+	 * Clears the batch, releasing the metric and trace references
+	 */
+	public void clear() {
+		Arrays.fill(metrics, 0, size, null);
+		Arrays.fill(traces, 0, size, null);
+		size = 0;
+	}
+
+	private void grow() {
+		final int capacity = metrics.length * 2;
+		metrics = Arrays.copyOf(metrics, capacity);
+		traces = Arrays.copyOf(traces, capacity);
+		doubleTypes = Arrays.copyOf(doubleTypes, capacity);
+		longValues = Arrays.copyOf(longValues, capacity);
+		doubleValues = Arrays.copyOf(doubleValues, capacity);
+		timestamps = Arrays.copyOf(timestamps, capacity);
+	}
+
+}
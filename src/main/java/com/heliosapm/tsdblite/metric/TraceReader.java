@@ -0,0 +1,262 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * <p>Title: TraceReader</p>
+ * <p>Description: Reads OpenTSDB style JSON data points from a {@link JsonParser} in a single pass over the tokens.
+ * The metric name and tag values are fed to a {@link SeriesKeyBuilder} straight from the parser's character buffers,
+ * so no tree, tag map or intermediate strings are built per point. Each point is resolved to its {@link AppMetric} and
+ * either added to a {@link TraceBatch} or returned as a {@link Trace}.</p>
+ * <p>A point that is well formed JSON but not a valid point (missing fields, bad tags) is counted as a bad metric
+ * and skipped. Malformed JSON fails the whole read.</p>
+ * <p>A point repeated within one request is read again rather than dropped: traces have no value equality, so there is
+ * nothing cheaper than the series key and timestamp to compare them by. The repeat replaces the held point of the same
+ * timestamp in the series' reorder buffer, and queries keep only the last point of each timestamp.</p>
+ * <p>Instances are not thread safe and are intended to be reused.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.TraceReader</code></p>
+ */
+
+public class TraceReader {
+	/** Static class logger */
+	private static final Logger log = LoggerFactory.getLogger(TraceReader.class);
+	/** The metric cache the points are resolved against */
+	protected final MetricCache metricCache = MetricCache.getInstance();
+	/** The series key builder */
+	protected final SeriesKeyBuilder seriesKey = new SeriesKeyBuilder();
+
+	/** The resolved metric of the last point read */
+	protected AppMetric appMetric = null;
+	/** The value type of the last point read */
+	protected boolean doubleType = false;
+	/** The long value of the last point read */
+	protected long longValue = -1L;
+	/** The double value of the last point read */
+	protected double doubleValue = -1d;
+	/** The timestamp of the last point read */
+	protected long timestamp = -1L;
+
+	/** A thread local reader for callers without their own instance */
+	private static final ThreadLocal<TraceReader> threadReader = new ThreadLocal<TraceReader>() {
+		@Override
+		protected TraceReader initialValue() {
+			return new TraceReader();
+		}
+	};
+
+	/**
+	 * Returns this thread's reader
+	 * @return this thread's reader
+	 */
+	public static TraceReader threadInstance() {
+		return threadReader.get();
+	}
+
+	/**
+	 * Reads a single point object or an array of point objects from the passed parser into the passed batch.
+	 * The parser may be positioned before, or on, the opening token.
+	 * @param p The parser
+	 * @param batch The batch to add the points to
+	 * @return the number of points added
+	 * @throws IOException thrown on malformed JSON or a read failure
+	 */
+	public int read(final JsonParser p, final TraceBatch batch) throws IOException {
+		JsonToken t = p.getCurrentToken();
+		if(t==null) t = p.nextToken();
+		if(t==null) return 0;
+		if(t==JsonToken.START_OBJECT) {
+			if(!readPoint(p)) return 0;
+			addTo(batch);
+			return 1;
+		}
+		if(t!=JsonToken.START_ARRAY) throw new JsonParseException("Expected a point object or an array of point objects but found " + t, p.getCurrentLocation());
+		int added = 0;
+		while((t = p.nextToken())!=JsonToken.END_ARRAY) {
+			if(t!=JsonToken.START_OBJECT) throw new JsonParseException("Expected a point object but found " + t, p.getCurrentLocation());
+			if(readPoint(p)) {
+				addTo(batch);
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Reads one point object from the passed parser, which must be positioned on the object's {@link JsonToken#START_OBJECT}.
+	 * On return the parser is positioned on the object's {@link JsonToken#END_OBJECT}.
+	 * @param p The parser
+	 * @return true if a valid point was read, false if the point was invalid and has been counted as a bad metric
+	 * @throws IOException thrown on malformed JSON or a read failure
+	 */
+	public boolean readPoint(final JsonParser p) throws IOException {
+		seriesKey.reset();
+		appMetric = null;
+		boolean hasValue = false, hasTimestamp = false;
+		String error = null;
+		JsonToken t;
+		while((t = p.nextToken())==JsonToken.FIELD_NAME) {
+			final String field = p.getCurrentName();
+			t = p.nextToken();
+			try {
+				if("metric".equals(field)) {
+					if(t!=JsonToken.VALUE_STRING) throw new IllegalArgumentException("The metric name was not a string");
+					seriesKey.metric(p.getTextCharacters(), p.getTextOffset(), p.getTextLength());
+				} else if("tags".equals(field)) {
+					readTags(p, t);
+				} else if("value".equals(field)) {
+					readValue(p, t);
+					hasValue = true;
+				} else if("timestamp".equals(field)) {
+					timestamp = readTimestamp(p, t);
+					hasTimestamp = true;
+				} else {
+					p.skipChildren();
+				}
+			} catch (IllegalArgumentException iex) {
+				// keep consuming so the parser stays aligned on the next point
+				if(error==null) error = iex.getMessage();
+				p.skipChildren();
+			} catch (IllegalStateException isx) {
+				if(error==null) error = isx.getMessage();
+				p.skipChildren();
+			}
+		}
+		if(t!=JsonToken.END_OBJECT) throw new JsonParseException("Unexpected token in point object: " + t, p.getCurrentLocation());
+		if(error==null) {
+			if(!hasValue) error = "No value";
+			else if(!hasTimestamp) error = "No timestamp";
+		}
+		if(error==null) {
+			try {
+				appMetric = metricCache.getAppMetric(seriesKey.build(), true);
+				return true;
+			} catch (RuntimeException rex) {
+				error = rex.getMessage();
+			}
+		}
+		metricCache.badMetric();
+		if(log.isDebugEnabled()) log.debug("Bad JSON point: {}", error);
+		return false;
+	}
+
+	/**
+	 * Returns the last point read as a trace
+	 * @return the last point read as a trace, or null if the last point was invalid
+	 */
+	public Trace toTrace() {
+		if(appMetric==null) return null;
+		return new Trace(appMetric.getMetricInstance(), doubleType, longValue, doubleValue, timestamp);
+	}
+
+	private void addTo(final TraceBatch batch) {
+		batch.add(appMetric, doubleType, longValue, doubleValue, timestamp);
+	}
+
+	private void readTags(final JsonParser p, final JsonToken t) throws IOException {
+		if(t!=JsonToken.START_OBJECT) throw new IllegalArgumentException("The tags were not an object");
+		String error = null;
+		JsonToken v;
+		while(p.nextToken()==JsonToken.FIELD_NAME) {
+			final String key = p.getCurrentName();
+			v = p.nextToken();
+			if(error!=null) {
+				p.skipChildren();
+			} else if(!v.isScalarValue() || v==JsonToken.VALUE_NULL) {
+				error = "The value of tag [" + key + "] was not a scalar";
+				p.skipChildren();
+			} else {
+				try {
+					seriesKey.tag(key, p.getTextCharacters(), p.getTextOffset(), p.getTextLength());
+				} catch (IllegalArgumentException iex) {
+					error = iex.getMessage();
+				}
+			}
+		}
+		// the parser is on the closing brace of the tags so the point can carry on
+		if(error!=null) throw new IllegalArgumentException(error);
+	}
+
+	private void readValue(final JsonParser p, final JsonToken t) throws IOException {
+		switch(t) {
+			case VALUE_NUMBER_INT:
+				if(p.getNumberType()==JsonParser.NumberType.BIG_INTEGER) {
+					setDouble(p.getDoubleValue());
+				} else {
+					setLong(p.getLongValue());
+				}
+				break;
+			case VALUE_NUMBER_FLOAT:
+				setDouble(p.getDoubleValue());
+				break;
+			case VALUE_STRING:
+				final String text = p.getText().trim();
+				try {
+					setLong(Long.parseLong(text));
+				} catch (NumberFormatException nex) {
+					try {
+						setDouble(Double.parseDouble(text));
+					} catch (NumberFormatException nex2) {
+						throw new IllegalArgumentException("Invalid value [" + text + "]");
+					}
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("The value was not a number");
+		}
+	}
+
+	private void setLong(final long value) {
+		doubleType = false;
+		longValue = value;
+		doubleValue = -1d;
+	}
+
+	private void setDouble(final double value) {
+		if(Double.isNaN(value) || Double.isInfinite(value)) throw new IllegalArgumentException("Invalid value [" + value + "]");
+		doubleType = true;
+		longValue = -1L;
+		doubleValue = value;
+	}
+
+	private static long readTimestamp(final JsonParser p, final JsonToken t) throws IOException {
+		final long ts;
+		if(t==JsonToken.VALUE_NUMBER_INT) {
+			ts = p.getLongValue();
+		} else if(t==JsonToken.VALUE_STRING) {
+			try {
+				ts = Long.parseLong(p.getText().trim());
+			} catch (NumberFormatException nex) {
+				throw new IllegalArgumentException("Invalid timestamp [" + p.getText() + "]");
+			}
+		} else {
+			throw new IllegalArgumentException("The timestamp was not an integer");
+		}
+		if(ts < 1) throw new IllegalArgumentException("Invalid timestamp [" + ts + "]");
+		return ts;
+	}
+
+}
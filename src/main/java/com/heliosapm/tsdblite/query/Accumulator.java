@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.query;
+
+/**
+ * <p>Title: Accumulator</p>
+ * <p>Description: The running count, sum, min and max of the values in one downsampling bucket,
+ * or of the values of a group's series at one timestamp. NaN values are skipped.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.query.Accumulator</code></p>
+ */
+
+final class Accumulator {
+	/** The number of values */
+	long count = 0L;
+	/** The sum of the values */
+	double sum = 0D;
+	/** The lowest value */
+	double min = Double.NaN;
+	/** The highest value */
+	double max = Double.NaN;
+
+	/**
+	 * Adds a value
+	 * @param value The value
+	 */
+	void add(final double value) {
+		if(Double.isNaN(value)) return;
+		if(count==0L) {
+			min = value;
+			max = value;
+		} else {
+			if(value < min) min = value;
+			if(value > max) max = value;
+		}
+		count++;
+		sum += value;
+	}
+
+	/**
+	 * Adds a rollup cell
+	 * @param cellCount The number of values in the cell
+	 * @param cellSum The sum of the values in the cell
+	 * @param cellMin The lowest value in the cell
+	 * @param cellMax The highest value in the cell
+	 */
+	void add(final long cellCount, final double cellSum, final double cellMin, final double cellMax) {
+		if(cellCount < 1L) return;
+		if(count==0L) {
+			min = cellMin;
+			max = cellMax;
+		} else {
+			if(cellMin < min) min = cellMin;
+			if(cellMax > max) max = cellMax;
+		}
+		count += cellCount;
+		sum += cellSum;
+	}
+
+	/**
+	 * Indicates if no values have been added since the last reset
+	 * @return true if empty
+	 */
+	boolean isEmpty() {
+		return count==0L;
+	}
+
+	/**
+	 * Clears the accumulated values
+	 */
+	void reset() {
+		count = 0L;
+		sum = 0D;
+		min = Double.NaN;
+		max = Double.NaN;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.query;
+
+/**
+ * <p>Title: Aggregator</p>
+ * <p>Description: The functions that reduce several values to one, either the points in a downsampling bucket
+ * or the values of a group's series at one timestamp. The OpenTSDB names <code>zimsum</code>, <code>mimmin</code>
+ * and <code>mimmax</code> are accepted as aliases, since series are aggregated without interpolation.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.query.Aggregator</code></p>
+ */
+
+public enum Aggregator {
+	/** The sum of the values */
+	SUM {
+		@Override
+		double value(final Accumulator acc) {
+			return acc.sum;
+		}
+	},
+	/** The mean of the values */
+	AVG {
+		@Override
+		double value(final Accumulator acc) {
+			return acc.sum / acc.count;
+		}
+	},
+	/** The lowest value */
+	MIN {
+		@Override
+		double value(final Accumulator acc) {
+			return acc.min;
+		}
+	},
+	/** The highest value */
+	MAX {
+		@Override
+		double value(final Accumulator acc) {
+			return acc.max;
+		}
+	},
+	/** The number of values */
+	COUNT {
+		@Override
+		double value(final Accumulator acc) {
+			return acc.count;
+		}
+	};
+
+	/**
+	 * Computes the aggregate of the accumulated values
+	 * @param acc The accumulated values, which must not be empty
+	 * @return the aggregate
+	 */
+	abstract double value(Accumulator acc);
+
+	/**
+	 * Decodes the passed name to an Aggregator, ignoring case
+	 * @param name The aggregator name
+	 * @return the Aggregator
+	 */
+	public static Aggregator forName(final String name) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed aggregator name was null or empty");
+		final String n = name.trim().toLowerCase();
+		if("zimsum".equals(n)) return SUM;
+		if("mimmin".equals(n)) return MIN;
+		if("mimmax".equals(n)) return MAX;
+		try {
+			return valueOf(n.toUpperCase());
+		} catch (IllegalArgumentException iex) {
+			throw new IllegalArgumentException("Unsupported aggregator [" + name + "]");
+		}
+	}
+}
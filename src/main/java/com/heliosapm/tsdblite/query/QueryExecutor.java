@@ -0,0 +1,485 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.jmx.ManagedForkJoinPool;
+import com.heliosapm.tsdblite.metric.AppMetric;
+import com.heliosapm.tsdblite.metric.Metric;
+import com.heliosapm.tsdblite.metric.SeriesIndex;
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.internal.chmv8.ForkJoinTask;
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: QueryExecutor</p>
+ * <p>Description: Runs {@link TSQuery}s on a {@link ManagedForkJoinPool}. A query is first planned into groups of
+ * matching series, and each group is run when its result is asked for: its series are scanned in parallel, one
+ * {@link SeriesScan} task per series, and then combined by a streaming k-way merge over the series' time ordered points,
+ * which aggregates the values the series have at each timestamp.
+ * Series are not interpolated, so raw series are best combined through downsampling, which aligns their timestamps.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.query.QueryExecutor</code></p>
+ */
+
+public class QueryExecutor implements QueryExecutorMXBean {
+	/** The singleton instance */
+	private static volatile QueryExecutor instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The pool the queries and series scans run on */
+	protected final ManagedForkJoinPool pool;
+	/** The index the series are found in */
+	protected final SeriesIndex index;
+	/** The query pool parallelism */
+	protected final int parallelism;
+	/** The maximum number of series one sub query may scan */
+	protected final int maxSeries;
+	/** The maximum number of filled downsampling buckets one sub query may allocate across its series */
+	protected final int maxBuckets;
+	/** The maximum number of raw points one group of a sub query may hold across its series */
+	protected final int maxPoints;
+
+	/** A counter of completed queries */
+	private final LongAdder queries = new LongAdder();
+	/** A counter of failed queries */
+	private final LongAdder queryFailures = new LongAdder();
+	/** A counter of scanned series */
+	private final LongAdder seriesScanned = new LongAdder();
+	/** A counter of raw points read */
+	private final LongAdder pointsRead = new LongAdder();
+	/** A counter of rollup cells read */
+	private final LongAdder cellsRead = new LongAdder();
+	/** The cummulative query time in ns. */
+	private final LongAdder queryNanos = new LongAdder();
+
+	/**
+	 * Acquires and returns the QueryExecutor singleton
+	 * @return the QueryExecutor singleton
+	 */
+	public static QueryExecutor getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new QueryExecutor();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private QueryExecutor() {
+		parallelism = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_QUERY_THREADS, Constants.DEFAULT_QUERY_THREADS));
+		maxSeries = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_QUERY_MAX_SERIES, Constants.DEFAULT_QUERY_MAX_SERIES));
+		maxBuckets = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_QUERY_MAX_BUCKETS, Constants.DEFAULT_QUERY_MAX_BUCKETS));
+		maxPoints = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_QUERY_MAX_POINTS, Constants.DEFAULT_QUERY_MAX_POINTS));
+		index = SeriesIndex.getInstance();
+		pool = new ManagedForkJoinPool("Query", parallelism, false);
+		JMXHelper.registerMBean(this, OBJECT_NAME);
+		log.info("QueryExecutor started with [{}] threads", parallelism);
+	}
+
+	/**
+	 * Plans the passed query on the query pool, completing the passed promise with its results, whose groups are run as they are read
+	 * @param query The query to run
+	 * @param promise The promise to complete
+	 * @return the promise
+	 */
+	public Future<QueryResults> execute(final TSQuery query, final Promise<QueryResults> promise) {
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					promise.setSuccess(plan(query));
+				} catch (Throwable t) {
+					promise.setFailure(t);
+				}
+			}
+		});
+		return promise;
+	}
+
+	/**
+	 * Runs the passed query on the query pool and waits for all the results
+	 * @param query The query to run
+	 * @return the results, one per group of series of each sub query that has points in range
+	 */
+	public List<QueryResult> execute(final TSQuery query) {
+		return pool.invoke(ForkJoinTask.adapt(new Callable<List<QueryResult>>() {
+			@Override
+			public List<QueryResult> call() {
+				final QueryResults planned = plan(query);
+				final List<QueryResult> results = new ArrayList<QueryResult>(planned.getGroupCount());
+				while(planned.hasNext()) {
+					final QueryResult result = planned.next();
+					if(result!=null) results.add(result);
+				}
+				return results;
+			}
+		}));
+	}
+
+	/**
+	 * Runs one group of a planned query on the query pool, completing the passed promise with its result
+	 * @param query The query
+	 * @param group The group to run
+	 * @param last true if this is the query's last group
+	 * @param promise The promise to complete, unless it has been cancelled
+	 * @return the promise
+	 */
+	Future<QueryResult> execute(final TSQuery query, final QueryResults.Group group, final boolean last, final Promise<QueryResult> promise) {
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					promise.trySuccess(QueryExecutor.this.run(query, group, last));
+				} catch (Throwable t) {
+					promise.tryFailure(t);
+				}
+			}
+		});
+		return promise;
+	}
+
+	/**
+	 * Plans a query, matching and grouping the series of each sub query without reading them
+	 * @param query The query to plan
+	 * @return the planned results
+	 */
+	protected QueryResults plan(final TSQuery query) {
+		final long startNanos = System.nanoTime();
+		try {
+			final List<QueryResults.Group> groups = new ArrayList<QueryResults.Group>();
+			for(SubQuery subQuery: query.getQueries()) {
+				plan(query, subQuery, groups);
+			}
+			if(groups.isEmpty()) queries.increment();
+			return new QueryResults(this, query, groups);
+		} catch (RuntimeException rex) {
+			queryFailures.increment();
+			throw rex;
+		} finally {
+			queryNanos.add(System.nanoTime() - startNanos);
+		}
+	}
+
+	/**
+	 * Plans one sub query
+	 * @param query The query
+	 * @param subQuery The sub query
+	 * @param groups The groups to add the sub query's groups of series to
+	 */
+	protected void plan(final TSQuery query, final SubQuery subQuery, final List<QueryResults.Group> groups) {
+		final List<AppMetric> matched = match(subQuery);
+		if(matched.isEmpty()) return;
+		if(matched.size() > maxSeries) {
+			throw new IllegalArgumentException("The sub query [" + subQuery + "] matched [" + matched.size() + "] series, more than the maximum [" + maxSeries + "]");
+		}
+		final long interval = subQuery.getDownsampleInterval();
+		if(interval > 0L && subQuery.getFill()!=SubQuery.FillPolicy.NONE) {
+			// every series gets a bucket for every interval in the range, with or without data
+			final long perSeries = (query.getEnd() - (query.getStart() - (query.getStart() % interval))) / interval + 1;
+			if(perSeries > maxBuckets / matched.size()) {
+				throw new IllegalArgumentException("The sub query [" + subQuery + "] would fill [" + perSeries + "] buckets for each of [" + matched.size() + "] series, more than the maximum [" + maxBuckets + "] in total");
+			}
+		}
+		final Map<String, List<AppMetric>> grouped = new TreeMap<String, List<AppMetric>>();
+		final List<TagFilter> filters = subQuery.getFilters();
+		for(AppMetric appMetric: matched) {
+			final Metric metric = appMetric.getMetricInstance();
+			final StringBuilder key = new StringBuilder();
+			for(TagFilter filter: filters) {
+				if(filter.isGroupBy()) key.append(metric.getTag(filter.getTagKey())).append('\u0000');
+			}
+			List<AppMetric> group = grouped.get(key.toString());
+			if(group==null) {
+				group = new ArrayList<AppMetric>();
+				grouped.put(key.toString(), group);
+			}
+			group.add(appMetric);
+		}
+		for(List<AppMetric> group: grouped.values()) {
+			groups.add(new QueryResults.Group(subQuery, group));
+		}
+	}
+
+	/**
+	 * Runs one group of a planned query, scanning its series in parallel and merging them.
+	 * Must be called on the query pool, where the series scans are forked.
+	 * @param query The query
+	 * @param group The group to run
+	 * @param last true if this is the query's last group, which completes the query
+	 * @return the group's result, or null if none of the group's series has points in range
+	 */
+	protected QueryResult run(final TSQuery query, final QueryResults.Group group, final boolean last) {
+		final long startNanos = System.nanoTime();
+		try {
+			final List<ForkJoinTask<SeriesScan>> tasks = new ArrayList<ForkJoinTask<SeriesScan>>(group.series.size());
+			final AtomicLong held = new AtomicLong();
+			for(AppMetric appMetric: group.series) {
+				tasks.add(ForkJoinTask.adapt(new SeriesScan(appMetric, group.subQuery, query.getStart(), query.getEnd(), held, maxPoints)));
+			}
+			ForkJoinTask.invokeAll(tasks);
+			final List<SeriesScan> scans = new ArrayList<SeriesScan>(tasks.size());
+			long points = 0L, cells = 0L;
+			for(ForkJoinTask<SeriesScan> task: tasks) {
+				final SeriesScan scan = task.join();
+				points += scan.pointsRead;
+				cells += scan.cellsRead;
+				scans.add(scan);
+			}
+			seriesScanned.add(tasks.size());
+			pointsRead.add(points);
+			cellsRead.add(cells);
+			final QueryResult result = merge(group.subQuery, scans);
+			if(last) queries.increment();
+			return result.size() > 0 ? result : null;
+		} catch (RuntimeException rex) {
+			queryFailures.increment();
+			throw rex;
+		} finally {
+			queryNanos.add(System.nanoTime() - startNanos);
+		}
+	}
+
+	/**
+	 * Finds the indexed series of the sub query's metric that match all its tag filters, by intersecting their postings in the index
+	 * @param subQuery The sub query
+	 * @return the matching series
+	 */
+	protected List<AppMetric> match(final SubQuery subQuery) {
+		return index.find(subQuery.getMetric(), subQuery.getFilters(), true);
+	}
+
+	/**
+	 * Aggregates a group of scanned series with a k-way merge, taking the next timestamp from a heap of the series' cursors
+	 * @param subQuery The sub query
+	 * @param group The group's scanned series
+	 * @return the group's result
+	 */
+	protected QueryResult merge(final SubQuery subQuery, final List<SeriesScan> group) {
+		final PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(group.size());
+		int capacity = 0;
+		for(SeriesScan scan: group) {
+			if(scan.size > 0) heap.add(new Cursor(scan));
+			capacity = Math.max(capacity, scan.size);
+		}
+		long[] timestamps = new long[Math.max(capacity, 16)];
+		double[] values = new double[timestamps.length];
+		int size = 0;
+		final Aggregator aggregator = subQuery.getAggregator();
+		final Accumulator acc = new Accumulator();
+		while(!heap.isEmpty()) {
+			final long timestamp = heap.peek().timestamp;
+			acc.reset();
+			while(!heap.isEmpty() && heap.peek().timestamp==timestamp) {
+				final Cursor cursor = heap.poll();
+				acc.add(cursor.value());
+				if(cursor.next()) heap.add(cursor);
+			}
+			if(size==timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			timestamps[size] = timestamp;
+			values[size] = acc.isEmpty() ? Double.NaN : aggregator.value(acc);
+			size++;
+		}
+		// the tags all the series share are kept, the others are aggregated
+		final SortedMap<String, String> tags = group.get(0).appMetric.getMetricInstance().getTags();
+		final TreeSet<String> aggregateTags = new TreeSet<String>();
+		for(int i = 1; i < group.size(); i++) {
+			final SortedMap<String, String> seriesTags = group.get(i).appMetric.getMetricInstance().getTags();
+			for(String tagKey: seriesTags.keySet()) {
+				if(!seriesTags.get(tagKey).equals(tags.get(tagKey))) aggregateTags.add(tagKey);
+			}
+			for(String tagKey: tags.keySet()) {
+				if(!seriesTags.containsKey(tagKey)) aggregateTags.add(tagKey);
+			}
+		}
+		tags.keySet().removeAll(aggregateTags);
+		return new QueryResult(subQuery.getMetric(), tags, new ArrayList<String>(aggregateTags), timestamps, values, size, subQuery.getFill()==SubQuery.FillPolicy.NULL);
+	}
+
+	/**
+	 * <p>Title: Cursor</p>
+	 * <p>Description: The position in one scanned series during a merge, ordered by its current timestamp</p>
+	 */
+	private static final class Cursor implements Comparable<Cursor> {
+		/** The scanned series */
+		final SeriesScan scan;
+		/** The current point index */
+		int index = 0;
+		/** The current timestamp */
+		long timestamp;
+
+		Cursor(final SeriesScan scan) {
+			this.scan = scan;
+			timestamp = scan.timestamps[0];
+		}
+
+		double value() {
+			return scan.values[index];
+		}
+
+		boolean next() {
+			if(++index==scan.size) return false;
+			timestamp = scan.timestamps[index];
+			return true;
+		}
+
+		@Override
+		public int compareTo(final Cursor other) {
+			return Long.compare(timestamp, other.timestamp);
+		}
+	}
+
+	/**
+	 * Shuts down the query pool, waiting for running queries to finish
+	 */
+	public void close() {
+		pool.shutdown();
+		try {
+			if(!pool.awaitTermination(10, TimeUnit.SECONDS)) log.warn("Queries still running after 10 s.");
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+		log.info("QueryExecutor closed");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.query.QueryExecutorMXBean#getParallelism()
+	 */
+	@Override
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.query.QueryExecutorMXBean#getMaxSeries()
+	 */
+	@Override
+	public int getMaxSeries() {
+		return maxSeries;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.query.QueryExecutorMXBean#getMaxBuckets()
+	 */
+	@Override
+	public int getMaxBuckets() {
+		return maxBuckets;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.query.QueryExecutorMXBean#getMaxPoints()
+	 */
+	@Override
+	public int getMaxPoints() {
+		return maxPoints;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.query.QueryExecutorMXBean#getQueries()
+	 */
+	@Override
+	public long getQueries() {
+		return queries.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.query.QueryExecutorMXBean#getQueryFailures()
+	 */
+	@Override
+	public long getQueryFailures() {
+		return queryFailures.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.query.QueryExecutorMXBean#getSeriesScanned()
+	 */
+	@Override
+	public long getSeriesScanned() {
+		return seriesScanned.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.query.QueryExecutorMXBean#getPointsRead()
+	 */
+	@Override
+	public long getPointsRead() {
+		return pointsRead.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.query.QueryExecutorMXBean#getCellsRead()
+	 */
+	@Override
+	public long getCellsRead() {
+		return cellsRead.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.query.QueryExecutorMXBean#getQueryTime()
+	 */
+	@Override
+	public long getQueryTime() {
+		return TimeUnit.NANOSECONDS.toMillis(queryNanos.longValue());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.query.QueryExecutorMXBean#getAverageQueryTime()
+	 */
+	@Override
+	public long getAverageQueryTime() {
+		final long count = queries.longValue() + queryFailures.longValue();
+		return count==0L ? 0L : TimeUnit.NANOSECONDS.toMillis(queryNanos.longValue()) / count;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.query;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: QueryExecutorMXBean</p>
+ * <p>Description: JMX MXBean for the {@link QueryExecutor} instance</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.query.QueryExecutorMXBean</code></p>
+ */
+
+public interface QueryExecutorMXBean {
+
+	/** The JMX ObjectName for the {@link QueryExecutor}  */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.tsdblite:service=QueryExecutor");
+
+	/**
+	 * Returns the parallelism of the query pool
+	 * @return the query pool parallelism
+	 */
+	public int getParallelism();
+
+	/**
+	 * Returns the maximum number of series one sub query may scan
+	 * @return the maximum number of series
+	 */
+	public int getMaxSeries();
+
+	/**
+	 * Returns the maximum number of filled downsampling buckets one sub query may allocate across its series
+	 * @return the maximum number of buckets
+	 */
+	public int getMaxBuckets();
+
+	/**
+	 * Returns the maximum number of raw points one group of a sub query may hold across its series
+	 * @return the maximum number of points
+	 */
+	public int getMaxPoints();
+
+	/**
+	 * Returns the cummulative number of completed queries
+	 * @return the number of queries
+	 */
+	public long getQueries();
+
+	/**
+	 * Returns the cummulative number of failed queries
+	 * @return the number of failed queries
+	 */
+	public long getQueryFailures();
+
+	/**
+	 * Returns the cummulative number of scanned series
+	 * @return the number of scanned series
+	 */
+	public long getSeriesScanned();
+
+	/**
+	 * Returns the cummulative number of raw points read by queries
+	 * @return the number of points read
+	 */
+	public long getPointsRead();
+
+	/**
+	 * Returns the cummulative number of rollup cells read by queries
+	 * @return the number of cells read
+	 */
+	public long getCellsRead();
+
+	/**
+	 * Returns the cummulative time spent running queries in ms.
+	 * @return the query time in ms.
+	 */
+	public long getQueryTime();
+
+	/**
+	 * Returns the average query time in ms.
+	 * @return the average query time
+	 */
+	public long getAverageQueryTime();
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.query;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * <p>Title: QueryResult</p>
+ * <p>Description: The aggregated points of one group of series of a {@link SubQuery}, with the tags all the group's
+ * series share and the keys of the tags they differ in.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.query.QueryResult</code></p>
+ */
+
+public class QueryResult {
+	/** The metric name */
+	protected final String metric;
+	/** The tags all the group's series share */
+	protected final SortedMap<String, String> tags;
+	/** The keys of the tags the group's series differ in */
+	protected final List<String> aggregateTags;
+	/** The timestamps in ms., oldest first */
+	protected final long[] timestamps;
+	/** The aggregated values */
+	protected final double[] values;
+	/** The number of points */
+	protected final int size;
+	/** Indicates if NaN values are written as null */
+	protected final boolean nanAsNull;
+
+	/**
+	 * Creates a new QueryResult
+	 * @param metric The metric name
+	 * @param tags The tags all the group's series share
+	 * @param aggregateTags The keys of the tags the group's series differ in
+	 * @param timestamps The timestamps in ms., oldest first
+	 * @param values The aggregated values
+	 * @param size The number of points
+	 * @param nanAsNull true to write NaN values as null
+	 */
+	QueryResult(final String metric, final SortedMap<String, String> tags, final List<String> aggregateTags, final long[] timestamps, final double[] values, final int size, final boolean nanAsNull) {
+		this.metric = metric;
+		this.tags = Collections.unmodifiableSortedMap(tags);
+		this.aggregateTags = Collections.unmodifiableList(aggregateTags);
+		this.timestamps = timestamps;
+		this.values = values;
+		this.size = size;
+		this.nanAsNull = nanAsNull;
+	}
+
+	/**
+	 * Writes the start of this result in the OpenTSDB format, up to the opening of the points:
+	 * <code>{"metric":...,"tags":{...},"aggregateTags":[...],"dps":{</code>
+	 * @param generator The generator to write to
+	 * @throws IOException thrown on any error writing the JSON
+	 */
+	public void writeHead(final JsonGenerator generator) throws IOException {
+		generator.writeStartObject();
+		generator.writeStringField("metric", metric);
+		generator.writeObjectFieldStart("tags");
+		for(Map.Entry<String, String> tag: tags.entrySet()) {
+			generator.writeStringField(tag.getKey(), tag.getValue());
+		}
+		generator.writeEndObject();
+		generator.writeArrayFieldStart("aggregateTags");
+		for(String tagKey: aggregateTags) {
+			generator.writeString(tagKey);
+		}
+		generator.writeEndArray();
+		generator.writeObjectFieldStart("dps");
+	}
+
+	/**
+	 * Writes a run of this result's points as <code>"ts":value</code> fields
+	 * @param generator The generator to write to
+	 * @param from The index of the first point to write
+	 * @param count The maximum number of points to write
+	 * @param msResolution true to key the points by ms., false to key them by second
+	 * @return the index of the next point to write, which is {@link #size()} once all are written
+	 * @throws IOException thrown on any error writing the JSON
+	 */
+	public int writePoints(final JsonGenerator generator, final int from, final int count, final boolean msResolution) throws IOException {
+		final int to = Math.min(size, from + count);
+		for(int i = from; i < to; i++) {
+			generator.writeFieldName(Long.toString(msResolution ? timestamps[i] : timestamps[i] / 1000L));
+			if(nanAsNull && Double.isNaN(values[i])) generator.writeNull();
+			else generator.writeNumber(values[i]);
+		}
+		return to;
+	}
+
+	/**
+	 * Writes the end of this result, closing the points and the result object
+	 * @param generator The generator to write to
+	 * @throws IOException thrown on any error writing the JSON
+	 */
+	public void writeTail(final JsonGenerator generator) throws IOException {
+		generator.writeEndObject();
+		generator.writeEndObject();
+	}
+
+	/**
+	 * Returns the metric name
+	 * @return the metric name
+	 */
+	public String getMetric() {
+		return metric;
+	}
+
+	/**
+	 * Returns the tags all the group's series share
+	 * @return the common tags
+	 */
+	public SortedMap<String, String> getTags() {
+		return tags;
+	}
+
+	/**
+	 * Returns the keys of the tags the group's series differ in
+	 * @return the aggregated tag keys
+	 */
+	public List<String> getAggregateTags() {
+		return aggregateTags;
+	}
+
+	/**
+	 * Returns the number of points
+	 * @return the number of points
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the indexed timestamp in ms.
+	 * @param index The point index, oldest first
+	 * @return the timestamp
+	 */
+	public long getTimestamp(final int index) {
+		return timestamps[index];
+	}
+
+	/**
+	 * Returns the indexed value
+	 * @param index The point index, oldest first
+	 * @return the value
+	 */
+	public double getValue(final int index) {
+		return values[index];
+	}
+}
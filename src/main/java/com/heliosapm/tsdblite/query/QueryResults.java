@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.query;
+
+import java.util.List;
+
+import com.heliosapm.tsdblite.metric.AppMetric;
+
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * <p>Title: QueryResults</p>
+ * <p>Description: The results of a planned {@link TSQuery}, one per group of series of each sub query, in order.
+ * Planning only matches and groups the series. Each group's series are scanned and merged on the query pool when
+ * its result is asked for, so a reader that takes one result at a time only holds one group's points.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.query.QueryResults</code></p>
+ */
+
+public class QueryResults {
+	/** The executor the groups are run on */
+	private final QueryExecutor executor;
+	/** The query */
+	private final TSQuery query;
+	/** The groups still to be run, in result order */
+	private final Group[] groups;
+	/** The index of the next group to run */
+	private int next = 0;
+
+	/**
+	 * <p>Title: Group</p>
+	 * <p>Description: The series of one group of a sub query</p>
+	 */
+	static final class Group {
+		/** The sub query */
+		final SubQuery subQuery;
+		/** The group's series */
+		final List<AppMetric> series;
+
+		Group(final SubQuery subQuery, final List<AppMetric> series) {
+			this.subQuery = subQuery;
+			this.series = series;
+		}
+	}
+
+	/**
+	 * Creates a new QueryResults
+	 * @param executor The executor the groups are run on
+	 * @param query The query
+	 * @param groups The groups, in result order
+	 */
+	QueryResults(final QueryExecutor executor, final TSQuery query, final List<Group> groups) {
+		this.executor = executor;
+		this.query = query;
+		this.groups = groups.toArray(new Group[groups.size()]);
+	}
+
+	/**
+	 * Indicates if there are groups left to run
+	 * @return true if {@link #next(Promise)} can be called
+	 */
+	public boolean hasNext() {
+		return next < groups.length;
+	}
+
+	/**
+	 * Returns the number of groups, each of which produces at most one result
+	 * @return the number of groups
+	 */
+	public int getGroupCount() {
+		return groups.length;
+	}
+
+	/**
+	 * Runs the next group on the query pool, completing the passed promise with its result
+	 * @param promise The promise to complete with the result, or with null if none of the group's series has points in range
+	 * @return the promise
+	 */
+	public Future<QueryResult> next(final Promise<QueryResult> promise) {
+		final Group group = take();
+		return executor.execute(query, group, !hasNext(), promise);
+	}
+
+	/**
+	 * Runs the next group. Must be called on the query pool.
+	 * @return the group's result, or null if none of the group's series has points in range
+	 */
+	QueryResult next() {
+		final Group group = take();
+		return executor.run(query, group, !hasNext());
+	}
+
+	/**
+	 * Takes the next group, releasing it from these results
+	 * @return the next group
+	 */
+	private Group take() {
+		if(next==groups.length) throw new IllegalStateException("No more groups");
+		final Group group = groups[next];
+		groups[next++] = null;
+		return group;
+	}
+}
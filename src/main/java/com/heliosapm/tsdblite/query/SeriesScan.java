@@ -0,0 +1,416 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.query;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.heliosapm.tsdblite.chunk.PointSink;
+import com.heliosapm.tsdblite.chunk.SeriesChunks;
+import com.heliosapm.tsdblite.metric.AppMetric;
+import com.heliosapm.tsdblite.metric.Metric;
+import com.heliosapm.tsdblite.metric.ReorderBuffer;
+import com.heliosapm.tsdblite.metric.SeriesHistory;
+import com.heliosapm.tsdblite.rollup.RollupSink;
+import com.heliosapm.tsdblite.rollup.RollupStore;
+import com.heliosapm.tsdblite.rollup.SeriesRollups;
+import com.heliosapm.tsdblite.store.SegmentStore;
+
+/**
+ * <p>Title: SeriesScan</p>
+ * <p>Description: Reads one series for a sub query into time ordered arrays, downsampling it if the sub query asks to.
+ * Scans run in parallel on the query pool, one task per series.</p>
+ * <p>Raw points are read from the in-memory chunks, the segment store up to the oldest point held in memory, and the
+ * reorder buffer. A point can still be in more than one of them, so they are sorted together keeping the last read point
+ * of each timestamp. A downsampled scan reads the
+ * coarsest rollup tier whose interval divides the downsampling interval instead, plus the points still held for reordering,
+ * which have not reached the rollups yet. Rollup cells are read whole, so the first and last buckets can include
+ * points just outside the range.</p>
+ * <p>The raw points held by the scans of one group are counted together, and a scan fails with an
+ * {@link IllegalArgumentException} once they pass the configured maximum.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.query.SeriesScan</code></p>
+ */
+
+final class SeriesScan implements Callable<SeriesScan>, PointSink, RollupSink {
+	/** The scanned series */
+	final AppMetric appMetric;
+	/** The sub query */
+	final SubQuery query;
+	/** The range start in ms., inclusive */
+	final long fromMs;
+	/** The range end in ms., inclusive */
+	final long toMs;
+	/** The point or bucket timestamps, oldest first once the scan has run */
+	long[] timestamps = new long[INITIAL_SIZE];
+	/** The point or bucket values */
+	double[] values = new double[INITIAL_SIZE];
+	/** The number of points or buckets */
+	int size = 0;
+	/** The number of raw points read */
+	long pointsRead = 0L;
+	/** The number of rollup cells read */
+	long cellsRead = 0L;
+	/** The number of raw points held by all the scans of the group */
+	private final AtomicLong groupHeld;
+	/** The maximum number of raw points the scans of the group may hold */
+	private final long maxPoints;
+	/** The number of raw points held by this scan and not yet added to the group's count */
+	private int unreported = 0;
+	/** The bucket value counts while downsampling */
+	private long[] counts = null;
+	/** The bucket sums while downsampling */
+	private double[] sums = null;
+	/** The bucket minimums while downsampling */
+	private double[] mins = null;
+	/** The bucket maximums while downsampling */
+	private double[] maxes = null;
+	/** Indicates if points are added straight to downsampling buckets */
+	private boolean bucketing = false;
+
+	/** The initial array size */
+	private static final int INITIAL_SIZE = 64;
+	/** The number of held points a scan adds to the group's count at a time */
+	private static final int REPORT_SIZE = 1024;
+
+	/**
+	 * Creates a new SeriesScan
+	 * @param appMetric The series to scan
+	 * @param query The sub query
+	 * @param fromMs The range start in ms., inclusive
+	 * @param toMs The range end in ms., inclusive
+	 * @param groupHeld The number of raw points held by all the scans of the group
+	 * @param maxPoints The maximum number of raw points the scans of the group may hold
+	 */
+	SeriesScan(final AppMetric appMetric, final SubQuery query, final long fromMs, final long toMs, final AtomicLong groupHeld, final long maxPoints) {
+		this.appMetric = appMetric;
+		this.query = query;
+		this.fromMs = fromMs;
+		this.toMs = toMs;
+		this.groupHeld = groupHeld;
+		this.maxPoints = maxPoints;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.concurrent.Callable#call()
+	 */
+	@Override
+	public SeriesScan call() {
+		final long interval = query.downsampleInterval;
+		if(interval < 1L) {
+			readPoints(fromMs, toMs);
+			order();
+			return this;
+		}
+		final long alignedFrom = fromMs - (fromMs % interval);
+		final int tier = rollupTier(interval);
+		if(tier!=-1) {
+			startBuckets();
+			appMetric.getRollups().read(tier, alignedFrom, toMs, this);
+			final ReorderBuffer reorder = appMetric.getReorderBuffer();
+			if(reorder!=null) reorder.read(alignedFrom, toMs, this);
+		} else {
+			readPoints(alignedFrom, toMs);
+			order();
+			final int points = size;
+			final long[] ts = timestamps;
+			final double[] vals = values;
+			timestamps = new long[INITIAL_SIZE];
+			values = new double[INITIAL_SIZE];
+			size = 0;
+			startBuckets();
+			for(int i = 0; i < points; i++) {
+				bucket(ts[i] - (ts[i] % interval), vals[i]);
+			}
+		}
+		finish(alignedFrom, interval);
+		return this;
+	}
+
+	/**
+	 * Finds the rollup tier a downsampled scan can read
+	 * @param interval The downsampling interval in ms.
+	 * @return the tier index or -1 if the raw points must be read
+	 */
+	private int rollupTier(final long interval) {
+		if(appMetric.getRollups()==null || !RollupStore.isEnabled()) return -1;
+		final int tier = RollupStore.getInstance().tierFor(interval);
+		return tier!=-1 && interval % SeriesRollups.INTERVALS[tier]==0 ? tier : -1;
+	}
+
+	/**
+	 * Reads the series' raw points in the passed range, in no particular order
+	 * @param from The range start in ms., inclusive
+	 * @param to The range end in ms., inclusive
+	 */
+	private void readPoints(final long from, final long to) {
+		final SeriesChunks chunks = appMetric.getChunks();
+		if(chunks!=null) {
+			chunks.read(from, to, this);
+			if(SegmentStore.isEnabled()) {
+				// the store holds every sealed chunk, so it is only read up to the oldest point held in memory.
+				// The chunks are read first, so a chunk dropped from memory in between is read from the store.
+				final long held = chunks.getMinTimestamp();
+				final long storeTo = held==Long.MAX_VALUE ? to : Math.min(to, held - 1);
+				if(from <= storeTo) {
+					final Metric metric = appMetric.getMetricInstance();
+					SegmentStore.getInstance().read(metric.getHashCode(), metric.getHashCodeHigh(), from, storeTo, this);
+				}
+			}
+		} else {
+			final SeriesHistory history = appMetric.getHistory();
+			if(history!=null) {
+				final long[] ts = new long[history.capacity()];
+				final double[] vals = new double[ts.length];
+				final int count = history.copy(from, ts, vals);
+				for(int i = 0; i < count; i++) {
+					if(ts[i] <= to) point(ts[i], vals[i]);
+				}
+			}
+		}
+		final ReorderBuffer reorder = appMetric.getReorderBuffer();
+		if(reorder!=null) reorder.read(from, to, this);
+		if(unreported > 0) report();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.chunk.PointSink#point(long, double)
+	 */
+	@Override
+	public void point(final long timestamp, final double value) {
+		pointsRead++;
+		if(bucketing) {
+			bucket(timestamp - (timestamp % query.downsampleInterval), value);
+			return;
+		}
+		if(++unreported==REPORT_SIZE) report();
+		if(size==timestamps.length) grow();
+		timestamps[size] = timestamp;
+		values[size] = value;
+		size++;
+	}
+
+	/**
+	 * Adds the points held since the last report to the group's count, so the scans only contend once per run of points
+	 * @throws IllegalArgumentException thrown if the scans of the group hold more than the maximum number of points
+	 */
+	private void report() {
+		final long held = groupHeld.addAndGet(unreported);
+		unreported = 0;
+		if(held > maxPoints) {
+			throw new IllegalArgumentException("The sub query [" + query + "] read more than the maximum [" + maxPoints + "] points for one group of series");
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupSink#cell(long, long, double, double, double, double)
+	 */
+	@Override
+	public void cell(final long start, final long count, final double sum, final double min, final double max, final double last) {
+		cellsRead++;
+		bucket(start - (start % query.downsampleInterval), count, sum, min, max);
+	}
+
+	private void startBuckets() {
+		counts = new long[timestamps.length];
+		sums = new double[timestamps.length];
+		mins = new double[timestamps.length];
+		maxes = new double[timestamps.length];
+		bucketing = true;
+	}
+
+	/**
+	 * Adds a raw point to a downsampling bucket. A NaN value creates the bucket but is not counted.
+	 * @param start The bucket start in ms.
+	 * @param value The value
+	 */
+	private void bucket(final long start, final double value) {
+		if(Double.isNaN(value)) bucket(start, 0L, 0D, value, value);
+		else bucket(start, 1L, value, value, value);
+	}
+
+	/**
+	 * Adds values to a downsampling bucket. Buckets mostly arrive in order, so the last bucket is checked first.
+	 * @param start The bucket start in ms.
+	 * @param count The number of values
+	 * @param sum The sum of the values
+	 * @param min The lowest value
+	 * @param max The highest value
+	 */
+	private void bucket(final long start, final long count, final double sum, final double min, final double max) {
+		int index = size - 1;
+		if(size==0 || timestamps[index] < start) {
+			index = insertBucket(size, start);
+		} else if(timestamps[index]!=start) {
+			index = Arrays.binarySearch(timestamps, 0, size, start);
+			if(index < 0) index = insertBucket(-(index + 1), start);
+		}
+		if(count < 1L) return;
+		if(counts[index]==0L) {
+			mins[index] = min;
+			maxes[index] = max;
+		} else {
+			if(min < mins[index]) mins[index] = min;
+			if(max > maxes[index]) maxes[index] = max;
+		}
+		counts[index] += count;
+		sums[index] += sum;
+	}
+
+	private int insertBucket(final int index, final long start) {
+		if(size==timestamps.length) grow();
+		if(index < size) {
+			System.arraycopy(timestamps, index, timestamps, index + 1, size - index);
+			System.arraycopy(counts, index, counts, index + 1, size - index);
+			System.arraycopy(sums, index, sums, index + 1, size - index);
+			System.arraycopy(mins, index, mins, index + 1, size - index);
+			System.arraycopy(maxes, index, maxes, index + 1, size - index);
+		}
+		timestamps[index] = start;
+		counts[index] = 0L;
+		sums[index] = 0D;
+		size++;
+		return index;
+	}
+
+	private void grow() {
+		final int length = timestamps.length * 2;
+		timestamps = Arrays.copyOf(timestamps, length);
+		values = Arrays.copyOf(values, length);
+		if(counts!=null) {
+			counts = Arrays.copyOf(counts, length);
+			sums = Arrays.copyOf(sums, length);
+			mins = Arrays.copyOf(mins, length);
+			maxes = Arrays.copyOf(maxes, length);
+		}
+	}
+
+	/**
+	 * Reduces the downsampling buckets to values, and fills the empty buckets in the range if the fill policy asks to
+	 * @param alignedFrom The start of the first bucket in the range
+	 * @param interval The downsampling interval in ms.
+	 */
+	private void finish(final long alignedFrom, final long interval) {
+		final Accumulator acc = new Accumulator();
+		final Aggregator downsampler = query.downsampler;
+		for(int i = 0; i < size; i++) {
+			acc.count = counts[i];
+			acc.sum = sums[i];
+			acc.min = mins[i];
+			acc.max = maxes[i];
+			values[i] = acc.isEmpty() ? Double.NaN : downsampler.value(acc);
+		}
+		counts = null;
+		sums = null;
+		mins = null;
+		maxes = null;
+		bucketing = false;
+		if(query.fill==SubQuery.FillPolicy.NONE) {
+			int keep = 0;
+			for(int i = 0; i < size; i++) {
+				if(Double.isNaN(values[i])) continue;
+				timestamps[keep] = timestamps[i];
+				values[keep] = values[i];
+				keep++;
+			}
+			size = keep;
+			return;
+		}
+		final double fill = query.fill==SubQuery.FillPolicy.ZERO ? 0D : Double.NaN;
+		final long[] ts = timestamps;
+		final double[] vals = values;
+		final int buckets = size;
+		// the executor caps the filled bucket count, so this only clamps if the cap is configured past an array's reach
+		final int filled = (int)Math.min(Integer.MAX_VALUE - 8, (toMs - alignedFrom) / interval + 1);
+		timestamps = new long[Math.max(filled, 1)];
+		values = new double[timestamps.length];
+		size = 0;
+		int b = 0;
+		for(long start = alignedFrom; start <= toMs && size < filled; start += interval) {
+			while(b < buckets && ts[b] < start) b++;
+			timestamps[size] = start;
+			// a bucket holding only NaN points is filled like an empty one, as it is dropped like one without a fill
+			values[size] = b < buckets && ts[b]==start && !Double.isNaN(vals[b]) ? vals[b] : fill;
+			size++;
+		}
+	}
+
+	/**
+	 * Sorts the raw points by timestamp, keeping the last read point of each timestamp.
+	 * The points are read as a few sorted runs, so the runs are found and merged pairwise, which is usually
+	 * a check and one or two linear merges.
+	 */
+	private void order() {
+		int[] runs = new int[8];
+		int runCount = 0;
+		runs[runCount++] = 0;
+		for(int i = 1; i < size; i++) {
+			if(timestamps[i] < timestamps[i - 1]) {
+				if(runCount==runs.length) runs = Arrays.copyOf(runs, runCount * 2);
+				runs[runCount++] = i;
+			}
+		}
+		if(runCount > 1) {
+			long[] ts = timestamps, tsTo = new long[size];
+			double[] vals = values, valsTo = new double[size];
+			while(runCount > 1) {
+				int merged = 0;
+				for(int r = 0; r < runCount; r += 2) {
+					final int lo = runs[r], mid = r + 1 < runCount ? runs[r + 1] : size, hi = r + 2 < runCount ? runs[r + 2] : size;
+					// stable, so the last read point of a timestamp stays last
+					int i = lo, j = mid, k = lo;
+					while(i < mid && j < hi) {
+						if(ts[j] < ts[i]) {
+							tsTo[k] = ts[j];
+							valsTo[k++] = vals[j++];
+						} else {
+							tsTo[k] = ts[i];
+							valsTo[k++] = vals[i++];
+						}
+					}
+					System.arraycopy(ts, i, tsTo, k, mid - i);
+					System.arraycopy(vals, i, valsTo, k, mid - i);
+					k += mid - i;
+					System.arraycopy(ts, j, tsTo, k, hi - j);
+					System.arraycopy(vals, j, valsTo, k, hi - j);
+					runs[merged++] = lo;
+				}
+				runCount = merged;
+				final long[] t = ts;
+				ts = tsTo;
+				tsTo = t;
+				final double[] v = vals;
+				vals = valsTo;
+				valsTo = v;
+			}
+			timestamps = ts;
+			values = vals;
+		}
+		int n = 0;
+		for(int i = 0; i < size; i++) {
+			if(n > 0 && timestamps[n - 1]==timestamps[i]) n--;
+			timestamps[n] = timestamps[i];
+			values[n] = values[i];
+			n++;
+		}
+		size = n;
+	}
+}
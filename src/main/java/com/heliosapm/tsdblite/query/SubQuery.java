@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.heliosapm.tsdblite.metric.MetricCache;
+import com.heliosapm.tsdblite.rollup.SeriesRollups;
+
+/**
+ * <p>Title: SubQuery</p>
+ * <p>Description: One metric of a {@link TSQuery}: the tag filters selecting its series, the optional downsampling
+ * of each series and the aggregator combining each group of series. The metric name is cleaned like a submitted one.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.query.SubQuery</code></p>
+ */
+
+public class SubQuery {
+	/** The metric name */
+	protected final String metric;
+	/** The aggregator combining each group's series */
+	protected final Aggregator aggregator;
+	/** The downsampling interval in ms., or 0 for no downsampling */
+	protected final long downsampleInterval;
+	/** The aggregator reducing each downsampling bucket, or null for no downsampling */
+	protected final Aggregator downsampler;
+	/** The policy for empty downsampling buckets */
+	protected final FillPolicy fill;
+	/** The tag filters, all of which a series must match */
+	protected final List<TagFilter> filters;
+
+	/**
+	 * <p>Title: FillPolicy</p>
+	 * <p>Description: What is emitted for a downsampling bucket a series has no points in</p>
+	 */
+	public static enum FillPolicy {
+		/** Nothing is emitted */
+		NONE,
+		/** NaN is emitted, and skipped by the aggregator */
+		NAN,
+		/** null is emitted, and skipped by the aggregator */
+		NULL,
+		/** Zero is emitted */
+		ZERO;
+	}
+
+	/**
+	 * Creates a new SubQuery
+	 * @param metric The metric name
+	 * @param aggregator The aggregator combining each group's series
+	 * @param downsample The downsampling spec such as <code>1m-avg</code> or <code>5m-max-zero</code>, or null for none
+	 * @param filters The tag filters
+	 */
+	public SubQuery(final String metric, final Aggregator aggregator, final String downsample, final List<TagFilter> filters) {
+		if(metric==null || metric.trim().isEmpty()) throw new IllegalArgumentException("The passed metric was null or empty");
+		if(aggregator==null) throw new IllegalArgumentException("The passed aggregator was null");
+		this.metric = MetricCache.clean(metric, "metric name");
+		this.aggregator = aggregator;
+		this.filters = filters==null ? Collections.<TagFilter>emptyList() : Collections.unmodifiableList(new ArrayList<TagFilter>(filters));
+		if(downsample==null || downsample.trim().isEmpty()) {
+			downsampleInterval = 0L;
+			downsampler = null;
+			fill = FillPolicy.NONE;
+		} else {
+			final String[] parts = downsample.trim().split("-");
+			if(parts.length < 2 || parts.length > 3) throw new IllegalArgumentException("Invalid downsample [" + downsample + "]");
+			downsampleInterval = SeriesRollups.parseInterval(parts[0]);
+			if(downsampleInterval < 1L) throw new IllegalArgumentException("Invalid downsample interval [" + downsample + "]");
+			downsampler = Aggregator.forName(parts[1]);
+			try {
+				fill = parts.length==3 ? FillPolicy.valueOf(parts[2].trim().toUpperCase()) : FillPolicy.NONE;
+			} catch (IllegalArgumentException iex) {
+				throw new IllegalArgumentException("Unsupported fill policy in downsample [" + downsample + "]");
+			}
+		}
+	}
+
+	/**
+	 * Parses a sub query in the OpenTSDB <code>m</code> parameter form:
+	 * <code>aggregator:[downsample:]metric[{tag filters}][{ungrouped tag filters}]</code>,
+	 * such as <code>sum:1m-avg:sys.cpu{host=web*}{dc=literal_or(east|west)}</code>
+	 * @param m The sub query
+	 * @return the SubQuery
+	 */
+	public static SubQuery parse(final String m) {
+		if(m==null || m.trim().isEmpty()) throw new IllegalArgumentException("The passed sub query was null or empty");
+		final String q = m.trim();
+		final int brace = q.indexOf('{');
+		final String[] parts = (brace==-1 ? q : q.substring(0, brace)).split(":");
+		if(parts.length < 2) throw new IllegalArgumentException("A sub query needs at least an aggregator and a metric [" + m + "]");
+		String downsample = null;
+		for(int i = 1; i < parts.length - 1; i++) {
+			if(parts[i].startsWith("rate")) throw new IllegalArgumentException("Rate conversion is not supported [" + m + "]");
+			if(parts[i].indexOf('-')==-1) throw new IllegalArgumentException("Unsupported sub query option [" + parts[i] + "] in [" + m + "]");
+			downsample = parts[i];
+		}
+		final List<TagFilter> filters = new ArrayList<TagFilter>();
+		if(brace!=-1) {
+			final int close = q.indexOf('}', brace);
+			if(close==-1) throw new IllegalArgumentException("Unterminated tag filters in [" + m + "]");
+			parseFilters(q.substring(brace + 1, close), true, filters);
+			if(close + 1 < q.length()) {
+				if(q.charAt(close + 1)!='{' || !q.endsWith("}")) throw new IllegalArgumentException("Invalid tag filters in [" + m + "]");
+				parseFilters(q.substring(close + 2, q.length() - 1), false, filters);
+			}
+		}
+		return new SubQuery(parts[parts.length - 1], Aggregator.forName(parts[0]), downsample, filters);
+	}
+
+	private static void parseFilters(final String spec, final boolean groupBy, final List<TagFilter> filters) {
+		if(spec.trim().isEmpty()) return;
+		for(String pair: splitFilters(spec)) {
+			final int eq = pair.indexOf('=');
+			if(eq < 1) throw new IllegalArgumentException("Invalid tag filter [" + pair + "]");
+			filters.add(TagFilter.parse(pair.substring(0, eq), pair.substring(eq + 1), groupBy));
+		}
+	}
+
+	/**
+	 * Splits comma separated filters, ignoring commas inside a <code>type(expression)</code>
+	 * @param spec The filters
+	 * @return the split filters
+	 */
+	private static List<String> splitFilters(final String spec) {
+		final List<String> pairs = new ArrayList<String>();
+		int depth = 0, from = 0;
+		for(int i = 0; i < spec.length(); i++) {
+			final char c = spec.charAt(i);
+			if(c=='(') depth++;
+			else if(c==')') depth--;
+			else if(c==',' && depth==0) {
+				pairs.add(spec.substring(from, i).trim());
+				from = i + 1;
+			}
+		}
+		pairs.add(spec.substring(from).trim());
+		return pairs;
+	}
+
+	/**
+	 * Creates a SubQuery from an OpenTSDB JSON sub query:
+	 * <code>{"aggregator":"sum","metric":"sys.cpu","downsample":"1m-avg","tags":{"host":"*"},"filters":[...]}</code>
+	 * @param node The JSON sub query
+	 * @return the SubQuery
+	 */
+	public static SubQuery fromJson(final JsonNode node) {
+		if(!node.hasNonNull("metric")) throw new IllegalArgumentException("A sub query needs a metric: " + node);
+		if(!node.hasNonNull("aggregator")) throw new IllegalArgumentException("A sub query needs an aggregator: " + node);
+		if(node.path("rate").asBoolean(false)) throw new IllegalArgumentException("Rate conversion is not supported: " + node);
+		final List<TagFilter> filters = new ArrayList<TagFilter>();
+		final JsonNode tags = node.path("tags");
+		for(Iterator<Map.Entry<String, JsonNode>> iter = tags.fields(); iter.hasNext();) {
+			final Map.Entry<String, JsonNode> tag = iter.next();
+			filters.add(TagFilter.parse(tag.getKey(), tag.getValue().asText(), true));
+		}
+		for(JsonNode filter: node.path("filters")) {
+			filters.add(TagFilter.fromJson(filter));
+		}
+		return new SubQuery(node.get("metric").asText(), Aggregator.forName(node.get("aggregator").asText()), node.path("downsample").asText(null), filters);
+	}
+
+	/**
+	 * Returns the metric name
+	 * @return the metric name
+	 */
+	public String getMetric() {
+		return metric;
+	}
+
+	/**
+	 * Returns the aggregator combining each group's series
+	 * @return the aggregator
+	 */
+	public Aggregator getAggregator() {
+		return aggregator;
+	}
+
+	/**
+	 * Returns the downsampling interval in ms.
+	 * @return the downsampling interval, or 0 for no downsampling
+	 */
+	public long getDownsampleInterval() {
+		return downsampleInterval;
+	}
+
+	/**
+	 * Returns the aggregator reducing each downsampling bucket
+	 * @return the downsampling aggregator, or null for no downsampling
+	 */
+	public Aggregator getDownsampler() {
+		return downsampler;
+	}
+
+	/**
+	 * Returns the policy for empty downsampling buckets
+	 * @return the fill policy
+	 */
+	public FillPolicy getFill() {
+		return fill;
+	}
+
+	/**
+	 * Returns the tag filters
+	 * @return the tag filters
+	 */
+	public List<TagFilter> getFilters() {
+		return filters;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder b = new StringBuilder(aggregator.name().toLowerCase()).append(':');
+		if(downsampler!=null) b.append(downsampleInterval).append("ms-").append(downsampler.name().toLowerCase()).append('-').append(fill.name().toLowerCase()).append(':');
+		return b.append(metric).append(filters).toString();
+	}
+}
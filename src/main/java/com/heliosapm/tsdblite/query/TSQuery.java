@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.query;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * <p>Title: TSQuery</p>
+ * <p>Description: An OpenTSDB compatible query: a time range and one or more {@link SubQuery}s.
+ * Times are absolute, in seconds or ms. since the epoch or as <code>yyyy/MM/dd-HH:mm:ss</code>,
+ * or relative, such as <code>1h-ago</code>.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.query.TSQuery</code></p>
+ */
+
+public class TSQuery {
+	/** The range start in ms., inclusive */
+	protected final long start;
+	/** The range end in ms., inclusive */
+	protected final long end;
+	/** Indicates if results are keyed by ms. rather than by second */
+	protected final boolean msResolution;
+	/** The sub queries */
+	protected final List<SubQuery> queries;
+
+	/** The absolute date formats accepted, most specific first */
+	private static final String[] DATE_FORMATS = {"yyyy/MM/dd-HH:mm:ss", "yyyy/MM/dd HH:mm:ss", "yyyy/MM/dd-HH:mm", "yyyy/MM/dd HH:mm", "yyyy/MM/dd"};
+
+	/**
+	 * Creates a new TSQuery
+	 * @param start The range start in ms., inclusive
+	 * @param end The range end in ms., inclusive
+	 * @param msResolution true to key results by ms., false to key them by second
+	 * @param queries The sub queries
+	 */
+	public TSQuery(final long start, final long end, final boolean msResolution, final List<SubQuery> queries) {
+		if(queries==null || queries.isEmpty()) throw new IllegalArgumentException("A query needs at least one sub query");
+		if(end < start) throw new IllegalArgumentException("The query end [" + end + "] is before the start [" + start + "]");
+		this.start = start;
+		this.end = end;
+		this.msResolution = msResolution;
+		this.queries = Collections.unmodifiableList(new ArrayList<SubQuery>(queries));
+	}
+
+	/**
+	 * Creates a TSQuery from OpenTSDB query string parameters: <code>start</code>, <code>end</code>,
+	 * one or more <code>m</code> sub queries and the <code>ms</code> flag
+	 * @param params The decoded query string parameters
+	 * @return the TSQuery
+	 */
+	public static TSQuery fromParameters(final Map<String, List<String>> params) {
+		final long now = System.currentTimeMillis();
+		final List<String> start = params.get("start");
+		if(start==null || start.isEmpty()) throw new IllegalArgumentException("A query needs a start time");
+		final List<String> end = params.get("end");
+		final List<String> ms = params.get("m");
+		if(ms==null || ms.isEmpty()) throw new IllegalArgumentException("A query needs at least one [m] sub query");
+		final List<SubQuery> queries = new ArrayList<SubQuery>(ms.size());
+		for(String m: ms) {
+			queries.add(SubQuery.parse(m));
+		}
+		final boolean msResolution = params.containsKey("ms") || params.containsKey("msResolution");
+		return new TSQuery(parseTime(start.get(0), now), end==null || end.isEmpty() ? now : parseTime(end.get(0), now), msResolution, queries);
+	}
+
+	/**
+	 * Creates a TSQuery from an OpenTSDB JSON query: <code>{"start":"1h-ago","end":...,"msResolution":false,"queries":[...]}</code>
+	 * @param node The JSON query
+	 * @return the TSQuery
+	 */
+	public static TSQuery fromJson(final JsonNode node) {
+		final long now = System.currentTimeMillis();
+		if(!node.hasNonNull("start")) throw new IllegalArgumentException("A query needs a start time");
+		final List<SubQuery> queries = new ArrayList<SubQuery>();
+		for(JsonNode q: node.path("queries")) {
+			queries.add(SubQuery.fromJson(q));
+		}
+		return new TSQuery(parseTime(node.get("start").asText(), now), node.hasNonNull("end") ? parseTime(node.get("end").asText(), now) : now, node.path("msResolution").asBoolean(false), queries);
+	}
+
+	/**
+	 * Parses an absolute or relative time
+	 * @param time The time: seconds or ms. since the epoch, a <code>yyyy/MM/dd-HH:mm:ss</code> date,
+	 * or a relative time such as <code>15m-ago</code>, with a ms, s, m, h, d, w, n (30 days) or y (365 days) unit
+	 * @param now The current time in ms., which relative times are relative to
+	 * @return the time in ms.
+	 */
+	public static long parseTime(final String time, final long now) {
+		if(time==null || time.trim().isEmpty()) throw new IllegalArgumentException("The passed time was null or empty");
+		final String t = time.trim();
+		if(t.endsWith("-ago")) {
+			return now - parseDuration(t.substring(0, t.length() - 4));
+		}
+		if(isDigits(t)) {
+			final long value = Long.parseLong(t);
+			// 10 digits covers seconds up to the year 2286
+			return t.length() <= 10 ? value * 1000L : value;
+		}
+		for(String format: DATE_FORMATS) {
+			try {
+				final SimpleDateFormat sdf = new SimpleDateFormat(format);
+				sdf.setLenient(false);
+				return sdf.parse(t).getTime();
+			} catch (ParseException pex) {
+				/* try the next format */
+			}
+		}
+		throw new IllegalArgumentException("Invalid time [" + time + "]");
+	}
+
+	/**
+	 * Parses a duration such as <code>15m</code>
+	 * @param duration The duration: a number with a ms, s, m, h, d, w, n (30 days) or y (365 days) unit
+	 * @return the duration in ms.
+	 */
+	public static long parseDuration(final String duration) {
+		final String d = duration.trim();
+		int digits = 0;
+		while(digits < d.length() && Character.isDigit(d.charAt(digits))) digits++;
+		if(digits==0 || digits==d.length()) throw new IllegalArgumentException("Invalid duration [" + duration + "]");
+		final long amount = Long.parseLong(d.substring(0, digits));
+		final String unit = d.substring(digits);
+		final long multiplier;
+		if("ms".equals(unit)) multiplier = 1L;
+		else if("s".equals(unit)) multiplier = 1000L;
+		else if("m".equals(unit)) multiplier = 60000L;
+		else if("h".equals(unit)) multiplier = 3600000L;
+		else if("d".equals(unit)) multiplier = 86400000L;
+		else if("w".equals(unit)) multiplier = 86400000L * 7;
+		else if("n".equals(unit)) multiplier = 86400000L * 30;
+		else if("y".equals(unit)) multiplier = 86400000L * 365;
+		else throw new IllegalArgumentException("Invalid duration unit in [" + duration + "]");
+		return amount * multiplier;
+	}
+
+	private static boolean isDigits(final String s) {
+		for(int i = 0; i < s.length(); i++) {
+			if(!Character.isDigit(s.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the range start in ms.
+	 * @return the range start, inclusive
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Returns the range end in ms.
+	 * @return the range end, inclusive
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Indicates if results are keyed by ms. rather than by second
+	 * @return true for ms. resolution
+	 */
+	public boolean isMsResolution() {
+		return msResolution;
+	}
+
+	/**
+	 * Returns the sub queries
+	 * @return the sub queries
+	 */
+	public List<SubQuery> getQueries() {
+		return queries;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "TSQuery [start=" + start + ", end=" + end + ", queries=" + queries + "]";
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.query;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.heliosapm.tsdblite.metric.MetricCache;
+import com.heliosapm.tsdblite.metric.TagValueFilter;
+
+/**
+ * <p>Title: TagFilter</p>
+ * <p>Description: An OpenTSDB tag value filter on one tag key. A series without the tag key never matches.
+ * Group by filters split the matching series into one result per distinct tag value.
+ * Tag keys and values are stored cleaned, so keys and literal and wildcard expressions are cleaned the same way,
+ * which makes the case insensitive types equivalent to their plain counterparts. Regular expressions are left as they are.</p>
+ * <p>Filters are written as <code>type(expression)</code>, or in the shorthand of the <code>tags</code> map,
+ * where <code>*</code> or an expression with a <code>*</code> is a wildcard, and anything else is a
+ * <code>|</code> separated list of literals.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.query.TagFilter</code></p>
+ */
+
+public class TagFilter implements TagValueFilter {
+	/** The tag key */
+	protected final String tagKey;
+	/** The filter type */
+	protected final Type type;
+	/** The filter expression */
+	protected final String filter;
+	/** Indicates if matching series are grouped by this filter's tag value */
+	protected final boolean groupBy;
+	/** The literals of a literal filter */
+	protected final Set<String> literals;
+	/** The literal parts between the <code>*</code>s of a wildcard filter */
+	protected final String[] parts;
+	/** The compiled pattern of a regexp filter */
+	protected final Pattern pattern;
+
+	/**
+	 * <p>Title: Type</p>
+	 * <p>Description: The supported filter types</p>
+	 */
+	public static enum Type {
+		/** Matches any of a <code>|</code> separated list of values */
+		LITERAL_OR,
+		/** Matches any of a <code>|</code> separated list of values, ignoring case */
+		ILITERAL_OR,
+		/** Matches none of a <code>|</code> separated list of values */
+		NOT_LITERAL_OR,
+		/** Matches a value with <code>*</code> wildcards */
+		WILDCARD,
+		/** Matches a value with <code>*</code> wildcards, ignoring case */
+		IWILDCARD,
+		/** Matches a regular expression */
+		REGEXP;
+
+		/**
+		 * Decodes the passed OpenTSDB filter type name
+		 * @param name The filter type name
+		 * @return the Type
+		 */
+		public static Type forName(final String name) {
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (Exception ex) {
+				throw new IllegalArgumentException("Unsupported tag filter type [" + name + "]");
+			}
+		}
+	}
+
+	/**
+	 * Creates a new TagFilter
+	 * @param tagKey The tag key
+	 * @param type The filter type
+	 * @param filter The filter expression
+	 * @param groupBy true to group matching series by this filter's tag value
+	 */
+	public TagFilter(final String tagKey, final Type type, final String filter, final boolean groupBy) {
+		if(tagKey==null || tagKey.trim().isEmpty()) throw new IllegalArgumentException("The passed tag key was null or empty");
+		if(type==null) throw new IllegalArgumentException("The passed filter type was null");
+		if(filter==null || filter.isEmpty()) throw new IllegalArgumentException("The filter for tag key [" + tagKey + "] was null or empty");
+		this.tagKey = MetricCache.clean(tagKey, "Tag Key");
+		this.type = type;
+		this.filter = type==Type.REGEXP ? filter : MetricCache.clean(filter, "Tag Filter");
+		this.groupBy = groupBy;
+		switch(type) {
+			case LITERAL_OR:
+			case ILITERAL_OR:
+			case NOT_LITERAL_OR:
+				literals = new HashSet<String>();
+				for(String literal: this.filter.split("\\|")) {
+					literals.add(literal.trim());
+				}
+				parts = null;
+				pattern = null;
+				break;
+			case WILDCARD:
+			case IWILDCARD:
+				literals = null;
+				parts = this.filter.split("\\*", -1);
+				pattern = null;
+				break;
+			default:
+				literals = null;
+				parts = null;
+				pattern = Pattern.compile(filter);
+		}
+	}
+
+	/**
+	 * Parses a filter in the <code>type(expression)</code> form, or in the shorthand of the <code>tags</code> map
+	 * @param tagKey The tag key
+	 * @param expression The filter expression
+	 * @param groupBy true to group matching series by this filter's tag value
+	 * @return the TagFilter
+	 */
+	public static TagFilter parse(final String tagKey, final String expression, final boolean groupBy) {
+		if(expression==null) throw new IllegalArgumentException("The filter for tag key [" + tagKey + "] was null");
+		final String expr = expression.trim();
+		final int open = expr.indexOf('(');
+		if(open > 0 && expr.endsWith(")")) {
+			return new TagFilter(tagKey, Type.forName(expr.substring(0, open)), expr.substring(open + 1, expr.length() - 1), groupBy);
+		}
+		return new TagFilter(tagKey, expr.indexOf('*')==-1 ? Type.LITERAL_OR : Type.WILDCARD, expr, groupBy);
+	}
+
+	/**
+	 * Creates a TagFilter from an OpenTSDB JSON filter: <code>{"type":"wildcard","tagk":"host","filter":"web*","groupBy":true}</code>
+	 * @param node The JSON filter
+	 * @return the TagFilter
+	 */
+	public static TagFilter fromJson(final JsonNode node) {
+		if(!node.hasNonNull("type") || !node.hasNonNull("tagk") || !node.hasNonNull("filter")) {
+			throw new IllegalArgumentException("A tag filter needs a type, a tagk and a filter: " + node);
+		}
+		return new TagFilter(node.get("tagk").asText(), Type.forName(node.get("type").asText()), node.get("filter").asText(), node.path("groupBy").asBoolean(false));
+	}
+
+	/**
+	 * Matches a value against the wildcard parts: the first part must be a prefix, the last a suffix,
+	 * and the ones in between must follow in order
+	 * @param value The value to match
+	 * @return true if the value matches
+	 */
+	private boolean wildcardMatches(final String value) {
+		final int last = parts.length - 1;
+		if(last==0) return value.equals(parts[0]);
+		if(!value.startsWith(parts[0])) return false;
+		int from = parts[0].length();
+		for(int i = 1; i < last; i++) {
+			final int index = value.indexOf(parts[i], from);
+			if(index==-1) return false;
+			from = index + parts[i].length();
+		}
+		return value.length() - parts[last].length() >= from && value.endsWith(parts[last]);
+	}
+
+	/**
+	 * Indicates if the passed tag value matches this filter
+	 * @param tagValue The series' value for this filter's tag key, or null if the series does not have the tag
+	 * @return true if the value matches
+	 */
+	@Override
+	public boolean matches(final String tagValue) {
+		if(tagValue==null) return false;
+		switch(type) {
+			case LITERAL_OR:
+			case ILITERAL_OR:
+				return literals.contains(tagValue);
+			case NOT_LITERAL_OR:
+				return !literals.contains(tagValue);
+			case WILDCARD:
+			case IWILDCARD:
+				return wildcardMatches(tagValue);
+			default:
+				return pattern.matcher(tagValue).matches();
+		}
+	}
+
+	/**
+	 * Indicates if this filter matches every value of its tag key
+	 * @return true for a plain <code>*</code> wildcard
+	 */
+	@Override
+	public boolean matchesAll() {
+		return (type==Type.WILDCARD || type==Type.IWILDCARD) && "*".equals(filter);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.TagValueFilter#getLiterals()
+	 */
+	@Override
+	public Collection<String> getLiterals() {
+		return literals;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.metric.TagValueFilter#isNegated()
+	 */
+	@Override
+	public boolean isNegated() {
+		return type==Type.NOT_LITERAL_OR;
+	}
+
+	/**
+	 * Returns the tag key
+	 * @return the tag key
+	 */
+	@Override
+	public String getTagKey() {
+		return tagKey;
+	}
+
+	/**
+	 * Returns the filter type
+	 * @return the filter type
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the filter expression
+	 * @return the filter expression
+	 */
+	public String getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Indicates if matching series are grouped by this filter's tag value
+	 * @return true to group by the tag value
+	 */
+	public boolean isGroupBy() {
+		return groupBy;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return tagKey + "=" + type.name().toLowerCase() + "(" + filter + ")" + (groupBy ? "" : "{}");
+	}
+}
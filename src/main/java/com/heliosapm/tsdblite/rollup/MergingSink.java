@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.rollup;
+
+/**
+ * <p>Title: MergingSink</p>
+ * <p>Description: Merges consecutive cells with the same start before passing them on. A cell can be persisted in parts,
+ * such as when its open part is flushed at shutdown and the rest is sealed after the restart.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.rollup.MergingSink</code></p>
+ */
+
+class MergingSink implements RollupSink {
+	/** The sink merged cells are passed to */
+	private final RollupSink sink;
+	/** Indicates if a cell is pending */
+	private boolean pending = false;
+	/** The pending cell start */
+	private long start;
+	/** The pending cell count */
+	private long count;
+	/** The pending cell sum */
+	private double sum;
+	/** The pending cell min */
+	private double min;
+	/** The pending cell max */
+	private double max;
+	/** The pending cell last */
+	private double last;
+	/** The number of cells passed on */
+	private int delivered = 0;
+
+	/**
+	 * Creates a new MergingSink
+	 * @param sink The sink merged cells are passed to
+	 */
+	MergingSink(final RollupSink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupSink#cell(long, long, double, double, double, double)
+	 */
+	@Override
+	public void cell(final long start, final long count, final double sum, final double min, final double max, final double last) {
+		if(pending && start==this.start) {
+			this.count += count;
+			this.sum += sum;
+			this.min = Math.min(this.min, min);
+			this.max = Math.max(this.max, max);
+			this.last = last;
+			return;
+		}
+		emit();
+		pending = true;
+		this.start = start;
+		this.count = count;
+		this.sum = sum;
+		this.min = min;
+		this.max = max;
+		this.last = last;
+	}
+
+	/**
+	 * Passes on the pending cell, if any
+	 * @return the number of cells passed on
+	 */
+	int finish() {
+		emit();
+		return delivered;
+	}
+
+	private void emit() {
+		if(!pending) return;
+		pending = false;
+		sink.cell(start, count, sum, min, max, last);
+		delivered++;
+	}
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.rollup;
+
+/**
+ * <p>Title: RollupSink</p>
+ * <p>Description: Receives the rollup cells read out of a series' rollup tier</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.rollup.RollupSink</code></p>
+ */
+
+public interface RollupSink {
+	/**
+	 * Accepts one cell
+	 * @param start The start of the cell's interval in ms.
+	 * @param count The number of points in the cell
+	 * @param sum The sum of the values
+	 * @param min The lowest value
+	 * @param max The highest value
+	 * @param last The value of the latest point
+	 */
+	public void cell(long start, long count, double sum, double min, double max, double last);
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.rollup;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.metric.MetricCache;
+import com.heliosapm.tsdblite.store.CompactionScheduler;
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: RollupStore</p>
+ * <p>Description: The sealed rollup tier: one {@link RollupTier} per configured interval, each in its own
+ * sub-directory. Rollups are computed incrementally at ingest by each series' {@link SeriesRollups} and
+ * every cell is persisted as soon as it is sealed, so a query over a long range reads one cell per interval
+ * instead of every raw point.</p>
+ * <p>Like the segment store, the rollup store must be created after the write-ahead log has been replayed: the cells
+ * the replay re-seals were already persisted before the restart. On {@link #close()} the open cells are flushed.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.rollup.RollupStore</code></p>
+ */
+
+public class RollupStore implements RollupStoreMXBean {
+	/** The singleton instance */
+	private static volatile RollupStore instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The rollup store directory */
+	protected final File dir;
+	/** The tiers, finest interval first */
+	protected final RollupTier[] tiers;
+	/** Indicates if the store has been closed */
+	private volatile boolean closed = false;
+
+	/** A counter of read cells */
+	protected final LongAdder cellsRead = new LongAdder();
+
+	/**
+	 * Indicates if the rollup store is enabled
+	 * @return true if enabled, false otherwise
+	 */
+	public static boolean isEnabled() {
+		return SeriesRollups.INTERVALS.length > 0;
+	}
+
+	/**
+	 * Acquires the RollupStore singleton
+	 * @return the RollupStore singleton
+	 */
+	public static RollupStore getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new RollupStore();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private RollupStore() {
+		dir = new File(ConfigurationHelper.getSystemThenEnvProperty(Constants.CONF_ROLLUP_DIR, Constants.DEFAULT_ROLLUP_DIR));
+		final int segmentSize = ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_ROLLUP_SEGMENT_SIZE, Constants.DEFAULT_ROLLUP_SEGMENT_SIZE);
+		tiers = new RollupTier[SeriesRollups.INTERVALS.length];
+		for(int i = 0; i < tiers.length; i++) {
+			tiers[i] = new RollupTier(SeriesRollups.NAMES[i], SeriesRollups.INTERVALS[i], new File(dir, SeriesRollups.NAMES[i]), segmentSize);
+		}
+		SeriesRollups.setStore(this);
+		if(CompactionScheduler.isEnabled()) {
+			for(RollupTier tier: tiers) {
+				CompactionScheduler.getInstance().register(tier.segments, tier);
+			}
+		}
+		JMXHelper.registerMBean(this, OBJECT_NAME);
+		log.info("RollupStore started in [{}] with intervals {}", dir, java.util.Arrays.toString(SeriesRollups.NAMES));
+	}
+
+	/**
+	 * Returns the indexed tier
+	 * @param index The tier index, finest interval first
+	 * @return the tier
+	 */
+	public RollupTier getTier(final int index) {
+		return tiers[index];
+	}
+
+	/**
+	 * Returns the number of tiers
+	 * @return the number of tiers
+	 */
+	public int getTierCount() {
+		return tiers.length;
+	}
+
+	/**
+	 * Finds the coarsest tier whose interval fits in the passed resolution
+	 * @param resolutionMs The resolution in ms., such as a query's downsampling interval
+	 * @return the tier index, or -1 if every interval is coarser than the resolution
+	 */
+	public int tierFor(final long resolutionMs) {
+		for(int i = tiers.length - 1; i >= 0; i--) {
+			if(tiers[i].interval <= resolutionMs) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads a series' persisted cells for one interval, for a series that is no longer cached.
+	 * Cached series should be read through {@link SeriesRollups#read(int, long, long, RollupSink)}, which includes the open cell.
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 * @param tier The tier index
+	 * @param fromMs The range start in ms., inclusive
+	 * @param toMs The range end in ms., inclusive
+	 * @param sink The sink the cells are delivered to
+	 * @return the number of cells delivered
+	 */
+	public int read(final long hashCode, final long hashCodeHigh, final int tier, final long fromMs, final long toMs, final RollupSink sink) {
+		final MergingSink merging = new MergingSink(sink);
+		tiers[tier].read(hashCode, hashCodeHigh, fromMs, toMs, merging);
+		final int count = merging.finish();
+		cellsRead.add(count);
+		return count;
+	}
+
+	/**
+	 * Counts cells read through a series' rollups
+	 * @param count The number of cells read
+	 */
+	void read(final int count) {
+		cellsRead.add(count);
+	}
+
+	/**
+	 * Flushes the open cells of every cached series into the store and seals the tiers. Ingest must have stopped.
+	 */
+	public void close() {
+		if(closed) return;
+		closed = true;
+		final int flushed = MetricCache.getInstance().flushRollups();
+		SeriesRollups.setStore(null);
+		for(RollupTier tier: tiers) {
+			tier.segments.close();
+		}
+		log.info("RollupStore closed after flushing [{}] series", flushed);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupStoreMXBean#purge()
+	 */
+	@Override
+	public int purge() {
+		int dropped = 0;
+		for(RollupTier tier: tiers) {
+			dropped += tier.segments.purge();
+		}
+		return dropped;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupStoreMXBean#getDirectory()
+	 */
+	@Override
+	public String getDirectory() {
+		return dir.getAbsolutePath();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupStoreMXBean#getIntervals()
+	 */
+	@Override
+	public String[] getIntervals() {
+		return SeriesRollups.NAMES.clone();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupStoreMXBean#getCellsWritten()
+	 */
+	@Override
+	public long[] getCellsWritten() {
+		final long[] written = new long[tiers.length];
+		for(int i = 0; i < tiers.length; i++) {
+			written[i] = tiers[i].segments.getRecordsWritten();
+		}
+		return written;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupStoreMXBean#getBytesWritten()
+	 */
+	@Override
+	public long getBytesWritten() {
+		long bytes = 0L;
+		for(RollupTier tier: tiers) {
+			bytes += tier.segments.getBytesWritten();
+		}
+		return bytes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupStoreMXBean#getWriteFailures()
+	 */
+	@Override
+	public long getWriteFailures() {
+		long failures = 0L;
+		for(RollupTier tier: tiers) {
+			failures += tier.segments.getWriteFailures();
+		}
+		return failures;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupStoreMXBean#getLateCells()
+	 */
+	@Override
+	public long getLateCells() {
+		return SeriesRollups.getLateCells();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupStoreMXBean#getCellsRead()
+	 */
+	@Override
+	public long getCellsRead() {
+		return cellsRead.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupStoreMXBean#getSegmentCount()
+	 */
+	@Override
+	public int getSegmentCount() {
+		int count = 0;
+		for(RollupTier tier: tiers) {
+			count += tier.segments.getSegmentCount();
+		}
+		return count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupStoreMXBean#getMappedBytes()
+	 */
+	@Override
+	public long getMappedBytes() {
+		long bytes = 0L;
+		for(RollupTier tier: tiers) {
+			bytes += tier.segments.getMappedBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.rollup.RollupStoreMXBean#getUsedBytes()
+	 */
+	@Override
+	public long getUsedBytes() {
+		long bytes = 0L;
+		for(RollupTier tier: tiers) {
+			bytes += tier.segments.getUsedBytes();
+		}
+		return bytes;
+	}
+
+}
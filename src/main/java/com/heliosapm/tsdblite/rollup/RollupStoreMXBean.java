@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.rollup;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: RollupStoreMXBean</p>
+ * <p>Description: JMX MXBean for the {@link RollupStore} instance</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.rollup.RollupStoreMXBean</code></p>
+ */
+
+public interface RollupStoreMXBean {
+
+	/** The JMX ObjectName for the {@link RollupStore}  */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.tsdblite:service=RollupStore");
+
+	/**
+	 * Returns the rollup store directory
+	 * @return the rollup store directory
+	 */
+	public String getDirectory();
+
+	/**
+	 * Returns the names of the rollup intervals, finest first
+	 * @return the rollup interval names
+	 */
+	public String[] getIntervals();
+
+	/**
+	 * Returns the cummulative number of cells written, per interval
+	 * @return the number of cells written per interval
+	 */
+	public long[] getCellsWritten();
+
+	/**
+	 * Returns the cummulative number of bytes written
+	 * @return the number of bytes written
+	 */
+	public long getBytesWritten();
+
+	/**
+	 * Returns the cummulative number of cells that could not be written
+	 * @return the number of failed cell writes
+	 */
+	public long getWriteFailures();
+
+	/**
+	 * Returns the cummulative number of points dropped from an interval because its cell was already sealed
+	 * @return the number of late cells
+	 */
+	public long getLateCells();
+
+	/**
+	 * Returns the cummulative number of cells read
+	 * @return the number of cells read
+	 */
+	public long getCellsRead();
+
+	/**
+	 * Returns the number of mapped segment files across all intervals
+	 * @return the number of segment files
+	 */
+	public int getSegmentCount();
+
+	/**
+	 * Returns the total mapped size of the segment files in bytes
+	 * @return the mapped bytes
+	 */
+	public long getMappedBytes();
+
+	/**
+	 * Returns the bytes used by cell records and series indexes in the segment files
+	 * @return the used bytes
+	 */
+	public long getUsedBytes();
+
+	/**
+	 * Drops the segment files whose newest cell is older than the retention
+	 * @return the number of dropped segment files
+	 */
+	public int purge();
+
+}
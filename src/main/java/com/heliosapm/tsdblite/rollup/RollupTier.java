@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.rollup;
+
+import java.io.File;
+
+import com.heliosapm.tsdblite.store.RecordCompactor;
+import com.heliosapm.tsdblite.store.RecordReader;
+import com.heliosapm.tsdblite.store.RecordWriter;
+import com.heliosapm.tsdblite.store.SegmentLog;
+import com.heliosapm.tsdblite.store.SeriesRecords;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * <p>Title: RollupTier</p>
+ * <p>Description: The sealed rollup cells of every series for one interval, persisted in their own {@link SegmentLog}.
+ * Each sealed cell is written as a record as soon as it is sealed. The tier name is its retention policy tier.</p>
+ * <p>When the segments are compacted, each series' cells are packed into records of up to {@link #BLOCK_CELLS} consecutive
+ * cells. The parts of a cell that was persisted in parts are merged, and cells that have expired under the series'
+ * policy are dropped.</p>
+ * <p>Cell format: <code>[long start][long count][double sum][double min][double max][double last]</code>.
+ * A record holds one or more consecutive cells of one series.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.rollup.RollupTier</code></p>
+ */
+
+public class RollupTier implements RecordCompactor {
+	/** The tier name, such as <code>1m</code> */
+	protected final String name;
+	/** The cell interval in ms. */
+	protected final long interval;
+	/** The persisted cells */
+	protected final SegmentLog segments;
+
+	/** The size of an encoded cell */
+	public static final int CELL_SIZE = 48;
+	/** The most cells in one compacted record */
+	public static final int BLOCK_CELLS = 1024;
+
+	/** The per thread cell encoding buffer */
+	private static final ThreadLocal<ByteBuf> cellBuffer = new ThreadLocal<ByteBuf>() {
+		@Override
+		protected ByteBuf initialValue() {
+			return Unpooled.buffer(CELL_SIZE);
+		}
+	};
+	/** The per thread compaction cell buffer */
+	private static final ThreadLocal<ByteBuf> blockBuffer = new ThreadLocal<ByteBuf>() {
+		@Override
+		protected ByteBuf initialValue() {
+			return Unpooled.buffer(CELL_SIZE * BLOCK_CELLS);
+		}
+	};
+
+	/**
+	 * Creates a new RollupTier
+	 * @param name The tier name
+	 * @param interval The cell interval in ms.
+	 * @param dir The tier's segment directory
+	 * @param segmentSize The fixed segment file size in bytes
+	 */
+	RollupTier(final String name, final long interval, final File dir, final int segmentSize) {
+		this.name = name;
+		this.interval = interval;
+		this.segments = new SegmentLog(dir, name, segmentSize);
+	}
+
+	/**
+	 * Persists one sealed cell
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 * @param policy The id of the series' retention policy
+	 * @param start The start of the cell's interval in ms.
+	 * @param count The number of points in the cell
+	 * @param sum The sum of the values
+	 * @param min The lowest value
+	 * @param max The highest value
+	 * @param last The value of the latest point
+	 */
+	void write(final long hashCode, final long hashCodeHigh, final int policy, final long start, final long count, final double sum, final double min, final double max, final double last) {
+		final ByteBuf cell = cellBuffer.get();
+		cell.clear();
+		cell.writeLong(start).writeLong(count).writeDouble(sum).writeDouble(min).writeDouble(max).writeDouble(last);
+		segments.write(hashCode, hashCodeHigh, policy, start, start, start + interval - 1, 1, cell);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.RecordCompactor#compact(com.heliosapm.tsdblite.store.SeriesRecords, com.heliosapm.tsdblite.store.RecordWriter)
+	 */
+	@Override
+	public void compact(final SeriesRecords records, final RecordWriter writer) {
+		final ByteBuf block = blockBuffer.get();
+		block.clear();
+		final long cutoff = records.getCutoff();
+		// cells are sealed in time order, and the parts of a cell are persisted one after the other
+		final MergingSink merging = new MergingSink(new RollupSink() {
+			@Override
+			public void cell(final long start, final long count, final double sum, final double min, final double max, final double last) {
+				if(block.writerIndex()==CELL_SIZE * BLOCK_CELLS) flush(block, writer);
+				block.writeLong(start).writeLong(count).writeDouble(sum).writeDouble(min).writeDouble(max).writeDouble(last);
+			}
+		});
+		for(int r = 0; r < records.size(); r++) {
+			final ByteBuf payload = records.getPayload(r);
+			for(int i = 0, offset = 0, count = records.getCount(r); i < count; i++, offset += CELL_SIZE) {
+				final long start = payload.getLong(offset);
+				if(start + interval - 1 < cutoff) continue;
+				merging.cell(start, payload.getLong(offset + 8), payload.getDouble(offset + 16), payload.getDouble(offset + 24), payload.getDouble(offset + 32), payload.getDouble(offset + 40));
+			}
+		}
+		merging.finish();
+		if(block.isReadable()) flush(block, writer);
+	}
+
+	private void flush(final ByteBuf block, final RecordWriter writer) {
+		final int cells = block.readableBytes() / CELL_SIZE;
+		final long first = block.getLong(0);
+		final long last = block.getLong((cells - 1) * CELL_SIZE);
+		writer.write(first, first, last + interval - 1, cells, block);
+		block.clear();
+	}
+
+	/**
+	 * Reads a series' persisted cells whose interval overlaps the passed range, oldest first.
+	 * Parts of the same cell are delivered separately.
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 * @param fromMs The range start in ms., inclusive
+	 * @param toMs The range end in ms., inclusive
+	 * @param sink The sink the cells are delivered to
+	 * @return the number of cells delivered
+	 */
+	int read(final long hashCode, final long hashCodeHigh, final long fromMs, final long toMs, final RollupSink sink) {
+		return segments.read(hashCode, hashCodeHigh, fromMs, toMs, new RecordReader() {
+			@Override
+			public int read(final long start, final int count, final ByteBuf payload) {
+				int delivered = 0;
+				for(int i = 0, offset = 0; i < count; i++, offset += CELL_SIZE) {
+					final long cellStart = payload.getLong(offset);
+					if(cellStart > toMs || cellStart + interval - 1 < fromMs) continue;
+					sink.cell(cellStart, payload.getLong(offset + 8), payload.getDouble(offset + 16), payload.getDouble(offset + 24), payload.getDouble(offset + 32), payload.getDouble(offset + 40));
+					delivered++;
+				}
+				return delivered;
+			}
+		});
+	}
+
+	/**
+	 * Returns the tier name
+	 * @return the tier name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the cell interval in ms.
+	 * @return the cell interval
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Returns the tier's segment files
+	 * @return the tier's segment files
+	 */
+	public SegmentLog getSegments() {
+		return segments;
+	}
+
+}
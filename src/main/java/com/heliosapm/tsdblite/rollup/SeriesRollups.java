@@ -0,0 +1,260 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.rollup;
+
+import java.util.Arrays;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.utils.config.ConfigurationHelper;
+
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: SeriesRollups</p>
+ * <p>Description: The open rollup cells of one series, one per configured interval. Each point updates the count, sum,
+ * min, max and last of every open cell in place. When a point arrives for a later interval, the open cell is sealed,
+ * handed to its {@link RollupTier} if the {@link RollupStore} is running, and a new cell is opened.
+ * A point for an interval that has already been sealed is dropped from that interval and counted as a late cell.</p>
+ * <p>Updates are serialized on the instance.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.rollup.SeriesRollups</code></p>
+ */
+
+public class SeriesRollups {
+	/** The low 64 bits of the series key */
+	private final long hashCode;
+	/** The high 64 bits of the series key */
+	private final long hashCodeHigh;
+	/** The id of the series' retention policy */
+	private final int policy;
+	/** The start, point count and latest timestamp of each interval's open cell */
+	private final long[] cells;
+	/** The sum, min, max and last value of each interval's open cell */
+	private final double[] values;
+	/** Indicates if the rollups have been freed */
+	private boolean freed = false;
+
+	/** The configured rollup intervals in ms., finest first */
+	public static final long[] INTERVALS;
+	/** The configured rollup interval names */
+	public static final String[] NAMES;
+
+	/** The start of an interval with no open cell */
+	private static final long NONE = Long.MIN_VALUE;
+	/** A counter of points dropped from an interval because its cell was already sealed */
+	private static final LongAdder lateCells = new LongAdder();
+	/** The store sealed cells are handed to */
+	private static volatile RollupStore store = null;
+
+	static {
+		if(ConfigurationHelper.getBooleanSystemThenEnvProperty(Constants.CONF_ROLLUP_ENABLED, Constants.DEFAULT_ROLLUP_ENABLED)) {
+			final String[] names = ConfigurationHelper.getSystemThenEnvProperty(Constants.CONF_ROLLUP_INTERVALS, Constants.DEFAULT_ROLLUP_INTERVALS).trim().split("\\s*,\\s*");
+			final long[] intervals = new long[names.length];
+			int count = 0;
+			for(String name: names) {
+				if(name.isEmpty()) continue;
+				final long interval = parseInterval(name);
+				if(interval < 1) throw new IllegalArgumentException("Invalid rollup interval [" + name + "]");
+				names[count] = name.toLowerCase();
+				intervals[count++] = interval;
+			}
+			INTERVALS = Arrays.copyOf(intervals, count);
+			NAMES = Arrays.copyOf(names, count);
+			for(int i = 1; i < count; i++) {
+				if(INTERVALS[i] <= INTERVALS[i-1]) throw new IllegalArgumentException("Rollup intervals must be in ascending order: " + Arrays.toString(NAMES));
+			}
+		} else {
+			INTERVALS = new long[0];
+			NAMES = new String[0];
+		}
+	}
+
+	/**
+	 * Parses an interval such as <code>10m</code>: a number with an optional s, m, h or d unit, or ms. if none
+	 * @param interval The interval to parse
+	 * @return the interval in ms.
+	 */
+	public static long parseInterval(final String interval) {
+		final String s = interval.trim().toLowerCase();
+		if(s.isEmpty()) throw new IllegalArgumentException("Empty interval");
+		final char unit = s.charAt(s.length() - 1);
+		final long multiplier;
+		switch(unit) {
+			case 's': multiplier = 1000L; break;
+			case 'm': multiplier = 60000L; break;
+			case 'h': multiplier = 3600000L; break;
+			case 'd': multiplier = 86400000L; break;
+			default: multiplier = 1L;
+		}
+		try {
+			return Long.parseLong(multiplier==1L ? s : s.substring(0, s.length() - 1)) * multiplier;
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Invalid interval [" + interval + "]");
+		}
+	}
+
+	/**
+	 * Creates a new SeriesRollups, or returns null if rollups are disabled
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 * @param policy The id of the series' retention policy
+	 * @return a new SeriesRollups or null
+	 */
+	public static SeriesRollups newInstance(final long hashCode, final long hashCodeHigh, final int policy) {
+		return INTERVALS.length==0 ? null : new SeriesRollups(hashCode, hashCodeHigh, policy);
+	}
+
+	private SeriesRollups(final long hashCode, final long hashCodeHigh, final int policy) {
+		this.hashCode = hashCode;
+		this.hashCodeHigh = hashCodeHigh;
+		this.policy = policy;
+		cells = new long[INTERVALS.length * 3];
+		values = new double[INTERVALS.length * 4];
+		for(int i = 0; i < INTERVALS.length; i++) {
+			cells[i * 3] = NONE;
+		}
+	}
+
+	/**
+	 * Sets the store sealed cells are handed to
+	 * @param rollupStore The store, or null to stop persisting sealed cells
+	 */
+	static void setStore(final RollupStore rollupStore) {
+		store = rollupStore;
+	}
+
+	/**
+	 * Returns the cummulative number of points dropped from an interval because its cell was already sealed
+	 * @return the cummulative number of late cells
+	 */
+	public static long getLateCells() {
+		return lateCells.longValue();
+	}
+
+	/**
+	 * Adds a point to every interval's open cell
+	 * @param timestamp The timestamp in ms.
+	 * @param value The value
+	 */
+	public synchronized void add(final long timestamp, final double value) {
+		if(freed) return;
+		for(int t = 0, c = 0, v = 0; t < INTERVALS.length; t++, c += 3, v += 4) {
+			final long start = timestamp - (timestamp % INTERVALS[t]);
+			final long open = cells[c];
+			if(start!=open) {
+				if(start < open) {
+					lateCells.increment();
+					continue;
+				}
+				if(open!=NONE) seal(t);
+				cells[c] = start;
+				cells[c + 1] = 1;
+				cells[c + 2] = timestamp;
+				values[v] = value;
+				values[v + 1] = value;
+				values[v + 2] = value;
+				values[v + 3] = value;
+				continue;
+			}
+			cells[c + 1]++;
+			values[v] += value;
+			if(value < values[v + 1]) values[v + 1] = value;
+			if(value > values[v + 2]) values[v + 2] = value;
+			if(timestamp >= cells[c + 2]) {
+				cells[c + 2] = timestamp;
+				values[v + 3] = value;
+			}
+		}
+	}
+
+	/**
+	 * Hands an interval's open cell to its tier
+	 * @param tier The interval index
+	 */
+	private void seal(final int tier) {
+		final RollupStore rollupStore = store;
+		if(rollupStore==null) return;
+		final int c = tier * 3, v = tier * 4;
+		rollupStore.getTier(tier).write(hashCode, hashCodeHigh, policy, cells[c], cells[c + 1], values[v], values[v + 1], values[v + 2], values[v + 3]);
+	}
+
+	/**
+	 * Hands a copy of every open cell to its tier, leaving the cells open.
+	 * Intended for shutdown: the rest of a cell is persisted separately when it is sealed, and merged on read.
+	 */
+	public synchronized void flush() {
+		if(freed) return;
+		for(int t = 0; t < INTERVALS.length; t++) {
+			if(cells[t * 3]!=NONE) seal(t);
+		}
+	}
+
+	/**
+	 * Hands the open cells to their tiers and closes them, so they are only read back from the tiers. Any later points are ignored.
+	 */
+	public synchronized void free() {
+		flush();
+		freed = true;
+		if(store==null) return;
+		for(int t = 0; t < INTERVALS.length; t++) {
+			cells[t * 3] = NONE;
+		}
+	}
+
+	/**
+	 * Reads the series' cells for one interval whose interval overlaps the passed range, oldest first,
+	 * including the open cell
+	 * @param tier The interval index
+	 * @param fromMs The range start in ms., inclusive
+	 * @param toMs The range end in ms., inclusive
+	 * @param sink The sink the cells are delivered to
+	 * @return the number of cells delivered
+	 */
+	public int read(final int tier, final long fromMs, final long toMs, final RollupSink sink) {
+		final RollupStore rollupStore = store;
+		final MergingSink merging = new MergingSink(sink);
+		final long open;
+		synchronized(this) {
+			open = cells[tier * 3];
+		}
+		if(rollupStore==null) {
+			readOpen(tier, fromMs, toMs, merging);
+			return merging.finish();
+		}
+		final RollupTier rollupTier = rollupStore.getTier(tier);
+		// everything before the open cell can be read without holding up appends
+		rollupTier.read(hashCode, hashCodeHigh, fromMs, open==NONE ? toMs : Math.min(toMs, open - 1), merging);
+		if(open!=NONE && open <= toMs) {
+			// anything from the open cell on is read under the lock, so a concurrent seal is seen exactly once
+			synchronized(this) {
+				rollupTier.read(hashCode, hashCodeHigh, Math.max(fromMs, open), toMs, merging);
+				readOpen(tier, fromMs, toMs, merging);
+			}
+		}
+		final int count = merging.finish();
+		rollupStore.read(count);
+		return count;
+	}
+
+	private synchronized void readOpen(final int tier, final long fromMs, final long toMs, final RollupSink sink) {
+		final int c = tier * 3, v = tier * 4;
+		final long start = cells[c];
+		if(start==NONE || start > toMs || start + INTERVALS[tier] - 1 < fromMs) return;
+		sink.cell(start, cells[c + 1], values[v], values[v + 1], values[v + 2], values[v + 3]);
+	}
+
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.jmx.ManagedForkJoinPool;
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.jmx.JMXHelper;
+import com.heliosapm.utils.time.SystemClock;
+
+/**
+ * <p>Title: CompactionScheduler</p>
+ * <p>Description: Compacts the registered {@link SegmentLog}s in the background. A scheduler thread periodically checks each
+ * log's backlog and hands each log that has one to a {@link ManagedForkJoinPool} task, which compacts runs of the log's
+ * sealed segments until none are left waiting. One task runs per log at a time, so logs are compacted in parallel
+ * up to the pool's parallelism.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.CompactionScheduler</code></p>
+ */
+
+public class CompactionScheduler implements CompactionSchedulerMXBean, Runnable {
+	/** The singleton instance */
+	private static volatile CompactionScheduler instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The compaction thread pool */
+	protected final ManagedForkJoinPool pool;
+	/** The period between scans in ms. */
+	protected final long period;
+	/** The most segments merged by one compaction */
+	protected final int maxSegments;
+	/** The scheduler thread */
+	protected final Thread schedulerThread;
+	/** The registered segment logs */
+	protected final CopyOnWriteArrayList<Target> targets = new CopyOnWriteArrayList<Target>();
+	/** Indicates if the scheduler has been closed */
+	private volatile boolean closed = false;
+	/** The time of the last scan */
+	private long lastScan = System.currentTimeMillis();
+	/** The bytes read by compaction at the last scan */
+	private long lastBytesIn = 0L;
+	/** The recent throughput in bytes per second */
+	private volatile long recentThroughput = 0L;
+
+	/**
+	 * Indicates if background compaction is enabled
+	 * @return true if enabled, false otherwise
+	 */
+	public static boolean isEnabled() {
+		return ConfigurationHelper.getBooleanSystemThenEnvProperty(Constants.CONF_COMPACTION_ENABLED, Constants.DEFAULT_COMPACTION_ENABLED);
+	}
+
+	/**
+	 * Acquires the CompactionScheduler singleton
+	 * @return the CompactionScheduler singleton
+	 */
+	public static CompactionScheduler getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new CompactionScheduler();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private CompactionScheduler() {
+		period = Math.max(1000L, ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_COMPACTION_PERIOD, Constants.DEFAULT_COMPACTION_PERIOD));
+		maxSegments = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_COMPACTION_MAX_SEGMENTS, Constants.DEFAULT_COMPACTION_MAX_SEGMENTS));
+		final int threads = Math.max(1, ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_COMPACTION_THREADS, Constants.DEFAULT_COMPACTION_THREADS));
+		pool = new ManagedForkJoinPool("Compaction", threads, true);
+		schedulerThread = new Thread(this, "CompactionScheduler");
+		schedulerThread.setDaemon(true);
+		schedulerThread.start();
+		JMXHelper.registerMBean(this, OBJECT_NAME);
+		log.info("CompactionScheduler started with [{}] threads, scanning every [{}] ms.", threads, period);
+	}
+
+	/**
+	 * Registers a segment log for compaction
+	 * @param segments The segment log
+	 * @param compactor The compactor that merges each series' records in the log
+	 */
+	public void register(final SegmentLog segments, final RecordCompactor compactor) {
+		targets.add(new Target(segments, compactor));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while(!closed) {
+			try {
+				SystemClock.sleep(period);
+				if(!closed) scan();
+			} catch (Throwable t) {
+				if(!closed) log.error("Compaction scan failure", t);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#scan()
+	 */
+	@Override
+	public synchronized int scan() {
+		final long now = System.currentTimeMillis();
+		final long bytesIn = getBytesIn();
+		if(now > lastScan) recentThroughput = (bytesIn - lastBytesIn) * 1000L / (now - lastScan);
+		lastScan = now;
+		lastBytesIn = bytesIn;
+		int started = 0;
+		for(final Target target: targets) {
+			if(closed) break;
+			if(target.segments.getCompactionBacklog()==0 || !target.running.compareAndSet(false, true)) continue;
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while(!closed && target.segments.compact(target.compactor, maxSegments)) {
+							/* keep going until the backlog is cleared */
+						}
+					} finally {
+						target.running.set(false);
+					}
+				}
+			});
+			started++;
+		}
+		return started;
+	}
+
+	/**
+	 * Stops scanning and waits for running compactions to finish. Must be called before the segment logs are closed.
+	 */
+	public void close() {
+		if(closed) return;
+		closed = true;
+		schedulerThread.interrupt();
+		pool.shutdown();
+		try {
+			if(!pool.awaitTermination(60, TimeUnit.SECONDS)) log.warn("Compactions still running after 60 s.");
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+		log.info("CompactionScheduler closed");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getPeriod()
+	 */
+	@Override
+	public long getPeriod() {
+		return period;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getMaxSegments()
+	 */
+	@Override
+	public int getMaxSegments() {
+		return maxSegments;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getRunning()
+	 */
+	@Override
+	public int getRunning() {
+		int running = 0;
+		for(Target target: targets) {
+			if(target.running.get()) running++;
+		}
+		return running;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getBacklog()
+	 */
+	@Override
+	public int getBacklog() {
+		int backlog = 0;
+		for(Target target: targets) {
+			backlog += target.segments.getCompactionBacklog();
+		}
+		return backlog;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getBacklogs()
+	 */
+	@Override
+	public Map<String, Integer> getBacklogs() {
+		final Map<String, Integer> backlogs = new TreeMap<String, Integer>();
+		for(Target target: targets) {
+			backlogs.put(target.segments.getDirectory(), target.segments.getCompactionBacklog());
+		}
+		return backlogs;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getCompactions()
+	 */
+	@Override
+	public long getCompactions() {
+		long total = 0L;
+		for(Target target: targets) {
+			total += target.segments.getCompactions();
+		}
+		return total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getCompactionFailures()
+	 */
+	@Override
+	public long getCompactionFailures() {
+		long total = 0L;
+		for(Target target: targets) {
+			total += target.segments.getCompactionFailures();
+		}
+		return total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getCompactedSegments()
+	 */
+	@Override
+	public long getCompactedSegments() {
+		long total = 0L;
+		for(Target target: targets) {
+			total += target.segments.getCompactedSegments();
+		}
+		return total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getRecordsIn()
+	 */
+	@Override
+	public long getRecordsIn() {
+		long total = 0L;
+		for(Target target: targets) {
+			total += target.segments.getCompactedRecordsIn();
+		}
+		return total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getRecordsOut()
+	 */
+	@Override
+	public long getRecordsOut() {
+		long total = 0L;
+		for(Target target: targets) {
+			total += target.segments.getCompactedRecordsOut();
+		}
+		return total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getExpiredRecords()
+	 */
+	@Override
+	public long getExpiredRecords() {
+		long total = 0L;
+		for(Target target: targets) {
+			total += target.segments.getExpiredRecords();
+		}
+		return total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getBytesIn()
+	 */
+	@Override
+	public long getBytesIn() {
+		long total = 0L;
+		for(Target target: targets) {
+			total += target.segments.getCompactedBytesIn();
+		}
+		return total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getBytesOut()
+	 */
+	@Override
+	public long getBytesOut() {
+		long total = 0L;
+		for(Target target: targets) {
+			total += target.segments.getCompactedBytesOut();
+		}
+		return total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getCompactionTime()
+	 */
+	@Override
+	public long getCompactionTime() {
+		long total = 0L;
+		for(Target target: targets) {
+			total += target.segments.getCompactionNanos();
+		}
+		return TimeUnit.NANOSECONDS.toMillis(total);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getThroughput()
+	 */
+	@Override
+	public long getThroughput() {
+		long nanos = 0L;
+		for(Target target: targets) {
+			nanos += target.segments.getCompactionNanos();
+		}
+		return nanos==0 ? 0L : (long)(getBytesIn() * 1000000000D / nanos);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.CompactionSchedulerMXBean#getRecentThroughput()
+	 */
+	@Override
+	public long getRecentThroughput() {
+		return recentThroughput;
+	}
+
+	/**
+	 * <p>Title: Target</p>
+	 * <p>Description: A registered segment log and its compactor</p>
+	 */
+	private static class Target {
+		/** The segment log */
+		final SegmentLog segments;
+		/** The compactor that merges each series' records in the log */
+		final RecordCompactor compactor;
+		/** Indicates if a compaction task is running for the log */
+		final AtomicBoolean running = new AtomicBoolean(false);
+
+		Target(final SegmentLog segments, final RecordCompactor compactor) {
+			this.segments = segments;
+			this.compactor = compactor;
+		}
+	}
+
+}
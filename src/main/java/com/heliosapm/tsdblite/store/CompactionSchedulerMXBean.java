@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: CompactionSchedulerMXBean</p>
+ * <p>Description: JMX MXBean for the {@link CompactionScheduler} instance</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.CompactionSchedulerMXBean</code></p>
+ */
+
+public interface CompactionSchedulerMXBean {
+
+	/** The JMX ObjectName for the {@link CompactionScheduler}  */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.tsdblite:service=CompactionScheduler");
+
+	/**
+	 * Returns the period between compaction scans in ms.
+	 * @return the scan period
+	 */
+	public long getPeriod();
+
+	/**
+	 * Returns the maximum number of segment files merged by one compaction
+	 * @return the maximum number of merged segments
+	 */
+	public int getMaxSegments();
+
+	/**
+	 * Returns the number of segment logs being compacted right now
+	 * @return the number of running compactions
+	 */
+	public int getRunning();
+
+	/**
+	 * Returns the total number of segment files waiting to be compacted
+	 * @return the compaction backlog in segments
+	 */
+	public int getBacklog();
+
+	/**
+	 * Returns the number of segment files waiting to be compacted, keyed by segment log directory
+	 * @return the compaction backlog of each segment log
+	 */
+	public Map<String, Integer> getBacklogs();
+
+	/**
+	 * Returns the cummulative number of completed compactions
+	 * @return the number of compactions
+	 */
+	public long getCompactions();
+
+	/**
+	 * Returns the cummulative number of failed compactions
+	 * @return the number of failed compactions
+	 */
+	public long getCompactionFailures();
+
+	/**
+	 * Returns the cummulative number of segment files rewritten by compaction
+	 * @return the number of compacted segments
+	 */
+	public long getCompactedSegments();
+
+	/**
+	 * Returns the cummulative number of records read by compaction
+	 * @return the number of records read
+	 */
+	public long getRecordsIn();
+
+	/**
+	 * Returns the cummulative number of records written by compaction
+	 * @return the number of records written
+	 */
+	public long getRecordsOut();
+
+	/**
+	 * Returns the cummulative number of records dropped by compaction because their retention had expired
+	 * @return the number of expired records
+	 */
+	public long getExpiredRecords();
+
+	/**
+	 * Returns the cummulative number of segment bytes read by compaction
+	 * @return the number of bytes read
+	 */
+	public long getBytesIn();
+
+	/**
+	 * Returns the cummulative number of segment bytes written by compaction
+	 * @return the number of bytes written
+	 */
+	public long getBytesOut();
+
+	/**
+	 * Returns the cummulative time spent compacting in ms.
+	 * @return the compaction time in ms.
+	 */
+	public long getCompactionTime();
+
+	/**
+	 * Returns the compaction throughput: segment bytes read per second spent compacting
+	 * @return the throughput in bytes per second
+	 */
+	public long getThroughput();
+
+	/**
+	 * Returns the segment bytes read by compaction per second of wall clock time between the last two scans
+	 * @return the recent throughput in bytes per second
+	 */
+	public long getRecentThroughput();
+
+	/**
+	 * Scans the segment logs and starts compacting those with a backlog
+	 * @return the number of segment logs compaction was started for
+	 */
+	public int scan();
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+/**
+ * <p>Title: FsyncPolicy</p>
+ * <p>Description: Defines when the write-ahead log forces written group commits to disk</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.FsyncPolicy</code></p>
+ */
+
+public enum FsyncPolicy {
+	/** Never force. The operating system flushes in its own time, so a host crash can lose recent points. */
+	NONE,
+	/** Force at most once per configured interval. A host crash loses at most the last interval. */
+	INTERVAL,
+	/** Force after every group commit */
+	BATCH;
+
+	/**
+	 * Decodes the passed name to a FsyncPolicy, ignoring case
+	 * @param name The name to decode
+	 * @param defaultPolicy The policy to return if the name is null or not recognized
+	 * @return the decoded FsyncPolicy
+	 */
+	public static FsyncPolicy decode(final String name, final FsyncPolicy defaultPolicy) {
+		if(name==null) return defaultPolicy;
+		try {
+			return valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException iex) {
+			return defaultPolicy;
+		}
+	}
+}
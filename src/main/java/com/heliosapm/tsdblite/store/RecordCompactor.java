@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+/**
+ * <p>Title: RecordCompactor</p>
+ * <p>Description: Merges the records of one series into fewer, larger records when a {@link SegmentLog} is compacted.
+ * The records that have expired under the series' {@link RetentionPolicy} have already been left out.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.RecordCompactor</code></p>
+ */
+
+public interface RecordCompactor {
+	/**
+	 * Merges a series' records
+	 * @param records The series' records, oldest first
+	 * @param writer The writer the merged records are written to
+	 */
+	public void compact(SeriesRecords records, RecordWriter writer);
+}
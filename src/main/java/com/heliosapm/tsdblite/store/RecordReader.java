@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: RecordReader</p>
+ * <p>Description: Decodes the payloads of the records read out of a {@link SegmentLog}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.RecordReader</code></p>
+ */
+
+public interface RecordReader {
+	/**
+	 * Reads one record
+	 * @param start The record start, such as a chunk's span start
+	 * @param count The number of items in the record
+	 * @param payload The record payload, which is only valid for the duration of the call
+	 * @return the number of items delivered
+	 */
+	public int read(long start, int count, ByteBuf payload);
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: RecordWriter</p>
+ * <p>Description: Accepts the merged records of one series from a {@link RecordCompactor}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.RecordWriter</code></p>
+ */
+
+public interface RecordWriter {
+	/**
+	 * Writes a merged record
+	 * @param start The record start
+	 * @param minTs The lowest timestamp in the record
+	 * @param maxTs The highest timestamp in the record
+	 * @param count The number of items in the record
+	 * @param payload The record payload, from its reader index to its writer index, which is not modified
+	 */
+	public void write(long start, long minTs, long maxTs, int count, ByteBuf payload);
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.metric.MetricCache;
+import com.heliosapm.tsdblite.rollup.SeriesRollups;
+import com.heliosapm.utils.config.ConfigurationHelper;
+
+/**
+ * <p>Title: RetentionPolicy</p>
+ * <p>Description: How long each storage tier keeps the data of the series whose metric name starts with a prefix.
+ * The tiers are <code>raw</code>, the segment store, and each rollup interval by name, such as <code>1m</code>.
+ * The longest matching prefix wins. A tier the matching policy does not mention follows the default policy,
+ * and a tier the default policy does not mention is kept.</p>
+ * <p>Every persisted record carries the id of its series' policy, so compaction can drop it once it has expired without
+ * knowing the metric name. The id is the hash of the prefix, so it survives reordering the configured policies.
+ * A record whose policy has since been removed follows the default policy.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.RetentionPolicy</code></p>
+ */
+
+public class RetentionPolicy {
+	/** The metric-name prefix, empty for the default policy */
+	protected final String prefix;
+	/** The policy id */
+	protected final int id;
+	/** The retention in ms. of each tier, keyed by tier name */
+	protected final Map<String, Long> retentions;
+
+	/** The tier name of the segment store */
+	public static final String RAW = "raw";
+	/** The retention of a tier that is kept */
+	public static final long KEEP = Long.MAX_VALUE;
+
+	/** Static class logger */
+	private static final Logger log = LoggerFactory.getLogger(RetentionPolicy.class);
+	/** The default policy */
+	private static final RetentionPolicy DEFAULT;
+	/** The prefix policies, longest prefix first */
+	private static final RetentionPolicy[] PREFIXES;
+	/** The policies keyed by id */
+	private static final NonBlockingHashMapLong<RetentionPolicy> BY_ID = new NonBlockingHashMapLong<RetentionPolicy>(16, false);
+
+	static {
+		DEFAULT = new RetentionPolicy("", parse(ConfigurationHelper.getSystemThenEnvProperty(Constants.CONF_RETENTION_DEFAULT, Constants.DEFAULT_RETENTION_DEFAULT)), null);
+		BY_ID.put(DEFAULT.id, DEFAULT);
+		final List<RetentionPolicy> policies = new ArrayList<RetentionPolicy>();
+		for(String entry: ConfigurationHelper.getSystemThenEnvProperty(Constants.CONF_RETENTION_PREFIXES, Constants.DEFAULT_RETENTION_PREFIXES).split(";")) {
+			if(entry.trim().isEmpty()) continue;
+			final int eq = entry.indexOf('=');
+			if(eq < 1) throw new IllegalArgumentException("Invalid retention policy [" + entry + "]");
+			// cleaned like the metric names it is matched against, which are lower cased
+			final RetentionPolicy policy = new RetentionPolicy(MetricCache.clean(entry.substring(0, eq), "retention prefix"), parse(entry.substring(eq + 1)), DEFAULT);
+			final RetentionPolicy prior = BY_ID.putIfAbsent(policy.id, policy);
+			if(prior!=null) {
+				log.warn("Retention policy prefix [{}] has the same id as [{}] and will be ignored", policy.prefix, prior.prefix.isEmpty() ? "<default>" : prior.prefix);
+				continue;
+			}
+			policies.add(policy);
+		}
+		Collections.sort(policies, new Comparator<RetentionPolicy>() {
+			@Override
+			public int compare(final RetentionPolicy a, final RetentionPolicy b) {
+				return b.prefix.length() - a.prefix.length();
+			}
+		});
+		PREFIXES = policies.toArray(new RetentionPolicy[policies.size()]);
+		for(RetentionPolicy policy: PREFIXES) {
+			log.info("Retention policy for [{}*]: {}", policy.prefix, policy.retentions);
+		}
+		log.info("Default retention policy: {}", DEFAULT.retentions);
+	}
+
+	/**
+	 * Parses comma separated <code>tier:age</code> pairs
+	 * @param spec The spec to parse
+	 * @return the retentions keyed by tier name
+	 */
+	private static Map<String, Long> parse(final String spec) {
+		final Map<String, Long> retentions = new HashMap<String, Long>();
+		for(String pair: spec.split(",")) {
+			if(pair.trim().isEmpty()) continue;
+			final int colon = pair.indexOf(':');
+			if(colon < 1) throw new IllegalArgumentException("Invalid tier retention [" + pair + "]");
+			retentions.put(pair.substring(0, colon).trim().toLowerCase(), SeriesRollups.parseInterval(pair.substring(colon + 1)));
+		}
+		return retentions;
+	}
+
+	private RetentionPolicy(final String prefix, final Map<String, Long> retentions, final RetentionPolicy parent) {
+		this.prefix = prefix;
+		this.id = prefix.hashCode();
+		if(parent!=null) {
+			for(Map.Entry<String, Long> entry: parent.retentions.entrySet()) {
+				if(!retentions.containsKey(entry.getKey())) retentions.put(entry.getKey(), entry.getValue());
+			}
+		}
+		this.retentions = Collections.unmodifiableMap(retentions);
+	}
+
+	/**
+	 * Returns the policy of the passed metric name
+	 * @param metricName The metric name
+	 * @return the policy of the longest matching prefix, or the default policy
+	 */
+	public static RetentionPolicy forMetric(final String metricName) {
+		if(metricName!=null) {
+			for(RetentionPolicy policy: PREFIXES) {
+				if(metricName.startsWith(policy.prefix)) return policy;
+			}
+		}
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the policy with the passed id
+	 * @param id The policy id
+	 * @return the policy, or the default policy if there is none with the id
+	 */
+	public static RetentionPolicy forId(final int id) {
+		final RetentionPolicy policy = BY_ID.get(id);
+		return policy==null ? DEFAULT : policy;
+	}
+
+	/**
+	 * Returns the longest retention any policy has for the passed tier, after which whole segment files can be dropped
+	 * @param tier The tier name
+	 * @return the longest retention in ms., or {@link #KEEP}
+	 */
+	public static long getMaxRetention(final String tier) {
+		long max = DEFAULT.getRetention(tier);
+		for(RetentionPolicy policy: PREFIXES) {
+			max = Math.max(max, policy.getRetention(tier));
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the shortest retention any policy has for the passed tier, before which no record can expire
+	 * @param tier The tier name
+	 * @return the shortest retention in ms., or {@link #KEEP}
+	 */
+	public static long getMinRetention(final String tier) {
+		long min = DEFAULT.getRetention(tier);
+		for(RetentionPolicy policy: PREFIXES) {
+			min = Math.min(min, policy.getRetention(tier));
+		}
+		return min;
+	}
+
+	/**
+	 * Returns the retention of the passed tier
+	 * @param tier The tier name
+	 * @return the retention in ms., or {@link #KEEP}
+	 */
+	public long getRetention(final String tier) {
+		final Long retention = retentions.get(tier);
+		return retention==null ? KEEP : retention;
+	}
+
+	/**
+	 * Returns the time before which the passed tier's data has expired
+	 * @param tier The tier name
+	 * @param now The current time in ms.
+	 * @return the cutoff in ms., or Long.MIN_VALUE if the tier is kept
+	 */
+	public long getCutoff(final String tier, final long now) {
+		final long retention = getRetention(tier);
+		return retention==KEEP ? Long.MIN_VALUE : now - retention;
+	}
+
+	/**
+	 * Returns the metric-name prefix
+	 * @return the prefix, empty for the default policy
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Returns the policy id
+	 * @return the policy id
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "RetentionPolicy [" + (prefix.isEmpty() ? "<default>" : prefix + "*") + ": " + retentions + "]";
+	}
+
+}
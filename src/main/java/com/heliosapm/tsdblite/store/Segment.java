@@ -0,0 +1,508 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * <p>Title: Segment</p>
+ * <p>Description: One fixed size, memory-mapped segment file of a {@link SegmentLog}.
+ * Records, such as sealed chunks, are appended from the front of the file. While the segment is open, the record offsets
+ * of each series are kept in a heap index. When the segment is sealed, a sorted series index is written after the
+ * last record and the heap index is dropped. Reads of a sealed segment binary search the index and hand the record
+ * payloads to a {@link RecordReader} straight out of the mapping, so they are served from the page cache with no deserialization.</p>
+ * <p>A segment written by compaction records the lowest sequence number of the segments it replaces, so segments a crash
+ * left behind after the compacted one was put in place can be recognized, and the time its first record expires.</p>
+ * <p>File format:<ul>
+ * 	<li><b>Header</b> (64 bytes): <code>[int magic][int state][long data end][long min ts][long max ts][long index offset][int index count][int padding][long compacted from][long next expiry]</code></li>
+ * 	<li><b>Record</b>: <code>[long key][long key high][long start][long min ts][long max ts][int item count][int length][int policy][int padding][payload, padded to 8 bytes]</code></li>
+ * 	<li><b>Index entry</b>: <code>[long key][long key high][long record offset]</code>, sorted by key then offset</li>
+ * </ul></p>
+ * <p>Writes must be serialized by the caller. Reads can run concurrently with writes.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.Segment</code></p>
+ */
+
+class Segment {
+	/** The segment sequence number */
+	final long seq;
+	/** The segment file */
+	final File file;
+	/** The file mapping */
+	private final MappedByteBuffer buf;
+	/** The chunk record offsets of each series while open, null once sealed */
+	private volatile NonBlockingHashMapLong<int[]> offsets;
+	/** The lowest point timestamp in the segment */
+	private volatile long minTimestamp = Long.MAX_VALUE;
+	/** The highest point timestamp in the segment */
+	private volatile long maxTimestamp = Long.MIN_VALUE;
+	/** The end of the record data */
+	private int dataEnd = HEADER;
+	/** The number of records */
+	private int records = 0;
+	/** The offset of the series index once sealed */
+	private int indexOffset = 0;
+	/** The lowest sequence number of the segments this one replaced, or 0 if it was not written by compaction */
+	private long compactedFrom = 0L;
+	/** The time the first record of a compacted segment expires */
+	private long nextExpiry = Long.MAX_VALUE;
+
+	/** The segment file header */
+	public static final int MAGIC = 0x53454732; // SEG2
+	/** The header size */
+	public static final int HEADER = 64;
+	/** The record header size */
+	public static final int RECORD_HEADER = 56;
+	/** The index entry size */
+	public static final int INDEX_ENTRY = 24;
+
+	/** The header state offset */
+	private static final int H_STATE = 4;
+	/** The header data end offset */
+	private static final int H_DATA_END = 8;
+	/** The header min timestamp offset */
+	private static final int H_MIN_TS = 16;
+	/** The header max timestamp offset */
+	private static final int H_MAX_TS = 24;
+	/** The header index offset offset */
+	private static final int H_INDEX_OFFSET = 32;
+	/** The header index count offset */
+	private static final int H_INDEX_COUNT = 40;
+	/** The header compacted from offset */
+	private static final int H_COMPACTED_FROM = 48;
+	/** The header next expiry offset */
+	private static final int H_NEXT_EXPIRY = 56;
+	/** The record policy offset */
+	private static final int R_POLICY = 48;
+	/** The open state */
+	private static final int OPEN = 0;
+	/** The sealed state */
+	private static final int SEALED = 1;
+
+	/** Orders index entries by key, key high and offset */
+	private static final Comparator<long[]> ENTRY_ORDER = new Comparator<long[]>() {
+		@Override
+		public int compare(final long[] a, final long[] b) {
+			for(int i = 0; i < 3; i++) {
+				if(a[i]!=b[i]) return a[i] < b[i] ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+
+	/**
+	 * Creates and maps a new, open segment file
+	 * @param file The file, which must not exist
+	 * @param seq The segment sequence number
+	 * @param size The fixed file size in bytes
+	 * @return the new segment
+	 * @throws IOException thrown on any IO error
+	 */
+	static Segment create(final File file, final long seq, final int size) throws IOException {
+		final FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			final MappedByteBuffer buf = ch.map(MapMode.READ_WRITE, 0, size);
+			buf.putInt(0, MAGIC);
+			buf.putInt(H_STATE, OPEN);
+			buf.putLong(H_DATA_END, HEADER);
+			buf.putLong(H_MIN_TS, Long.MAX_VALUE);
+			buf.putLong(H_MAX_TS, Long.MIN_VALUE);
+			buf.putLong(H_NEXT_EXPIRY, Long.MAX_VALUE);
+			return new Segment(file, seq, buf, new NonBlockingHashMapLong<int[]>(1024, false));
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * Maps an existing segment file. A sealed segment only has its header read.
+	 * A segment left open by a crash has its records scanned and is then sealed.
+	 * @param file The file
+	 * @param seq The segment sequence number
+	 * @return the segment
+	 * @throws IOException thrown on any IO error or if the file is not a segment
+	 */
+	static Segment open(final File file, final long seq) throws IOException {
+		final FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			final long size = ch.size();
+			if(size < HEADER || size > Integer.MAX_VALUE) throw new IOException("Invalid segment size [" + size + "] in [" + file + "]");
+			final ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while(header.hasRemaining()) {
+				if(ch.read(header, header.position()) < 0) throw new IOException("Truncated segment header in [" + file + "]");
+			}
+			if(header.getInt(0)!=MAGIC) throw new IOException("Invalid segment header in [" + file + "]");
+			if(header.getInt(H_STATE)==SEALED) {
+				final Segment segment = new Segment(file, seq, ch.map(MapMode.READ_ONLY, 0, size), null);
+				segment.dataEnd = (int)header.getLong(H_DATA_END);
+				segment.indexOffset = (int)header.getLong(H_INDEX_OFFSET);
+				segment.records = header.getInt(H_INDEX_COUNT);
+				segment.minTimestamp = header.getLong(H_MIN_TS);
+				segment.maxTimestamp = header.getLong(H_MAX_TS);
+				segment.compactedFrom = header.getLong(H_COMPACTED_FROM);
+				segment.nextExpiry = header.getLong(H_NEXT_EXPIRY);
+				return segment;
+			}
+			final Segment segment = new Segment(file, seq, ch.map(MapMode.READ_WRITE, 0, size), new NonBlockingHashMapLong<int[]>(1024, false));
+			segment.recover(header.getLong(H_DATA_END));
+			segment.seal();
+			return segment;
+		} finally {
+			ch.close();
+		}
+	}
+
+	private Segment(final File file, final long seq, final MappedByteBuffer buf, final NonBlockingHashMapLong<int[]> offsets) {
+		this.file = file;
+		this.seq = seq;
+		this.buf = buf;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Rebuilds the heap index of an open segment from its records
+	 * @param end The data end recorded in the header
+	 */
+	private void recover(final long end) {
+		int offset = HEADER;
+		while(offset + RECORD_HEADER <= end && offset + RECORD_HEADER <= buf.capacity()) {
+			final int count = buf.getInt(offset + 40);
+			final int length = buf.getInt(offset + 44);
+			final int next = offset + RECORD_HEADER + pad(length);
+			if(count < 1 || length < 0 || next > end) break;
+			index(offset, buf.getLong(offset), buf.getLong(offset + 24), buf.getLong(offset + 32));
+			offset = next;
+		}
+		dataEnd = offset;
+		buf.putLong(H_DATA_END, dataEnd);
+	}
+
+	/**
+	 * Appends a record
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 * @param policy The id of the series' {@link RetentionPolicy}
+	 * @param start The record start, such as a chunk's span start
+	 * @param minTs The lowest timestamp in the record
+	 * @param maxTs The highest timestamp in the record
+	 * @param count The number of items in the record
+	 * @param payload The record payload, from its reader index to its writer index, which is not modified
+	 * @return the number of bytes written, or 0 if the segment is sealed or does not have room for the record and its index entry
+	 */
+	int write(final long hashCode, final long hashCodeHigh, final int policy, final long start, final long minTs, final long maxTs, final int count, final ByteBuf payload) {
+		if(offsets==null) return 0;
+		final int length = payload.readableBytes();
+		final int size = RECORD_HEADER + pad(length);
+		if((long)dataEnd + size + (long)(records + 1) * INDEX_ENTRY > buf.capacity()) return 0;
+		final int offset = dataEnd;
+		final ByteBuffer target = buf.duplicate();
+		target.limit(offset + RECORD_HEADER + length).position(offset + RECORD_HEADER);
+		payload.getBytes(payload.readerIndex(), target);
+		buf.putLong(offset, hashCode);
+		buf.putLong(offset + 8, hashCodeHigh);
+		buf.putLong(offset + 16, start);
+		buf.putLong(offset + 24, minTs);
+		buf.putLong(offset + 32, maxTs);
+		buf.putInt(offset + 40, count);
+		buf.putInt(offset + 44, length);
+		buf.putInt(offset + R_POLICY, policy);
+		dataEnd = offset + size;
+		buf.putLong(H_DATA_END, dataEnd);
+		index(offset, hashCode, minTs, maxTs);
+		return size;
+	}
+
+	private void index(final int offset, final long hashCode, final long minTs, final long maxTs) {
+		final int[] prior = offsets.get(hashCode);
+		final int[] updated;
+		if(prior==null) {
+			updated = new int[]{offset};
+		} else {
+			updated = Arrays.copyOf(prior, prior.length + 1);
+			updated[prior.length] = offset;
+		}
+		offsets.put(hashCode, updated);
+		records++;
+		if(minTs < minTimestamp) {
+			minTimestamp = minTs;
+			buf.putLong(H_MIN_TS, minTs);
+		}
+		if(maxTs > maxTimestamp) {
+			maxTimestamp = maxTs;
+			buf.putLong(H_MAX_TS, maxTs);
+		}
+	}
+
+	/**
+	 * Marks this open segment as written by compaction. Takes effect when it is sealed.
+	 * @param from The lowest sequence number of the segments it replaces
+	 * @param expiry The time its first record expires
+	 */
+	void compacted(final long from, final long expiry) {
+		compactedFrom = from;
+		nextExpiry = expiry;
+		buf.putLong(H_COMPACTED_FROM, from);
+		buf.putLong(H_NEXT_EXPIRY, expiry);
+	}
+
+	/**
+	 * Writes the sorted series index after the records, marks the segment sealed and forces it to disk
+	 */
+	void seal() {
+		final NonBlockingHashMapLong<int[]> open = offsets;
+		if(open==null) return;
+		final long[][] entries = new long[records][];
+		int e = 0;
+		for(int[] recordOffsets: open.values()) {
+			for(int offset: recordOffsets) {
+				entries[e++] = new long[]{buf.getLong(offset), buf.getLong(offset + 8), offset};
+			}
+		}
+		Arrays.sort(entries, 0, e, ENTRY_ORDER);
+		int pos = dataEnd;
+		for(int i = 0; i < e; i++) {
+			buf.putLong(pos, entries[i][0]);
+			buf.putLong(pos + 8, entries[i][1]);
+			buf.putLong(pos + 16, entries[i][2]);
+			pos += INDEX_ENTRY;
+		}
+		indexOffset = dataEnd;
+		records = e;
+		buf.putLong(H_INDEX_OFFSET, indexOffset);
+		buf.putInt(H_INDEX_COUNT, e);
+		buf.force();
+		buf.putInt(H_STATE, SEALED);
+		buf.force();
+		// readers check the heap index first, so the sealed index must be complete before it goes
+		offsets = null;
+	}
+
+	/**
+	 * Forces outstanding writes to disk
+	 */
+	void force() {
+		buf.force();
+	}
+
+	/**
+	 * Indicates if any of the segment's points may fall in the passed range
+	 * @param fromMs The range start in ms., inclusive
+	 * @param toMs The range end in ms., inclusive
+	 * @return true if the segment overlaps the range
+	 */
+	boolean overlaps(final long fromMs, final long toMs) {
+		return minTimestamp <= toMs && maxTimestamp >= fromMs;
+	}
+
+	/**
+	 * Reads a series' records that overlap the passed range, in write order
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 * @param fromMs The range start in ms., inclusive
+	 * @param toMs The range end in ms., inclusive
+	 * @param reader The reader the record payloads are handed to
+	 * @return the total returned by the reader
+	 */
+	int read(final long hashCode, final long hashCodeHigh, final long fromMs, final long toMs, final RecordReader reader) {
+		if(!overlaps(fromMs, toMs)) return 0;
+		int count = 0;
+		final NonBlockingHashMapLong<int[]> open = offsets;
+		if(open!=null) {
+			final int[] recordOffsets = open.get(hashCode);
+			if(recordOffsets==null) return 0;
+			for(int offset: recordOffsets) {
+				if(buf.getLong(offset + 8)==hashCodeHigh) count += readRecord(offset, fromMs, toMs, reader);
+			}
+			return count;
+		}
+		// lower bound binary search for the first entry of the key
+		int lo = 0, hi = records;
+		while(lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if(buf.getLong(indexOffset + mid * INDEX_ENTRY) < hashCode) lo = mid + 1;
+			else hi = mid;
+		}
+		for(int i = lo; i < records; i++) {
+			final int entry = indexOffset + i * INDEX_ENTRY;
+			if(buf.getLong(entry)!=hashCode) break;
+			if(buf.getLong(entry + 8)==hashCodeHigh) count += readRecord((int)buf.getLong(entry + 16), fromMs, toMs, reader);
+		}
+		return count;
+	}
+
+	private int readRecord(final int offset, final long fromMs, final long toMs, final RecordReader reader) {
+		if(buf.getLong(offset + 24) > toMs || buf.getLong(offset + 32) < fromMs) return 0;
+		return reader.read(buf.getLong(offset + 16), buf.getInt(offset + 40), getPayload(offset));
+	}
+
+	private static int pad(final int length) {
+		return (length + 7) & ~7;
+	}
+
+	/**
+	 * Returns the record offset of an entry of a sealed segment's series index
+	 * @param index The index entry
+	 * @return the record offset
+	 */
+	int getIndexRecord(final int index) {
+		return (int)buf.getLong(indexOffset + index * INDEX_ENTRY + 16);
+	}
+
+	/**
+	 * Returns the low 64 bits of the series key of a record
+	 * @param offset The record offset
+	 * @return the low 64 bits of the series key
+	 */
+	long getKey(final int offset) {
+		return buf.getLong(offset);
+	}
+
+	/**
+	 * Returns the high 64 bits of the series key of a record
+	 * @param offset The record offset
+	 * @return the high 64 bits of the series key
+	 */
+	long getKeyHigh(final int offset) {
+		return buf.getLong(offset + 8);
+	}
+
+	/**
+	 * Returns the start of a record
+	 * @param offset The record offset
+	 * @return the record start
+	 */
+	long getStart(final int offset) {
+		return buf.getLong(offset + 16);
+	}
+
+	/**
+	 * Returns the lowest timestamp of a record
+	 * @param offset The record offset
+	 * @return the lowest timestamp
+	 */
+	long getMinTimestamp(final int offset) {
+		return buf.getLong(offset + 24);
+	}
+
+	/**
+	 * Returns the highest timestamp of a record
+	 * @param offset The record offset
+	 * @return the highest timestamp
+	 */
+	long getMaxTimestamp(final int offset) {
+		return buf.getLong(offset + 32);
+	}
+
+	/**
+	 * Returns the item count of a record
+	 * @param offset The record offset
+	 * @return the item count
+	 */
+	int getCount(final int offset) {
+		return buf.getInt(offset + 40);
+	}
+
+	/**
+	 * Returns the retention policy id of a record
+	 * @param offset The record offset
+	 * @return the policy id
+	 */
+	int getPolicy(final int offset) {
+		return buf.getInt(offset + R_POLICY);
+	}
+
+	/**
+	 * Returns a view of the payload of a record
+	 * @param offset The record offset
+	 * @return the payload
+	 */
+	ByteBuf getPayload(final int offset) {
+		final ByteBuffer data = buf.duplicate();
+		data.limit(offset + RECORD_HEADER + buf.getInt(offset + 44)).position(offset + RECORD_HEADER);
+		return Unpooled.wrappedBuffer(data.slice());
+	}
+
+	/**
+	 * Indicates if the segment has been sealed
+	 * @return true if sealed, false if still open for writes
+	 */
+	boolean isSealed() {
+		return offsets==null;
+	}
+
+	/**
+	 * Returns the number of chunk records
+	 * @return the number of chunk records
+	 */
+	int getRecords() {
+		return records;
+	}
+
+	/**
+	 * Returns the bytes used by records and the index
+	 * @return the used bytes
+	 */
+	long getUsedBytes() {
+		return dataEnd + (long)(offsets==null ? records * INDEX_ENTRY : 0);
+	}
+
+	/**
+	 * Returns the mapped size in bytes
+	 * @return the mapped size
+	 */
+	long getMappedBytes() {
+		return buf.capacity();
+	}
+
+	/**
+	 * Returns the highest point timestamp in the segment
+	 * @return the highest timestamp, or Long.MIN_VALUE if the segment is empty
+	 */
+	long getMaxTimestamp() {
+		return maxTimestamp;
+	}
+
+	/**
+	 * Returns the lowest sequence number of the segments this one replaced
+	 * @return the lowest replaced sequence number, or 0 if the segment was not written by compaction
+	 */
+	long getCompactedFrom() {
+		return compactedFrom;
+	}
+
+	/**
+	 * Returns the time the first record of a compacted segment expires
+	 * @return the next expiry in ms., or Long.MAX_VALUE if none of its records expire
+	 */
+	long getNextExpiry() {
+		return nextExpiry;
+	}
+
+}
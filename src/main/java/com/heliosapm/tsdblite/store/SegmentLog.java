@@ -0,0 +1,786 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: SegmentLog</p>
+ * <p>Description: A directory of fixed size, memory-mapped {@link Segment} files holding series records.
+ * Records are appended to the current segment. When it is full the segment is sealed with a sorted series index
+ * and the next one is created.</p>
+ * <p>When the log is created the existing segment files are mapped and only their headers are read, so opening
+ * takes about as long with weeks of data as with none. Reads hand the record payloads to a {@link RecordReader}
+ * straight out of the mappings, through the page cache. Retention drops whole segment files once their newest
+ * item is older than the longest {@link RetentionPolicy} of the log's tier.</p>
+ * <p>Sealed segments are compacted in the background: a run of them is rewritten into one segment in which a
+ * {@link RecordCompactor} has merged each series' records into fewer, larger ones, and from which the records that have
+ * expired under their series' policy are dropped. The compacted segment takes the place, and the sequence number, of
+ * the last segment of the run, so reads still see each series' records oldest first. A small compacted segment is
+ * folded into the next run so blocks keep growing, and a compacted segment is rewritten on its own when its first record expires.</p>
+ * <p>Writes are serialized on the instance. Reads take no lock. One compaction runs at a time.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.SegmentLog</code></p>
+ */
+
+public class SegmentLog {
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The log directory */
+	protected final File dir;
+	/** The retention policy tier name of the log's records */
+	protected final String tier;
+	/** The fixed segment file size */
+	protected final int segmentSize;
+	/** The age of a segment's newest item after which the whole segment is dropped, in ms. */
+	protected final long retention;
+	/** The time it took to map the existing segments in ms. */
+	protected final long openTime;
+
+	/** The mapped segments, oldest first. The last one is being written. */
+	private volatile Segment[] segments;
+	/** The segment being written, guarded by this instance */
+	private Segment active;
+	/** The time of the last retention purge */
+	private long lastPurge = 0L;
+	/** Indicates if the log has been closed */
+	private boolean closed = false;
+	/** Indicates if a compaction is running */
+	private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+	/** A counter of written records */
+	protected final LongAdder recordsWritten = new LongAdder();
+	/** A counter of written bytes */
+	protected final LongAdder bytesWritten = new LongAdder();
+	/** A counter of failed record writes */
+	protected final LongAdder writeFailures = new LongAdder();
+	/** A counter of segments dropped by retention */
+	protected final LongAdder droppedSegments = new LongAdder();
+	/** A counter of completed compactions */
+	protected final LongAdder compactions = new LongAdder();
+	/** A counter of failed compactions */
+	protected final LongAdder compactionFailures = new LongAdder();
+	/** A counter of segments rewritten by compaction */
+	protected final LongAdder compactedSegments = new LongAdder();
+	/** A counter of records read by compaction */
+	protected final LongAdder compactedRecordsIn = new LongAdder();
+	/** A counter of records written by compaction */
+	protected final LongAdder compactedRecordsOut = new LongAdder();
+	/** A counter of records dropped by compaction because their retention had expired */
+	protected final LongAdder expiredRecords = new LongAdder();
+	/** A counter of segment bytes read by compaction */
+	protected final LongAdder compactedBytesIn = new LongAdder();
+	/** A counter of segment bytes written by compaction */
+	protected final LongAdder compactedBytesOut = new LongAdder();
+	/** A counter of the time spent compacting in ns. */
+	protected final LongAdder compactionNanos = new LongAdder();
+
+	/** The period between retention purges triggered by writes in ms. */
+	private static final long PURGE_PERIOD = 60000;
+	/** The most segment bytes one compaction reads, keeping its output within a mappable size */
+	private static final long MAX_COMPACTION_BYTES = Integer.MAX_VALUE / 2;
+	/** The segment file name filter */
+	private static final FilenameFilter SEGMENT_FILTER = new FilenameFilter() {
+		@Override
+		public boolean accept(final File dir, final String name) {
+			return name.startsWith("seg-") && name.endsWith(".dat");
+		}
+	};
+	/** The filter for segment files a compaction was writing */
+	private static final FilenameFilter COMPACTING_FILTER = new FilenameFilter() {
+		@Override
+		public boolean accept(final File dir, final String name) {
+			return name.startsWith("seg-") && name.endsWith(".cmp");
+		}
+	};
+
+	/**
+	 * Creates a new SegmentLog, mapping the segment files already in the directory
+	 * @param dir The log directory, created if it does not exist
+	 * @param tier The retention policy tier name of the log's records, such as {@link RetentionPolicy#RAW}
+	 * @param segmentSize The fixed segment file size in bytes
+	 */
+	public SegmentLog(final File dir, final String tier, final int segmentSize) {
+		final long start = System.currentTimeMillis();
+		this.dir = dir;
+		this.tier = tier;
+		this.segmentSize = segmentSize;
+		this.retention = RetentionPolicy.getMaxRetention(tier);
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new RuntimeException("Failed to create segment directory [" + dir + "]");
+		}
+		final File[] leftovers = dir.listFiles(COMPACTING_FILTER);
+		if(leftovers!=null) {
+			for(File leftover: leftovers) {
+				if(!leftover.delete()) log.warn("Failed to delete incomplete compacted segment file [{}]", leftover);
+			}
+		}
+		final ArrayList<Segment> opened = new ArrayList<Segment>();
+		long next = 1L;
+		for(long seq: sequences()) {
+			next = seq + 1;
+			try {
+				opened.add(Segment.open(file(seq), seq));
+			} catch (IOException iex) {
+				log.error("Failed to open segment file [{}]. It will be ignored.", file(seq), iex);
+			}
+		}
+		dropReplaced(opened);
+		try {
+			active = Segment.create(file(next), next, segmentSize);
+		} catch (IOException iex) {
+			throw new RuntimeException("Failed to create segment file in [" + dir + "]", iex);
+		}
+		opened.add(active);
+		segments = opened.toArray(new Segment[opened.size()]);
+		openTime = System.currentTimeMillis() - start;
+		purge();
+	}
+
+	/**
+	 * Appends a record, rolling to a new segment if the current one is full
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 * @param policy The id of the series' {@link RetentionPolicy}
+	 * @param start The record start, such as a chunk's span start
+	 * @param minTs The lowest timestamp in the record
+	 * @param maxTs The highest timestamp in the record
+	 * @param count The number of items in the record
+	 * @param payload The record payload, from its reader index to its writer index, which is not modified
+	 * @return the number of bytes written, or 0 if the record could not be written
+	 */
+	public synchronized int write(final long hashCode, final long hashCodeHigh, final int policy, final long start, final long minTs, final long maxTs, final int count, final ByteBuf payload) {
+		if(closed) return 0;
+		int written = 0;
+		try {
+			written = active.write(hashCode, hashCodeHigh, policy, start, minTs, maxTs, count, payload);
+			if(written==0) {
+				roll();
+				written = active.write(hashCode, hashCodeHigh, policy, start, minTs, maxTs, count, payload);
+			}
+			if(written==0) {
+				writeFailures.increment();
+				log.warn("Record of [{}] bytes does not fit in a segment of [{}] bytes", payload.readableBytes(), segmentSize);
+			} else {
+				recordsWritten.increment();
+				bytesWritten.add(written);
+			}
+		} catch (IOException iex) {
+			writeFailures.increment();
+			log.error("Failed to write record to segment log [{}]", dir, iex);
+		}
+		final long now = System.currentTimeMillis();
+		if(now - lastPurge > PURGE_PERIOD) {
+			lastPurge = now;
+			purge();
+		}
+		return written;
+	}
+
+	/**
+	 * Drops the opened segments that a compacted segment replaced, left behind by a crash before they were deleted
+	 * @param opened The opened segments, oldest first
+	 */
+	private void dropReplaced(final ArrayList<Segment> opened) {
+		for(int i = opened.size() - 1; i >= 0; i--) {
+			final Segment compacted = opened.get(i);
+			if(compacted.getCompactedFrom()==0) continue;
+			for(int j = i - 1; j >= 0; j--) {
+				final Segment replaced = opened.get(j);
+				if(replaced.seq < compacted.getCompactedFrom()) break;
+				opened.remove(j);
+				i--;
+				if(!replaced.file.delete()) log.warn("Failed to delete replaced segment file [{}]", replaced.file);
+				log.info("Dropped segment file [{}] replaced by compaction", replaced.file);
+			}
+		}
+	}
+
+	/**
+	 * Seals the active segment and creates the next one
+	 * @throws IOException thrown on any IO error
+	 */
+	private void roll() throws IOException {
+		active.seal();
+		final Segment next = Segment.create(file(active.seq + 1), active.seq + 1, segmentSize);
+		final Segment[] current = segments;
+		final Segment[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = next;
+		active = next;
+		segments = updated;
+	}
+
+	/**
+	 * Reads a series' records that overlap the passed range, oldest segment first
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 * @param fromMs The range start in ms., inclusive
+	 * @param toMs The range end in ms., inclusive
+	 * @param reader The reader the record payloads are handed to
+	 * @return the total returned by the reader
+	 */
+	public int read(final long hashCode, final long hashCodeHigh, final long fromMs, final long toMs, final RecordReader reader) {
+		int count = 0;
+		for(Segment segment: segments) {
+			count += segment.read(hashCode, hashCodeHigh, fromMs, toMs, reader);
+		}
+		return count;
+	}
+
+	/**
+	 * Drops the segment files whose newest item is older than the retention
+	 * @return the number of dropped segment files
+	 */
+	public synchronized int purge() {
+		final long cutoff = System.currentTimeMillis() - retention;
+		final Segment[] current = segments;
+		final ArrayList<Segment> kept = new ArrayList<Segment>(current.length);
+		int dropped = 0;
+		for(Segment segment: current) {
+			if(segment!=active && segment.getMaxTimestamp() < cutoff) {
+				// readers holding the old array keep a valid mapping until they are done
+				if(segment.file.delete()) {
+					dropped++;
+					continue;
+				}
+				log.warn("Failed to delete expired segment file [{}]", segment.file);
+			}
+			kept.add(segment);
+		}
+		if(dropped > 0) {
+			segments = kept.toArray(new Segment[kept.size()]);
+			droppedSegments.add(dropped);
+			log.info("Dropped [{}] expired segment files from [{}]", dropped, dir);
+		}
+		return dropped;
+	}
+
+	/**
+	 * Compacts the next run of sealed segments, if any are waiting
+	 * @param compactor The compactor that merges each series' records
+	 * @param maxSegments The most segments to compact into one
+	 * @return true if a run was compacted, false if there was none waiting or the compaction failed
+	 */
+	public boolean compact(final RecordCompactor compactor, final int maxSegments) {
+		if(!compacting.compareAndSet(false, true)) return false;
+		try {
+			final long now = System.currentTimeMillis();
+			final Segment[] inputs = nextRun(Math.max(1, maxSegments), now);
+			if(inputs==null) return false;
+			final long startTime = System.nanoTime();
+			final Segment last = inputs[inputs.length - 1];
+			long from = Long.MAX_VALUE, size = Segment.HEADER;
+			for(Segment input: inputs) {
+				from = Math.min(from, input.getCompactedFrom()==0 ? input.seq : input.getCompactedFrom());
+				size += input.getUsedBytes();
+			}
+			final File tmp = new File(dir, String.format("seg-%016d.cmp", last.seq));
+			final CompactionWriter writer;
+			try {
+				// merged records are never larger than their inputs, so the output fits in their used bytes
+				final Segment output = Segment.create(tmp, last.seq, (int)size);
+				writer = new CompactionWriter(output);
+				merge(inputs, compactor, writer, now);
+				output.compacted(from, writer.nextExpiry);
+				output.seal();
+				trim(tmp, output.getUsedBytes());
+				if(!install(inputs, tmp, writer.records > 0)) {
+					if(!tmp.delete()) log.warn("Failed to delete abandoned compacted segment file [{}]", tmp);
+					return false;
+				}
+				if(writer.records > 0) compactedBytesOut.add(output.getUsedBytes());
+			} catch (Exception ex) {
+				compactionFailures.increment();
+				tmp.delete();
+				log.error("Failed to compact [{}] segments of [{}]", inputs.length, dir, ex);
+				return false;
+			}
+			compactions.increment();
+			compactedSegments.add(inputs.length);
+			compactedBytesIn.add(size - Segment.HEADER);
+			compactionNanos.add(System.nanoTime() - startTime);
+			if(log.isDebugEnabled()) log.debug("Compacted [{}] segments of [{}] into [{}] records in [{}] ms.", inputs.length, dir, writer.records, (System.nanoTime() - startTime) / 1000000);
+			return true;
+		} finally {
+			compacting.set(false);
+		}
+	}
+
+	/**
+	 * Truncates a sealed compacted segment file to its used bytes. Its mapping is no longer read.
+	 * @param file The compacted segment file
+	 * @param size The used bytes
+	 * @throws IOException thrown on any IO error
+	 */
+	private static void trim(final File file, final long size) throws IOException {
+		final FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			ch.truncate(size);
+			ch.force(true);
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * Finds the next run of segments to compact: a compacted segment whose first record has expired on its own,
+	 * or the oldest run of sealed segments that have not been compacted, after the small compacted segment before them
+	 * @param maxSegments The most segments in the run
+	 * @param now The current time in ms.
+	 * @return the run, oldest first, or null if there is none
+	 */
+	private Segment[] nextRun(final int maxSegments, final long now) {
+		final Segment writing;
+		synchronized(this) {
+			if(closed) return null;
+			writing = active;
+		}
+		final Segment[] current = segments;
+		for(Segment segment: current) {
+			if(segment!=writing && segment.getCompactedFrom()!=0 && segment.getNextExpiry() <= now) return new Segment[]{segment};
+		}
+		for(int i = 0; i < current.length; i++) {
+			if(current[i]==writing || current[i].getCompactedFrom()!=0) continue;
+			int first = i;
+			long bytes = current[i].getUsedBytes();
+			if(i > 0 && current[i - 1].getUsedBytes() < segmentSize / 2) {
+				first = i - 1;
+				bytes += current[first].getUsedBytes();
+			}
+			int last = i;
+			while(last + 1 < current.length && last + 2 - first <= maxSegments) {
+				final Segment next = current[last + 1];
+				if(next==writing || next.getCompactedFrom()!=0 || bytes + next.getUsedBytes() > MAX_COMPACTION_BYTES) break;
+				bytes += next.getUsedBytes();
+				last++;
+			}
+			return Arrays.copyOfRange(current, first, last + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of segments waiting to be compacted
+	 * @return the compaction backlog in segments
+	 */
+	public int getCompactionBacklog() {
+		final Segment writing;
+		synchronized(this) {
+			if(closed) return 0;
+			writing = active;
+		}
+		final long now = System.currentTimeMillis();
+		int backlog = 0;
+		for(Segment segment: segments) {
+			if(segment==writing) continue;
+			if(segment.getCompactedFrom()==0 || segment.getNextExpiry() <= now) backlog++;
+		}
+		return backlog;
+	}
+
+	/**
+	 * Merges the surviving records of each series in the inputs into the writer, series by series in key order
+	 * @param inputs The sealed segments, oldest first
+	 * @param compactor The compactor that merges each series' records
+	 * @param writer The writer of the compacted segment
+	 * @param now The current time in ms.
+	 */
+	private void merge(final Segment[] inputs, final RecordCompactor compactor, final CompactionWriter writer, final long now) {
+		final int[] positions = new int[inputs.length];
+		final SeriesRecords records = new SeriesRecords();
+		long in = 0, expired = 0;
+		while(true) {
+			// the sealed indexes are sorted by key, so the next series is the lowest key at any cursor
+			boolean found = false;
+			long key = 0, high = 0;
+			for(int i = 0; i < inputs.length; i++) {
+				if(positions[i]==inputs[i].getRecords()) continue;
+				final int offset = inputs[i].getIndexRecord(positions[i]);
+				final long k = inputs[i].getKey(offset), h = inputs[i].getKeyHigh(offset);
+				if(!found || k < key || (k==key && h < high)) {
+					found = true;
+					key = k;
+					high = h;
+				}
+			}
+			if(!found) break;
+			records.reset(key, high);
+			for(int i = 0; i < inputs.length; i++) {
+				final Segment input = inputs[i];
+				while(positions[i] < input.getRecords()) {
+					final int offset = input.getIndexRecord(positions[i]);
+					if(input.getKey(offset)!=key || input.getKeyHigh(offset)!=high) break;
+					positions[i]++;
+					in++;
+					if(input.getMaxTimestamp(offset) < RetentionPolicy.forId(input.getPolicy(offset)).getCutoff(tier, now)) {
+						expired++;
+					} else {
+						records.add(input, offset);
+					}
+				}
+			}
+			if(records.size() > 0) {
+				final int policy = records.getPolicy(records.size() - 1);
+				records.setCutoff(RetentionPolicy.forId(policy).getCutoff(tier, now));
+				writer.series(key, high, policy);
+				compactor.compact(records, writer);
+			}
+		}
+		compactedRecordsIn.add(in);
+		expiredRecords.add(expired);
+	}
+
+	/**
+	 * Puts a compacted segment in place of the run it replaces, and deletes the run's other files
+	 * @param inputs The compacted run, oldest first
+	 * @param tmp The compacted segment file
+	 * @param replace true to put the compacted segment in place, false if it is empty and the run is just dropped
+	 * @return true if the run was replaced, false if it had changed, such as by a retention purge, and the compaction was abandoned
+	 * @throws IOException thrown on any IO error
+	 */
+	private synchronized boolean install(final Segment[] inputs, final File tmp, final boolean replace) throws IOException {
+		final Segment[] current = segments;
+		int at = -1;
+		for(int i = 0; i < current.length; i++) {
+			if(current[i]==inputs[0]) {
+				at = i;
+				break;
+			}
+		}
+		if(at < 0 || at + inputs.length > current.length) return false;
+		for(int i = 0; i < inputs.length; i++) {
+			if(current[at + i]!=inputs[i]) return false;
+		}
+		final Segment last = inputs[inputs.length - 1];
+		final ArrayList<Segment> updated = new ArrayList<Segment>(current.length);
+		updated.addAll(Arrays.asList(current).subList(0, at));
+		if(replace) {
+			// the compacted segment carries the run's lowest sequence number, so a crash from here on loses nothing
+			Files.move(tmp.toPath(), last.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			updated.add(Segment.open(last.file, last.seq));
+		} else {
+			if(!tmp.delete()) log.warn("Failed to delete empty compacted segment file [{}]", tmp);
+		}
+		updated.addAll(Arrays.asList(current).subList(at + inputs.length, current.length));
+		// readers holding the old array keep a valid mapping until they are done
+		segments = updated.toArray(new Segment[updated.size()]);
+		for(Segment input: inputs) {
+			if(replace && input==last) continue;
+			if(!input.file.delete()) log.warn("Failed to delete compacted segment file [{}]", input.file);
+		}
+		return true;
+	}
+
+	/**
+	 * <p>Title: CompactionWriter</p>
+	 * <p>Description: Writes the merged records of each series into the compacted segment</p>
+	 */
+	private class CompactionWriter implements RecordWriter {
+		/** The compacted segment */
+		private final Segment output;
+		/** The low 64 bits of the current series key */
+		private long hashCode;
+		/** The high 64 bits of the current series key */
+		private long hashCodeHigh;
+		/** The retention policy id of the current series */
+		private int policy;
+		/** The retention of the current series' policy for the log's tier */
+		private long seriesRetention;
+		/** The number of records written */
+		private long records = 0;
+		/** The time the first written record expires */
+		private long nextExpiry = Long.MAX_VALUE;
+
+		CompactionWriter(final Segment output) {
+			this.output = output;
+		}
+
+		/**
+		 * Sets the series the next records belong to
+		 * @param hashCode The low 64 bits of the series key
+		 * @param hashCodeHigh The high 64 bits of the series key
+		 * @param policy The id of the series' retention policy
+		 */
+		void series(final long hashCode, final long hashCodeHigh, final int policy) {
+			this.hashCode = hashCode;
+			this.hashCodeHigh = hashCodeHigh;
+			this.policy = policy;
+			seriesRetention = RetentionPolicy.forId(policy).getRetention(tier);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see com.heliosapm.tsdblite.store.RecordWriter#write(long, long, long, int, io.netty.buffer.ByteBuf)
+		 */
+		@Override
+		public void write(final long start, final long minTs, final long maxTs, final int count, final ByteBuf payload) {
+			if(output.write(hashCode, hashCodeHigh, policy, start, minTs, maxTs, count, payload)==0) {
+				throw new IllegalStateException("Compacted records overflowed the compacted segment");
+			}
+			records++;
+			compactedRecordsOut.increment();
+			if(seriesRetention!=RetentionPolicy.KEEP) nextExpiry = Math.min(nextExpiry, maxTs + seriesRetention);
+		}
+	}
+
+	/**
+	 * Seals the active segment. Any later writes are ignored.
+	 */
+	public synchronized void close() {
+		if(closed) return;
+		closed = true;
+		active.seal();
+	}
+
+	/**
+	 * Returns the sequence numbers of the segment files on disk, in ascending order
+	 * @return the segment sequence numbers
+	 */
+	protected long[] sequences() {
+		final String[] names = dir.list(SEGMENT_FILTER);
+		if(names==null) return new long[0];
+		final long[] seqs = new long[names.length];
+		int count = 0;
+		for(String name: names) {
+			try {
+				seqs[count] = Long.parseLong(name.substring(4, name.length() - 4));
+				count++;
+			} catch (NumberFormatException nfe) {
+				/* not ours */
+			}
+		}
+		final long[] sorted = Arrays.copyOf(seqs, count);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private File file(final long seq) {
+		return new File(dir, String.format("seg-%016d.dat", seq));
+	}
+
+	/**
+	 * Returns the retention policy tier name of the log's records
+	 * @return the tier name
+	 */
+	public String getTier() {
+		return tier;
+	}
+
+	/**
+	 * Returns the log directory
+	 * @return the log directory
+	 */
+	public String getDirectory() {
+		return dir.getAbsolutePath();
+	}
+
+	/**
+	 * Returns the fixed size of a segment file in bytes
+	 * @return the segment file size
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Returns the sequence number of the segment being written
+	 * @return the current segment
+	 */
+	public synchronized long getSegment() {
+		return active.seq;
+	}
+
+	/**
+	 * Returns the number of mapped segment files
+	 * @return the number of segment files
+	 */
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	/**
+	 * Returns the total mapped size of the segment files in bytes
+	 * @return the mapped bytes
+	 */
+	public long getMappedBytes() {
+		long bytes = 0L;
+		for(Segment segment: segments) {
+			bytes += segment.getMappedBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the bytes used by records and series indexes in the segment files
+	 * @return the used bytes
+	 */
+	public long getUsedBytes() {
+		long bytes = 0L;
+		for(Segment segment: segments) {
+			bytes += segment.getUsedBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of records in the segment files
+	 * @return the number of records
+	 */
+	public long getRecords() {
+		long records = 0L;
+		for(Segment segment: segments) {
+			records += segment.getRecords();
+		}
+		return records;
+	}
+
+	/**
+	 * Returns the cummulative number of records written
+	 * @return the number of records written
+	 */
+	public long getRecordsWritten() {
+		return recordsWritten.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of bytes written
+	 * @return the number of bytes written
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of records that could not be written
+	 * @return the number of failed writes
+	 */
+	public long getWriteFailures() {
+		return writeFailures.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of segment files dropped by retention
+	 * @return the number of dropped segment files
+	 */
+	public long getDroppedSegments() {
+		return droppedSegments.longValue();
+	}
+
+	/**
+	 * Returns the time it took to map the existing segment files in ms.
+	 * @return the open time in ms.
+	 */
+	public long getOpenTime() {
+		return openTime;
+	}
+
+	/**
+	 * Returns the retention of a segment file, measured from its newest item, in ms.
+	 * @return the retention in ms.
+	 */
+	public long getRetention() {
+		return retention;
+	}
+
+	/**
+	 * Returns the cummulative number of completed compactions
+	 * @return the number of compactions
+	 */
+	public long getCompactions() {
+		return compactions.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of failed compactions
+	 * @return the number of failed compactions
+	 */
+	public long getCompactionFailures() {
+		return compactionFailures.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of segments rewritten by compaction
+	 * @return the number of compacted segments
+	 */
+	public long getCompactedSegments() {
+		return compactedSegments.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of records read by compaction
+	 * @return the number of records read by compaction
+	 */
+	public long getCompactedRecordsIn() {
+		return compactedRecordsIn.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of records written by compaction
+	 * @return the number of records written by compaction
+	 */
+	public long getCompactedRecordsOut() {
+		return compactedRecordsOut.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of records dropped by compaction because their retention had expired
+	 * @return the number of expired records
+	 */
+	public long getExpiredRecords() {
+		return expiredRecords.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of segment bytes read by compaction
+	 * @return the number of bytes read by compaction
+	 */
+	public long getCompactedBytesIn() {
+		return compactedBytesIn.longValue();
+	}
+
+	/**
+	 * Returns the cummulative number of segment bytes written by compaction
+	 * @return the number of bytes written by compaction
+	 */
+	public long getCompactedBytesOut() {
+		return compactedBytesOut.longValue();
+	}
+
+	/**
+	 * Returns the cummulative time spent compacting in ns.
+	 * @return the compaction time in ns.
+	 */
+	public long getCompactionNanos() {
+		return compactionNanos.longValue();
+	}
+
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.chunk.Chunk;
+import com.heliosapm.tsdblite.chunk.ChunkListener;
+import com.heliosapm.tsdblite.chunk.ChunkReader;
+import com.heliosapm.tsdblite.chunk.ChunkWriter;
+import com.heliosapm.tsdblite.chunk.PointSink;
+import com.heliosapm.tsdblite.chunk.SeriesChunks;
+import com.heliosapm.tsdblite.metric.MetricCache;
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: SegmentStore</p>
+ * <p>Description: The persistent store for sealed series chunks. Every chunk sealed by a {@link SeriesChunks} is copied
+ * as one record into a {@link SegmentLog} of fixed size, memory-mapped segment files, each sealed with a sorted series index.</p>
+ * <p>At startup the existing segment files are mapped and only their headers are read, so a restart takes about as long
+ * with weeks of data as with none. Reads decode chunks straight out of the mappings through the page cache.
+ * Retention drops whole segment files once their newest point is older than the longest raw {@link RetentionPolicy}.</p>
+ * <p>When the segments are compacted, each series' chunks are decoded and re-encoded into one Gorilla block per
+ * configured block span. Points that have expired under the series' policy are dropped, and a point persisted twice,
+ * such as by a head flushed at shutdown and sealed again later, is kept once.</p>
+ * <p>The store starts listening for sealed chunks when it is created, which must be after the write-ahead log
+ * has been replayed: the chunks the replay re-seals were already persisted before the restart.
+ * On {@link #close()} the open head chunks are flushed into the store, so the write-ahead log can be truncated.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.SegmentStore</code></p>
+ */
+
+public class SegmentStore implements SegmentStoreMXBean, ChunkListener, RecordCompactor {
+	/** The singleton instance */
+	private static volatile SegmentStore instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+	/** The per thread compaction point buffer */
+	private static final ThreadLocal<Points> compactionPoints = new ThreadLocal<Points>() {
+		@Override
+		protected Points initialValue() {
+			return new Points();
+		}
+	};
+
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The segment files */
+	protected final SegmentLog segments;
+	/** The time span one compacted block may cover in ms. */
+	protected final long blockSpan;
+	/** Indicates if the store has been closed */
+	private volatile boolean closed = false;
+
+	/** A counter of read points */
+	protected final LongAdder pointsRead = new LongAdder();
+
+	/**
+	 * Indicates if the segment store is enabled. It also requires chunk storage to be enabled.
+	 * @return true if enabled, false otherwise
+	 */
+	public static boolean isEnabled() {
+		return SeriesChunks.CHUNK_SPAN > 0 && ConfigurationHelper.getBooleanSystemThenEnvProperty(Constants.CONF_STORE_ENABLED, Constants.DEFAULT_STORE_ENABLED);
+	}
+
+	/**
+	 * Acquires the SegmentStore singleton
+	 * @return the SegmentStore singleton
+	 */
+	public static SegmentStore getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new SegmentStore();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private SegmentStore() {
+		segments = new SegmentLog(
+			new File(ConfigurationHelper.getSystemThenEnvProperty(Constants.CONF_STORE_DIR, Constants.DEFAULT_STORE_DIR)),
+			RetentionPolicy.RAW,
+			ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_STORE_SEGMENT_SIZE, Constants.DEFAULT_STORE_SEGMENT_SIZE)
+		);
+		blockSpan = Math.max(1L, ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_COMPACTION_BLOCK_SPAN, Constants.DEFAULT_COMPACTION_BLOCK_SPAN));
+		SeriesChunks.setListener(this);
+		if(CompactionScheduler.isEnabled()) CompactionScheduler.getInstance().register(segments, this);
+		JMXHelper.registerMBean(this, OBJECT_NAME);
+		log.info("SegmentStore started in [{}] with [{}] segments in [{}] ms.", segments.getDirectory(), segments.getSegmentCount(), segments.getOpenTime());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.chunk.ChunkListener#sealed(long, long, int, com.heliosapm.tsdblite.chunk.Chunk)
+	 */
+	@Override
+	public void sealed(final long hashCode, final long hashCodeHigh, final int policy, final Chunk chunk) {
+		segments.write(hashCode, hashCodeHigh, policy, chunk.getStart(), chunk.getMinTimestamp(), chunk.getMaxTimestamp(), chunk.getCount(), chunk.getData());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.RecordCompactor#compact(com.heliosapm.tsdblite.store.SeriesRecords, com.heliosapm.tsdblite.store.RecordWriter)
+	 */
+	@Override
+	public void compact(final SeriesRecords records, final RecordWriter writer) {
+		final Points points = compactionPoints.get();
+		points.size = 0;
+		final long cutoff = records.getCutoff();
+		for(int r = 0; r < records.size(); r++) {
+			final ChunkReader reader = new ChunkReader(records.getPayload(r), records.getCount(r));
+			while(reader.next()) {
+				if(reader.timestamp() >= cutoff) points.add(reader.timestamp(), reader.value());
+			}
+		}
+		points.order();
+		final ByteBuf block = points.block;
+		int first = 0;
+		while(first < points.size) {
+			final long start = points.timestamps[first] - (points.timestamps[first] % blockSpan);
+			final ChunkWriter chunk = new ChunkWriter(start);
+			int last = first;
+			while(last < points.size && points.timestamps[last] - start < blockSpan) {
+				chunk.append(points.timestamps[last], points.values[last]);
+				last++;
+			}
+			block.clear();
+			chunk.writeTo(block);
+			writer.write(start, points.timestamps[first], points.timestamps[last - 1], last - first, block);
+			first = last;
+		}
+	}
+
+	/**
+	 * Reads a series' persisted points in the passed range, oldest segment first
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 * @param fromMs The range start in ms., inclusive
+	 * @param toMs The range end in ms., inclusive
+	 * @param sink The sink the points are delivered to
+	 * @return the number of points delivered
+	 */
+	public int read(final long hashCode, final long hashCodeHigh, final long fromMs, final long toMs, final PointSink sink) {
+		final int count = segments.read(hashCode, hashCodeHigh, fromMs, toMs, new RecordReader() {
+			@Override
+			public int read(final long start, final int points, final ByteBuf payload) {
+				return new ChunkReader(payload, points).read(fromMs, toMs, sink);
+			}
+		});
+		pointsRead.add(count);
+		return count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#purge()
+	 */
+	@Override
+	public int purge() {
+		return segments.purge();
+	}
+
+	/**
+	 * Returns the segment files
+	 * @return the segment files
+	 */
+	public SegmentLog getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Flushes the open head chunks of every cached series into the store, seals the active segment
+	 * and truncates the write-ahead log, which is then redundant. Ingest must have stopped.
+	 */
+	public void close() {
+		if(closed) return;
+		closed = true;
+		final int flushed = MetricCache.getInstance().flushChunks();
+		SeriesChunks.setListener(null);
+		segments.close();
+		if(WriteAheadLog.isEnabled()) {
+			final WriteAheadLog wal = WriteAheadLog.getInstance();
+			wal.truncate(wal.checkpoint());
+		}
+		log.info("SegmentStore closed after flushing [{}] series", flushed);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getDirectory()
+	 */
+	@Override
+	public String getDirectory() {
+		return segments.getDirectory();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getSegmentSize()
+	 */
+	@Override
+	public int getSegmentSize() {
+		return segments.getSegmentSize();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getSegment()
+	 */
+	@Override
+	public long getSegment() {
+		return segments.getSegment();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getSegmentCount()
+	 */
+	@Override
+	public int getSegmentCount() {
+		return segments.getSegmentCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getMappedBytes()
+	 */
+	@Override
+	public long getMappedBytes() {
+		return segments.getMappedBytes();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getUsedBytes()
+	 */
+	@Override
+	public long getUsedBytes() {
+		return segments.getUsedBytes();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getChunkRecords()
+	 */
+	@Override
+	public long getChunkRecords() {
+		return segments.getRecords();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getChunksWritten()
+	 */
+	@Override
+	public long getChunksWritten() {
+		return segments.getRecordsWritten();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getBytesWritten()
+	 */
+	@Override
+	public long getBytesWritten() {
+		return segments.getBytesWritten();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getWriteFailures()
+	 */
+	@Override
+	public long getWriteFailures() {
+		return segments.getWriteFailures();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getPointsRead()
+	 */
+	@Override
+	public long getPointsRead() {
+		return pointsRead.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getDroppedSegments()
+	 */
+	@Override
+	public long getDroppedSegments() {
+		return segments.getDroppedSegments();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getOpenTime()
+	 */
+	@Override
+	public long getOpenTime() {
+		return segments.getOpenTime();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.SegmentStoreMXBean#getRetention()
+	 */
+	@Override
+	public long getRetention() {
+		return segments.getRetention();
+	}
+
+	/**
+	 * <p>Title: Points</p>
+	 * <p>Description: The decoded points of one series being compacted</p>
+	 */
+	private static class Points {
+		/** The timestamps */
+		long[] timestamps = new long[1024];
+		/** The values */
+		double[] values = new double[1024];
+		/** The number of points */
+		int size = 0;
+		/** The encoded block buffer */
+		final ByteBuf block = Unpooled.buffer(8192);
+
+		void add(final long timestamp, final double value) {
+			if(size==timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			timestamps[size] = timestamp;
+			values[size] = value;
+			size++;
+		}
+
+		/**
+		 * Sorts the points by timestamp, keeping only the last written point of each timestamp.
+		 * Chunks are sealed in time order, so this is usually just a check.
+		 */
+		void order() {
+			boolean ordered = true;
+			for(int i = 1; i < size; i++) {
+				if(timestamps[i] <= timestamps[i - 1]) {
+					ordered = false;
+					break;
+				}
+			}
+			if(ordered) return;
+			final Integer[] order = new Integer[size];
+			for(int i = 0; i < size; i++) order[i] = i;
+			final long[] ts = timestamps;
+			// a stable sort, so the last point of a timestamp is the last written
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(final Integer a, final Integer b) {
+					return Long.compare(ts[a], ts[b]);
+				}
+			});
+			final long[] sortedTimestamps = new long[timestamps.length];
+			final double[] sortedValues = new double[values.length];
+			int n = 0;
+			for(int i = 0; i < size; i++) {
+				final int p = order[i];
+				if(n > 0 && sortedTimestamps[n - 1]==ts[p]) n--;
+				sortedTimestamps[n] = ts[p];
+				sortedValues[n] = values[p];
+				n++;
+			}
+			timestamps = sortedTimestamps;
+			values = sortedValues;
+			size = n;
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: SegmentStoreMXBean</p>
+ * <p>Description: JMX MXBean for the {@link SegmentStore} instance</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.SegmentStoreMXBean</code></p>
+ */
+
+public interface SegmentStoreMXBean {
+
+	/** The JMX ObjectName for the {@link SegmentStore}  */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.tsdblite:service=SegmentStore");
+
+	/**
+	 * Returns the segment store directory
+	 * @return the segment store directory
+	 */
+	public String getDirectory();
+
+	/**
+	 * Returns the fixed size of a segment file in bytes
+	 * @return the segment file size
+	 */
+	public int getSegmentSize();
+
+	/**
+	 * Returns the sequence number of the segment being written
+	 * @return the current segment
+	 */
+	public long getSegment();
+
+	/**
+	 * Returns the number of mapped segment files
+	 * @return the number of segment files
+	 */
+	public int getSegmentCount();
+
+	/**
+	 * Returns the total mapped size of the segment files in bytes
+	 * @return the mapped bytes
+	 */
+	public long getMappedBytes();
+
+	/**
+	 * Returns the bytes used by chunk records and series indexes in the segment files
+	 * @return the used bytes
+	 */
+	public long getUsedBytes();
+
+	/**
+	 * Returns the number of chunk records in the segment files
+	 * @return the number of chunk records
+	 */
+	public long getChunkRecords();
+
+	/**
+	 * Returns the cummulative number of chunks written
+	 * @return the number of chunks written
+	 */
+	public long getChunksWritten();
+
+	/**
+	 * Returns the cummulative number of bytes written
+	 * @return the number of bytes written
+	 */
+	public long getBytesWritten();
+
+	/**
+	 * Returns the cummulative number of chunks that could not be written
+	 * @return the number of failed chunk writes
+	 */
+	public long getWriteFailures();
+
+	/**
+	 * Returns the cummulative number of points read
+	 * @return the number of points read
+	 */
+	public long getPointsRead();
+
+	/**
+	 * Returns the cummulative number of segment files dropped by retention
+	 * @return the number of dropped segment files
+	 */
+	public long getDroppedSegments();
+
+	/**
+	 * Returns the time it took to map the existing segment files at startup in ms.
+	 * @return the startup time in ms.
+	 */
+	public long getOpenTime();
+
+	/**
+	 * Returns the retention of a segment file, measured from its newest point, in ms.
+	 * @return the retention in ms.
+	 */
+	public long getRetention();
+
+	/**
+	 * Drops the segment files whose newest point is older than the retention
+	 * @return the number of dropped segment files
+	 */
+	public int purge();
+
+}
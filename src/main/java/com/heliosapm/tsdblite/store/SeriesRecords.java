@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * <p>Title: SeriesRecords</p>
+ * <p>Description: The records of one series gathered from the segments being compacted, oldest first.
+ * The payloads are views of the segment mappings and are only valid during {@link RecordCompactor#compact(SeriesRecords, RecordWriter)}.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.SeriesRecords</code></p>
+ */
+
+public class SeriesRecords {
+	/** The low 64 bits of the series key */
+	private long hashCode;
+	/** The high 64 bits of the series key */
+	private long hashCodeHigh;
+	/** The time before which the series' items have expired */
+	private long cutoff = Long.MIN_VALUE;
+	/** The segment of each record */
+	private Segment[] segments = new Segment[16];
+	/** The offset of each record */
+	private int[] offsets = new int[16];
+	/** The number of records */
+	private int size = 0;
+
+	/**
+	 * Clears the records for the next series
+	 * @param hashCode The low 64 bits of the series key
+	 * @param hashCodeHigh The high 64 bits of the series key
+	 */
+	void reset(final long hashCode, final long hashCodeHigh) {
+		this.hashCode = hashCode;
+		this.hashCodeHigh = hashCodeHigh;
+		Arrays.fill(segments, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * Sets the time before which the series' items have expired
+	 * @param cutoff The cutoff in ms.
+	 */
+	void setCutoff(final long cutoff) {
+		this.cutoff = cutoff;
+	}
+
+	/**
+	 * Adds a record
+	 * @param segment The record's segment
+	 * @param offset The record offset
+	 */
+	void add(final Segment segment, final int offset) {
+		if(size==offsets.length) {
+			segments = Arrays.copyOf(segments, size * 2);
+			offsets = Arrays.copyOf(offsets, size * 2);
+		}
+		segments[size] = segment;
+		offsets[size] = offset;
+		size++;
+	}
+
+	/**
+	 * Returns the low 64 bits of the series key
+	 * @return the low 64 bits of the series key
+	 */
+	public long getHashCode() {
+		return hashCode;
+	}
+
+	/**
+	 * Returns the high 64 bits of the series key
+	 * @return the high 64 bits of the series key
+	 */
+	public long getHashCodeHigh() {
+		return hashCodeHigh;
+	}
+
+	/**
+	 * Returns the time before which the series' items have expired under its retention policy.
+	 * A compactor should drop the items of a record that are older.
+	 * @return the cutoff in ms., or Long.MIN_VALUE if the series' items are kept
+	 */
+	public long getCutoff() {
+		return cutoff;
+	}
+
+	/**
+	 * Returns the number of records
+	 * @return the number of records
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the start of a record
+	 * @param index The record index
+	 * @return the record start
+	 */
+	public long getStart(final int index) {
+		return segments[index].getStart(offsets[index]);
+	}
+
+	/**
+	 * Returns the lowest timestamp of a record
+	 * @param index The record index
+	 * @return the lowest timestamp
+	 */
+	public long getMinTimestamp(final int index) {
+		return segments[index].getMinTimestamp(offsets[index]);
+	}
+
+	/**
+	 * Returns the highest timestamp of a record
+	 * @param index The record index
+	 * @return the highest timestamp
+	 */
+	public long getMaxTimestamp(final int index) {
+		return segments[index].getMaxTimestamp(offsets[index]);
+	}
+
+	/**
+	 * Returns the item count of a record
+	 * @param index The record index
+	 * @return the item count
+	 */
+	public int getCount(final int index) {
+		return segments[index].getCount(offsets[index]);
+	}
+
+	/**
+	 * Returns the retention policy id of a record
+	 * @param index The record index
+	 * @return the policy id
+	 */
+	public int getPolicy(final int index) {
+		return segments[index].getPolicy(offsets[index]);
+	}
+
+	/**
+	 * Returns a view of the payload of a record
+	 * @param index The record index
+	 * @return the payload
+	 */
+	public ByteBuf getPayload(final int index) {
+		return segments[index].getPayload(offsets[index]);
+	}
+
+}
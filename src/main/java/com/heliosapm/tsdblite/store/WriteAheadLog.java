@@ -0,0 +1,894 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.metric.AppMetric;
+import com.heliosapm.tsdblite.metric.Metric;
+import com.heliosapm.tsdblite.metric.MetricCache;
+import com.heliosapm.tsdblite.metric.Trace;
+import com.heliosapm.tsdblite.metric.TraceBatch;
+import com.heliosapm.utils.config.ConfigurationHelper;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: WriteAheadLog</p>
+ * <p>Description: An append only log of every ingested point, so the in-memory series can be rebuilt after a restart.</p>
+ * <p>Ingest threads encode their batches into binary point records and queue them. A single writer thread drains the queue
+ * and writes everything it drained as one CRC checked block (a group commit) through a {@link FileChannel}. It then
+ * forces the file according to the {@link FsyncPolicy}. Points are acknowledged to clients without waiting for the write.</p>
+ * <p>Segment files are named <code>wal-&lt;sequence&gt;.log</code> and roll at a configured size. A point record carries the
+ * 128 bit series key. The writer adds a series definition record, with the metric name and tags, the first time it writes
+ * a series into a segment, so every segment can be replayed without the ones before it.</p>
+ * <p>Block format: <code>[int payload length][int CRC32 of payload][payload records]</code>. Records:<ul>
+ * 	<li><b>DEFINE</b>: <code>[byte 1][long key][long key high][short len][name][byte tag count]{[short len][key][short len][value]}</code></li>
+ * 	<li><b>LONG / DOUBLE</b>: <code>[byte 2 or 3][long key][long key high][long timestamp ms][long value or raw double bits]</code></li>
+ * </ul></p>
+ * <p>At startup, {@link #replay()} reads the existing segments in order and applies the points on parallel workers
+ * partitioned by series, so each series still sees its points in log order. {@link #checkpoint()} and {@link #truncate(long)}
+ * let a persistent store drop segments it has made redundant. Segments older than the configured retention are deleted regardless.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.WriteAheadLog</code></p>
+ */
+
+public class WriteAheadLog implements WriteAheadLogMXBean, Runnable {
+	/** The singleton instance */
+	private static volatile WriteAheadLog instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The log directory */
+	protected final File dir;
+	/** The size at which segments roll */
+	protected final long segmentSize;
+	/** The fsync policy */
+	protected final FsyncPolicy policy;
+	/** The fsync interval in ms. */
+	protected final long fsyncInterval;
+	/** The age after which segments are deleted in ms. */
+	protected final long retention;
+	/** The batches waiting for the writer */
+	protected final ArrayBlockingQueue<WalBatch> queue;
+	/** The writer thread */
+	protected final Thread writerThread;
+	/** The first segment written by this process. Earlier segments are replayed. */
+	protected final long firstSegment;
+
+	/** The current segment, only written by the writer thread */
+	private volatile long segment;
+	/** The current segment file channel */
+	private FileChannel channel = null;
+	/** The bytes written to the current segment */
+	private long segmentBytes = 0L;
+	/** The nano time of the last force */
+	private long lastForce = System.nanoTime();
+	/** Indicates if there are unforced writes */
+	private boolean dirty = false;
+	/** The group commit block buffer */
+	private final ByteBuf block = Unpooled.buffer(64 * 1024);
+	/** The block checksum */
+	private final CRC32 crc = new CRC32();
+	/** Indicates if the log has been closed */
+	private volatile boolean closed = false;
+
+	/** A counter of logged points */
+	protected final LongAdder points = new LongAdder();
+	/** A counter of group commits */
+	protected final LongAdder groupCommits = new LongAdder();
+	/** A counter of written bytes */
+	protected final LongAdder bytesWritten = new LongAdder();
+	/** A counter of fsyncs */
+	protected final LongAdder fsyncs = new LongAdder();
+	/** A counter of write failures */
+	protected final LongAdder writeFailures = new LongAdder();
+	/** The elapsed time of the last fsync in nanos */
+	protected volatile long lastFsyncTime = 0L;
+	/** The number of replayed points */
+	protected volatile long replayedPoints = 0L;
+	/** The elapsed replay time in ms. */
+	protected volatile long replayTime = 0L;
+	/** The number of corrupt blocks found in replay */
+	protected volatile long corruptBlocks = 0L;
+	/** The number of replayed batches that failed to apply */
+	protected volatile long failedBatches = 0L;
+
+	/** The segment file header */
+	public static final int MAGIC = 0x57414C31; // WAL1
+	/** The series definition record type */
+	public static final byte DEFINE = 1;
+	/** The long point record type */
+	public static final byte LONG_POINT = 2;
+	/** The double point record type */
+	public static final byte DOUBLE_POINT = 3;
+	/** The size of a point record */
+	public static final int POINT_SIZE = 33;
+	/** The block header size */
+	public static final int BLOCK_HEADER = 8;
+	/** The maximum number of batches written in one group commit */
+	private static final int MAX_GROUP = 256;
+	/** The UTF8 character set */
+	private static final Charset UTF8 = Charset.forName("UTF8");
+	/** The segment file name filter */
+	private static final FilenameFilter SEGMENT_FILTER = new FilenameFilter() {
+		@Override
+		public boolean accept(final File dir, final String name) {
+			return name.startsWith("wal-") && name.endsWith(".log");
+		}
+	};
+
+	/**
+	 * <p>Title: WalBatch</p>
+	 * <p>Description: A queued unit of work for the writer: encoded points, or a control marker</p> 
+	 */
+	private static class WalBatch {
+		/** The encoded point records */
+		final ByteBuf records;
+		/** The metric of each point */
+		final AppMetric[] metrics;
+		/** The number of points */
+		final int size;
+		/** Counted down by the writer once a marker has been processed */
+		final CountDownLatch done;
+		/** true for a close marker, false for a roll marker */
+		final boolean close;
+
+		WalBatch(final ByteBuf records, final AppMetric[] metrics, final int size) {
+			this.records = records;
+			this.metrics = metrics;
+			this.size = size;
+			this.done = null;
+			this.close = false;
+		}
+
+		WalBatch(final boolean close) {
+			this.records = null;
+			this.metrics = null;
+			this.size = 0;
+			this.done = new CountDownLatch(1);
+			this.close = close;
+		}
+	}
+
+	/**
+	 * Indicates if the write-ahead log is enabled
+	 * @return true if enabled, false otherwise
+	 */
+	public static boolean isEnabled() {
+		return ConfigurationHelper.getBooleanSystemThenEnvProperty(Constants.CONF_WAL_ENABLED, Constants.DEFAULT_WAL_ENABLED);
+	}
+
+	/**
+	 * Acquires the WriteAheadLog singleton
+	 * @return the WriteAheadLog singleton
+	 */
+	public static WriteAheadLog getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new WriteAheadLog();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private WriteAheadLog() {
+		dir = new File(ConfigurationHelper.getSystemThenEnvProperty(Constants.CONF_WAL_DIR, Constants.DEFAULT_WAL_DIR));
+		segmentSize = ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_WAL_SEGMENT_SIZE, Constants.DEFAULT_WAL_SEGMENT_SIZE);
+		policy = FsyncPolicy.decode(ConfigurationHelper.getSystemThenEnvProperty(Constants.CONF_WAL_FSYNC, Constants.DEFAULT_WAL_FSYNC), FsyncPolicy.INTERVAL);
+		fsyncInterval = ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_WAL_FSYNC_INTERVAL, Constants.DEFAULT_WAL_FSYNC_INTERVAL);
+		retention = ConfigurationHelper.getLongSystemThenEnvProperty(Constants.CONF_WAL_RETENTION, Constants.DEFAULT_WAL_RETENTION);
+		queue = new ArrayBlockingQueue<WalBatch>(ConfigurationHelper.getIntSystemThenEnvProperty(Constants.CONF_WAL_QUEUE_SIZE, Constants.DEFAULT_WAL_QUEUE_SIZE));
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new RuntimeException("Failed to create write-ahead log directory [" + dir + "]");
+		}
+		final long[] existing = segments();
+		firstSegment = existing.length==0 ? 1L : existing[existing.length - 1] + 1;
+		segment = firstSegment - 1;
+		try {
+			roll();
+		} catch (IOException iex) {
+			throw new RuntimeException("Failed to open write-ahead log segment in [" + dir + "]", iex);
+		}
+		writerThread = new Thread(this, "WriteAheadLogWriter");
+		writerThread.setDaemon(true);
+		writerThread.start();
+		JMXHelper.registerMBean(this, OBJECT_NAME);
+		log.info("WriteAheadLog started in [{}]. Segment: [{}], Fsync: [{}]", dir, segment, policy);
+	}
+
+	/**
+	 * Logs the first <code>size</code> points in the passed arrays. Blocks if the writer has fallen too far behind.
+	 * @param metrics The metric of each point
+	 * @param doubleTypes The value type of each point
+	 * @param longValues The long value of each point
+	 * @param doubleValues The double value of each point
+	 * @param timestamps The timestamp of each point in ms. or secs.
+	 * @param size The number of points
+	 */
+	public void append(final AppMetric[] metrics, final boolean[] doubleTypes, final long[] longValues, final double[] doubleValues, final long[] timestamps, final int size) {
+		if(size==0 || closed) return;
+		final ByteBuf records = ByteBufAllocator.DEFAULT.heapBuffer(size * POINT_SIZE);
+		for(int i = 0; i < size; i++) {
+			writePoint(records, metrics[i].getMetricInstance(), doubleTypes[i], longValues[i], doubleValues[i], timestamps[i]);
+		}
+		enqueue(new WalBatch(records, Arrays.copyOf(metrics, size), size));
+	}
+
+	/**
+	 * Logs one point
+	 * @param appMetric The metric
+	 * @param doubleType true for a double type value, false for a long type value
+	 * @param longValue The long value
+	 * @param doubleValue The double value
+	 * @param timestamp The timestamp in ms. or secs.
+	 */
+	public void append(final AppMetric appMetric, final boolean doubleType, final long longValue, final double doubleValue, final long timestamp) {
+		if(closed) return;
+		final ByteBuf records = ByteBufAllocator.DEFAULT.heapBuffer(POINT_SIZE);
+		writePoint(records, appMetric.getMetricInstance(), doubleType, longValue, doubleValue, timestamp);
+		enqueue(new WalBatch(records, new AppMetric[]{appMetric}, 1));
+	}
+
+	private static void writePoint(final ByteBuf records, final Metric metric, final boolean doubleType, final long longValue, final double doubleValue, final long timestamp) {
+		records.writeByte(doubleType ? DOUBLE_POINT : LONG_POINT);
+		records.writeLong(metric.getHashCode());
+		records.writeLong(metric.getHashCodeHigh());
+		records.writeLong(Trace.toMs(timestamp));
+		records.writeLong(doubleType ? Double.doubleToRawLongBits(doubleValue) : longValue);
+	}
+
+	private void enqueue(final WalBatch batch) {
+		try {
+			queue.put(batch);
+		} catch (InterruptedException iex) {
+			batch.records.release();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		final ArrayList<WalBatch> group = new ArrayList<WalBatch>(MAX_GROUP);
+		while(true) {
+			try {
+				final WalBatch first = policy==FsyncPolicy.INTERVAL ? queue.poll(fsyncInterval, TimeUnit.MILLISECONDS) : queue.take();
+				if(first==null) {
+					if(dirty) force();
+					continue;
+				}
+				group.add(first);
+				queue.drainTo(group, MAX_GROUP - 1);
+				if(process(group)) return;
+			} catch (InterruptedException iex) {
+				/* No Op */
+			} catch (Throwable t) {
+				log.error("WriteAheadLog writer failure", t);
+			} finally {
+				group.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes the points in the passed group as group commits, handling any markers in order
+	 * @param group The drained batches
+	 * @return true if a close marker was processed
+	 */
+	private boolean process(final ArrayList<WalBatch> group) {
+		int from = 0;
+		for(int i = 0; i < group.size(); i++) {
+			final WalBatch batch = group.get(i);
+			if(batch.records!=null) continue;
+			write(group, from, i);
+			from = i + 1;
+			try {
+				if(batch.close) {
+					if(channel!=null) {
+						if(policy!=FsyncPolicy.NONE) force();
+						channel.close();
+						channel = null;
+					}
+					return true;
+				}
+				roll();
+			} catch (IOException iex) {
+				writeFailures.increment();
+				log.error("WriteAheadLog segment failure", iex);
+			} finally {
+				batch.done.countDown();
+			}
+		}
+		write(group, from, group.size());
+		return false;
+	}
+
+	/**
+	 * Writes the indexed batches as one block
+	 * @param group The drained batches
+	 * @param from The first batch index, inclusive
+	 * @param to The last batch index, exclusive
+	 */
+	private void write(final ArrayList<WalBatch> group, final int from, final int to) {
+		if(from >= to) return;
+		int count = 0;
+		try {
+			if(channel==null) roll();
+			block.clear();
+			block.writeLong(0L);
+			// definitions first, so the points in the block can always be resolved
+			for(int i = from; i < to; i++) {
+				final WalBatch batch = group.get(i);
+				AppMetric prev = null;
+				for(int p = 0; p < batch.size; p++) {
+					final AppMetric appMetric = batch.metrics[p];
+					if(appMetric!=prev && appMetric.getWalSegment()!=segment) {
+						writeDefine(appMetric.getMetricInstance());
+						appMetric.setWalSegment(segment);
+					}
+					prev = appMetric;
+				}
+			}
+			for(int i = from; i < to; i++) {
+				final WalBatch batch = group.get(i);
+				block.writeBytes(batch.records, batch.records.readerIndex(), batch.records.readableBytes());
+				count += batch.size;
+			}
+			final int payload = block.writerIndex() - BLOCK_HEADER;
+			crc.reset();
+			crc.update(block.array(), block.arrayOffset() + BLOCK_HEADER, payload);
+			block.setInt(0, payload);
+			block.setInt(4, (int)crc.getValue());
+			final ByteBuffer buf = block.nioBuffer();
+			final int bytes = buf.remaining();
+			while(buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			segmentBytes += bytes;
+			bytesWritten.add(bytes);
+			points.add(count);
+			groupCommits.increment();
+			dirty = true;
+			if(policy==FsyncPolicy.BATCH || (policy==FsyncPolicy.INTERVAL && System.nanoTime() - lastForce >= TimeUnit.MILLISECONDS.toNanos(fsyncInterval))) {
+				force();
+			}
+			if(segmentBytes >= segmentSize) roll();
+		} catch (IOException iex) {
+			writeFailures.increment();
+			log.error("WriteAheadLog write failure. Lost [{}] points.", count, iex);
+			// definitions written into the failed block are marked as done, so start over in a new segment
+			try { roll(); } catch (IOException x) { log.error("WriteAheadLog roll failure", x); }
+		} finally {
+			for(int i = from; i < to; i++) {
+				group.get(i).records.release();
+			}
+			if(block.capacity() > 4 * 1024 * 1024) block.capacity(64 * 1024);
+		}
+	}
+
+	private void writeDefine(final Metric metric) {
+		block.writeByte(DEFINE);
+		block.writeLong(metric.getHashCode());
+		block.writeLong(metric.getHashCodeHigh());
+		writeString(metric.getMetricName());
+		final int tagCount = metric.getTagCount();
+		block.writeByte(tagCount);
+		for(int i = 0; i < tagCount; i++) {
+			writeString(metric.getTagKey(i));
+			writeString(metric.getTagValue(i));
+		}
+	}
+
+	private void writeString(final String s) {
+		final byte[] bytes = s.getBytes(UTF8);
+		block.writeShort(bytes.length);
+		block.writeBytes(bytes);
+	}
+
+	private void force() throws IOException {
+		final long start = System.nanoTime();
+		channel.force(false);
+		lastForce = System.nanoTime();
+		lastFsyncTime = lastForce - start;
+		fsyncs.increment();
+		dirty = false;
+	}
+
+	/**
+	 * Closes the current segment and opens the next one, then deletes segments past the retention age
+	 * @throws IOException thrown on any IO error
+	 */
+	private void roll() throws IOException {
+		if(channel!=null) {
+			try {
+				if(dirty) force();
+			} finally {
+				channel.close();
+				channel = null;
+			}
+		}
+		final long next = segment + 1;
+		final FileChannel ch = FileChannel.open(file(next).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		final ByteBuffer header = ByteBuffer.allocate(4);
+		header.putInt(MAGIC).flip();
+		while(header.hasRemaining()) {
+			ch.write(header);
+		}
+		channel = ch;
+		segment = next;
+		segmentBytes = 4;
+		dirty = true;
+		final long cutoff = System.currentTimeMillis() - retention;
+		for(long seq: segments()) {
+			if(seq >= next) break;
+			final File f = file(seq);
+			if(f.lastModified() < cutoff && f.delete()) {
+				log.info("Deleted expired write-ahead log segment [{}]", f.getName());
+			}
+		}
+	}
+
+	/**
+	 * Flushes everything queued, forces it to disk and closes the log. Points logged afterwards are ignored.
+	 */
+	public void close() {
+		if(closed) return;
+		closed = true;
+		final WalBatch marker = new WalBatch(true);
+		try {
+			queue.put(marker);
+			if(!marker.done.await(30, TimeUnit.SECONDS)) {
+				log.warn("Timed out waiting for the WriteAheadLog to close");
+			}
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+		log.info("WriteAheadLog closed at segment [{}]", segment);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#checkpoint()
+	 */
+	@Override
+	public long checkpoint() {
+		final WalBatch marker = new WalBatch(false);
+		try {
+			queue.put(marker);
+			marker.done.await();
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+		return segment;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#truncate(long)
+	 */
+	@Override
+	public int truncate(final long before) {
+		final long limit = Math.min(before, segment);
+		int deleted = 0;
+		for(long seq: segments()) {
+			if(seq >= limit) break;
+			if(file(seq).delete()) deleted++;
+		}
+		if(deleted > 0) log.info("Truncated [{}] write-ahead log segments before [{}]", deleted, limit);
+		return deleted;
+	}
+
+	/**
+	 * Replays the segments left by earlier processes into the {@link MetricCache}.
+	 * Must be called before ingest starts.
+	 * @return the number of replayed points
+	 */
+	public long replay() {
+		final long start = System.currentTimeMillis();
+		final int workerCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()));
+		final ReplayWorker[] workers = new ReplayWorker[workerCount];
+		for(int i = 0; i < workerCount; i++) {
+			workers[i] = new ReplayWorker(i);
+			workers[i].start();
+		}
+		final MetricCache metricCache = MetricCache.getInstance();
+		// keyed like the MetricCache: by the low hash bits, and by the high bits when the low bits are taken by another series
+		final NonBlockingHashMapLong<AppMetric> defined = new NonBlockingHashMapLong<AppMetric>(1024, false);
+		final NonBlockingHashMapLong<AppMetric> collided = new NonBlockingHashMapLong<AppMetric>(16, false);
+		final TraceBatch[] batches = new TraceBatch[workerCount];
+		for(int i = 0; i < workerCount; i++) {
+			batches[i] = new TraceBatch(ReplayWorker.BATCH_SIZE);
+		}
+		final CRC32 crc = new CRC32();
+		long replayed = 0L, corrupt = 0L, unresolved = 0L;
+		int segmentCount = 0;
+		byte[] payload = new byte[64 * 1024];
+		final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER);
+		for(long seq: segments()) {
+			if(seq >= firstSegment) break;
+			segmentCount++;
+			FileChannel ch = null;
+			try {
+				ch = FileChannel.open(file(seq).toPath(), StandardOpenOption.READ);
+				header.clear().limit(4);
+				if(!readFully(ch, header) || header.getInt(0)!=MAGIC) {
+					log.warn("Skipping write-ahead log segment [{}] with a bad header", seq);
+					corrupt++;
+					continue;
+				}
+				while(true) {
+					header.clear();
+					if(!readFully(ch, header)) break;
+					final int length = header.getInt(0);
+					final int checksum = header.getInt(4);
+					if(length < 0 || length > ch.size() - ch.position()) {
+						// torn write at the end of the segment
+						corrupt++;
+						break;
+					}
+					if(length > payload.length) payload = new byte[length];
+					final ByteBuffer body = ByteBuffer.wrap(payload, 0, length);
+					if(!readFully(ch, body)) {
+						corrupt++;
+						break;
+					}
+					crc.reset();
+					crc.update(payload, 0, length);
+					if((int)crc.getValue()!=checksum) {
+						corrupt++;
+						log.warn("Corrupt block in write-ahead log segment [{}] at [{}]", seq, ch.position() - length);
+						break;
+					}
+					final ByteBuf records = Unpooled.wrappedBuffer(payload, 0, length);
+					while(records.isReadable()) {
+						final byte type = records.readByte();
+						if(type==DEFINE) {
+							final long hashCode = records.readLong();
+							final long hashCodeHigh = records.readLong();
+							final String metricName = readString(records);
+							final int tagCount = records.readUnsignedByte();
+							final Map<String, String> tags = new TreeMap<String, String>();
+							for(int t = 0; t < tagCount; t++) {
+								tags.put(readString(records), readString(records));
+							}
+							try {
+								final AppMetric appMetric = metricCache.getAppMetric(metricName, tags);
+								final AppMetric prior = defined.putIfAbsent(hashCode, appMetric);
+								if(prior!=null && prior.getMetricHashCodeHigh()!=hashCodeHigh) collided.put(hashCodeHigh, appMetric);
+							} catch (RuntimeException rex) {
+								if(log.isDebugEnabled()) log.debug("Failed to restore series [{}]: {}", metricName, rex.getMessage());
+							}
+						} else if(type==LONG_POINT || type==DOUBLE_POINT) {
+							final long hashCode = records.readLong();
+							final long hashCodeHigh = records.readLong();
+							final long timestamp = records.readLong();
+							final long value = records.readLong();
+							AppMetric appMetric = defined.get(hashCode);
+							if(appMetric!=null && appMetric.getMetricHashCodeHigh()!=hashCodeHigh) appMetric = collided.get(hashCodeHigh);
+							if(appMetric==null) {
+								unresolved++;
+								continue;
+							}
+							final int w = (int)(hashCode & (workerCount - 1));
+							if(type==DOUBLE_POINT) {
+								batches[w].add(appMetric, true, 0L, Double.longBitsToDouble(value), timestamp);
+							} else {
+								batches[w].add(appMetric, false, value, 0D, timestamp);
+							}
+							replayed++;
+							if(batches[w].size()==ReplayWorker.BATCH_SIZE) {
+								workers[w].put(batches[w]);
+								batches[w] = new TraceBatch(ReplayWorker.BATCH_SIZE);
+							}
+						} else {
+							corrupt++;
+							log.warn("Unknown record type [{}] in write-ahead log segment [{}]", type, seq);
+							break;
+						}
+					}
+				}
+			} catch (Exception ex) {
+				corrupt++;
+				log.error("Failed to replay write-ahead log segment [{}]", seq, ex);
+			} finally {
+				if(ch!=null) try { ch.close(); } catch (Exception x) {/* No Op */}
+			}
+		}
+		long failed = 0L;
+		for(int i = 0; i < workerCount; i++) {
+			if(!batches[i].isEmpty()) workers[i].put(batches[i]);
+			workers[i].finish();
+			failed += workers[i].failures;
+		}
+		replayedPoints = replayed;
+		corruptBlocks = corrupt;
+		failedBatches = failed;
+		replayTime = System.currentTimeMillis() - start;
+		if(segmentCount > 0) {
+			log.info("Replayed [{}] points for [{}] series from [{}] write-ahead log segments in [{}] ms. Corrupt blocks: [{}], Unresolved points: [{}], Failed batches: [{}]",
+				replayed, defined.size() + collided.size(), segmentCount, replayTime, corrupt, unresolved, failed);
+		}
+		return replayed;
+	}
+
+	/**
+	 * <p>Title: ReplayWorker</p>
+	 * <p>Description: Applies the replayed points of one partition of the series, in log order</p> 
+	 */
+	private static class ReplayWorker extends Thread {
+		/** The number of points handed to a worker at a time */
+		static final int BATCH_SIZE = 1024;
+		/** The end of replay marker */
+		private static final TraceBatch END = new TraceBatch(1);
+		/** Static class logger */
+		private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+		/** The batches to apply */
+		private final ArrayBlockingQueue<TraceBatch> batches = new ArrayBlockingQueue<TraceBatch>(16);
+		/** The number of batches that failed to apply, read once the worker has finished */
+		int failures = 0;
+
+		ReplayWorker(final int id) {
+			super("WriteAheadLogReplay#" + id);
+			setDaemon(true);
+		}
+
+		void put(final TraceBatch batch) {
+			try {
+				batches.put(batch);
+			} catch (InterruptedException iex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		void finish() {
+			put(END);
+			try {
+				join();
+			} catch (InterruptedException iex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void run() {
+			final MetricCache metricCache = MetricCache.getInstance();
+			while(true) {
+				final TraceBatch batch;
+				try {
+					batch = batches.take();
+				} catch (InterruptedException iex) {
+					return;
+				}
+				if(batch==END) return;
+				try {
+					metricCache.restore(batch);
+				} catch (Throwable t) {
+					// keep draining, or the replay thread blocks forever on the full queue
+					failures++;
+					log.error("Failed to apply a replayed batch of [{}] points", batch.size(), t);
+				}
+			}
+		}
+	}
+
+	private static String readString(final ByteBuf buf) {
+		final int length = buf.readUnsignedShort();
+		final String s = buf.toString(buf.readerIndex(), length, UTF8);
+		buf.skipBytes(length);
+		return s;
+	}
+
+	private static boolean readFully(final FileChannel ch, final ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			if(ch.read(buf) < 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the sequence numbers of the segment files on disk, in ascending order
+	 * @return the segment sequence numbers
+	 */
+	protected long[] segments() {
+		final String[] names = dir.list(SEGMENT_FILTER);
+		if(names==null) return new long[0];
+		final long[] seqs = new long[names.length];
+		int count = 0;
+		for(String name: names) {
+			try {
+				seqs[count] = Long.parseLong(name.substring(4, name.length() - 4));
+				count++;
+			} catch (NumberFormatException nfe) {
+				/* not ours */
+			}
+		}
+		final long[] sorted = Arrays.copyOf(seqs, count);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private File file(final long seq) {
+		return new File(dir, String.format("wal-%016d.log", seq));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getDirectory()
+	 */
+	@Override
+	public String getDirectory() {
+		return dir.getAbsolutePath();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getFsyncPolicy()
+	 */
+	@Override
+	public String getFsyncPolicy() {
+		return policy.name();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getSegment()
+	 */
+	@Override
+	public long getSegment() {
+		return segment;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getSegmentCount()
+	 */
+	@Override
+	public int getSegmentCount() {
+		return segments().length;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getQueueDepth()
+	 */
+	@Override
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getPoints()
+	 */
+	@Override
+	public long getPoints() {
+		return points.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getGroupCommits()
+	 */
+	@Override
+	public long getGroupCommits() {
+		return groupCommits.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getBytesWritten()
+	 */
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getFsyncs()
+	 */
+	@Override
+	public long getFsyncs() {
+		return fsyncs.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getLastFsyncTime()
+	 */
+	@Override
+	public long getLastFsyncTime() {
+		return TimeUnit.NANOSECONDS.toMicros(lastFsyncTime);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getWriteFailures()
+	 */
+	@Override
+	public long getWriteFailures() {
+		return writeFailures.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getReplayedPoints()
+	 */
+	@Override
+	public long getReplayedPoints() {
+		return replayedPoints;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getReplayTime()
+	 */
+	@Override
+	public long getReplayTime() {
+		return replayTime;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getCorruptBlocks()
+	 */
+	@Override
+	public long getCorruptBlocks() {
+		return corruptBlocks;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tsdblite.store.WriteAheadLogMXBean#getFailedBatches()
+	 */
+	@Override
+	public long getFailedBatches() {
+		return failedBatches;
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: WriteAheadLogMXBean</p>
+ * <p>Description: JMX MXBean for the {@link WriteAheadLog} instance</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.WriteAheadLogMXBean</code></p>
+ */
+
+public interface WriteAheadLogMXBean {
+
+	/** The JMX ObjectName for the {@link WriteAheadLog}  */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName("com.heliosapm.tsdblite:service=WriteAheadLog");
+
+	/**
+	 * Returns the write-ahead log directory
+	 * @return the write-ahead log directory
+	 */
+	public String getDirectory();
+
+	/**
+	 * Returns the fsync policy name
+	 * @return the fsync policy name
+	 */
+	public String getFsyncPolicy();
+
+	/**
+	 * Returns the sequence number of the segment being written
+	 * @return the current segment sequence number
+	 */
+	public long getSegment();
+
+	/**
+	 * Returns the number of segment files on disk
+	 * @return the number of segment files
+	 */
+	public int getSegmentCount();
+
+	/**
+	 * Returns the number of batches waiting for the writer
+	 * @return the queue depth
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * Returns the cummulative number of logged points
+	 * @return the cummulative number of logged points
+	 */
+	public long getPoints();
+
+	/**
+	 * Returns the cummulative number of group commits
+	 * @return the cummulative number of group commits
+	 */
+	public long getGroupCommits();
+
+	/**
+	 * Returns the cummulative number of bytes written
+	 * @return the cummulative number of bytes written
+	 */
+	public long getBytesWritten();
+
+	/**
+	 * Returns the cummulative number of fsyncs
+	 * @return the cummulative number of fsyncs
+	 */
+	public long getFsyncs();
+
+	/**
+	 * Returns the elapsed time of the last fsync in microseconds
+	 * @return the last fsync time in microseconds
+	 */
+	public long getLastFsyncTime();
+
+	/**
+	 * Returns the cummulative number of write failures
+	 * @return the cummulative number of write failures
+	 */
+	public long getWriteFailures();
+
+	/**
+	 * Returns the number of points recovered by the startup replay
+	 * @return the number of replayed points
+	 */
+	public long getReplayedPoints();
+
+	/**
+	 * Returns the elapsed time of the startup replay in ms.
+	 * @return the replay time in ms.
+	 */
+	public long getReplayTime();
+
+	/**
+	 * Returns the number of corrupt or torn blocks found by the startup replay
+	 * @return the number of corrupt blocks
+	 */
+	public long getCorruptBlocks();
+
+	/**
+	 * Returns the number of replayed batches that failed to apply in the startup replay
+	 * @return the number of failed batches
+	 */
+	public long getFailedBatches();
+
+	/**
+	 * Rolls to a new segment and returns its sequence number. Every point logged before the call is in an earlier segment.
+	 * @return the new segment sequence number
+	 */
+	public long checkpoint();
+
+	/**
+	 * Deletes every segment before the passed sequence number
+	 * @param segment The first segment to keep
+	 * @return the number of deleted segments
+	 */
+	public int truncate(long segment);
+
+}
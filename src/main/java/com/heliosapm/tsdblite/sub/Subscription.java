@@ -229,7 +229,14 @@ public class Subscription implements NotificationFilter, NotificationListener {
 				onExpiredMetric(m.getMBeanName());
 			}
 		} else {
-			onMetricSubmission((Trace)n.getUserData());
+			final Object userData = n.getUserData();
+			if(userData instanceof Trace[]) {
+				for(Trace trace: (Trace[])userData) {
+					onMetricSubmission(trace);
+				}
+			} else {
+				onMetricSubmission((Trace)userData);
+			}
 		}
 	}
 	
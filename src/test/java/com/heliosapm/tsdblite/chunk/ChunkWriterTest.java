@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.chunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.junit.Test;
+
+/**
+ * <p>Title: ChunkWriterTest</p>
+ * <p>Description: Round trips points through the chunk encoding, including the widest point at every bit offset
+ * around the end of the initial bit stream.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.chunk.ChunkWriterTest</code></p>
+ */
+
+public class ChunkWriterTest {
+	/** A value whose XOR with 1.0 sets the first and last bits, so it needs a new 64 bit window */
+	private static final double WIDE = -1.0000000000000002;
+
+	/**
+	 * Appends the widest point after enough narrow points to start it at every bit offset of the last words of the
+	 * initial bit stream, and checks everything reads back from the head and from the written bytes
+	 */
+	@Test
+	public void testWidestPointAtWordBoundaries() {
+		for(int padding = 0; padding < 500; padding++) {
+			for(int odd = 0; odd < 2; odd++) {
+				final long[] ts = new long[padding + 5];
+				final double[] vals = new double[ts.length];
+				int n = 0;
+				ts[n] = 1000L; vals[n++] = 1.0;
+				ts[n] = 2000L; vals[n++] = 1.0;
+				// a 17 bit point flips the parity of the 2 bit padding points
+				if(odd==1) { ts[n] = 2500L; vals[n++] = 1.0; }
+				for(int i = 0; i < padding; i++, n++) {
+					ts[n] = ts[n - 1] + (ts[n - 1] - ts[n - 2]);
+					vals[n] = 1.0;
+				}
+				ts[n] = ts[n - 1] + 10000000L; vals[n++] = WIDE;
+				ts[n] = ts[n - 1] + 1L; vals[n++] = 1.0;
+				roundTrip(ts, vals, n);
+			}
+		}
+	}
+
+	/**
+	 * Checks that timestamps going backwards and irregular deltas of every bucket size round trip
+	 */
+	@Test
+	public void testDeltaBuckets() {
+		final long[] deltas = {0L, 1L, -1L, 8191L, -8192L, 8192L, 65535L, -65536L, 65536L, 524287L, -524288L, 524288L, Long.MAX_VALUE / 4, -Long.MAX_VALUE / 4};
+		final long[] ts = new long[deltas.length + 1];
+		final double[] vals = new double[ts.length];
+		ts[0] = 1000000L;
+		vals[0] = 0.0;
+		long delta = 0L;
+		for(int i = 0; i < deltas.length; i++) {
+			delta += deltas[i];
+			ts[i + 1] = ts[i] + delta;
+			vals[i + 1] = i % 3==0 ? Double.NaN : i * -1.5e300;
+		}
+		roundTrip(ts, vals, ts.length);
+	}
+
+	private static void roundTrip(final long[] ts, final double[] vals, final int n) {
+		final ChunkWriter writer = new ChunkWriter(0L);
+		for(int i = 0; i < n; i++) {
+			writer.append(ts[i], vals[i]);
+		}
+		check(writer.reader(), ts, vals, n);
+		final ByteBuf buf = Unpooled.buffer();
+		try {
+			writer.writeTo(buf);
+			check(new ChunkReader(buf, n), ts, vals, n);
+		} finally {
+			buf.release();
+		}
+	}
+
+	private static void check(final ChunkReader reader, final long[] ts, final double[] vals, final int n) {
+		for(int i = 0; i < n; i++) {
+			assertTrue("point " + i + " of " + n, reader.next());
+			assertEquals("timestamp " + i + " of " + n, ts[i], reader.timestamp());
+			assertEquals("value " + i + " of " + n, Double.doubleToRawLongBits(vals[i]), Double.doubleToRawLongBits(reader.value()));
+		}
+		assertFalse(reader.next());
+	}
+}
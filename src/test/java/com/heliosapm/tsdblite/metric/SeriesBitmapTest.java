@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.metric;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * <p>Title: SeriesBitmapTest</p>
+ * <p>Description: Checks the bitmap set operations against a {@link BitSet}, across sparse and dense containers
+ * and the conversions between them.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.metric.SeriesBitmapTest</code></p>
+ */
+
+public class SeriesBitmapTest {
+	/** Ids spread over four containers */
+	private static final int ID_RANGE = 4 << 16;
+
+	/**
+	 * Adds, removes and looks up ids, converting a container to a bit set and back
+	 */
+	@Test
+	public void testAddRemoveAcrossConversions() {
+		final SeriesBitmap bitmap = new SeriesBitmap();
+		final BitSet expected = new BitSet();
+		assertTrue(bitmap.isEmpty());
+		for(int id = 0; id <= SeriesBitmap.ARRAY_MAX * 2; id += 2) {
+			assertTrue(bitmap.add(id));
+			expected.set(id);
+		}
+		assertFalse("Already present", bitmap.add(0));
+		final long denseBytes = bitmap.getBytes();
+		assertIds(expected, bitmap);
+		for(int id = 0; id <= SeriesBitmap.ARRAY_MAX * 2; id += 4) {
+			assertTrue(bitmap.remove(id));
+			expected.clear(id);
+		}
+		assertFalse("Already removed", bitmap.remove(0));
+		assertFalse("Never added", bitmap.remove(1));
+		assertIds(expected, bitmap);
+		assertEquals("Still a bit set at half the array maximum", denseBytes, bitmap.getBytes());
+		assertTrue(bitmap.remove(2));
+		expected.clear(2);
+		assertIds(expected, bitmap);
+		assertTrue("Shrunk back to an array", bitmap.getBytes() < denseBytes);
+		for(int id = 6; id <= SeriesBitmap.ARRAY_MAX * 2; id += 4) {
+			assertTrue(bitmap.remove(id));
+		}
+		assertTrue(bitmap.isEmpty());
+		assertEquals(0, bitmap.toArray().length);
+	}
+
+	/**
+	 * Checks and, or, andNot, addAll and union against the same operations on bit sets, and that the operands are unchanged
+	 */
+	@Test
+	public void testSetOperations() {
+		final Random random = new Random(42L);
+		// sparse and dense operands, so every pairing of container types meets
+		final int[] densities = {64, 6000, 40000};
+		for(int a: densities) {
+			for(int b: densities) {
+				final BitSet expectedA = new BitSet(), expectedB = new BitSet();
+				final SeriesBitmap bitmapA = random(random, a, expectedA), bitmapB = random(random, b, expectedB);
+				final int[] beforeA = bitmapA.toArray(), beforeB = bitmapB.toArray();
+
+				BitSet expected = (BitSet)expectedA.clone();
+				expected.and(expectedB);
+				assertIds(expected, bitmapA.and(bitmapB));
+				expected = (BitSet)expectedA.clone();
+				expected.or(expectedB);
+				assertIds(expected, bitmapA.or(bitmapB));
+				assertIds(expected, SeriesBitmap.union(Arrays.asList(bitmapA, bitmapB)));
+				expected = (BitSet)expectedA.clone();
+				expected.andNot(expectedB);
+				assertIds(expected, bitmapA.andNot(bitmapB));
+
+				assertArrayEquals(beforeA, bitmapA.toArray());
+				assertArrayEquals(beforeB, bitmapB.toArray());
+
+				final SeriesBitmap result = bitmapA.and(bitmapB);
+				result.add(ID_RANGE + 1);
+				assertFalse("The result shares no containers", bitmapA.contains(ID_RANGE + 1) || bitmapB.contains(ID_RANGE + 1));
+
+				expected = (BitSet)expectedA.clone();
+				expected.or(expectedB);
+				bitmapA.addAll(bitmapB);
+				assertIds(expected, bitmapA);
+				assertArrayEquals(beforeB, bitmapB.toArray());
+			}
+		}
+	}
+
+	/**
+	 * Checks the union of no bitmaps and of a single bitmap
+	 */
+	@Test
+	public void testUnionEdgeCases() {
+		assertTrue(SeriesBitmap.union(Arrays.<SeriesBitmap>asList()).isEmpty());
+		final BitSet expected = new BitSet();
+		final SeriesBitmap bitmap = random(new Random(7L), 100, expected);
+		final SeriesBitmap union = SeriesBitmap.union(Arrays.asList(bitmap));
+		assertIds(expected, union);
+		union.add(ID_RANGE + 1);
+		assertFalse(bitmap.contains(ID_RANGE + 1));
+	}
+
+	/**
+	 * Builds a bitmap of random ids and records them in the passed bit set
+	 * @param random The random source
+	 * @param count The number of ids to add, some of which may repeat
+	 * @param expected The bit set to record the ids in
+	 * @return the bitmap
+	 */
+	private static SeriesBitmap random(final Random random, final int count, final BitSet expected) {
+		final SeriesBitmap bitmap = new SeriesBitmap();
+		for(int i = 0; i < count; i++) {
+			final int id = random.nextInt(ID_RANGE);
+			assertEquals(!expected.get(id), bitmap.add(id));
+			expected.set(id);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Asserts that a bitmap holds exactly the ids set in a bit set
+	 * @param expected The expected ids
+	 * @param actual The bitmap
+	 */
+	private static void assertIds(final BitSet expected, final SeriesBitmap actual) {
+		final int[] ids = new int[expected.cardinality()];
+		for(int id = expected.nextSetBit(0), i = 0; id >= 0; id = expected.nextSetBit(id + 1)) {
+			ids[i++] = id;
+		}
+		assertArrayEquals(ids, actual.toArray());
+		assertEquals(ids.length, actual.cardinality());
+		assertEquals(ids.length==0, actual.isEmpty());
+		for(int id: ids) {
+			assertTrue(actual.contains(id));
+		}
+	}
+}
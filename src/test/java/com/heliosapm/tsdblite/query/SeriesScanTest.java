@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.heliosapm.tsdblite.metric.AppMetric;
+import com.heliosapm.tsdblite.metric.MetricCache;
+
+/**
+ * <p>Title: SeriesScanTest</p>
+ * <p>Description: Checks how a scan orders the points it reads, and how it downsamples and fills them.
+ * The points are fed to the scan before it runs, as if read from the in-memory chunks, the store and the reorder buffer
+ * of a series that holds nothing itself.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.query.SeriesScanTest</code></p>
+ */
+
+public class SeriesScanTest {
+	/** A bucket aligned base timestamp */
+	private static final long BASE = 1500000000000L;
+
+	/**
+	 * Checks overlapping runs are merged in order, keeping the last read point of each timestamp
+	 */
+	@Test
+	public void testOrderKeepsLastPoint() {
+		final SeriesScan scan = scan("test.scan.order", null, Long.MAX_VALUE);
+		feed(scan, new long[]{3000, 5000, 1000, 3000, 4000, 3000}, new double[]{1, 2, 3, 4, 5, 6});
+		scan.call();
+		assertPoints(scan, new long[]{1000, 3000, 4000, 5000}, new double[]{3, 6, 5, 2});
+	}
+
+	/**
+	 * Checks many random runs against a map keeping the last value put for each timestamp
+	 */
+	@Test
+	public void testOrderRandomRuns() {
+		final Random random = new Random(42);
+		for(int round = 0; round < 50; round++) {
+			final SeriesScan scan = scan("test.scan.runs", null, Long.MAX_VALUE);
+			final TreeMap<Long, Double> expected = new TreeMap<Long, Double>();
+			final int runs = 1 + random.nextInt(20);
+			for(int r = 0; r < runs; r++) {
+				long ts = BASE + random.nextInt(500);
+				final int length = random.nextInt(100);
+				for(int i = 0; i < length; i++) {
+					final double value = random.nextDouble();
+					scan.point(ts, value);
+					expected.put(ts, value);
+					ts += random.nextInt(3);
+				}
+			}
+			scan.call();
+			assertEquals(expected.size(), scan.size);
+			int i = 0;
+			for(Map.Entry<Long, Double> entry: expected.entrySet()) {
+				assertEquals(entry.getKey().longValue(), scan.timestamps[i]);
+				assertEquals(entry.getValue().doubleValue(), scan.values[i], 0D);
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * Checks each fill policy on a downsampled scan with an empty bucket and a bucket holding only a NaN.
+	 * The interval is finer than any rollup tier, so the raw points are downsampled.
+	 */
+	@Test
+	public void testDownsampleFill() {
+		final long[] ts = {BASE + 62000, BASE + 1000, BASE + 2000, BASE + 95000, BASE + 65000};
+		final double[] vals = {4, 1, 3, Double.NaN, 6};
+		SeriesScan scan = scan("test.scan.fill", "30s-avg", Long.MAX_VALUE);
+		feed(scan, ts, vals);
+		scan.call();
+		assertPoints(scan, new long[]{BASE, BASE + 60000}, new double[]{2, 5});
+
+		scan = scan("test.scan.fill", "30s-max-zero", Long.MAX_VALUE);
+		feed(scan, ts, vals);
+		scan.call();
+		assertPoints(scan, new long[]{BASE, BASE + 30000, BASE + 60000, BASE + 90000, BASE + 120000}, new double[]{3, 0, 6, 0, 0});
+
+		scan = scan("test.scan.fill", "30s-sum-nan", Long.MAX_VALUE);
+		feed(scan, ts, vals);
+		scan.call();
+		assertPoints(scan, new long[]{BASE, BASE + 30000, BASE + 60000, BASE + 90000, BASE + 120000}, new double[]{4, Double.NaN, 10, Double.NaN, Double.NaN});
+	}
+
+	/**
+	 * Checks a scan fails once its group holds more than the maximum number of points
+	 */
+	@Test
+	public void testMaxPoints() {
+		final SeriesScan scan = scan("test.scan.max", null, 1500);
+		try {
+			for(int i = 0; i < 2048; i++) {
+				scan.point(BASE + i, i);
+			}
+			fail("Expected the scan to fail past the maximum points");
+		} catch (IllegalArgumentException iex) {
+			assertTrue(iex.getMessage().contains("[1500]"));
+		}
+	}
+
+	private static SeriesScan scan(final String metric, final String downsample, final long maxPoints) {
+		final AppMetric appMetric = MetricCache.getInstance().getAppMetric(metric, Collections.singletonMap("host", "a"));
+		final SubQuery query = new SubQuery(metric, Aggregator.SUM, downsample, null);
+		return new SeriesScan(appMetric, query, BASE + 5000, BASE + 120000, new AtomicLong(), maxPoints);
+	}
+
+	private static void feed(final SeriesScan scan, final long[] ts, final double[] vals) {
+		for(int i = 0; i < ts.length; i++) {
+			scan.point(ts[i] < BASE ? BASE + ts[i] : ts[i], vals[i]);
+		}
+	}
+
+	private static void assertPoints(final SeriesScan scan, final long[] ts, final double[] vals) {
+		assertEquals(ts.length, scan.size);
+		for(int i = 0; i < ts.length; i++) {
+			assertEquals(ts[i] < BASE ? BASE + ts[i] : ts[i], scan.timestamps[i]);
+			assertEquals(vals[i], scan.values[i], 0D);
+		}
+	}
+}
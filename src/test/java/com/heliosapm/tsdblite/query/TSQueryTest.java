@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * <p>Title: TSQueryTest</p>
+ * <p>Description: Parses queries in the OpenTSDB query string and JSON forms, and checks what is rejected</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.query.TSQueryTest</code></p>
+ */
+
+public class TSQueryTest {
+
+	/**
+	 * Parses a sub query with a downsample, grouping filters and non grouping filters
+	 */
+	@Test
+	public void testParseSubQuery() {
+		final SubQuery q = SubQuery.parse("sum:5m-max-zero:sys.cpu{host=web*,type=literal_or(a|b)}{dc=not_literal_or(east,west)}");
+		assertEquals("sys.cpu", q.getMetric());
+		assertEquals(Aggregator.SUM, q.getAggregator());
+		assertEquals(300000L, q.getDownsampleInterval());
+		assertEquals(Aggregator.MAX, q.getDownsampler());
+		assertEquals(SubQuery.FillPolicy.ZERO, q.getFill());
+		final List<TagFilter> filters = q.getFilters();
+		assertEquals(3, filters.size());
+		assertFilter(filters.get(0), "host", TagFilter.Type.WILDCARD, "web*", true);
+		assertFilter(filters.get(1), "type", TagFilter.Type.LITERAL_OR, "a|b", true);
+		// the comma inside the parentheses does not split the filters
+		assertFilter(filters.get(2), "dc", TagFilter.Type.NOT_LITERAL_OR, "east,west", false);
+
+		final SubQuery plain = SubQuery.parse("avg:sys.mem");
+		assertEquals("sys.mem", plain.getMetric());
+		assertEquals(0L, plain.getDownsampleInterval());
+		assertNull(plain.getDownsampler());
+		assertEquals(SubQuery.FillPolicy.NONE, plain.getFill());
+		assertTrue(plain.getFilters().isEmpty());
+	}
+
+	/**
+	 * Checks the sub queries that are rejected
+	 */
+	@Test
+	public void testParseSubQueryErrors() {
+		assertRejected("sys.cpu");
+		assertRejected("sum:rate:sys.cpu");
+		assertRejected("sum:foo:sys.cpu");
+		assertRejected("sum:1m-avg-sideways:sys.cpu");
+		assertRejected("sum:0m-avg:sys.cpu");
+		assertRejected("median:sys.cpu");
+		assertRejected("sum:sys.cpu{host=web*");
+		assertRejected("sum:sys.cpu{host}");
+		assertRejected("sum:sys.cpu{host=a}x");
+	}
+
+	/**
+	 * Parses a query from query string parameters
+	 */
+	@Test
+	public void testFromParameters() {
+		final Map<String, List<String>> params = new HashMap<String, List<String>>();
+		params.put("start", Arrays.asList("1h-ago"));
+		params.put("m", Arrays.asList("sum:sys.cpu{host=*}", "max:1m-avg:sys.mem"));
+		final long before = System.currentTimeMillis();
+		TSQuery q = TSQuery.fromParameters(params);
+		final long after = System.currentTimeMillis();
+		assertTrue(q.getStart() >= before - 3600000L && q.getStart() <= after - 3600000L);
+		assertTrue(q.getEnd() >= before && q.getEnd() <= after);
+		assertFalse(q.isMsResolution());
+		assertEquals(2, q.getQueries().size());
+		assertEquals("sys.mem", q.getQueries().get(1).getMetric());
+
+		params.put("start", Arrays.asList("1500000000"));
+		params.put("end", Arrays.asList("1500000060500"));
+		params.put("ms", Arrays.asList(""));
+		q = TSQuery.fromParameters(params);
+		assertEquals(1500000000000L, q.getStart());
+		assertEquals(1500000060500L, q.getEnd());
+		assertTrue(q.isMsResolution());
+
+		params.put("end", Arrays.asList("1400000000"));
+		try {
+			TSQuery.fromParameters(params);
+			fail("Expected an end before the start to be rejected");
+		} catch (IllegalArgumentException iex) {
+			/* expected */
+		}
+		params.remove("end");
+		params.remove("m");
+		try {
+			TSQuery.fromParameters(params);
+			fail("Expected a query without sub queries to be rejected");
+		} catch (IllegalArgumentException iex) {
+			/* expected */
+		}
+	}
+
+	/**
+	 * Parses a JSON query with both a tags map and explicit filters
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFromJson() throws Exception {
+		final String json = "{\"start\":1500000000,\"end\":\"1500000600\",\"msResolution\":true,\"queries\":[" +
+			"{\"aggregator\":\"avg\",\"metric\":\"sys.cpu\",\"downsample\":\"10s-min-nan\",\"tags\":{\"host\":\"web01|web02\"}," +
+			"\"filters\":[{\"type\":\"regexp\",\"tagk\":\"dc\",\"filter\":\"east.*\"}]}]}";
+		final TSQuery q = TSQuery.fromJson(new ObjectMapper().readTree(json));
+		assertEquals(1500000000000L, q.getStart());
+		assertEquals(1500000600000L, q.getEnd());
+		assertTrue(q.isMsResolution());
+		assertEquals(1, q.getQueries().size());
+		final SubQuery sq = q.getQueries().get(0);
+		assertEquals(Aggregator.AVG, sq.getAggregator());
+		assertEquals(10000L, sq.getDownsampleInterval());
+		assertEquals(Aggregator.MIN, sq.getDownsampler());
+		assertEquals(SubQuery.FillPolicy.NAN, sq.getFill());
+		assertEquals(2, sq.getFilters().size());
+		assertFilter(sq.getFilters().get(0), "host", TagFilter.Type.LITERAL_OR, "web01|web02", true);
+		assertFilter(sq.getFilters().get(1), "dc", TagFilter.Type.REGEXP, "east.*", false);
+
+		try {
+			TSQuery.fromJson(new ObjectMapper().readTree("{\"start\":\"1h-ago\",\"queries\":[{\"aggregator\":\"sum\",\"metric\":\"sys.cpu\",\"rate\":true}]}"));
+			fail("Expected a rate query to be rejected");
+		} catch (IllegalArgumentException iex) {
+			/* expected */
+		}
+	}
+
+	/**
+	 * Parses relative times and durations
+	 */
+	@Test
+	public void testParseTime() {
+		final long now = 1500000000000L;
+		assertEquals(now - 250L, TSQuery.parseTime("250ms-ago", now));
+		assertEquals(now - 90000L, TSQuery.parseTime("90s-ago", now));
+		assertEquals(now - 2L * 86400000L * 7, TSQuery.parseTime("2w-ago", now));
+		assertEquals(86400000L * 30, TSQuery.parseDuration("1n"));
+		assertEquals(86400000L * 365, TSQuery.parseDuration("1y"));
+		for(String bad: new String[]{"m-ago", "15-ago", "15x-ago", "yesterday", "2017/13/45"}) {
+			try {
+				TSQuery.parseTime(bad, now);
+				fail("Expected [" + bad + "] to be rejected");
+			} catch (IllegalArgumentException iex) {
+				/* expected */
+			}
+		}
+	}
+
+	private static void assertFilter(final TagFilter filter, final String tagKey, final TagFilter.Type type, final String expression, final boolean groupBy) {
+		assertEquals(tagKey, filter.getTagKey());
+		assertEquals(type, filter.getType());
+		assertEquals(expression, filter.getFilter());
+		assertEquals(groupBy, filter.isGroupBy());
+	}
+
+	private static void assertRejected(final String m) {
+		try {
+			SubQuery.parse(m);
+			fail("Expected [" + m + "] to be rejected");
+		} catch (IllegalArgumentException iex) {
+			/* expected */
+		}
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.tsdblite.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.heliosapm.tsdblite.Constants;
+import com.heliosapm.tsdblite.chunk.PointSink;
+import com.heliosapm.tsdblite.metric.AppMetric;
+import com.heliosapm.tsdblite.metric.Metric;
+import com.heliosapm.tsdblite.metric.MetricCache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * <p>Title: WriteAheadLogTest</p>
+ * <p>Description: Replays segments left by an earlier process, written here in the log's format,
+ * including a torn block at the end of one segment and a block with a bad checksum in another.</p>
+ * <p>The log only replays the segments that were on disk when it started, so it must not have been
+ * started in this JVM before the segments are written.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tsdblite.store.WriteAheadLogTest</code></p>
+ */
+
+public class WriteAheadLogTest {
+	/** The log directory */
+	private static File dir;
+
+	private static final Charset UTF8 = Charset.forName("UTF8");
+
+	/**
+	 * Points the log at a new directory
+	 * @throws IOException thrown on any IO error
+	 */
+	@BeforeClass
+	public static void setUp() throws IOException {
+		dir = File.createTempFile("wal", "");
+		assertTrue(dir.delete() && dir.mkdirs());
+		System.setProperty(Constants.CONF_WAL_DIR, dir.getAbsolutePath());
+	}
+
+	/**
+	 * Closes the log and deletes its directory
+	 */
+	@AfterClass
+	public static void tearDown() {
+		WriteAheadLog.getInstance().close();
+		final File[] files = dir.listFiles();
+		if(files!=null) {
+			for(File f: files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Replays two segments and checks the points restored for each series, keeping the last logged point of a timestamp
+	 * @throws IOException thrown on any IO error
+	 */
+	@Test
+	public void testReplay() throws IOException {
+		final MetricCache metricCache = MetricCache.getInstance();
+		final AppMetric cpu = metricCache.getAppMetric("test.wal.cpu", Collections.singletonMap("host", "a"));
+		final AppMetric mem = metricCache.getAppMetric("test.wal.mem", Collections.singletonMap("host", "a"));
+		final long ts = System.currentTimeMillis() - 60000L;
+
+		ByteBuf block = Unpooled.buffer();
+		define(block, cpu.getMetricInstance());
+		define(block, mem.getMetricInstance());
+		point(block, cpu.getMetricInstance(), false, 5L, 0D, ts);
+		point(block, mem.getMetricInstance(), true, 0L, 2.5D, ts);
+		final ByteBuf first = Unpooled.buffer();
+		first.writeInt(WriteAheadLog.MAGIC);
+		block(first, block, false);
+		block = Unpooled.buffer();
+		point(block, cpu.getMetricInstance(), false, 7L, 0D, ts + 1000L);
+		point(block, cpu.getMetricInstance(), false, 9L, 0D, ts);
+		// a series never defined in the log is skipped
+		block.writeByte(WriteAheadLog.LONG_POINT).writeLong(42L).writeLong(43L).writeLong(ts).writeLong(1L);
+		block(first, block, false);
+		// torn: the header claims more than was written
+		first.writeInt(100).writeInt(0).writeLong(0L);
+		write(1L, first);
+
+		final ByteBuf second = Unpooled.buffer();
+		second.writeInt(WriteAheadLog.MAGIC);
+		block = Unpooled.buffer();
+		define(block, cpu.getMetricInstance());
+		point(block, cpu.getMetricInstance(), true, 0L, 11.5D, ts + 2000L);
+		block(second, block, false);
+		block = Unpooled.buffer();
+		point(block, cpu.getMetricInstance(), false, 13L, 0D, ts + 3000L);
+		block(second, block, true);
+		// not read, since nothing after a corrupt block can be trusted
+		block = Unpooled.buffer();
+		point(block, cpu.getMetricInstance(), false, 17L, 0D, ts + 4000L);
+		block(second, block, false);
+		write(2L, second);
+
+		final WriteAheadLog wal = WriteAheadLog.getInstance();
+		assertEquals(dir.getAbsolutePath(), new File(wal.getDirectory()).getAbsolutePath());
+		assertEquals(3L, wal.getSegment());
+		assertEquals(5L, wal.replay());
+		assertEquals(5L, wal.getReplayedPoints());
+		assertEquals(2L, wal.getCorruptBlocks());
+
+		final TreeMap<Long, Double> cpuPoints = read(cpu);
+		assertEquals(3, cpuPoints.size());
+		assertEquals(9D, cpuPoints.get(ts), 0D);
+		assertEquals(7D, cpuPoints.get(ts + 1000L), 0D);
+		assertEquals(11.5D, cpuPoints.get(ts + 2000L), 0D);
+		final TreeMap<Long, Double> memPoints = read(mem);
+		assertEquals(1, memPoints.size());
+		assertEquals(2.5D, memPoints.get(ts), 0D);
+	}
+
+	private static void define(final ByteBuf block, final Metric metric) {
+		block.writeByte(WriteAheadLog.DEFINE);
+		block.writeLong(metric.getHashCode());
+		block.writeLong(metric.getHashCodeHigh());
+		writeString(block, metric.getMetricName());
+		block.writeByte(metric.getTagCount());
+		for(int i = 0; i < metric.getTagCount(); i++) {
+			writeString(block, metric.getTagKey(i));
+			writeString(block, metric.getTagValue(i));
+		}
+	}
+
+	private static void writeString(final ByteBuf block, final String s) {
+		final byte[] bytes = s.getBytes(UTF8);
+		block.writeShort(bytes.length);
+		block.writeBytes(bytes);
+	}
+
+	private static void point(final ByteBuf block, final Metric metric, final boolean doubleType, final long longValue, final double doubleValue, final long timestamp) {
+		block.writeByte(doubleType ? WriteAheadLog.DOUBLE_POINT : WriteAheadLog.LONG_POINT);
+		block.writeLong(metric.getHashCode());
+		block.writeLong(metric.getHashCodeHigh());
+		block.writeLong(timestamp);
+		block.writeLong(doubleType ? Double.doubleToRawLongBits(doubleValue) : longValue);
+	}
+
+	/**
+	 * Appends a block: the payload length, its CRC32 and the payload
+	 * @param segment The segment to append to
+	 * @param payload The block payload
+	 * @param corrupt true to write a bad checksum
+	 */
+	private static void block(final ByteBuf segment, final ByteBuf payload, final boolean corrupt) {
+		final CRC32 crc = new CRC32();
+		crc.update(payload.array(), payload.arrayOffset() + payload.readerIndex(), payload.readableBytes());
+		segment.writeInt(payload.readableBytes());
+		segment.writeInt((int)crc.getValue() + (corrupt ? 1 : 0));
+		segment.writeBytes(payload);
+	}
+
+	private static void write(final long seq, final ByteBuf segment) throws IOException {
+		final FileOutputStream fos = new FileOutputStream(new File(dir, String.format("wal-%016d.log", seq)));
+		try {
+			fos.write(segment.array(), segment.arrayOffset() + segment.readerIndex(), segment.readableBytes());
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Reads a series' stored points once the reorder buffer has released them
+	 * @param appMetric The series
+	 * @return the points by timestamp
+	 */
+	private static TreeMap<Long, Double> read(final AppMetric appMetric) {
+		final TreeMap<Long, Double> points = new TreeMap<Long, Double>();
+		appMetric.drain();
+		appMetric.getChunks().read(0L, Long.MAX_VALUE, new PointSink() {
+			@Override
+			public void point(final long timestamp, final double value) {
+				points.put(timestamp, value);
+			}
+		});
+		return points;
+	}
+}